@@ -43,6 +43,8 @@ public class Permission {
         ADMIN_CODE.add(RequestCode.UPDATE_AND_CREATE_SUBSCRIPTIONGROUP);
         // DELETE_SUBSCRIPTIONGROUP
         ADMIN_CODE.add(RequestCode.DELETE_SUBSCRIPTIONGROUP);
+        // UPDATE_QUOTA
+        ADMIN_CODE.add(RequestCode.UPDATE_QUOTA);
     }
 
     public static boolean checkPermission(byte neededPerm, byte ownedPerm) {
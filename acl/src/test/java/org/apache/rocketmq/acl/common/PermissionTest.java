@@ -146,6 +146,7 @@ public class PermissionTest {
         code.add(215);
         code.add(200);
         code.add(207);
+        code.add(328);
 
         for (int i = 0; i < 400; i++) {
             boolean boo = Permission.needAdminPerm(i);
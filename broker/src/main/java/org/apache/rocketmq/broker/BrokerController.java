@@ -47,6 +47,8 @@ import org.apache.rocketmq.broker.filter.ConsumerFilterManager;
 import org.apache.rocketmq.broker.filtersrv.FilterServerManager;
 import org.apache.rocketmq.broker.latency.BrokerFastFailure;
 import org.apache.rocketmq.broker.latency.BrokerFixedThreadPoolExecutor;
+import org.apache.rocketmq.broker.latency.FairRequestQueue;
+import org.apache.rocketmq.broker.latency.QueueWaitHistogram;
 import org.apache.rocketmq.broker.longpolling.NotifyMessageArrivingListener;
 import org.apache.rocketmq.broker.longpolling.PullRequestHoldService;
 import org.apache.rocketmq.broker.mqtrace.ConsumeMessageHook;
@@ -63,6 +65,8 @@ import org.apache.rocketmq.broker.processor.PullMessageProcessor;
 import org.apache.rocketmq.broker.processor.QueryMessageProcessor;
 import org.apache.rocketmq.broker.processor.ReplyMessageProcessor;
 import org.apache.rocketmq.broker.processor.SendMessageProcessor;
+import org.apache.rocketmq.broker.quota.QuotaManager;
+import org.apache.rocketmq.broker.quota.QuotaRequestLimiter;
 import org.apache.rocketmq.broker.slave.SlaveSynchronize;
 import org.apache.rocketmq.broker.subscription.SubscriptionGroupManager;
 import org.apache.rocketmq.broker.topic.TopicConfigManager;
@@ -125,6 +129,7 @@ public class BrokerController {
     private final MessageArrivingListener messageArrivingListener;
     private final Broker2Client broker2Client;
     private final SubscriptionGroupManager subscriptionGroupManager;
+    private final QuotaManager quotaManager;
     private final ConsumerIdsChangeListener consumerIdsChangeListener;
     private final RebalanceLockManager rebalanceLockManager = new RebalanceLockManager();
     private final BrokerOuterAPI brokerOuterAPI;
@@ -190,13 +195,19 @@ public class BrokerController {
         this.clientHousekeepingService = new ClientHousekeepingService(this);
         this.broker2Client = new Broker2Client(this);
         this.subscriptionGroupManager = new SubscriptionGroupManager(this);
+        this.quotaManager = new QuotaManager(this);
         this.brokerOuterAPI = new BrokerOuterAPI(nettyClientConfig);
         this.filterServerManager = new FilterServerManager(this);
 
         this.slaveSynchronize = new SlaveSynchronize(this);
 
-        this.sendThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getSendThreadPoolQueueCapacity());
-        this.pullThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getPullThreadPoolQueueCapacity());
+        if (this.brokerConfig.isFairRequestQueueEnable()) {
+            this.sendThreadPoolQueue = new FairRequestQueue(this.brokerConfig.getSendThreadPoolQueueCapacity(), this.brokerConfig);
+            this.pullThreadPoolQueue = new FairRequestQueue(this.brokerConfig.getPullThreadPoolQueueCapacity(), this.brokerConfig);
+        } else {
+            this.sendThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getSendThreadPoolQueueCapacity());
+            this.pullThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getPullThreadPoolQueueCapacity());
+        }
         this.replyThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getReplyThreadPoolQueueCapacity());
         this.queryThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getQueryThreadPoolQueueCapacity());
         this.clientManagerThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getClientManagerThreadPoolQueueCapacity());
@@ -237,6 +248,7 @@ public class BrokerController {
         result = result && this.consumerOffsetManager.load();
         result = result && this.subscriptionGroupManager.load();
         result = result && this.consumerFilterManager.load();
+        result = result && this.quotaManager.load();
 
         if (result) {
             try {
@@ -265,6 +277,8 @@ public class BrokerController {
             NettyServerConfig fastConfig = (NettyServerConfig) this.nettyServerConfig.clone();
             fastConfig.setListenPort(nettyServerConfig.getListenPort() - 2);
             this.fastRemotingServer = new NettyRemotingServer(fastConfig, this.clientHousekeepingService);
+            this.remotingServer.registerRequestLimiter(new QuotaRequestLimiter(this.quotaManager));
+            this.fastRemotingServer.registerRequestLimiter(new QuotaRequestLimiter(this.quotaManager));
             this.sendMessageExecutor = new BrokerFixedThreadPoolExecutor(
                 this.brokerConfig.getSendMessageThreadPoolNums(),
                 this.brokerConfig.getSendMessageThreadPoolNums(),
@@ -695,6 +709,16 @@ public class BrokerController {
         LOG_WATER_MARK.info("[WATERMARK] Pull Queue Size: {} SlowTimeMills: {}", this.pullThreadPoolQueue.size(), headSlowTimeMills4PullThreadPoolQueue());
         LOG_WATER_MARK.info("[WATERMARK] Query Queue Size: {} SlowTimeMills: {}", this.queryThreadPoolQueue.size(), headSlowTimeMills4QueryThreadPoolQueue());
         LOG_WATER_MARK.info("[WATERMARK] Transaction Queue Size: {} SlowTimeMills: {}", this.endTransactionThreadPoolQueue.size(), headSlowTimeMills4EndTransactionThreadPoolQueue());
+        this.printQueueWait("Send", this.sendThreadPoolQueue);
+        this.printQueueWait("Pull", this.pullThreadPoolQueue);
+    }
+
+    private void printQueueWait(final String queueName, final BlockingQueue<Runnable> queue) {
+        if (queue instanceof FairRequestQueue) {
+            for (Map.Entry<String, QueueWaitHistogram.Snapshot> entry : ((FairRequestQueue) queue).drainWaitHistograms().entrySet()) {
+                LOG_WATER_MARK.info("[WATERMARK] {} Queue Wait of {}: {}", queueName, entry.getKey(), entry.getValue());
+            }
+        }
     }
 
     public MessageStore getMessageStore() {
@@ -752,6 +776,10 @@ public class BrokerController {
         return subscriptionGroupManager;
     }
 
+    public QuotaManager getQuotaManager() {
+        return quotaManager;
+    }
+
     public void shutdown() {
         if (this.brokerStatsManager != null) {
             this.brokerStatsManager.shutdown();
@@ -810,6 +838,7 @@ public class BrokerController {
         }
 
         this.consumerOffsetManager.persist();
+        this.consumerOffsetManager.shutdown();
 
         if (this.filterServerManager != null) {
             this.filterServerManager.shutdown();
@@ -39,10 +39,18 @@ public class BrokerPathConfigHelper {
         return rootDir + File.separator + "config" + File.separator + "consumerOffset.json";
     }
 
+    public static String getConsumerOffsetJournalPath(final String rootDir) {
+        return rootDir + File.separator + "config" + File.separator + "consumerOffset.journal";
+    }
+
     public static String getSubscriptionGroupPath(final String rootDir) {
         return rootDir + File.separator + "config" + File.separator + "subscriptionGroup.json";
     }
 
+    public static String getQuotaPath(final String rootDir) {
+        return rootDir + File.separator + "config" + File.separator + "quota.json";
+    }
+
     public static String getConsumerFilterPath(final String rootDir) {
         return rootDir + File.separator + "config" + File.separator + "consumerFilter.json";
     }
@@ -94,6 +94,19 @@ public class BrokerFastFailure {
     }
 
     void cleanExpiredRequestInQueue(final BlockingQueue<Runnable> blockingQueue, final long maxWaitTimeMillsInQueue) {
+        if (blockingQueue instanceof FairRequestQueue) {
+            // The next request served is not the oldest one, each group has its own oldest request
+            for (Runnable runnable : ((FairRequestQueue) blockingQueue).pollExpired(maxWaitTimeMillsInQueue)) {
+                try {
+                    final RequestTask rt = castRunnable(runnable);
+                    rt.setStopRun(true);
+                    rt.returnResponse(RemotingSysResponseCode.SYSTEM_BUSY, String.format("[TIMEOUT_CLEAN_QUEUE]broker busy, start flow control for a while, period in queue: %sms, size of queue: %d", System.currentTimeMillis() - rt.getCreateTimestamp(), blockingQueue.size()));
+                } catch (Throwable ignored) {
+                }
+            }
+            return;
+        }
+
         while (true) {
             try {
                 if (!blockingQueue.isEmpty()) {
@@ -0,0 +1,505 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.broker.latency;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.protocol.RequestCode;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.remoting.netty.RequestTask;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+
+/**
+ * Work queue of a broker pool serving the requests of the producer or consumer groups in weighted round robin.
+ * <p>
+ * Each group, or each topic with {@link BrokerConfig#isFairRequestQueueByTopic()}, has its own FIFO lane. The lanes
+ * holding requests take turns, each serving as many requests as its weight per turn (deficit round robin with unit
+ * cost), so a group flooding the broker only delays its own requests. The lanes of the priority groups are served
+ * before all the others. A lane may hold at most {@link BrokerConfig#getFairRequestQueueTenantCapacityPercent()}
+ * percent of the queue capacity, past which the pool rejects its requests. The percentage is the same for every
+ * group or topic, there are no caps per tenant.
+ * <p>
+ * The order of serving ignores how long the requests waited. The ones past the wait time of the pool are not served
+ * first but removed by {@link #pollExpired(long)}, which {@link BrokerFastFailure} calls every few milliseconds to
+ * answer them busy, since their clients time out before a late response arrives.
+ */
+public class FairRequestQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.BROKER_LOGGER_NAME);
+    private static final String DEFAULT_TENANT = "";
+
+    private final int capacity;
+    private final BrokerConfig brokerConfig;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = this.lock.newCondition();
+    private final Condition notFull = this.lock.newCondition();
+    private final Map<String, Lane> lanes = new HashMap<String, Lane>();
+    private final ArrayDeque<Lane> activeLanes = new ArrayDeque<Lane>();
+    private final ArrayDeque<Lane> priorityLanes = new ArrayDeque<Lane>();
+    private final ConcurrentMap<String, QueueWaitHistogram> waitHistograms =
+        new ConcurrentHashMap<String, QueueWaitHistogram>();
+    private int count;
+
+    private String weightsConfig;
+    private Map<String, Integer> weights = Collections.emptyMap();
+    private String priorityTenantsConfig;
+    private Set<String> priorityTenants = Collections.emptySet();
+
+    public FairRequestQueue(final int capacity, final BrokerConfig brokerConfig) {
+        this.capacity = capacity;
+        this.brokerConfig = brokerConfig;
+    }
+
+    @Override
+    public boolean offer(final Runnable runnable) {
+        if (runnable == null) {
+            throw new NullPointerException();
+        }
+
+        String tenant = this.tenantOf(runnable);
+        this.lock.lock();
+        try {
+            return this.enqueue(tenant, runnable);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(final Runnable runnable) throws InterruptedException {
+        if (runnable == null) {
+            throw new NullPointerException();
+        }
+
+        String tenant = this.tenantOf(runnable);
+        this.lock.lockInterruptibly();
+        try {
+            while (!this.enqueue(tenant, runnable)) {
+                this.notFull.await();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(final Runnable runnable, final long timeout, final TimeUnit unit) throws InterruptedException {
+        if (runnable == null) {
+            throw new NullPointerException();
+        }
+
+        String tenant = this.tenantOf(runnable);
+        long nanos = unit.toNanos(timeout);
+        this.lock.lockInterruptibly();
+        try {
+            while (!this.enqueue(tenant, runnable)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = this.notFull.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        this.lock.lock();
+        try {
+            return this.count > 0 ? this.dequeue() : null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        this.lock.lockInterruptibly();
+        try {
+            while (this.count == 0) {
+                this.notEmpty.await();
+            }
+            return this.dequeue();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        this.lock.lockInterruptibly();
+        try {
+            while (this.count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = this.notEmpty.awaitNanos(nanos);
+            }
+            return this.dequeue();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the request to be served next
+     */
+    @Override
+    public Runnable peek() {
+        this.lock.lock();
+        try {
+            if (this.count == 0) {
+                return null;
+            }
+            ArrayDeque<Lane> lanes = !this.priorityLanes.isEmpty() ? this.priorityLanes : this.activeLanes;
+            return lanes.peekFirst().tasks.peekFirst();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+        if (o == null) {
+            return false;
+        }
+
+        this.lock.lock();
+        try {
+            for (Lane lane : this.lanes.values()) {
+                if (lane.tasks.remove(o)) {
+                    this.removed(lane);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the requests which waited longer than the given time, checking the oldest request of each lane.
+     */
+    public List<Runnable> pollExpired(final long maxWaitTimeMillis) {
+        List<Runnable> expired = new ArrayList<Runnable>();
+        long now = System.currentTimeMillis();
+        this.lock.lock();
+        try {
+            for (Lane lane : new ArrayList<Lane>(this.lanes.values())) {
+                while (!lane.tasks.isEmpty()) {
+                    RequestTask requestTask = requestTaskOf(lane.tasks.peekFirst());
+                    if (requestTask == null || now - requestTask.getCreateTimestamp() < maxWaitTimeMillis) {
+                        break;
+                    }
+                    expired.add(lane.tasks.pollFirst());
+                    this.removed(lane);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        return expired;
+    }
+
+    /**
+     * Take the queue wait times recorded per group, or per topic, since the last call.
+     */
+    public Map<String, QueueWaitHistogram.Snapshot> drainWaitHistograms() {
+        Map<String, QueueWaitHistogram.Snapshot> snapshots = new HashMap<String, QueueWaitHistogram.Snapshot>();
+        for (Iterator<Map.Entry<String, QueueWaitHistogram>> it = this.waitHistograms.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, QueueWaitHistogram> entry = it.next();
+            QueueWaitHistogram.Snapshot snapshot = entry.getValue().drain();
+            if (snapshot.getCount() > 0) {
+                snapshots.put(entry.getKey(), snapshot);
+            } else {
+                // Forget the idle tenants, a request recorded meanwhile is only lost from the statistics
+                it.remove();
+            }
+        }
+        return snapshots;
+    }
+
+    @Override
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        this.lock.lock();
+        try {
+            return this.capacity - this.count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(final Collection<? super Runnable> c) {
+        return this.drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super Runnable> c, final int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+
+        this.lock.lock();
+        try {
+            int drained = 0;
+            while (this.count > 0 && drained < maxElements) {
+                c.add(this.dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return an iterator over a snapshot of the requests, removing through it removes from the queue
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> snapshot = new ArrayList<Runnable>();
+        this.lock.lock();
+        try {
+            for (Lane lane : this.lanes.values()) {
+                snapshot.addAll(lane.tasks);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        final Iterator<Runnable> it = snapshot.iterator();
+        return new Iterator<Runnable>() {
+            private Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                this.last = it.next();
+                return this.last;
+            }
+
+            @Override
+            public void remove() {
+                if (this.last == null) {
+                    throw new IllegalStateException();
+                }
+                FairRequestQueue.this.remove(this.last);
+                this.last = null;
+            }
+        };
+    }
+
+    private boolean enqueue(final String tenant, final Runnable runnable) {
+        if (this.count >= this.capacity) {
+            return false;
+        }
+
+        Lane lane = this.lanes.get(tenant);
+        if (lane == null) {
+            lane = new Lane(tenant, this.priorityTenants().contains(tenant));
+            this.lanes.put(tenant, lane);
+        }
+        int tenantCapacity = Math.max(1, (int) ((long) this.capacity * this.brokerConfig.getFairRequestQueueTenantCapacityPercent() / 100));
+        if (lane.tasks.size() >= tenantCapacity) {
+            return false;
+        }
+
+        if (lane.tasks.isEmpty()) {
+            (lane.priority ? this.priorityLanes : this.activeLanes).addLast(lane);
+        }
+        lane.tasks.addLast(runnable);
+        this.count++;
+        this.notEmpty.signal();
+        return true;
+    }
+
+    private Runnable dequeue() {
+        ArrayDeque<Lane> lanes = !this.priorityLanes.isEmpty() ? this.priorityLanes : this.activeLanes;
+        Lane lane = lanes.peekFirst();
+        if (lane.credit <= 0) {
+            lane.credit = lane.priority ? 1 : this.weightOf(lane.tenant);
+        }
+
+        Runnable runnable = lane.tasks.pollFirst();
+        lane.credit--;
+        this.count--;
+        if (lane.tasks.isEmpty()) {
+            lanes.pollFirst();
+            this.lanes.remove(lane.tenant);
+        } else if (lane.credit <= 0) {
+            lanes.addLast(lanes.pollFirst());
+        }
+        this.notFull.signal();
+
+        RequestTask requestTask = requestTaskOf(runnable);
+        if (requestTask != null) {
+            QueueWaitHistogram histogram = this.waitHistograms.get(lane.tenant);
+            if (histogram == null) {
+                histogram = new QueueWaitHistogram();
+                QueueWaitHistogram prev = this.waitHistograms.putIfAbsent(lane.tenant, histogram);
+                histogram = prev != null ? prev : histogram;
+            }
+            histogram.record(System.currentTimeMillis() - requestTask.getCreateTimestamp());
+        }
+        return runnable;
+    }
+
+    private void removed(final Lane lane) {
+        this.count--;
+        if (lane.tasks.isEmpty()) {
+            (lane.priority ? this.priorityLanes : this.activeLanes).remove(lane);
+            this.lanes.remove(lane.tenant);
+        }
+        this.notFull.signal();
+    }
+
+    private int weightOf(final String tenant) {
+        String config = this.brokerConfig.getFairRequestQueueWeights();
+        if (config != null && !config.equals(this.weightsConfig)) {
+            Map<String, Integer> weights = new HashMap<String, Integer>();
+            for (String pair : config.split(",")) {
+                int index = pair.lastIndexOf(':');
+                try {
+                    if (index > 0) {
+                        weights.put(pair.substring(0, index).trim(), Math.max(1, Integer.parseInt(pair.substring(index + 1).trim())));
+                    } else if (!pair.trim().isEmpty()) {
+                        log.warn("invalid fair request queue weight {}", pair);
+                    }
+                } catch (NumberFormatException e) {
+                    log.warn("invalid fair request queue weight {}", pair);
+                }
+            }
+            this.weights = weights;
+            this.weightsConfig = config;
+        }
+
+        Integer weight = this.weights.get(tenant);
+        return weight != null ? weight : 1;
+    }
+
+    private Set<String> priorityTenants() {
+        String config = this.brokerConfig.getFairRequestQueuePriorityTenants();
+        if (config != null && !config.equals(this.priorityTenantsConfig)) {
+            Set<String> priorityTenants = new HashSet<String>();
+            for (String tenant : config.split(",")) {
+                if (!tenant.trim().isEmpty()) {
+                    priorityTenants.add(tenant.trim());
+                }
+            }
+            this.priorityTenants = priorityTenants;
+            this.priorityTenantsConfig = config;
+        }
+        return this.priorityTenants;
+    }
+
+    private String tenantOf(final Runnable runnable) {
+        RequestTask requestTask = requestTaskOf(runnable);
+        if (requestTask == null) {
+            return DEFAULT_TENANT;
+        }
+
+        RemotingCommand request = requestTask.getRequest();
+        Map<String, String> fields = request != null ? request.getExtFields() : null;
+        if (fields == null) {
+            return DEFAULT_TENANT;
+        }
+        boolean byTopic = this.brokerConfig.isFairRequestQueueByTopic();
+        String tenant;
+        switch (request.getCode()) {
+            case RequestCode.SEND_MESSAGE:
+                tenant = fields.get(byTopic ? "topic" : "producerGroup");
+                break;
+            case RequestCode.SEND_MESSAGE_V2:
+            case RequestCode.SEND_BATCH_MESSAGE:
+                tenant = fields.get(byTopic ? "b" : "a");
+                break;
+            case RequestCode.CONSUMER_SEND_MSG_BACK:
+                tenant = fields.get(byTopic ? "originTopic" : "group");
+                break;
+            case RequestCode.PULL_MESSAGE:
+                tenant = fields.get(byTopic ? "topic" : "consumerGroup");
+                break;
+            default:
+                tenant = null;
+                break;
+        }
+        return tenant != null ? tenant : DEFAULT_TENANT;
+    }
+
+    private static RequestTask requestTaskOf(final Runnable runnable) {
+        if (runnable instanceof FutureTaskExt) {
+            Runnable task = ((FutureTaskExt<?>) runnable).getRunnable();
+            if (task instanceof RequestTask) {
+                return (RequestTask) task;
+            }
+        }
+        return null;
+    }
+
+    private static class Lane {
+        private final String tenant;
+        private final boolean priority;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        // Requests the lane may still serve in its turn
+        private int credit;
+
+        Lane(final String tenant, final boolean priority) {
+            this.tenant = tenant;
+            this.priority = priority;
+        }
+    }
+}
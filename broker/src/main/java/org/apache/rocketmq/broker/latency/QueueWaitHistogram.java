@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.broker.latency;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of the time requests wait in a queue, in buckets of powers of two milliseconds.
+ */
+public class QueueWaitHistogram {
+    private static final int BUCKETS = 24;
+
+    // Bucket i counts the waits in [2^(i-1), 2^i) ms, bucket 0 the waits below 1 ms
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    public void record(final long waitTimeMillis) {
+        int bucket = waitTimeMillis <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(waitTimeMillis));
+        this.buckets.incrementAndGet(bucket);
+    }
+
+    /**
+     * Take the waits recorded since the last call.
+     */
+    public Snapshot drain() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets.getAndSet(i, 0);
+        }
+        return new Snapshot(counts);
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+
+        Snapshot(final long[] counts) {
+            this.counts = counts;
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            this.count = count;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the upper bound in milliseconds of the bucket holding the percentile, 0 when nothing was recorded
+         */
+        public long percentile(final double percentile) {
+            long rank = (long) Math.ceil(this.count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if (seen >= rank && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count: %d p50: <%dms p99: <%dms max: <%dms", this.count, this.percentile(50),
+                this.percentile(99), this.percentile(100));
+        }
+    }
+}
@@ -30,6 +30,10 @@ public class ManyPullRequest {
         this.pullRequestList.addAll(many);
     }
 
+    public synchronized void removePullRequest(final PullRequest pullRequest) {
+        this.pullRequestList.remove(pullRequest);
+    }
+
     public synchronized List<PullRequest> cloneListAndClear() {
         if (!this.pullRequestList.isEmpty()) {
             List<PullRequest> result = (ArrayList<PullRequest>) this.pullRequestList.clone();
@@ -17,6 +17,7 @@
 package org.apache.rocketmq.broker.longpolling;
 
 import io.netty.channel.Channel;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.rocketmq.common.protocol.heartbeat.SubscriptionData;
 import org.apache.rocketmq.remoting.protocol.RemotingCommand;
 import org.apache.rocketmq.store.MessageFilter;
@@ -29,6 +30,7 @@ public class PullRequest {
     private final long pullFromThisOffset;
     private final SubscriptionData subscriptionData;
     private final MessageFilter messageFilter;
+    private final AtomicBoolean completed = new AtomicBoolean(false);
 
     public PullRequest(RemotingCommand requestCommand, Channel clientChannel, long timeoutMillis, long suspendTimestamp,
         long pullFromThisOffset, SubscriptionData subscriptionData,
@@ -69,4 +71,21 @@ public class PullRequest {
     public MessageFilter getMessageFilter() {
         return messageFilter;
     }
+
+    public long getDeadline() {
+        return suspendTimestamp + timeoutMillis;
+    }
+
+    /**
+     * Mark the request as woken up, either by a message or by its timeout.
+     *
+     * @return false if it had been woken up already
+     */
+    public boolean complete() {
+        return completed.compareAndSet(false, true);
+    }
+
+    public boolean isCompleted() {
+        return completed.get();
+    }
 }
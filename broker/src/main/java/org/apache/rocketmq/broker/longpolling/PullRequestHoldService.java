@@ -17,32 +17,51 @@
 package org.apache.rocketmq.broker.longpolling;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import org.apache.rocketmq.broker.BrokerController;
 import org.apache.rocketmq.common.ServiceThread;
 import org.apache.rocketmq.common.SystemClock;
 import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.protocol.heartbeat.SubscriptionData;
 import org.apache.rocketmq.logging.InternalLogger;
 import org.apache.rocketmq.logging.InternalLoggerFactory;
 import org.apache.rocketmq.store.ConsumeQueueExt;
 
+/**
+ * Holds the suspended pull requests of each queue until a message arrives for them or they time out.
+ * <p>
+ * Arrivals are pushed by {@link NotifyMessageArrivingListener}, so nothing scans the queues. Timeouts are kept in a
+ * hashed timing wheel advanced by this service every {@link #TICK_MILLIS}: a request sits in the slot of its deadline,
+ * and each tick only visits the slot due, whatever the number of suspended requests.
+ */
 public class PullRequestHoldService extends ServiceThread {
     private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.BROKER_LOGGER_NAME);
-    private static final String TOPIC_QUEUEID_SEPARATOR = "@";
+    static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 512;
     private final BrokerController brokerController;
     private final SystemClock systemClock = new SystemClock();
-    private ConcurrentMap<String/* topic@queueId */, ManyPullRequest> pullRequestTable =
-        new ConcurrentHashMap<String, ManyPullRequest>(1024);
+    private ConcurrentMap<TopicQueueKey, ManyPullRequest> pullRequestTable =
+        new ConcurrentHashMap<TopicQueueKey, ManyPullRequest>(1024);
+    // Requests suspended since the last tick, moved into the wheel by this service only
+    private final ConcurrentLinkedQueue<PullRequestTimeout> newTimeouts = new ConcurrentLinkedQueue<PullRequestTimeout>();
+    @SuppressWarnings("unchecked")
+    private final List<PullRequestTimeout>[] wheel = new List[WHEEL_SIZE];
+    private long lastTick = -1;
 
     public PullRequestHoldService(final BrokerController brokerController) {
         this.brokerController = brokerController;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            this.wheel[i] = new ArrayList<PullRequestTimeout>();
+        }
     }
 
     public void suspendPullRequest(final String topic, final int queueId, final PullRequest pullRequest) {
-        String key = this.buildKey(topic, queueId);
+        TopicQueueKey key = new TopicQueueKey(topic, queueId);
         ManyPullRequest mpr = this.pullRequestTable.get(key);
         if (null == mpr) {
             mpr = new ManyPullRequest();
@@ -53,14 +72,13 @@ public class PullRequestHoldService extends ServiceThread {
         }
 
         mpr.addPullRequest(pullRequest);
-    }
+        this.newTimeouts.add(new PullRequestTimeout(pullRequest, mpr));
 
-    private String buildKey(final String topic, final int queueId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(topic);
-        sb.append(TOPIC_QUEUEID_SEPARATOR);
-        sb.append(queueId);
-        return sb.toString();
+        // A message stored after the pull found none and before it was added to the table would not be notified
+        final long offset = this.brokerController.getMessageStore().getMaxOffsetInQueue(topic, queueId);
+        if (offset > pullRequest.getPullFromThisOffset()) {
+            this.notifyMessageArriving(topic, queueId, offset);
+        }
     }
 
     @Override
@@ -68,17 +86,13 @@ public class PullRequestHoldService extends ServiceThread {
         log.info("{} service started", this.getServiceName());
         while (!this.isStopped()) {
             try {
-                if (this.brokerController.getBrokerConfig().isLongPollingEnable()) {
-                    this.waitForRunning(5 * 1000);
-                } else {
-                    this.waitForRunning(this.brokerController.getBrokerConfig().getShortPollingTimeMills());
-                }
+                this.waitForRunning(TICK_MILLIS);
 
                 long beginLockTimestamp = this.systemClock.now();
-                this.checkHoldRequest();
+                this.expireTimeouts(beginLockTimestamp);
                 long costTime = this.systemClock.now() - beginLockTimestamp;
                 if (costTime > 5 * 1000) {
-                    log.info("[NOTIFYME] check hold request cost {} ms.", costTime);
+                    log.info("[NOTIFYME] expire hold request cost {} ms.", costTime);
                 }
             } catch (Throwable e) {
                 log.warn(this.getServiceName() + " service has exception. ", e);
@@ -93,20 +107,44 @@ public class PullRequestHoldService extends ServiceThread {
         return PullRequestHoldService.class.getSimpleName();
     }
 
-    private void checkHoldRequest() {
-        for (String key : this.pullRequestTable.keySet()) {
-            String[] kArray = key.split(TOPIC_QUEUEID_SEPARATOR);
-            if (2 == kArray.length) {
-                String topic = kArray[0];
-                int queueId = Integer.parseInt(kArray[1]);
-                final long offset = this.brokerController.getMessageStore().getMaxOffsetInQueue(topic, queueId);
-                try {
-                    this.notifyMessageArriving(topic, queueId, offset);
-                } catch (Throwable e) {
-                    log.error("check hold request failed. topic={}, queueId={}", topic, queueId, e);
+    void expireTimeouts(final long now) {
+        final long currentTick = now / TICK_MILLIS;
+        if (this.lastTick < 0) {
+            this.lastTick = currentTick - 1;
+        }
+
+        PullRequestTimeout timeout;
+        while ((timeout = this.newTimeouts.poll()) != null) {
+            if (!timeout.pullRequest.isCompleted()) {
+                long tick = Math.max(timeout.pullRequest.getDeadline() / TICK_MILLIS, currentTick);
+                this.wheel[(int) (tick & (WHEEL_SIZE - 1))].add(timeout);
+            }
+        }
+
+        // After a long pause every slot is due once, there is no need to go round again
+        long firstTick = Math.max(this.lastTick + 1, currentTick - WHEEL_SIZE + 1);
+        for (long tick = firstTick; tick <= currentTick; tick++) {
+            List<PullRequestTimeout> slot = this.wheel[(int) (tick & (WHEEL_SIZE - 1))];
+            int kept = 0;
+            for (int i = 0; i < slot.size(); i++) {
+                PullRequestTimeout pending = slot.get(i);
+                PullRequest request = pending.pullRequest;
+                if (request.isCompleted()) {
+                    continue;
                 }
+                if (request.getDeadline() <= now) {
+                    if (request.complete()) {
+                        pending.manyPullRequest.removePullRequest(request);
+                        this.executeRequestWhenWakeup(request);
+                    }
+                    continue;
+                }
+                // Due in a later round of the wheel
+                slot.set(kept++, pending);
             }
+            slot.subList(kept, slot.size()).clear();
         }
+        this.lastTick = currentTick;
     }
 
     public void notifyMessageArriving(final String topic, final int queueId, final long maxOffset) {
@@ -115,49 +153,71 @@ public class PullRequestHoldService extends ServiceThread {
 
     public void notifyMessageArriving(final String topic, final int queueId, final long maxOffset, final Long tagsCode,
         long msgStoreTime, byte[] filterBitMap, Map<String, String> properties) {
-        String key = this.buildKey(topic, queueId);
-        ManyPullRequest mpr = this.pullRequestTable.get(key);
+        ManyPullRequest mpr = this.pullRequestTable.get(new TopicQueueKey(topic, queueId));
         if (mpr != null) {
             List<PullRequest> requestList = mpr.cloneListAndClear();
             if (requestList != null) {
                 List<PullRequest> replayList = new ArrayList<PullRequest>();
+                // Requests of one subscription share the offset and the filter result of this message
+                long queueMaxOffset = -1;
+                Map<SubscriptionData, Boolean> matchedBySubscription = null;
+                ConsumeQueueExt.CqExtUnit cqExtUnit = null;
 
                 for (PullRequest request : requestList) {
+                    if (request.isCompleted()) {
+                        continue;
+                    }
+
                     long newestOffset = maxOffset;
                     if (newestOffset <= request.getPullFromThisOffset()) {
-                        newestOffset = this.brokerController.getMessageStore().getMaxOffsetInQueue(topic, queueId);
+                        if (queueMaxOffset < 0) {
+                            queueMaxOffset = this.brokerController.getMessageStore().getMaxOffsetInQueue(topic, queueId);
+                        }
+                        newestOffset = queueMaxOffset;
                     }
 
                     if (newestOffset > request.getPullFromThisOffset()) {
-                        boolean match = request.getMessageFilter().isMatchedByConsumeQueue(tagsCode,
-                            new ConsumeQueueExt.CqExtUnit(tagsCode, msgStoreTime, filterBitMap));
-                        // match by bit map, need eval again when properties is not null.
-                        if (match && properties != null) {
-                            match = request.getMessageFilter().isMatchedByCommitLog(null, properties);
+                        SubscriptionData subscriptionData = request.getSubscriptionData();
+                        Boolean match = null;
+                        if (subscriptionData != null && matchedBySubscription != null) {
+                            match = matchedBySubscription.get(subscriptionData);
+                        }
+                        if (match == null) {
+                            if (cqExtUnit == null) {
+                                cqExtUnit = new ConsumeQueueExt.CqExtUnit(tagsCode, msgStoreTime, filterBitMap);
+                            }
+                            boolean matched = request.getMessageFilter().isMatchedByConsumeQueue(tagsCode, cqExtUnit);
+                            // match by bit map, need eval again when properties is not null.
+                            if (matched && properties != null) {
+                                matched = request.getMessageFilter().isMatchedByCommitLog(null, properties);
+                            }
+                            match = matched;
+                            if (subscriptionData != null) {
+                                if (matchedBySubscription == null) {
+                                    matchedBySubscription = new IdentityHashMap<SubscriptionData, Boolean>();
+                                }
+                                matchedBySubscription.put(subscriptionData, match);
+                            }
                         }
 
                         if (match) {
-                            try {
-                                this.brokerController.getPullMessageProcessor().executeRequestWhenWakeup(request.getClientChannel(),
-                                    request.getRequestCommand());
-                            } catch (Throwable e) {
-                                log.error("execute request when wakeup failed.", e);
+                            if (request.complete()) {
+                                this.executeRequestWhenWakeup(request);
                             }
                             continue;
                         }
                     }
 
-                    if (System.currentTimeMillis() >= (request.getSuspendTimestamp() + request.getTimeoutMillis())) {
-                        try {
-                            this.brokerController.getPullMessageProcessor().executeRequestWhenWakeup(request.getClientChannel(),
-                                request.getRequestCommand());
-                        } catch (Throwable e) {
-                            log.error("execute request when wakeup failed.", e);
+                    if (System.currentTimeMillis() >= request.getDeadline()) {
+                        if (request.complete()) {
+                            this.executeRequestWhenWakeup(request);
                         }
                         continue;
                     }
 
-                    replayList.add(request);
+                    if (!request.isCompleted()) {
+                        replayList.add(request);
+                    }
                 }
 
                 if (!replayList.isEmpty()) {
@@ -166,4 +226,52 @@ public class PullRequestHoldService extends ServiceThread {
             }
         }
     }
+
+    private void executeRequestWhenWakeup(final PullRequest request) {
+        try {
+            this.brokerController.getPullMessageProcessor().executeRequestWhenWakeup(request.getClientChannel(),
+                request.getRequestCommand());
+        } catch (Throwable e) {
+            log.error("execute request when wakeup failed.", e);
+        }
+    }
+
+    static class PullRequestTimeout {
+        private final PullRequest pullRequest;
+        private final ManyPullRequest manyPullRequest;
+
+        PullRequestTimeout(PullRequest pullRequest, ManyPullRequest manyPullRequest) {
+            this.pullRequest = pullRequest;
+            this.manyPullRequest = manyPullRequest;
+        }
+    }
+
+    static class TopicQueueKey {
+        private final String topic;
+        private final int queueId;
+        private final int hash;
+
+        TopicQueueKey(String topic, int queueId) {
+            this.topic = topic;
+            this.queueId = queueId;
+            this.hash = 31 * topic.hashCode() + queueId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TopicQueueKey)) {
+                return false;
+            }
+            TopicQueueKey other = (TopicQueueKey) o;
+            return queueId == other.queueId && topic.equals(other.topic);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
 }
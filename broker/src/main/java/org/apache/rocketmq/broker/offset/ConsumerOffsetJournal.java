@@ -0,0 +1,335 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.broker.offset;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+
+/**
+ * Append-only binary journal of the consumer offsets.
+ * <p>
+ * The file starts with a magic code and a version, followed by records, each ended by the CRC of its bytes:
+ * <pre>
+ * KEY     | type(1) | keyId(4) | keyLength(2) | topic@group            |
+ * OFFSETS | type(1) | keyId(4) | count(2)     | (queueId(4) offset(8))* |
+ * REMOVE  | type(1) | keyId(4) |
+ * </pre>
+ * Each append only writes the offsets changed since the last one. Once the journal outgrows its last snapshot
+ * {@link #COMPACT_RATIO} times, it is compacted: the whole table is written to a new file which replaces it.
+ * Not thread safe, the caller serializes the calls.
+ */
+public class ConsumerOffsetJournal {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.BROKER_LOGGER_NAME);
+    private static final int MAGIC_CODE = 0xC0FF5E70;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final byte KEY = 1;
+    private static final byte OFFSETS = 2;
+    private static final byte REMOVE = 3;
+    private static final int CRC_SIZE = 4;
+    private static final int MAX_OFFSETS_PER_RECORD = 1024;
+    private static final long COMPACT_MIN_BYTES = 1024 * 1024;
+    private static final int COMPACT_RATIO = 4;
+
+    private final File file;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    // Ids and offsets of the keys as written in the journal
+    private final Map<String, Integer> keyIds = new HashMap<String, Integer>();
+    private final Map<String, Map<Integer, Long>> journaledTable = new HashMap<String, Map<Integer, Long>>();
+    private final Map<Integer, Long> changedOffsets = new HashMap<Integer, Long>();
+    private int nextKeyId;
+    private FileChannel fileChannel;
+    private long snapshotSize;
+    // Set when an append failed, the journal no longer matches journaledTable until the next compaction
+    private boolean broken;
+
+    public ConsumerOffsetJournal(final String fileName) {
+        this.file = new File(fileName);
+    }
+
+    public boolean exists() {
+        return this.file.exists();
+    }
+
+    public String getFileName() {
+        return this.file.getPath();
+    }
+
+    /**
+     * Replay the journal, dropping a torn record at its end, and open it for append.
+     */
+    public ConcurrentMap<String, ConcurrentMap<Integer, Long>> load() throws IOException {
+        ConcurrentMap<String, ConcurrentMap<Integer, Long>> table =
+            new ConcurrentHashMap<String, ConcurrentMap<Integer, Long>>(512);
+        byte[] data = Files.readAllBytes(this.file.toPath());
+        ByteBuffer byteBuffer = ByteBuffer.wrap(data);
+        if (data.length < HEADER_SIZE || byteBuffer.getInt() != MAGIC_CODE || byteBuffer.getInt() != VERSION) {
+            throw new IOException("not a consumer offset journal: " + this.file);
+        }
+
+        Map<Integer, String> keys = new HashMap<Integer, String>();
+        int nextKeyId = 0;
+        int validPosition = byteBuffer.position();
+        while (byteBuffer.hasRemaining()) {
+            int recordPosition = byteBuffer.position();
+            byte type = byteBuffer.get();
+            int bodySize;
+            if (type == KEY) {
+                bodySize = byteBuffer.remaining() >= 6 ? 6 + byteBuffer.getShort(recordPosition + 5) : Integer.MAX_VALUE;
+            } else if (type == OFFSETS) {
+                bodySize = byteBuffer.remaining() >= 6 ? 6 + 12 * byteBuffer.getShort(recordPosition + 5) : Integer.MAX_VALUE;
+            } else if (type == REMOVE) {
+                bodySize = 4;
+            } else {
+                break;
+            }
+            if (byteBuffer.remaining() < (long) bodySize + CRC_SIZE
+                || byteBuffer.getInt(recordPosition + 1 + bodySize) != UtilAll.crc32(data, recordPosition, 1 + bodySize)) {
+                break;
+            }
+
+            int keyId = byteBuffer.getInt();
+            if (type == KEY) {
+                byte[] key = new byte[byteBuffer.getShort()];
+                byteBuffer.get(key);
+                String topicAtGroup = new String(key, StandardCharsets.UTF_8);
+                keys.put(keyId, topicAtGroup);
+                table.put(topicAtGroup, new ConcurrentHashMap<Integer, Long>(32));
+            } else if (type == OFFSETS) {
+                String topicAtGroup = keys.get(keyId);
+                ConcurrentMap<Integer, Long> offsets = topicAtGroup != null ? table.get(topicAtGroup) : null;
+                for (int count = byteBuffer.getShort(); count > 0; count--) {
+                    int queueId = byteBuffer.getInt();
+                    long offset = byteBuffer.getLong();
+                    if (offsets != null) {
+                        offsets.put(queueId, offset);
+                    }
+                }
+            } else {
+                String topicAtGroup = keys.remove(keyId);
+                if (topicAtGroup != null) {
+                    table.remove(topicAtGroup);
+                }
+            }
+            byteBuffer.getInt();
+            nextKeyId = Math.max(nextKeyId, keyId + 1);
+            validPosition = byteBuffer.position();
+        }
+
+        this.keyIds.clear();
+        this.journaledTable.clear();
+        for (Map.Entry<Integer, String> entry : keys.entrySet()) {
+            this.keyIds.put(entry.getValue(), entry.getKey());
+            this.journaledTable.put(entry.getValue(), new HashMap<Integer, Long>(table.get(entry.getValue())));
+        }
+        this.nextKeyId = nextKeyId;
+        this.fileChannel = FileChannel.open(this.file.toPath(), StandardOpenOption.WRITE);
+        if (validPosition < data.length) {
+            log.warn("drop {} bytes at the end of consumer offset journal {}", data.length - validPosition, this.file);
+            this.fileChannel.truncate(validPosition);
+        }
+        this.fileChannel.position(validPosition);
+        this.snapshotSize = validPosition;
+        return table;
+    }
+
+    /**
+     * Append the offsets of the keys changed since the last append, and force them to disk. A key mapped to null is
+     * removed. Must not be called while {@link #isCompactNeeded()}.
+     */
+    public void append(final Map<String, ? extends Map<Integer, Long>> changes) throws IOException {
+        try {
+            this.buffer.clear();
+            for (Map.Entry<String, ? extends Map<Integer, Long>> change : changes.entrySet()) {
+                String topicAtGroup = change.getKey();
+                Map<Integer, Long> offsets = change.getValue();
+                Integer keyId = this.keyIds.get(topicAtGroup);
+                Map<Integer, Long> journaled = this.journaledTable.get(topicAtGroup);
+                if (keyId != null && (offsets == null || !offsets.keySet().containsAll(journaled.keySet()))) {
+                    this.putRemove(this.fileChannel, keyId);
+                    this.keyIds.remove(topicAtGroup);
+                    this.journaledTable.remove(topicAtGroup);
+                    keyId = null;
+                }
+                if (offsets == null) {
+                    continue;
+                }
+                if (keyId == null) {
+                    keyId = this.putKey(this.fileChannel, topicAtGroup);
+                    journaled = new HashMap<Integer, Long>();
+                    this.journaledTable.put(topicAtGroup, journaled);
+                }
+                this.changedOffsets.clear();
+                for (Map.Entry<Integer, Long> entry : offsets.entrySet()) {
+                    Long offset = entry.getValue();
+                    if (!offset.equals(journaled.get(entry.getKey()))) {
+                        journaled.put(entry.getKey(), offset);
+                        this.changedOffsets.put(entry.getKey(), offset);
+                    }
+                }
+                this.putOffsets(this.fileChannel, keyId, this.changedOffsets);
+            }
+            this.drain(this.fileChannel);
+            this.fileChannel.force(false);
+        } catch (IOException e) {
+            this.broken = true;
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the journal outgrew its last snapshot, or can no longer be appended to after a failed append
+     */
+    public boolean isCompactNeeded() throws IOException {
+        return this.broken || this.fileChannel == null
+            || this.fileChannel.size() > Math.max(COMPACT_MIN_BYTES, this.snapshotSize * COMPACT_RATIO);
+    }
+
+    /**
+     * Replace the journal by a snapshot of the table.
+     */
+    public void compact(final Map<String, ? extends Map<Integer, Long>> table) throws IOException {
+        long beginTime = System.currentTimeMillis();
+        this.keyIds.clear();
+        this.journaledTable.clear();
+        this.nextKeyId = 0;
+
+        File parent = this.file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        File tmpFile = new File(this.file.getPath() + ".tmp");
+        try (FileChannel tmpChannel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            this.buffer.clear();
+            this.buffer.putInt(MAGIC_CODE);
+            this.buffer.putInt(VERSION);
+            for (Map.Entry<String, ? extends Map<Integer, Long>> entry : table.entrySet()) {
+                Map<Integer, Long> journaled = new HashMap<Integer, Long>(entry.getValue());
+                int keyId = this.putKey(tmpChannel, entry.getKey());
+                this.putOffsets(tmpChannel, keyId, journaled);
+                this.journaledTable.put(entry.getKey(), journaled);
+            }
+            this.drain(tmpChannel);
+            tmpChannel.force(true);
+        }
+
+        if (this.fileChannel != null) {
+            this.fileChannel.close();
+            this.fileChannel = null;
+        }
+        Files.move(tmpFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.fileChannel = FileChannel.open(this.file.toPath(), StandardOpenOption.WRITE);
+        this.snapshotSize = this.fileChannel.size();
+        this.fileChannel.position(this.snapshotSize);
+        this.broken = false;
+        log.info("compact consumer offset journal {}, {} keys, {} bytes, cost {} ms", this.file, this.keyIds.size(),
+            this.snapshotSize, System.currentTimeMillis() - beginTime);
+    }
+
+    public void shutdown() {
+        if (this.fileChannel != null) {
+            try {
+                this.fileChannel.close();
+            } catch (IOException e) {
+                log.warn("close consumer offset journal {} failed", this.file, e);
+            }
+            this.fileChannel = null;
+        }
+    }
+
+    /**
+     * Move the journal to its backup file, replacing an older one.
+     */
+    public void moveToBak() throws IOException {
+        Files.move(this.file.toPath(), new File(this.file.getPath() + ".bak").toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private int putKey(final FileChannel channel, final String topicAtGroup) throws IOException {
+        byte[] key = topicAtGroup.getBytes(StandardCharsets.UTF_8);
+        int keyId = this.nextKeyId++;
+        this.keyIds.put(topicAtGroup, keyId);
+        int position = this.ensure(channel, 1 + 4 + 2 + key.length + CRC_SIZE);
+        this.buffer.put(KEY).putInt(keyId).putShort((short) key.length).put(key);
+        this.putCrc(position);
+        return keyId;
+    }
+
+    private void putOffsets(final FileChannel channel, final int keyId, final Map<Integer, Long> offsets)
+        throws IOException {
+        Iterator<Map.Entry<Integer, Long>> it = offsets.entrySet().iterator();
+        while (it.hasNext()) {
+            int count = Math.min(offsets.size(), MAX_OFFSETS_PER_RECORD);
+            int position = this.ensure(channel, 1 + 4 + 2 + 12 * count + CRC_SIZE);
+            this.buffer.put(OFFSETS).putInt(keyId);
+            int countPosition = this.buffer.position();
+            this.buffer.putShort((short) 0);
+            int written = 0;
+            while (written < count && it.hasNext()) {
+                Map.Entry<Integer, Long> entry = it.next();
+                this.buffer.putInt(entry.getKey()).putLong(entry.getValue());
+                written++;
+            }
+            this.buffer.putShort(countPosition, (short) written);
+            this.putCrc(position);
+        }
+    }
+
+    private void putRemove(final FileChannel channel, final int keyId) throws IOException {
+        int position = this.ensure(channel, 1 + 4 + CRC_SIZE);
+        this.buffer.put(REMOVE).putInt(keyId);
+        this.putCrc(position);
+    }
+
+    private void putCrc(final int recordPosition) {
+        this.buffer.putInt(UtilAll.crc32(this.buffer.array(), recordPosition, this.buffer.position() - recordPosition));
+    }
+
+    /**
+     * @return the position of the next record in the buffer, after writing the buffer out if it has no room for it
+     */
+    private int ensure(final FileChannel channel, final int recordSize) throws IOException {
+        if (this.buffer.remaining() < recordSize) {
+            this.drain(channel);
+        }
+        return this.buffer.position();
+    }
+
+    private void drain(final FileChannel channel) throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            channel.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+}
@@ -16,32 +16,38 @@
  */
 package org.apache.rocketmq.broker.offset;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import org.apache.rocketmq.broker.BrokerController;
 import org.apache.rocketmq.broker.BrokerPathConfigHelper;
+import org.apache.rocketmq.broker.offset.ConsumerOffsetTable.QueueOffsets;
 import org.apache.rocketmq.common.ConfigManager;
+import org.apache.rocketmq.common.MixAll;
 import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.protocol.body.ConsumerOffsetSerializeWrapper;
 import org.apache.rocketmq.logging.InternalLogger;
 import org.apache.rocketmq.logging.InternalLoggerFactory;
 import org.apache.rocketmq.remoting.protocol.RemotingSerializable;
 
 public class ConsumerOffsetManager extends ConfigManager {
     private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.BROKER_LOGGER_NAME);
-    private static final String TOPIC_GROUP_SEPARATOR = "@";
 
-    private ConcurrentMap<String/* topic@group */, ConcurrentMap<Integer, Long>> offsetTable =
-        new ConcurrentHashMap<String, ConcurrentMap<Integer, Long>>(512);
+    private transient ConsumerOffsetTable table = new ConsumerOffsetTable();
 
     private transient BrokerController brokerController;
 
+    private transient ConsumerOffsetJournal journal;
+    private transient boolean journalClosed;
+    // Keys changed since the last persist, only tracked with the journal
+    private transient Set<String> dirtyKeys = ConcurrentHashMap.newKeySet();
+
     public ConsumerOffsetManager() {
     }
 
@@ -50,30 +56,24 @@ public class ConsumerOffsetManager extends ConfigManager {
     }
 
     public void scanUnsubscribedTopic() {
-        Iterator<Entry<String, ConcurrentMap<Integer, Long>>> it = this.offsetTable.entrySet().iterator();
-        while (it.hasNext()) {
-            Entry<String, ConcurrentMap<Integer, Long>> next = it.next();
-            String topicAtGroup = next.getKey();
-            String[] arrays = topicAtGroup.split(TOPIC_GROUP_SEPARATOR);
-            if (arrays.length == 2) {
-                String topic = arrays[0];
-                String group = arrays[1];
-
-                if (null == brokerController.getConsumerManager().findSubscriptionData(group, topic)
-                    && this.offsetBehindMuchThanData(topic, next.getValue())) {
-                    it.remove();
-                    log.warn("remove topic offset, {}", topicAtGroup);
-                }
+        for (QueueOffsets queueOffsets : this.table.values()) {
+            String topic = queueOffsets.getTopic();
+            String group = queueOffsets.getGroup();
+
+            if (null == brokerController.getConsumerManager().findSubscriptionData(group, topic)
+                && this.offsetBehindMuchThanData(topic, queueOffsets)) {
+                this.table.remove(queueOffsets.getKey());
+                this.markDirty(queueOffsets.getKey());
+                log.warn("remove topic offset, {}", queueOffsets.getKey());
             }
         }
     }
 
-    private boolean offsetBehindMuchThanData(final String topic, ConcurrentMap<Integer, Long> table) {
-        Iterator<Entry<Integer, Long>> it = table.entrySet().iterator();
-        boolean result = !table.isEmpty();
+    private boolean offsetBehindMuchThanData(final String topic, QueueOffsets queueOffsets) {
+        boolean result = !queueOffsets.isEmpty();
 
-        while (it.hasNext() && result) {
-            Entry<Integer, Long> next = it.next();
+        for (Iterator<Map.Entry<Integer, Long>> it = queueOffsets.toMap().entrySet().iterator(); it.hasNext() && result; ) {
+            Map.Entry<Integer, Long> next = it.next();
             long minOffsetInStore = this.brokerController.getMessageStore().getMinOffsetInQueue(topic, next.getKey());
             long offsetInPersist = next.getValue();
             result = offsetInPersist <= minOffsetInStore;
@@ -83,79 +83,142 @@ public class ConsumerOffsetManager extends ConfigManager {
     }
 
     public Set<String> whichTopicByConsumer(final String group) {
-        Set<String> topics = new HashSet<String>();
-
-        Iterator<Entry<String, ConcurrentMap<Integer, Long>>> it = this.offsetTable.entrySet().iterator();
-        while (it.hasNext()) {
-            Entry<String, ConcurrentMap<Integer, Long>> next = it.next();
-            String topicAtGroup = next.getKey();
-            String[] arrays = topicAtGroup.split(TOPIC_GROUP_SEPARATOR);
-            if (arrays.length == 2) {
-                if (group.equals(arrays[1])) {
-                    topics.add(arrays[0]);
-                }
-            }
-        }
-
-        return topics;
+        return new HashSet<String>(this.table.topicsByGroup(group));
     }
 
     public Set<String> whichGroupByTopic(final String topic) {
-        Set<String> groups = new HashSet<String>();
-
-        Iterator<Entry<String, ConcurrentMap<Integer, Long>>> it = this.offsetTable.entrySet().iterator();
-        while (it.hasNext()) {
-            Entry<String, ConcurrentMap<Integer, Long>> next = it.next();
-            String topicAtGroup = next.getKey();
-            String[] arrays = topicAtGroup.split(TOPIC_GROUP_SEPARATOR);
-            if (arrays.length == 2) {
-                if (topic.equals(arrays[0])) {
-                    groups.add(arrays[1]);
-                }
-            }
-        }
-
-        return groups;
+        return new HashSet<String>(this.table.groupsByTopic(topic));
     }
 
     public void commitOffset(final String clientHost, final String group, final String topic, final int queueId,
         final long offset) {
-        // topic@group
-        String key = topic + TOPIC_GROUP_SEPARATOR + group;
-        this.commitOffset(clientHost, key, queueId, offset);
-    }
-
-    private void commitOffset(final String clientHost, final String key, final int queueId, final long offset) {
-        ConcurrentMap<Integer, Long> map = this.offsetTable.get(key);
-        if (null == map) {
-            map = new ConcurrentHashMap<Integer, Long>(32);
-            map.put(queueId, offset);
-            this.offsetTable.put(key, map);
-        } else {
-            Long storeOffset = map.put(queueId, offset);
-            if (storeOffset != null && offset < storeOffset) {
-                log.warn("[NOTIFYME]update consumer offset less than store. clientHost={}, key={}, queueId={}, requestOffset={}, storeOffset={}", clientHost, key, queueId, offset, storeOffset);
-            }
+        if (queueId < 0) {
+            log.warn("commit offset of invalid queue, clientHost={}, topic={}, group={}, queueId={}", clientHost, topic, group, queueId);
+            return;
+        }
+
+        QueueOffsets queueOffsets = this.table.getOrCreate(topic, group);
+        long storeOffset = queueOffsets.put(queueId, offset);
+        if (offset < storeOffset) {
+            log.warn("[NOTIFYME]update consumer offset less than store. clientHost={}, key={}, queueId={}, requestOffset={}, storeOffset={}", clientHost, queueOffsets.getKey(), queueId, offset, storeOffset);
         }
+        this.markDirty(queueOffsets.getKey());
     }
 
     public long queryOffset(final String group, final String topic, final int queueId) {
-        // topic@group
-        String key = topic + TOPIC_GROUP_SEPARATOR + group;
-        ConcurrentMap<Integer, Long> map = this.offsetTable.get(key);
-        if (null != map) {
-            Long offset = map.get(queueId);
-            if (offset != null)
-                return offset;
+        QueueOffsets queueOffsets = this.table.get(topic, group);
+        if (null != queueOffsets) {
+            return queueOffsets.get(queueId);
         }
 
         return -1;
     }
 
+    public void putAllOffsets(final Map<String, ConcurrentMap<Integer, Long>> offsets) {
+        for (Map.Entry<String, ConcurrentMap<Integer, Long>> entry : offsets.entrySet()) {
+            if (this.table.put(entry.getKey(), entry.getValue())) {
+                this.markDirty(entry.getKey());
+            } else {
+                log.warn("skip offset of invalid key {}", entry.getKey());
+            }
+        }
+    }
+
+    private void markDirty(final String topicAtGroup) {
+        if (this.journal != null) {
+            this.dirtyKeys.add(topicAtGroup);
+        }
+    }
+
     public String encode() {
         return this.encode(false);
     }
 
+    @Override
+    public boolean load() {
+        ConsumerOffsetJournal journal = new ConsumerOffsetJournal(BrokerPathConfigHelper.getConsumerOffsetJournalPath(
+            this.brokerController.getMessageStoreConfig().getStorePathRootDir()));
+        if (!this.brokerController.getBrokerConfig().isConsumerOffsetJournalEnable()) {
+            return journal.exists() ? this.loadRetiredJournal(journal) : super.load();
+        }
+
+        try {
+            long beginTime = System.currentTimeMillis();
+            if (journal.exists()) {
+                this.setOffsetTable(journal.load());
+            } else if (super.load()) {
+                // Migrate the offsets of the json file, which is left as is
+                journal.compact(this.table.toMap());
+            } else {
+                return false;
+            }
+            this.journal = journal;
+            log.info("load consumer offset journal {} OK, {} keys, cost {} ms", journal.getFileName(),
+                this.table.size(), System.currentTimeMillis() - beginTime);
+            return true;
+        } catch (IOException e) {
+            log.error("load consumer offset journal {} failed", journal.getFileName(), e);
+            return false;
+        }
+    }
+
+    /**
+     * The journal is only left by a run with it enabled, it is then newer than the json file. Write its offsets to the
+     * json file and move it aside, so that a later run with the journal enabled migrates the json file again.
+     */
+    private boolean loadRetiredJournal(final ConsumerOffsetJournal journal) {
+        try {
+            this.setOffsetTable(journal.load());
+            journal.shutdown();
+            MixAll.string2File(this.encode(true), this.configFilePath());
+            journal.moveToBak();
+            log.info("load consumer offset journal {} OK, {} keys, written back to {} as the journal is disabled",
+                journal.getFileName(), this.table.size(), this.configFilePath());
+            return true;
+        } catch (IOException e) {
+            journal.shutdown();
+            log.error("load consumer offset journal {} failed", journal.getFileName(), e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void persist() {
+        if (this.journal == null) {
+            super.persist();
+            return;
+        }
+        if (this.journalClosed) {
+            log.warn("skip persisting consumer offsets, journal {} is shut down", this.journal.getFileName());
+            return;
+        }
+
+        Map<String, Map<Integer, Long>> changes = new HashMap<String, Map<Integer, Long>>(this.dirtyKeys.size());
+        for (Iterator<String> it = this.dirtyKeys.iterator(); it.hasNext(); ) {
+            String topicAtGroup = it.next();
+            it.remove();
+            QueueOffsets queueOffsets = this.table.get(topicAtGroup);
+            changes.put(topicAtGroup, queueOffsets != null ? queueOffsets.toMap() : null);
+        }
+        try {
+            if (!this.journal.isCompactNeeded()) {
+                this.journal.append(changes);
+            }
+            if (this.journal.isCompactNeeded()) {
+                this.journal.compact(this.table.toMap());
+            }
+        } catch (IOException e) {
+            log.error("persist consumer offset journal {} exception", this.journal.getFileName(), e);
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (this.journal != null && !this.journalClosed) {
+            this.journal.shutdown();
+            this.journalClosed = true;
+        }
+    }
+
     @Override
     public String configFilePath() {
         return BrokerPathConfigHelper.getConsumerOffsetPath(this.brokerController.getMessageStoreConfig().getStorePathRootDir());
@@ -164,9 +227,9 @@ public class ConsumerOffsetManager extends ConfigManager {
     @Override
     public void decode(String jsonString) {
         if (jsonString != null) {
-            ConsumerOffsetManager obj = RemotingSerializable.fromJson(jsonString, ConsumerOffsetManager.class);
+            ConsumerOffsetSerializeWrapper obj = RemotingSerializable.fromJson(jsonString, ConsumerOffsetSerializeWrapper.class);
             if (obj != null) {
-                this.offsetTable = obj.offsetTable;
+                this.setOffsetTable(obj.getOffsetTable());
             }
         }
     }
@@ -175,75 +238,71 @@ public class ConsumerOffsetManager extends ConfigManager {
         return RemotingSerializable.toJson(this, prettyFormat);
     }
 
+    /**
+     * @return a copy of the offsets, keyed by topic@group
+     */
     public ConcurrentMap<String, ConcurrentMap<Integer, Long>> getOffsetTable() {
-        return offsetTable;
+        return this.table.toMap();
     }
 
-    public void setOffsetTable(ConcurrentHashMap<String, ConcurrentMap<Integer, Long>> offsetTable) {
-        this.offsetTable = offsetTable;
+    public void setOffsetTable(ConcurrentMap<String, ConcurrentMap<Integer, Long>> offsetTable) {
+        ConsumerOffsetTable table = new ConsumerOffsetTable();
+        for (Map.Entry<String, ConcurrentMap<Integer, Long>> entry : offsetTable.entrySet()) {
+            if (!table.put(entry.getKey(), entry.getValue())) {
+                log.warn("skip offset of invalid key {}", entry.getKey());
+            }
+        }
+        this.table = table;
     }
 
     public Map<Integer, Long> queryMinOffsetInAllGroup(final String topic, final String filterGroups) {
 
         Map<Integer, Long> queueMinOffset = new HashMap<Integer, Long>();
-        Set<String> topicGroups = this.offsetTable.keySet();
+        Set<String> skipGroups = new HashSet<String>();
         if (!UtilAll.isBlank(filterGroups)) {
             for (String group : filterGroups.split(",")) {
-                Iterator<String> it = topicGroups.iterator();
-                while (it.hasNext()) {
-                    if (group.equals(it.next().split(TOPIC_GROUP_SEPARATOR)[1])) {
-                        it.remove();
-                    }
-                }
+                skipGroups.add(group);
             }
         }
 
-        for (Map.Entry<String, ConcurrentMap<Integer, Long>> offSetEntry : this.offsetTable.entrySet()) {
-            String topicGroup = offSetEntry.getKey();
-            String[] topicGroupArr = topicGroup.split(TOPIC_GROUP_SEPARATOR);
-            if (topic.equals(topicGroupArr[0])) {
-                for (Entry<Integer, Long> entry : offSetEntry.getValue().entrySet()) {
-                    long minOffset = this.brokerController.getMessageStore().getMinOffsetInQueue(topic, entry.getKey());
-                    if (entry.getValue() >= minOffset) {
-                        Long offset = queueMinOffset.get(entry.getKey());
-                        if (offset == null) {
-                            queueMinOffset.put(entry.getKey(), Math.min(Long.MAX_VALUE, entry.getValue()));
-                        } else {
-                            queueMinOffset.put(entry.getKey(), Math.min(entry.getValue(), offset));
-                        }
+        for (QueueOffsets queueOffsets : this.table.valuesByTopic(topic)) {
+            if (skipGroups.contains(queueOffsets.getGroup())) {
+                continue;
+            }
+            for (Map.Entry<Integer, Long> entry : queueOffsets.toMap().entrySet()) {
+                int queueId = entry.getKey();
+                long offset = entry.getValue();
+                long minOffset = this.brokerController.getMessageStore().getMinOffsetInQueue(topic, queueId);
+                if (offset >= minOffset) {
+                    Long prevOffset = queueMinOffset.get(queueId);
+                    if (prevOffset == null || offset < prevOffset) {
+                        queueMinOffset.put(queueId, offset);
                     }
                 }
             }
-
         }
         return queueMinOffset;
     }
 
     public Map<Integer, Long> queryOffset(final String group, final String topic) {
-        // topic@group
-        String key = topic + TOPIC_GROUP_SEPARATOR + group;
-        return this.offsetTable.get(key);
+        QueueOffsets queueOffsets = this.table.get(topic, group);
+        return queueOffsets != null ? queueOffsets.toMap() : null;
     }
 
     public void cloneOffset(final String srcGroup, final String destGroup, final String topic) {
-        ConcurrentMap<Integer, Long> offsets = this.offsetTable.get(topic + TOPIC_GROUP_SEPARATOR + srcGroup);
+        QueueOffsets offsets = this.table.get(topic, srcGroup);
         if (offsets != null) {
-            this.offsetTable.put(topic + TOPIC_GROUP_SEPARATOR + destGroup, new ConcurrentHashMap<Integer, Long>(offsets));
+            String destKey = topic + ConsumerOffsetTable.TOPIC_GROUP_SEPARATOR + destGroup;
+            this.table.put(destKey, offsets.toMap());
+            this.markDirty(destKey);
         }
     }
 
     public void removeOffset(final String group) {
-        Iterator<Entry<String, ConcurrentMap<Integer, Long>>> it = this.offsetTable.entrySet().iterator();
-        while (it.hasNext()) {
-            Entry<String, ConcurrentMap<Integer, Long>> next = it.next();
-            String topicAtGroup = next.getKey();
-            if (topicAtGroup.contains(group)) {
-                String[] arrays = topicAtGroup.split(TOPIC_GROUP_SEPARATOR);
-                if (arrays.length == 2 && group.equals(arrays[1])) {
-                    it.remove();
-                    log.warn("clean group offset {}", topicAtGroup);
-                }
-            }
+        for (QueueOffsets queueOffsets : this.table.valuesByGroup(group)) {
+            this.table.remove(queueOffsets.getKey());
+            this.markDirty(queueOffsets.getKey());
+            log.warn("clean group offset {}", queueOffsets.getKey());
         }
 
     }
@@ -0,0 +1,305 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.broker.offset;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+
+/**
+ * Consumer offsets of the topic@group pairs, each held in an array of cells indexed by queue id.
+ * <p>
+ * The pairs are indexed by topic and by group, so the offsets are found without building the topic@group key, and
+ * the groups of a topic or the topics of a group without walking the whole table. Offsets are read and written
+ * without locking, only adding or removing a pair locks the table.
+ */
+public class ConsumerOffsetTable {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.BROKER_LOGGER_NAME);
+    public static final String TOPIC_GROUP_SEPARATOR = "@";
+
+    private final ConcurrentMap<String/* topic@group */, QueueOffsets> table =
+        new ConcurrentHashMap<String, QueueOffsets>(512);
+    private final ConcurrentMap<String/* topic */, ConcurrentMap<String/* group */, QueueOffsets>> topicIndex =
+        new ConcurrentHashMap<String, ConcurrentMap<String, QueueOffsets>>(512);
+    private final ConcurrentMap<String/* group */, ConcurrentMap<String/* topic */, QueueOffsets>> groupIndex =
+        new ConcurrentHashMap<String, ConcurrentMap<String, QueueOffsets>>(512);
+
+    public QueueOffsets get(final String topic, final String group) {
+        ConcurrentMap<String, QueueOffsets> groups = this.topicIndex.get(topic);
+        return groups != null ? groups.get(group) : null;
+    }
+
+    public QueueOffsets get(final String topicAtGroup) {
+        return this.table.get(topicAtGroup);
+    }
+
+    public QueueOffsets getOrCreate(final String topic, final String group) {
+        QueueOffsets queueOffsets = this.get(topic, group);
+        if (queueOffsets != null) {
+            return queueOffsets;
+        }
+
+        synchronized (this) {
+            queueOffsets = this.get(topic, group);
+            if (queueOffsets == null) {
+                queueOffsets = new QueueOffsets(topic, group);
+                this.table.put(queueOffsets.getKey(), queueOffsets);
+                index(this.topicIndex, topic, group, queueOffsets);
+                index(this.groupIndex, group, topic, queueOffsets);
+            }
+            return queueOffsets;
+        }
+    }
+
+    /**
+     * Replace the offsets of a pair. The offsets of negative queue ids, which older brokers stored as committed, are
+     * skipped.
+     *
+     * @return false if the key is not a topic@group pair
+     */
+    public boolean put(final String topicAtGroup, final Map<Integer, Long> offsets) {
+        int index = topicAtGroup.indexOf(TOPIC_GROUP_SEPARATOR);
+        if (index < 0) {
+            return false;
+        }
+
+        QueueOffsets queueOffsets = new QueueOffsets(topicAtGroup.substring(0, index), topicAtGroup.substring(index + 1));
+        for (Map.Entry<Integer, Long> entry : offsets.entrySet()) {
+            if (entry.getKey() == null || entry.getKey() < 0 || entry.getValue() == null) {
+                log.warn("skip offset of invalid queue, key={}, queueId={}, offset={}", topicAtGroup, entry.getKey(),
+                    entry.getValue());
+                continue;
+            }
+            queueOffsets.put(entry.getKey(), entry.getValue());
+        }
+        synchronized (this) {
+            this.remove(topicAtGroup);
+            this.table.put(topicAtGroup, queueOffsets);
+            index(this.topicIndex, queueOffsets.getTopic(), queueOffsets.getGroup(), queueOffsets);
+            index(this.groupIndex, queueOffsets.getGroup(), queueOffsets.getTopic(), queueOffsets);
+        }
+        return true;
+    }
+
+    public synchronized QueueOffsets remove(final String topicAtGroup) {
+        QueueOffsets queueOffsets = this.table.remove(topicAtGroup);
+        if (queueOffsets != null) {
+            unindex(this.topicIndex, queueOffsets.getTopic(), queueOffsets.getGroup());
+            unindex(this.groupIndex, queueOffsets.getGroup(), queueOffsets.getTopic());
+        }
+        return queueOffsets;
+    }
+
+    public Collection<QueueOffsets> values() {
+        return this.table.values();
+    }
+
+    public Collection<QueueOffsets> valuesByTopic(final String topic) {
+        ConcurrentMap<String, QueueOffsets> groups = this.topicIndex.get(topic);
+        return groups != null ? groups.values() : Collections.<QueueOffsets>emptyList();
+    }
+
+    public Collection<QueueOffsets> valuesByGroup(final String group) {
+        ConcurrentMap<String, QueueOffsets> topics = this.groupIndex.get(group);
+        return topics != null ? topics.values() : Collections.<QueueOffsets>emptyList();
+    }
+
+    public Set<String> groupsByTopic(final String topic) {
+        ConcurrentMap<String, QueueOffsets> groups = this.topicIndex.get(topic);
+        return groups != null ? groups.keySet() : Collections.<String>emptySet();
+    }
+
+    public Set<String> topicsByGroup(final String group) {
+        ConcurrentMap<String, QueueOffsets> topics = this.groupIndex.get(group);
+        return topics != null ? topics.keySet() : Collections.<String>emptySet();
+    }
+
+    public int size() {
+        return this.table.size();
+    }
+
+    public ConcurrentMap<String, ConcurrentMap<Integer, Long>> toMap() {
+        ConcurrentMap<String, ConcurrentMap<Integer, Long>> map =
+            new ConcurrentHashMap<String, ConcurrentMap<Integer, Long>>(Math.max(512, this.table.size() * 2));
+        for (QueueOffsets queueOffsets : this.table.values()) {
+            map.put(queueOffsets.getKey(), new ConcurrentHashMap<Integer, Long>(queueOffsets.toMap()));
+        }
+        return map;
+    }
+
+    private static void index(final ConcurrentMap<String, ConcurrentMap<String, QueueOffsets>> index,
+        final String name, final String otherName, final QueueOffsets queueOffsets) {
+        ConcurrentMap<String, QueueOffsets> entries = index.get(name);
+        if (entries == null) {
+            entries = new ConcurrentHashMap<String, QueueOffsets>(16);
+            index.put(name, entries);
+        }
+        entries.put(otherName, queueOffsets);
+    }
+
+    private static void unindex(final ConcurrentMap<String, ConcurrentMap<String, QueueOffsets>> index,
+        final String name, final String otherName) {
+        ConcurrentMap<String, QueueOffsets> entries = index.get(name);
+        if (entries != null) {
+            entries.remove(otherName);
+            if (entries.isEmpty()) {
+                index.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Offsets of the queues of a topic@group pair.
+     * <p>
+     * Each queue has its own cell, so an offset is updated in place without locking. The cells of the queue ids below
+     * {@link #DENSE_LIMIT} are held in an array indexed by queue id, those of larger ids, which no real topic has but a
+     * client may send, in a map. Cells are only added under the lock, and the array is grown under it by copying the
+     * cells, so an update of a cell of the old array is still seen through the new one.
+     * <p>
+     * The cells are {@link AtomicLong} objects rather than a primitive long array per pair, one object per queue, so
+     * that a queue without offset is told apart from any offset value and an update never races with a growth.
+     * Negative queue ids are not stored.
+     */
+    public static class QueueOffsets {
+        static final int DENSE_LIMIT = 1024;
+        private static final int INITIAL_LENGTH = 8;
+
+        private final String topic;
+        private final String group;
+        private final String key;
+        private volatile AtomicReferenceArray<AtomicLong> offsets = new AtomicReferenceArray<AtomicLong>(INITIAL_LENGTH);
+        private final ConcurrentMap<Integer, AtomicLong> sparseOffsets = new ConcurrentHashMap<Integer, AtomicLong>(4);
+
+        QueueOffsets(final String topic, final String group) {
+            this.topic = topic;
+            this.group = group;
+            this.key = topic + TOPIC_GROUP_SEPARATOR + group;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the offset of the queue, -1 if it has none
+         */
+        public long get(final int queueId) {
+            AtomicLong cell = this.cell(queueId);
+            return cell != null ? cell.get() : -1;
+        }
+
+        /**
+         * @return the previous offset of the queue, -1 if it had none
+         */
+        public long put(final int queueId, final long offset) {
+            AtomicLong cell = this.cell(queueId);
+            if (cell != null) {
+                return cell.getAndSet(offset);
+            }
+            return this.putCell(queueId, offset);
+        }
+
+        public boolean isEmpty() {
+            if (!this.sparseOffsets.isEmpty()) {
+                return false;
+            }
+            AtomicReferenceArray<AtomicLong> array = this.offsets;
+            for (int queueId = 0; queueId < array.length(); queueId++) {
+                if (array.get(queueId) != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean contains(final int queueId) {
+            return this.cell(queueId) != null;
+        }
+
+        public Map<Integer, Long> toMap() {
+            Map<Integer, Long> map = new HashMap<Integer, Long>();
+            AtomicReferenceArray<AtomicLong> array = this.offsets;
+            for (int queueId = 0; queueId < array.length(); queueId++) {
+                AtomicLong cell = array.get(queueId);
+                if (cell != null) {
+                    map.put(queueId, cell.get());
+                }
+            }
+            for (Map.Entry<Integer, AtomicLong> entry : this.sparseOffsets.entrySet()) {
+                map.put(entry.getKey(), entry.getValue().get());
+            }
+            return map;
+        }
+
+        private AtomicLong cell(final int queueId) {
+            if (queueId < 0) {
+                return null;
+            }
+            if (queueId >= DENSE_LIMIT) {
+                return this.sparseOffsets.get(queueId);
+            }
+            AtomicReferenceArray<AtomicLong> array = this.offsets;
+            return queueId < array.length() ? array.get(queueId) : null;
+        }
+
+        private synchronized long putCell(final int queueId, final long offset) {
+            if (queueId < 0) {
+                log.warn("skip offset of invalid queue, key={}, queueId={}, offset={}", this.key, queueId, offset);
+                return -1;
+            }
+            AtomicLong cell = this.cell(queueId);
+            if (cell != null) {
+                return cell.getAndSet(offset);
+            }
+
+            if (queueId >= DENSE_LIMIT) {
+                this.sparseOffsets.put(queueId, new AtomicLong(offset));
+                return -1;
+            }
+            AtomicReferenceArray<AtomicLong> array = this.offsets;
+            if (queueId >= array.length()) {
+                AtomicReferenceArray<AtomicLong> grown = new AtomicReferenceArray<AtomicLong>(
+                    Math.min(DENSE_LIMIT, Math.max(queueId + 1, array.length() * 2)));
+                for (int i = 0; i < array.length(); i++) {
+                    grown.set(i, array.get(i));
+                }
+                array = grown;
+            }
+            array.set(queueId, new AtomicLong(offset));
+            this.offsets = array;
+            return -1;
+        }
+    }
+}
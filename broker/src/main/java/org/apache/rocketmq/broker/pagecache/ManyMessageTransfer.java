@@ -20,30 +20,79 @@ import io.netty.channel.FileRegion;
 import io.netty.util.AbstractReferenceCounted;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.List;
 import org.apache.rocketmq.store.GetMessageResult;
+import org.apache.rocketmq.store.MappedFile;
+import org.apache.rocketmq.store.SelectMappedBufferResult;
 
+/**
+ * Transfer the messages of a pull, the slices adjacent in a CommitLog file being merged into a range sent with a
+ * single {@link FileChannel#transferTo(long, long, WritableByteChannel)} to a socket.
+ */
 public class ManyMessageTransfer extends AbstractReferenceCounted implements FileRegion {
     private final ByteBuffer byteBufferHeader;
     private final GetMessageResult getMessageResult;
+    private final List<Range> ranges;
 
     /**
      * Bytes which were transferred already.
      */
     private long transferred;
 
+    /**
+     * Bytes of the messages written from buffers rather than transferred from the files.
+     */
+    private long copied;
+
     public ManyMessageTransfer(ByteBuffer byteBufferHeader, GetMessageResult getMessageResult) {
         this.byteBufferHeader = byteBufferHeader;
         this.getMessageResult = getMessageResult;
+        this.ranges = mergeRanges(getMessageResult);
+    }
+
+    private static List<Range> mergeRanges(final GetMessageResult getMessageResult) {
+        List<Range> ranges = new ArrayList<Range>();
+        List<SelectMappedBufferResult> mappedList = getMessageResult.getMessageMapedList();
+        int i = 0;
+        while (i < mappedList.size()) {
+            SelectMappedBufferResult first = mappedList.get(i);
+            MappedFile mappedFile = first.getMappedFile();
+            long endOffset = first.getStartOffset() + first.getSize();
+            int j = i + 1;
+            if (mappedFile != null && mappedFile.getFileChannel() != null) {
+                while (j < mappedList.size() && mappedList.get(j).getMappedFile() == mappedFile
+                    && mappedList.get(j).getStartOffset() == endOffset) {
+                    endOffset += mappedList.get(j).getSize();
+                    j++;
+                }
+            }
+
+            if (j - i > 1) {
+                int filePosition = (int) (first.getStartOffset() - mappedFile.getFileFromOffset());
+                ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+                byteBuffer.position(filePosition);
+                byteBuffer.limit(filePosition + (int) (endOffset - first.getStartOffset()));
+                ranges.add(new Range(byteBuffer.slice(), mappedFile.getFileChannel(), filePosition));
+            } else if (mappedFile != null && mappedFile.getFileChannel() != null) {
+                ranges.add(new Range(first.getByteBuffer(), mappedFile.getFileChannel(),
+                    first.getStartOffset() - mappedFile.getFileFromOffset()));
+            } else {
+                ranges.add(new Range(first.getByteBuffer(), null, -1));
+            }
+            i = j;
+        }
+        return ranges;
     }
 
     @Override
     public long position() {
         int pos = byteBufferHeader.position();
-        List<ByteBuffer> messageBufferList = this.getMessageResult.getMessageBufferList();
-        for (ByteBuffer bb : messageBufferList) {
-            pos += bb.position();
+        for (Range range : this.ranges) {
+            pos += range.byteBuffer.position();
         }
         return pos;
     }
@@ -63,22 +112,54 @@ public class ManyMessageTransfer extends AbstractReferenceCounted implements Fil
         return byteBufferHeader.limit() + this.getMessageResult.getBufferTotalSize();
     }
 
+    /**
+     * @return bytes transferred by this call, counted from the buffers as some channels don't return them
+     */
     @Override
     public long transferTo(WritableByteChannel target, long position) throws IOException {
+        long written = 0;
         if (this.byteBufferHeader.hasRemaining()) {
-            transferred += target.write(this.byteBufferHeader);
-            return transferred;
-        } else {
-            List<ByteBuffer> messageBufferList = this.getMessageResult.getMessageBufferList();
-            for (ByteBuffer bb : messageBufferList) {
-                if (bb.hasRemaining()) {
-                    transferred += target.write(bb);
-                    return transferred;
-                }
+            int remaining = this.byteBufferHeader.remaining();
+            target.write(this.byteBufferHeader);
+            written += remaining - this.byteBufferHeader.remaining();
+            if (this.byteBufferHeader.hasRemaining()) {
+                this.transferred += written;
+                return written;
             }
         }
 
-        return 0;
+        for (Range range : this.ranges) {
+            if (!range.byteBuffer.hasRemaining()) {
+                continue;
+            }
+            long n;
+            // Others, like the encoder of the TLS channels, take the bytes from the buffers
+            if (range.fileChannel != null && target instanceof SocketChannel) {
+                n = range.fileChannel.transferTo(range.filePosition + range.byteBuffer.position(),
+                    range.byteBuffer.remaining(), target);
+                range.byteBuffer.position(range.byteBuffer.position() + (int) n);
+            } else {
+                int remaining = range.byteBuffer.remaining();
+                target.write(range.byteBuffer);
+                n = remaining - range.byteBuffer.remaining();
+                this.copied += n;
+            }
+            written += n;
+            if (range.byteBuffer.hasRemaining()) {
+                break;
+            }
+        }
+
+        this.transferred += written;
+        return written;
+    }
+
+    public int getRangeNum() {
+        return this.ranges.size();
+    }
+
+    public long getCopied() {
+        return copied;
     }
 
     @Override
@@ -111,4 +192,16 @@ public class ManyMessageTransfer extends AbstractReferenceCounted implements Fil
     protected void deallocate() {
         this.getMessageResult.release();
     }
+
+    private static class Range {
+        private final ByteBuffer byteBuffer;
+        private final FileChannel fileChannel;
+        private final long filePosition;
+
+        Range(ByteBuffer byteBuffer, FileChannel fileChannel, long filePosition) {
+            this.byteBuffer = byteBuffer;
+            this.fileChannel = fileChannel;
+            this.filePosition = filePosition;
+        }
+    }
 }
@@ -109,6 +109,11 @@ public abstract class AbstractPluginMessageStore implements MessageStore {
         return next.getMaxOffsetInQueue(topic, queueId);
     }
 
+    @Override
+    public long getReplicatedMaxOffsetInQueue(String topic, int queueId) {
+        return next.getReplicatedMaxOffsetInQueue(topic, queueId);
+    }
+
     @Override
     public long getMinOffsetInQueue(String topic, int queueId) {
         return next.getMinOffsetInQueue(topic, queueId);
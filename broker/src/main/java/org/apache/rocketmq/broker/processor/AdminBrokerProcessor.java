@@ -102,6 +102,7 @@ import org.apache.rocketmq.common.protocol.header.ViewBrokerStatsDataRequestHead
 import org.apache.rocketmq.common.protocol.header.filtersrv.RegisterFilterServerRequestHeader;
 import org.apache.rocketmq.common.protocol.header.filtersrv.RegisterFilterServerResponseHeader;
 import org.apache.rocketmq.common.protocol.heartbeat.SubscriptionData;
+import org.apache.rocketmq.common.quota.QuotaConfig;
 import org.apache.rocketmq.common.stats.StatsItem;
 import org.apache.rocketmq.common.stats.StatsSnapshot;
 import org.apache.rocketmq.common.subscription.SubscriptionGroupConfig;
@@ -235,6 +236,10 @@ public class AdminBrokerProcessor extends AsyncNettyRequestProcessor implements
                 return resumeCheckHalfMessage(ctx, request);
             case RequestCode.GET_BROKER_CLUSTER_ACL_CONFIG:
                 return getBrokerClusterAclConfig(ctx, request);
+            case RequestCode.UPDATE_QUOTA:
+                return updateQuota(ctx, request);
+            case RequestCode.GET_ALL_QUOTA:
+                return getAllQuota(ctx, request);
             default:
                 return getUnknownCmdResponse(ctx, request);
         }
@@ -710,6 +715,42 @@ public class AdminBrokerProcessor extends AsyncNettyRequestProcessor implements
         return response;
     }
 
+    private RemotingCommand updateQuota(ChannelHandlerContext ctx, RemotingCommand request) {
+        final RemotingCommand response = RemotingCommand.createResponseCommand(null);
+
+        log.info("updateQuota called by {}", RemotingHelper.parseChannelRemoteAddr(ctx.channel()));
+
+        QuotaConfig config = RemotingSerializable.decode(request.getBody(), QuotaConfig.class);
+        if (config == null || config.getResourceType() == null || UtilAll.isBlank(config.getResourceName())) {
+            response.setCode(ResponseCode.SYSTEM_ERROR);
+            response.setRemark("The quota has no resource type or name");
+            return response;
+        }
+        this.brokerController.getQuotaManager().updateQuota(config);
+
+        response.setCode(ResponseCode.SUCCESS);
+        response.setRemark(null);
+        return response;
+    }
+
+    private RemotingCommand getAllQuota(ChannelHandlerContext ctx, RemotingCommand request) {
+        final RemotingCommand response = RemotingCommand.createResponseCommand(null);
+        String content = this.brokerController.getQuotaManager().encode();
+        try {
+            response.setBody(content.getBytes(MixAll.DEFAULT_CHARSET));
+        } catch (UnsupportedEncodingException e) {
+            log.error("", e);
+
+            response.setCode(ResponseCode.SYSTEM_ERROR);
+            response.setRemark("UnsupportedEncodingException " + e);
+            return response;
+        }
+
+        response.setCode(ResponseCode.SUCCESS);
+        response.setRemark(null);
+        return response;
+    }
+
     private RemotingCommand deleteSubscriptionGroup(ChannelHandlerContext ctx,
         RemotingCommand request) throws RemotingCommandException {
         final RemotingCommand response = RemotingCommand.createResponseCommand(null);
@@ -20,7 +20,7 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.FileRegion;
+import io.netty.handler.ssl.SslHandler;
 import java.nio.ByteBuffer;
 import java.util.List;
 import org.apache.rocketmq.broker.BrokerController;
@@ -33,6 +33,7 @@ import org.apache.rocketmq.broker.longpolling.PullRequest;
 import org.apache.rocketmq.broker.mqtrace.ConsumeMessageContext;
 import org.apache.rocketmq.broker.mqtrace.ConsumeMessageHook;
 import org.apache.rocketmq.broker.pagecache.ManyMessageTransfer;
+import org.apache.rocketmq.common.BrokerConfig;
 import org.apache.rocketmq.common.MixAll;
 import org.apache.rocketmq.common.TopicConfig;
 import org.apache.rocketmq.common.TopicFilterType;
@@ -272,6 +273,13 @@ public class PullMessageProcessor extends AsyncNettyRequestProcessor implements
                 else {
                     responseHeader.setSuggestWhichBrokerId(subscriptionGroupConfig.getBrokerId());
                 }
+
+                // tell the consumer how far it can read from the slaves
+                long replicatedMaxOffset = this.brokerController.getMessageStore().getReplicatedMaxOffsetInQueue(
+                    requestHeader.getTopic(), requestHeader.getQueueId());
+                if (replicatedMaxOffset >= 0) {
+                    responseHeader.setReplicatedMaxOffset(replicatedMaxOffset);
+                }
             } else {
                 responseHeader.setSuggestWhichBrokerId(MixAll.MASTER_ID);
             }
@@ -313,7 +321,16 @@ public class PullMessageProcessor extends AsyncNettyRequestProcessor implements
                         requestHeader.getQueueOffset(), getMessageResult.getMaxOffset(), channel.remoteAddress());
                     break;
                 case OFFSET_OVERFLOW_ONE:
-                    response.setCode(ResponseCode.PULL_NOT_FOUND);
+                    if (BrokerRole.SLAVE == this.brokerController.getMessageStoreConfig().getBrokerRole()
+                        && this.brokerController.getBrokerConfig().isSlaveReadEnable()
+                        && this.brokerController.getSlaveSynchronize().getMasterAddr() != null) {
+                        // caught up with the slave, wait for new messages on the master rather than the slave lagging behind,
+                        // without a master the request is suspended here as before
+                        response.setCode(ResponseCode.PULL_RETRY_IMMEDIATELY);
+                        responseHeader.setSuggestWhichBrokerId(MixAll.MASTER_ID);
+                    } else {
+                        response.setCode(ResponseCode.PULL_NOT_FOUND);
+                    }
                     break;
                 case OFFSET_TOO_SMALL:
                     response.setCode(ResponseCode.PULL_OFFSET_MOVED);
@@ -378,7 +395,10 @@ public class PullMessageProcessor extends AsyncNettyRequestProcessor implements
                         getMessageResult.getBufferTotalSize());
 
                     this.brokerController.getBrokerStatsManager().incBrokerGetNums(getMessageResult.getMessageCount());
-                    if (this.brokerController.getBrokerConfig().isTransferMsgByHeap()) {
+                    this.brokerController.getQuotaManager().consumePulled(requestHeader.getConsumerGroup(),
+                        getMessageResult.getMessageCount(), getMessageResult.getBufferTotalSize());
+                    if (this.isTransferMsgByHeap(channel)) {
+                        this.brokerController.getBrokerStatsManager().incBrokerGetCopiedSize(getMessageResult.getBufferTotalSize());
                         final long beginTimeMills = this.brokerController.getMessageStore().now();
                         final byte[] r = this.readGetMessageResult(getMessageResult, requestHeader.getConsumerGroup(), requestHeader.getTopic(), requestHeader.getQueueId());
                         this.brokerController.getBrokerStatsManager().incGroupGetLatency(requestHeader.getConsumerGroup(),
@@ -387,12 +407,14 @@ public class PullMessageProcessor extends AsyncNettyRequestProcessor implements
                         response.setBody(r);
                     } else {
                         try {
-                            FileRegion fileRegion =
+                            final ManyMessageTransfer fileRegion =
                                 new ManyMessageTransfer(response.encodeHeader(getMessageResult.getBufferTotalSize()), getMessageResult);
                             channel.writeAndFlush(fileRegion).addListener(new ChannelFutureListener() {
                                 @Override
                                 public void operationComplete(ChannelFuture future) throws Exception {
                                     getMessageResult.release();
+                                    PullMessageProcessor.this.brokerController.getBrokerStatsManager()
+                                        .incBrokerGetCopiedSize((int) fileRegion.getCopied());
                                     if (!future.isSuccess()) {
                                         log.error("transfer many message by pagecache failed, {}", channel.remoteAddress(), future.cause());
                                     }
@@ -487,6 +509,17 @@ public class PullMessageProcessor extends AsyncNettyRequestProcessor implements
         }
     }
 
+    /**
+     * The channels without TLS take the messages from the page cache, unless told otherwise.
+     */
+    private boolean isTransferMsgByHeap(final Channel channel) {
+        BrokerConfig brokerConfig = this.brokerController.getBrokerConfig();
+        if (!brokerConfig.isTransferMsgByHeap()) {
+            return false;
+        }
+        return !brokerConfig.isTransferMsgByHeapOnlyWithTls() || channel.pipeline().get(SslHandler.class) != null;
+    }
+
     private byte[] readGetMessageResult(final GetMessageResult getMessageResult, final String group, final String topic,
         final int queueId) {
         final ByteBuffer byteBuffer = ByteBuffer.allocate(getMessageResult.getBufferTotalSize());
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.broker.quota;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.rocketmq.broker.BrokerController;
+import org.apache.rocketmq.broker.BrokerPathConfigHelper;
+import org.apache.rocketmq.common.ConfigManager;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.quota.QuotaConfig;
+import org.apache.rocketmq.common.quota.QuotaResourceType;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.remoting.protocol.RemotingSerializable;
+
+public class QuotaManager extends ConfigManager {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.BROKER_LOGGER_NAME);
+
+    private final ConcurrentMap<String/* topic */, QuotaConfig> topicQuotaTable =
+        new ConcurrentHashMap<String, QuotaConfig>();
+    private final ConcurrentMap<String/* group */, QuotaConfig> producerGroupQuotaTable =
+        new ConcurrentHashMap<String, QuotaConfig>();
+    private final ConcurrentMap<String/* group */, QuotaConfig> consumerGroupQuotaTable =
+        new ConcurrentHashMap<String, QuotaConfig>();
+
+    private final transient ConcurrentMap<String, TokenBucket> topicBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    private final transient ConcurrentMap<String, TokenBucket> producerGroupBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    private final transient ConcurrentMap<String, TokenBucket> consumerGroupBuckets = new ConcurrentHashMap<String, TokenBucket>();
+
+    private transient BrokerController brokerController;
+
+    public QuotaManager() {
+    }
+
+    public QuotaManager(BrokerController brokerController) {
+        this.brokerController = brokerController;
+    }
+
+    /**
+     * Create, update or remove, when it limits no rate, the quota of a resource. Its buckets start full again.
+     */
+    public void updateQuota(final QuotaConfig config) {
+        ConcurrentMap<String, QuotaConfig> quotaTable = this.quotaTable(config.getResourceType());
+        ConcurrentMap<String, TokenBucket> buckets = this.buckets(config.getResourceType());
+        if (config.getMessagesPerSecond() <= 0 && config.getBytesPerSecond() <= 0) {
+            QuotaConfig old = quotaTable.remove(config.getResourceName());
+            buckets.remove(config.getResourceName());
+            log.info("remove quota, {}", old);
+        } else {
+            QuotaConfig old = quotaTable.put(config.getResourceName(), config);
+            buckets.put(config.getResourceName(), new TokenBucket(config.getMessagesPerSecond(), config.getBytesPerSecond()));
+            log.info("update quota, old: {} new: {}", old, config);
+        }
+        this.persist();
+    }
+
+    /**
+     * Admit a send request when neither its topic nor its producer group is over quota, and charge both.
+     */
+    public boolean tryAcquireSend(final String topic, final String producerGroup, final int messages, final int bytes) {
+        TokenBucket topicBucket = topic != null ? this.topicBuckets.get(topic) : null;
+        TokenBucket groupBucket = producerGroup != null ? this.producerGroupBuckets.get(producerGroup) : null;
+        if (topicBucket != null && !topicBucket.isAvailable() || groupBucket != null && !groupBucket.isAvailable()) {
+            return false;
+        }
+
+        if (topicBucket != null) {
+            topicBucket.consume(messages, bytes);
+        }
+        if (groupBucket != null) {
+            groupBucket.consume(messages, bytes);
+        }
+        return true;
+    }
+
+    /**
+     * Admit a pull request when its consumer group is not over quota, the messages pulled are charged afterwards.
+     * The topic quotas only limit the sends, so the consumers of a topic never hold back its producers.
+     */
+    public boolean tryAcquirePull(final String consumerGroup) {
+        TokenBucket groupBucket = consumerGroup != null ? this.consumerGroupBuckets.get(consumerGroup) : null;
+        return groupBucket == null || groupBucket.isAvailable();
+    }
+
+    public void consumePulled(final String consumerGroup, final int messages, final int bytes) {
+        TokenBucket groupBucket = this.consumerGroupBuckets.get(consumerGroup);
+        if (groupBucket != null) {
+            groupBucket.consume(messages, bytes);
+        }
+    }
+
+    @Override
+    public String encode() {
+        return this.encode(false);
+    }
+
+    @Override
+    public String configFilePath() {
+        return BrokerPathConfigHelper.getQuotaPath(this.brokerController.getMessageStoreConfig().getStorePathRootDir());
+    }
+
+    @Override
+    public void decode(String jsonString) {
+        if (jsonString != null) {
+            QuotaManager obj = RemotingSerializable.fromJson(jsonString, QuotaManager.class);
+            if (obj != null) {
+                this.load(QuotaResourceType.TOPIC, obj.topicQuotaTable);
+                this.load(QuotaResourceType.PRODUCER_GROUP, obj.producerGroupQuotaTable);
+                this.load(QuotaResourceType.CONSUMER_GROUP, obj.consumerGroupQuotaTable);
+            }
+        }
+    }
+
+    private void load(final QuotaResourceType resourceType, final ConcurrentMap<String, QuotaConfig> quotaTable) {
+        for (QuotaConfig config : quotaTable.values()) {
+            this.quotaTable(resourceType).put(config.getResourceName(), config);
+            this.buckets(resourceType).put(config.getResourceName(),
+                new TokenBucket(config.getMessagesPerSecond(), config.getBytesPerSecond()));
+        }
+    }
+
+    @Override
+    public String encode(final boolean prettyFormat) {
+        return RemotingSerializable.toJson(this, prettyFormat);
+    }
+
+    private ConcurrentMap<String, QuotaConfig> quotaTable(final QuotaResourceType resourceType) {
+        switch (resourceType) {
+            case TOPIC:
+                return this.topicQuotaTable;
+            case PRODUCER_GROUP:
+                return this.producerGroupQuotaTable;
+            default:
+                return this.consumerGroupQuotaTable;
+        }
+    }
+
+    private ConcurrentMap<String, TokenBucket> buckets(final QuotaResourceType resourceType) {
+        switch (resourceType) {
+            case TOPIC:
+                return this.topicBuckets;
+            case PRODUCER_GROUP:
+                return this.producerGroupBuckets;
+            default:
+                return this.consumerGroupBuckets;
+        }
+    }
+
+    public ConcurrentMap<String, QuotaConfig> getTopicQuotaTable() {
+        return topicQuotaTable;
+    }
+
+    public ConcurrentMap<String, QuotaConfig> getProducerGroupQuotaTable() {
+        return producerGroupQuotaTable;
+    }
+
+    public ConcurrentMap<String, QuotaConfig> getConsumerGroupQuotaTable() {
+        return consumerGroupQuotaTable;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.broker.quota;
+
+import io.netty.channel.Channel;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import org.apache.rocketmq.common.protocol.RequestCode;
+import org.apache.rocketmq.common.protocol.ResponseCode;
+import org.apache.rocketmq.remoting.RequestLimiter;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+
+/**
+ * Enforce the quotas of the send and pull requests before they reach their processors, reading the topic and group
+ * from the ext fields of the request so its header is not decoded.
+ */
+public class QuotaRequestLimiter implements RequestLimiter {
+    private final QuotaManager quotaManager;
+
+    public QuotaRequestLimiter(final QuotaManager quotaManager) {
+        this.quotaManager = quotaManager;
+    }
+
+    @Override
+    public RemotingCommand limitRequest(final Channel channel, final RemotingCommand request) {
+        Map<String, String> fields = request.getExtFields();
+        if (fields == null) {
+            return null;
+        }
+
+        switch (request.getCode()) {
+            case RequestCode.SEND_MESSAGE:
+                return this.limitSend(fields.get("topic"), fields.get("producerGroup"), 1, request.getBody());
+            case RequestCode.SEND_MESSAGE_V2:
+                return this.limitSend(fields.get("b"), fields.get("a"), 1, request.getBody());
+            case RequestCode.SEND_BATCH_MESSAGE:
+                return this.limitSend(fields.get("b"), fields.get("a"), countMessages(request.getBody()), request.getBody());
+            case RequestCode.PULL_MESSAGE:
+                String consumerGroup = fields.get("consumerGroup");
+                if (!this.quotaManager.tryAcquirePull(consumerGroup)) {
+                    return RemotingCommand.createResponseCommand(ResponseCode.RATE_LIMITED,
+                        String.format("[RATE_LIMITED]consumer group %s is over its quota, try again later", consumerGroup));
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private RemotingCommand limitSend(final String topic, final String producerGroup, final int messages,
+        final byte[] body) {
+        if (this.quotaManager.tryAcquireSend(topic, producerGroup, messages, body != null ? body.length : 0)) {
+            return null;
+        }
+        return RemotingCommand.createResponseCommand(ResponseCode.RATE_LIMITED,
+            String.format("[RATE_LIMITED]topic %s or producer group %s is over its quota, try again later", topic, producerGroup));
+    }
+
+    /**
+     * Count the messages of a batch by walking their total size fields, up to the first one which doesn't fit in the
+     * rest of the body.
+     */
+    static int countMessages(final byte[] body) {
+        if (body == null) {
+            return 0;
+        }
+
+        ByteBuffer byteBuffer = ByteBuffer.wrap(body);
+        int messages = 0;
+        int position = 0;
+        while (position + 4 <= body.length) {
+            int totalSize = byteBuffer.getInt(position);
+            if (totalSize <= 0 || totalSize > body.length - position) {
+                break;
+            }
+            messages++;
+            position += totalSize;
+        }
+        return Math.max(messages, 1);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.broker.quota;
+
+/**
+ * Token buckets of messages and bytes, refilled at the rates of a quota and holding up to one second of them.
+ * <p>
+ * A request is admitted while neither bucket is in debt, then its cost is taken even if that leaves a bucket in debt,
+ * so a request larger than the burst still passes once and the rate holds over time. This also lets the cost of a
+ * pull be charged after the messages are read.
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+
+    private final long messagesPerSecond;
+    private final long bytesPerSecond;
+    private double messageTokens;
+    private double byteTokens;
+    private long refillNanos;
+
+    public TokenBucket(final long messagesPerSecond, final long bytesPerSecond) {
+        this.messagesPerSecond = messagesPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        this.messageTokens = messagesPerSecond;
+        this.byteTokens = bytesPerSecond;
+        this.refillNanos = System.nanoTime();
+    }
+
+    public synchronized boolean isAvailable() {
+        this.refill();
+        return (this.messagesPerSecond <= 0 || this.messageTokens >= 0)
+            && (this.bytesPerSecond <= 0 || this.byteTokens >= 0);
+    }
+
+    public synchronized void consume(final long messages, final long bytes) {
+        this.refill();
+        this.messageTokens -= messages;
+        this.byteTokens -= bytes;
+    }
+
+    public synchronized boolean tryAcquire(final long messages, final long bytes) {
+        if (!this.isAvailable()) {
+            return false;
+        }
+        this.consume(messages, bytes);
+        return true;
+    }
+
+    public long getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double seconds = (double) (now - this.refillNanos) / NANOS_PER_SECOND;
+        this.refillNanos = now;
+        this.messageTokens = Math.min(this.messagesPerSecond, this.messageTokens + seconds * this.messagesPerSecond);
+        this.byteTokens = Math.min(this.bytesPerSecond, this.byteTokens + seconds * this.bytesPerSecond);
+    }
+}
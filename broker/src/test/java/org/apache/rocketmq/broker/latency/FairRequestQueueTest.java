@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.broker.latency;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.protocol.RequestCode;
+import org.apache.rocketmq.remoting.netty.RequestTask;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FairRequestQueueTest {
+    private final BrokerConfig brokerConfig = new BrokerConfig();
+
+    @Test
+    public void testWeightedRoundRobin() {
+        brokerConfig.setFairRequestQueueWeights("groupA:2");
+        FairRequestQueue queue = new FairRequestQueue(100, brokerConfig);
+        for (int i = 0; i < 6; i++) {
+            assertThat(queue.offer(newTask("groupA"))).isTrue();
+        }
+        for (int i = 0; i < 3; i++) {
+            assertThat(queue.offer(newTask("groupB"))).isTrue();
+        }
+        assertThat(queue.size()).isEqualTo(9);
+
+        List<String> order = new ArrayList<String>();
+        Runnable runnable;
+        while ((runnable = queue.poll()) != null) {
+            order.add(groupOf(runnable));
+        }
+        assertThat(order).containsExactly("groupA", "groupA", "groupB", "groupA", "groupA", "groupB", "groupA", "groupA", "groupB");
+    }
+
+    @Test
+    public void testTenantCapacity() {
+        brokerConfig.setFairRequestQueueTenantCapacityPercent(50);
+        FairRequestQueue queue = new FairRequestQueue(10, brokerConfig);
+        for (int i = 0; i < 5; i++) {
+            assertThat(queue.offer(newTask("noisy"))).isTrue();
+        }
+        assertThat(queue.offer(newTask("noisy"))).isFalse();
+        assertThat(queue.offer(newTask("quiet"))).isTrue();
+        assertThat(queue.remainingCapacity()).isEqualTo(4);
+    }
+
+    @Test
+    public void testPriorityTenant() {
+        brokerConfig.setFairRequestQueuePriorityTenants("vip");
+        FairRequestQueue queue = new FairRequestQueue(100, brokerConfig);
+        queue.offer(newTask("groupA"));
+        queue.offer(newTask("groupA"));
+        queue.offer(newTask("vip"));
+
+        assertThat(groupOf(queue.peek())).isEqualTo("vip");
+        assertThat(groupOf(queue.poll())).isEqualTo("vip");
+        assertThat(groupOf(queue.poll())).isEqualTo("groupA");
+    }
+
+    @Test
+    public void testPollExpired() throws Exception {
+        FairRequestQueue queue = new FairRequestQueue(100, brokerConfig);
+        queue.offer(newTask("groupA"));
+        queue.offer(newTask("groupB"));
+        TimeUnit.MILLISECONDS.sleep(100);
+        Runnable fresh = newTask("groupB");
+        queue.offer(fresh);
+
+        assertThat(queue.pollExpired(100)).hasSize(2);
+        assertThat(queue.size()).isEqualTo(1);
+        assertThat(queue.poll()).isSameAs(fresh);
+
+        Map<String, QueueWaitHistogram.Snapshot> waits = queue.drainWaitHistograms();
+        assertThat(waits).containsOnlyKeys("groupB");
+        assertThat(waits.get("groupB").getCount()).isEqualTo(1);
+        assertThat(queue.drainWaitHistograms()).isEmpty();
+    }
+
+    @Test
+    public void testExecutor() throws Exception {
+        FairRequestQueue queue = new FairRequestQueue(1000, brokerConfig);
+        BrokerFixedThreadPoolExecutor executor = new BrokerFixedThreadPoolExecutor(4, 4, 1000 * 60,
+            TimeUnit.MILLISECONDS, queue);
+        final CountDownLatch latch = new CountDownLatch(200);
+        try {
+            for (int i = 0; i < 200; i++) {
+                executor.submit(new RequestTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        latch.countDown();
+                    }
+                }, null, newRequest("group" + (i % 7))));
+            }
+            assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Runnable newTask(final String group) {
+        return new FutureTaskExt<Void>(new RequestTask(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, null, newRequest(group)), null);
+    }
+
+    private static RemotingCommand newRequest(final String group) {
+        RemotingCommand request = RemotingCommand.createRequestCommand(RequestCode.SEND_MESSAGE_V2, null);
+        request.addExtField("a", group);
+        request.addExtField("b", "topic");
+        return request;
+    }
+
+    private static String groupOf(final Runnable runnable) {
+        return ((RequestTask) ((FutureTaskExt<?>) runnable).getRunnable()).getRequest().getExtFields().get("a");
+    }
+}
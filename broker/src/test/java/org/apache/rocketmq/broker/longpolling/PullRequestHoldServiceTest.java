@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.broker.longpolling;
+
+import io.netty.channel.Channel;
+import org.apache.rocketmq.broker.BrokerController;
+import org.apache.rocketmq.broker.processor.PullMessageProcessor;
+import org.apache.rocketmq.common.protocol.heartbeat.SubscriptionData;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+import org.apache.rocketmq.store.ConsumeQueueExt;
+import org.apache.rocketmq.store.MessageFilter;
+import org.apache.rocketmq.store.MessageStore;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PullRequestHoldServiceTest {
+    private static final String TOPIC = "TopicTest";
+
+    @Mock
+    private BrokerController brokerController;
+    @Mock
+    private MessageStore messageStore;
+    @Mock
+    private PullMessageProcessor pullMessageProcessor;
+    @Mock
+    private Channel channel;
+    @Mock
+    private MessageFilter messageFilter;
+
+    private PullRequestHoldService pullRequestHoldService;
+
+    @Before
+    public void init() {
+        when(brokerController.getMessageStore()).thenReturn(messageStore);
+        when(brokerController.getPullMessageProcessor()).thenReturn(pullMessageProcessor);
+        when(messageStore.getMaxOffsetInQueue(anyString(), anyInt())).thenReturn(10L);
+        when(messageFilter.isMatchedByConsumeQueue(any(), any(ConsumeQueueExt.CqExtUnit.class))).thenReturn(true);
+        pullRequestHoldService = new PullRequestHoldService(brokerController);
+    }
+
+    @Test
+    public void testWakeupWhenMessageArrives() throws Exception {
+        PullRequest pullRequest = newPullRequest(System.currentTimeMillis(), 15000, new SubscriptionData());
+        pullRequestHoldService.suspendPullRequest(TOPIC, 0, pullRequest);
+
+        pullRequestHoldService.notifyMessageArriving(TOPIC, 1, 11);
+        pullRequestHoldService.notifyMessageArriving(TOPIC, 0, 10);
+        verify(pullMessageProcessor, never()).executeRequestWhenWakeup(any(Channel.class), any(RemotingCommand.class));
+
+        pullRequestHoldService.notifyMessageArriving(TOPIC, 0, 11);
+        pullRequestHoldService.notifyMessageArriving(TOPIC, 0, 12);
+        verify(pullMessageProcessor, times(1)).executeRequestWhenWakeup(channel, pullRequest.getRequestCommand());
+    }
+
+    @Test
+    public void testWakeupWhenMessageArrivedBeforeSuspend() throws Exception {
+        when(messageStore.getMaxOffsetInQueue(TOPIC, 0)).thenReturn(11L);
+        PullRequest pullRequest = newPullRequest(System.currentTimeMillis(), 15000, new SubscriptionData());
+        pullRequestHoldService.suspendPullRequest(TOPIC, 0, pullRequest);
+
+        verify(pullMessageProcessor, times(1)).executeRequestWhenWakeup(channel, pullRequest.getRequestCommand());
+    }
+
+    @Test
+    public void testWakeupWhenTimeout() throws Exception {
+        long now = System.currentTimeMillis();
+        PullRequest shortRequest = newPullRequest(now, 300, new SubscriptionData());
+        PullRequest longRequest = newPullRequest(now, 300 + 512 * PullRequestHoldService.TICK_MILLIS, new SubscriptionData());
+        pullRequestHoldService.suspendPullRequest(TOPIC, 0, shortRequest);
+        pullRequestHoldService.suspendPullRequest(TOPIC, 0, longRequest);
+
+        pullRequestHoldService.expireTimeouts(now);
+        pullRequestHoldService.expireTimeouts(now + 200);
+        verify(pullMessageProcessor, never()).executeRequestWhenWakeup(any(Channel.class), any(RemotingCommand.class));
+
+        pullRequestHoldService.expireTimeouts(now + 400);
+        verify(pullMessageProcessor, times(1)).executeRequestWhenWakeup(channel, shortRequest.getRequestCommand());
+
+        // The long request shares the slot of the short one, one round of the wheel later
+        verify(pullMessageProcessor, never()).executeRequestWhenWakeup(channel, longRequest.getRequestCommand());
+        pullRequestHoldService.expireTimeouts(now + 512 * PullRequestHoldService.TICK_MILLIS + 200);
+        verify(pullMessageProcessor, never()).executeRequestWhenWakeup(channel, longRequest.getRequestCommand());
+        pullRequestHoldService.expireTimeouts(now + 512 * PullRequestHoldService.TICK_MILLIS + 400);
+        verify(pullMessageProcessor, times(1)).executeRequestWhenWakeup(channel, longRequest.getRequestCommand());
+
+        // Timed out requests are not woken again by messages
+        pullRequestHoldService.notifyMessageArriving(TOPIC, 0, 11);
+        verify(pullMessageProcessor, times(2)).executeRequestWhenWakeup(any(Channel.class), any(RemotingCommand.class));
+    }
+
+    @Test
+    public void testFilterEvaluatedOncePerSubscription() throws Exception {
+        when(messageFilter.isMatchedByConsumeQueue(any(), any(ConsumeQueueExt.CqExtUnit.class))).thenReturn(false);
+        SubscriptionData subscriptionData = new SubscriptionData();
+        for (int i = 0; i < 3; i++) {
+            pullRequestHoldService.suspendPullRequest(TOPIC, 0,
+                newPullRequest(System.currentTimeMillis(), 15000, subscriptionData));
+        }
+
+        pullRequestHoldService.notifyMessageArriving(TOPIC, 0, 11, 1L, 0, null, null);
+        verify(messageFilter, times(1)).isMatchedByConsumeQueue(any(), any(ConsumeQueueExt.CqExtUnit.class));
+        verify(pullMessageProcessor, never()).executeRequestWhenWakeup(any(Channel.class), any(RemotingCommand.class));
+    }
+
+    private PullRequest newPullRequest(long suspendTimestamp, long timeoutMillis, SubscriptionData subscriptionData) {
+        return new PullRequest(RemotingCommand.createRequestCommand(0, null), channel, timeoutMillis,
+            suspendTimestamp, 10, subscriptionData, messageFilter);
+    }
+}
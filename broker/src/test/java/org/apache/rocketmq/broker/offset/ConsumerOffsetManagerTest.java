@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.broker.offset;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.UUID;
+import org.apache.rocketmq.broker.BrokerController;
+import org.apache.rocketmq.broker.BrokerPathConfigHelper;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.protocol.body.ConsumerOffsetSerializeWrapper;
+import org.apache.rocketmq.store.MessageStore;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ConsumerOffsetManagerTest {
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+    private final BrokerConfig brokerConfig = new BrokerConfig();
+    private BrokerController brokerController;
+
+    @Before
+    public void init() {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        brokerConfig.setConsumerOffsetJournalEnable(true);
+        brokerController = mock(BrokerController.class);
+        when(brokerController.getBrokerConfig()).thenReturn(brokerConfig);
+        when(brokerController.getMessageStoreConfig()).thenReturn(messageStoreConfig);
+    }
+
+    @After
+    public void destroy() {
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testJournalReload() {
+        ConsumerOffsetManager offsetManager = new ConsumerOffsetManager(brokerController);
+        assertThat(offsetManager.load()).isTrue();
+        offsetManager.commitOffset("127.0.0.1", "group", "topic", 0, 100L);
+        offsetManager.commitOffset("127.0.0.1", "group", "topic", 1, 200L);
+        offsetManager.commitOffset("127.0.0.1", "other", "topic", 0, 10L);
+        offsetManager.persist();
+        offsetManager.commitOffset("127.0.0.1", "group", "topic", 0, 150L);
+        offsetManager.cloneOffset("group", "clone", "topic");
+        offsetManager.removeOffset("other");
+        offsetManager.persist();
+        offsetManager.shutdown();
+
+        ConsumerOffsetManager reloaded = new ConsumerOffsetManager(brokerController);
+        assertThat(reloaded.load()).isTrue();
+        assertThat(reloaded.getOffsetTable()).isEqualTo(offsetManager.getOffsetTable());
+        assertThat(reloaded.queryOffset("group", "topic", 0)).isEqualTo(150L);
+        assertThat(reloaded.queryOffset("clone", "topic", 1)).isEqualTo(200L);
+        assertThat(reloaded.queryOffset("other", "topic", 0)).isEqualTo(-1L);
+        reloaded.shutdown();
+    }
+
+    @Test
+    public void testQueryByTopic() {
+        brokerConfig.setConsumerOffsetJournalEnable(false);
+        MessageStore messageStore = mock(MessageStore.class);
+        when(brokerController.getMessageStore()).thenReturn(messageStore);
+        when(messageStore.getMinOffsetInQueue("topic", 1)).thenReturn(50L);
+        ConsumerOffsetManager offsetManager = new ConsumerOffsetManager(brokerController);
+        offsetManager.commitOffset("127.0.0.1", "group1", "topic", 0, 100L);
+        offsetManager.commitOffset("127.0.0.1", "group1", "topic", 1, 40L);
+        offsetManager.commitOffset("127.0.0.1", "group2", "topic", 0, 80L);
+        offsetManager.commitOffset("127.0.0.1", "group2", "topic", 1, 60L);
+        offsetManager.commitOffset("127.0.0.1", "group3", "topic", 0, 10L);
+        offsetManager.commitOffset("127.0.0.1", "group1", "other", 0, 1L);
+
+        assertThat(offsetManager.whichGroupByTopic("topic")).containsOnly("group1", "group2", "group3");
+        assertThat(offsetManager.whichTopicByConsumer("group1")).containsOnly("topic", "other");
+        Map<Integer, Long> minOffsets = offsetManager.queryMinOffsetInAllGroup("topic", "group3");
+        assertThat(minOffsets).containsEntry(0, 80L).containsEntry(1, 60L).hasSize(2);
+        assertThat(offsetManager.queryOffset("group3", "topic", 0)).isEqualTo(10L);
+
+        offsetManager.removeOffset("group1");
+        assertThat(offsetManager.whichTopicByConsumer("group1")).isEmpty();
+        assertThat(offsetManager.whichGroupByTopic("topic")).containsOnly("group2", "group3");
+    }
+
+    @Test
+    public void testEncode() {
+        ConsumerOffsetManager offsetManager = new ConsumerOffsetManager(brokerController);
+        offsetManager.commitOffset("127.0.0.1", "group", "topic", 2, 100L);
+        String json = offsetManager.encode();
+
+        ConsumerOffsetSerializeWrapper wrapper = ConsumerOffsetSerializeWrapper.fromJson(json, ConsumerOffsetSerializeWrapper.class);
+        assertThat(wrapper.getOffsetTable()).containsOnlyKeys("topic@group");
+        assertThat(wrapper.getOffsetTable().get("topic@group")).containsEntry(2, 100L).hasSize(1);
+
+        ConsumerOffsetManager decoded = new ConsumerOffsetManager(brokerController);
+        decoded.decode(json);
+        assertThat(decoded.getOffsetTable()).isEqualTo(offsetManager.getOffsetTable());
+    }
+
+    @Test
+    public void testMigrateFromJson() {
+        brokerConfig.setConsumerOffsetJournalEnable(false);
+        ConsumerOffsetManager jsonManager = new ConsumerOffsetManager(brokerController);
+        assertThat(jsonManager.load()).isTrue();
+        jsonManager.commitOffset("127.0.0.1", "group", "topic", 3, 300L);
+        jsonManager.persist();
+        assertThat(new File(BrokerPathConfigHelper.getConsumerOffsetJournalPath(storePath))).doesNotExist();
+
+        brokerConfig.setConsumerOffsetJournalEnable(true);
+        ConsumerOffsetManager offsetManager = new ConsumerOffsetManager(brokerController);
+        assertThat(offsetManager.load()).isTrue();
+        offsetManager.shutdown();
+        assertThat(new File(BrokerPathConfigHelper.getConsumerOffsetJournalPath(storePath))).exists();
+
+        ConsumerOffsetManager reloaded = new ConsumerOffsetManager(brokerController);
+        assertThat(reloaded.load()).isTrue();
+        assertThat(reloaded.queryOffset("group", "topic", 3)).isEqualTo(300L);
+        reloaded.shutdown();
+    }
+
+    @Test
+    public void testDisableAndReenableJournal() {
+        brokerConfig.setConsumerOffsetJournalEnable(false);
+        ConsumerOffsetManager jsonManager = new ConsumerOffsetManager(brokerController);
+        assertThat(jsonManager.load()).isTrue();
+        jsonManager.commitOffset("127.0.0.1", "group", "topic", 0, 100L);
+        jsonManager.persist();
+
+        brokerConfig.setConsumerOffsetJournalEnable(true);
+        ConsumerOffsetManager journalManager = new ConsumerOffsetManager(brokerController);
+        assertThat(journalManager.load()).isTrue();
+        journalManager.commitOffset("127.0.0.1", "group", "topic", 0, 200L);
+        journalManager.persist();
+        journalManager.shutdown();
+
+        // The json file is stale, the offsets of the journal are kept
+        brokerConfig.setConsumerOffsetJournalEnable(false);
+        jsonManager = new ConsumerOffsetManager(brokerController);
+        assertThat(jsonManager.load()).isTrue();
+        assertThat(jsonManager.queryOffset("group", "topic", 0)).isEqualTo(200L);
+        assertThat(new File(BrokerPathConfigHelper.getConsumerOffsetJournalPath(storePath))).doesNotExist();
+        jsonManager.commitOffset("127.0.0.1", "group", "topic", 0, 300L);
+        jsonManager.persist();
+
+        // The json file is newer, the journal is migrated from it again
+        brokerConfig.setConsumerOffsetJournalEnable(true);
+        journalManager = new ConsumerOffsetManager(brokerController);
+        assertThat(journalManager.load()).isTrue();
+        assertThat(journalManager.queryOffset("group", "topic", 0)).isEqualTo(300L);
+        journalManager.shutdown();
+    }
+
+    @Test
+    public void testPersistAfterShutdown() {
+        ConsumerOffsetManager offsetManager = new ConsumerOffsetManager(brokerController);
+        assertThat(offsetManager.load()).isTrue();
+        offsetManager.commitOffset("127.0.0.1", "group", "topic", 0, 100L);
+        offsetManager.persist();
+        offsetManager.shutdown();
+        offsetManager.commitOffset("127.0.0.1", "group", "topic", 0, 200L);
+        offsetManager.persist();
+        assertThat(new File(BrokerPathConfigHelper.getConsumerOffsetPath(storePath))).doesNotExist();
+
+        ConsumerOffsetManager reloaded = new ConsumerOffsetManager(brokerController);
+        assertThat(reloaded.load()).isTrue();
+        assertThat(reloaded.queryOffset("group", "topic", 0)).isEqualTo(100L);
+        reloaded.shutdown();
+    }
+
+    @Test
+    public void testDropTornRecord() throws Exception {
+        ConsumerOffsetManager offsetManager = new ConsumerOffsetManager(brokerController);
+        assertThat(offsetManager.load()).isTrue();
+        offsetManager.commitOffset("127.0.0.1", "group", "topic", 0, 100L);
+        offsetManager.persist();
+        offsetManager.commitOffset("127.0.0.1", "group", "topic", 0, 200L);
+        offsetManager.persist();
+        offsetManager.shutdown();
+
+        // Cut the last offset record in half, as a crash in the middle of the write would
+        String fileName = BrokerPathConfigHelper.getConsumerOffsetJournalPath(storePath);
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+            file.setLength(file.length() - 10);
+        }
+
+        ConsumerOffsetManager reloaded = new ConsumerOffsetManager(brokerController);
+        assertThat(reloaded.load()).isTrue();
+        assertThat(reloaded.queryOffset("group", "topic", 0)).isEqualTo(100L);
+        reloaded.commitOffset("127.0.0.1", "group", "topic", 0, 300L);
+        reloaded.persist();
+        reloaded.shutdown();
+
+        ConsumerOffsetManager again = new ConsumerOffsetManager(brokerController);
+        assertThat(again.load()).isTrue();
+        assertThat(again.queryOffset("group", "topic", 0)).isEqualTo(300L);
+        again.shutdown();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.broker.offset;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.apache.rocketmq.broker.offset.ConsumerOffsetTable.QueueOffsets;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConsumerOffsetTableTest {
+
+    @Test
+    public void testIndex() {
+        ConsumerOffsetTable table = new ConsumerOffsetTable();
+        table.getOrCreate("topicA", "group1").put(0, 10L);
+        table.getOrCreate("topicA", "group2").put(1, 20L);
+        table.getOrCreate("topicB", "group1").put(2, 30L);
+
+        assertThat(table.groupsByTopic("topicA")).containsOnly("group1", "group2");
+        assertThat(table.topicsByGroup("group1")).containsOnly("topicA", "topicB");
+        assertThat(table.get("topicA@group2").get(1)).isEqualTo(20L);
+        assertThat(table.get("topicA", "group2").get(0)).isEqualTo(-1L);
+
+        table.remove("topicA@group1");
+        assertThat(table.groupsByTopic("topicA")).containsOnly("group2");
+        assertThat(table.topicsByGroup("group1")).containsOnly("topicB");
+        table.remove("topicB@group1");
+        assertThat(table.topicsByGroup("group1")).isEmpty();
+        assertThat(table.toMap()).containsOnlyKeys("topicA@group2");
+    }
+
+    @Test
+    public void testConcurrentGrow() throws Exception {
+        final QueueOffsets queueOffsets = new ConsumerOffsetTable().getOrCreate("topic", "group");
+        final int threads = 4;
+        final int queues = 256;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int writer = i;
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    // Each writer owns the queues of its residue, so every offset must survive the growths
+                    for (int queueId = writer; queueId < queues; queueId += threads) {
+                        queueOffsets.put(queueId, queueId * 10L);
+                    }
+                }
+            });
+            writers[i].start();
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        for (int queueId = 0; queueId < queues; queueId++) {
+            assertThat(queueOffsets.get(queueId)).isEqualTo(queueId * 10L);
+        }
+        assertThat(queueOffsets.toMap()).hasSize(queues);
+    }
+
+    @Test
+    public void testLargeQueueIdAndOffset() {
+        QueueOffsets queueOffsets = new ConsumerOffsetTable().getOrCreate("topic", "group");
+        assertThat(queueOffsets.put(Integer.MAX_VALUE, 100L)).isEqualTo(-1L);
+        assertThat(queueOffsets.put(QueueOffsets.DENSE_LIMIT, 200L)).isEqualTo(-1L);
+        assertThat(queueOffsets.put(0, Long.MIN_VALUE + 1)).isEqualTo(-1L);
+        assertThat(queueOffsets.put(1, Long.MIN_VALUE)).isEqualTo(-1L);
+
+        assertThat(queueOffsets.get(Integer.MAX_VALUE)).isEqualTo(100L);
+        assertThat(queueOffsets.get(QueueOffsets.DENSE_LIMIT)).isEqualTo(200L);
+        assertThat(queueOffsets.get(0)).isEqualTo(Long.MIN_VALUE + 1);
+        assertThat(queueOffsets.contains(1)).isTrue();
+        assertThat(queueOffsets.get(1)).isEqualTo(Long.MIN_VALUE);
+        assertThat(queueOffsets.toMap()).containsOnlyKeys(0, 1, QueueOffsets.DENSE_LIMIT, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testNegativeQueueIdSkipped() {
+        ConsumerOffsetTable table = new ConsumerOffsetTable();
+        Map<Integer, Long> offsets = new HashMap<Integer, Long>();
+        offsets.put(-1, 5L);
+        offsets.put(Integer.MIN_VALUE, 6L);
+        offsets.put(2, 7L);
+        assertThat(table.put("topic@group", offsets)).isTrue();
+        assertThat(table.get("topic@group").toMap()).containsOnlyKeys(2);
+
+        QueueOffsets queueOffsets = table.get("topic", "group");
+        assertThat(queueOffsets.put(-1, 8L)).isEqualTo(-1L);
+        assertThat(queueOffsets.get(-1)).isEqualTo(-1L);
+        assertThat(queueOffsets.contains(-1)).isFalse();
+        assertThat(queueOffsets.get(2)).isEqualTo(7L);
+    }
+}
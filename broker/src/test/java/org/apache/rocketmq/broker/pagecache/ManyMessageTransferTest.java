@@ -17,8 +17,17 @@
 
 package org.apache.rocketmq.broker.pagecache;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.store.GetMessageResult;
+import org.apache.rocketmq.store.MappedFile;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -61,4 +70,82 @@ public class ManyMessageTransferTest {
         manyMessageTransfer.close();
         manyMessageTransfer.deallocate();
     }
+
+    @Test
+    public void ManyMessageTransferMergeTest() throws Exception {
+        String storePath = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+        MappedFile mappedFile = new MappedFile(storePath + File.separator + "00000000000000000000", 4096);
+        try {
+            byte[] data = new byte[300];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            mappedFile.appendMessage(data);
+
+            // Two adjacent slices then one apart
+            GetMessageResult getMessageResult = new GetMessageResult();
+            getMessageResult.addMessage(mappedFile.selectMappedBuffer(0, 100));
+            getMessageResult.addMessage(mappedFile.selectMappedBuffer(100, 100));
+            getMessageResult.addMessage(mappedFile.selectMappedBuffer(250, 50));
+            ByteBuffer header = ByteBuffer.allocate(4);
+            header.putInt(250);
+            header.flip();
+            ManyMessageTransfer manyMessageTransfer = new ManyMessageTransfer(header, getMessageResult);
+            Assert.assertEquals(2, manyMessageTransfer.getRangeNum());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            while (manyMessageTransfer.transferred() < manyMessageTransfer.count()) {
+                manyMessageTransfer.transferTo(Channels.newChannel(out), manyMessageTransfer.transferred());
+            }
+            byte[] bytes = out.toByteArray();
+            Assert.assertEquals(254, bytes.length);
+            Assert.assertEquals(250, ByteBuffer.wrap(bytes).getInt());
+            Assert.assertEquals(data[199], bytes[4 + 199]);
+            Assert.assertEquals(data[250], bytes[4 + 200]);
+            Assert.assertEquals(250, manyMessageTransfer.getCopied());
+            manyMessageTransfer.close();
+        } finally {
+            mappedFile.destroy(1000);
+            UtilAll.deleteFile(new File(storePath));
+        }
+    }
+
+    @Test
+    public void ManyMessageTransferToSocketTest() throws Exception {
+        String storePath = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+        MappedFile mappedFile = new MappedFile(storePath + File.separator + "00000000000000000000", 4096);
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            byte[] data = new byte[200];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            mappedFile.appendMessage(data);
+            GetMessageResult getMessageResult = new GetMessageResult();
+            getMessageResult.addMessage(mappedFile.selectMappedBuffer(0, 100));
+            getMessageResult.addMessage(mappedFile.selectMappedBuffer(100, 100));
+            ManyMessageTransfer manyMessageTransfer = new ManyMessageTransfer(ByteBuffer.allocate(0), getMessageResult);
+            Assert.assertEquals(1, manyMessageTransfer.getRangeNum());
+
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            try (SocketChannel client = SocketChannel.open(serverChannel.getLocalAddress());
+                 SocketChannel accepted = serverChannel.accept()) {
+                while (manyMessageTransfer.transferred() < manyMessageTransfer.count()) {
+                    manyMessageTransfer.transferTo(client, manyMessageTransfer.transferred());
+                }
+                ByteBuffer received = ByteBuffer.allocate(data.length);
+                while (received.hasRemaining()) {
+                    accepted.read(received);
+                }
+                Assert.assertArrayEquals(data, received.array());
+            }
+            // Sent from the file
+            Assert.assertEquals(0, manyMessageTransfer.getCopied());
+            manyMessageTransfer.close();
+        } finally {
+            serverChannel.close();
+            mappedFile.destroy(1000);
+            UtilAll.deleteFile(new File(storePath));
+        }
+    }
 }
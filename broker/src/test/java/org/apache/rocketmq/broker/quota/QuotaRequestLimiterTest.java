@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.broker.quota;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.apache.rocketmq.broker.BrokerController;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageBatch;
+import org.apache.rocketmq.common.protocol.RequestCode;
+import org.apache.rocketmq.common.protocol.ResponseCode;
+import org.apache.rocketmq.common.protocol.header.PullMessageRequestHeader;
+import org.apache.rocketmq.common.protocol.header.SendMessageRequestHeader;
+import org.apache.rocketmq.common.protocol.header.SendMessageRequestHeaderV2;
+import org.apache.rocketmq.common.quota.QuotaConfig;
+import org.apache.rocketmq.common.quota.QuotaResourceType;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class QuotaRequestLimiterTest {
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+    private BrokerController brokerController;
+    private QuotaManager quotaManager;
+    private QuotaRequestLimiter requestLimiter;
+
+    @Before
+    public void init() {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        brokerController = mock(BrokerController.class);
+        when(brokerController.getMessageStoreConfig()).thenReturn(messageStoreConfig);
+        quotaManager = new QuotaManager(brokerController);
+        requestLimiter = new QuotaRequestLimiter(quotaManager);
+    }
+
+    @After
+    public void destroy() {
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testSendOverTopicQuota() {
+        quotaManager.updateQuota(createQuota(QuotaResourceType.TOPIC, "topic", 2, 0));
+
+        assertThat(requestLimiter.limitRequest(null, createSendRequest("topic", "group"))).isNull();
+        assertThat(requestLimiter.limitRequest(null, createSendRequest("topic", "group"))).isNull();
+        assertThat(requestLimiter.limitRequest(null, createSendRequest("topic", "group"))).isNull();
+        RemotingCommand response = requestLimiter.limitRequest(null, createSendRequest("topic", "group"));
+        assertThat(response).isNotNull();
+        assertThat(response.getCode()).isEqualTo(ResponseCode.RATE_LIMITED);
+
+        assertThat(requestLimiter.limitRequest(null, createSendRequest("other", "group"))).isNull();
+    }
+
+    @Test
+    public void testSendOverProducerGroupQuota() {
+        quotaManager.updateQuota(createQuota(QuotaResourceType.PRODUCER_GROUP, "group", 0, 100));
+
+        assertThat(requestLimiter.limitRequest(null, createSendRequestV2("topic", "group", new byte[150]))).isNull();
+        RemotingCommand response = requestLimiter.limitRequest(null, createSendRequestV2("topic", "group", new byte[1]));
+        assertThat(response.getCode()).isEqualTo(ResponseCode.RATE_LIMITED);
+        assertThat(requestLimiter.limitRequest(null, createSendRequestV2("topic", "other", new byte[1]))).isNull();
+    }
+
+    @Test
+    public void testPullOverConsumerGroupQuota() {
+        quotaManager.updateQuota(createQuota(QuotaResourceType.CONSUMER_GROUP, "group", 32, 0));
+
+        assertThat(requestLimiter.limitRequest(null, createPullRequest("group"))).isNull();
+        quotaManager.consumePulled("group", 33, 1024);
+        RemotingCommand response = requestLimiter.limitRequest(null, createPullRequest("group"));
+        assertThat(response.getCode()).isEqualTo(ResponseCode.RATE_LIMITED);
+
+        quotaManager.updateQuota(createQuota(QuotaResourceType.CONSUMER_GROUP, "group", 0, 0));
+        assertThat(requestLimiter.limitRequest(null, createPullRequest("group"))).isNull();
+        assertThat(quotaManager.getConsumerGroupQuotaTable()).isEmpty();
+    }
+
+    @Test
+    public void testCountBatchMessages() {
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < 5; i++) {
+            messages.add(new Message("topic", new byte[16 * (i + 1)]));
+        }
+        byte[] body = MessageBatch.generateFromList(messages).encode();
+        assertThat(QuotaRequestLimiter.countMessages(body)).isEqualTo(5);
+
+        // A total size past the end of the body ends the count instead of overflowing the position
+        ByteBuffer corrupted = ByteBuffer.allocate(body.length + 8);
+        corrupted.put(body);
+        corrupted.putInt(Integer.MAX_VALUE);
+        assertThat(QuotaRequestLimiter.countMessages(corrupted.array())).isEqualTo(5);
+        assertThat(QuotaRequestLimiter.countMessages(new byte[] {0, 0, 0, 4, 127, -1, -1, -1})).isEqualTo(1);
+    }
+
+    @Test
+    public void testPersistAndReload() {
+        quotaManager.updateQuota(createQuota(QuotaResourceType.TOPIC, "topic", 1, 0));
+        quotaManager.updateQuota(createQuota(QuotaResourceType.PRODUCER_GROUP, "producer", 0, 1024));
+        quotaManager.updateQuota(createQuota(QuotaResourceType.CONSUMER_GROUP, "consumer", 10, 2048));
+
+        QuotaManager reloaded = new QuotaManager(brokerController);
+        assertThat(reloaded.load()).isTrue();
+        assertThat(reloaded.getTopicQuotaTable().get("topic").getMessagesPerSecond()).isEqualTo(1);
+        assertThat(reloaded.getProducerGroupQuotaTable().get("producer").getBytesPerSecond()).isEqualTo(1024);
+        assertThat(reloaded.getConsumerGroupQuotaTable().get("consumer").getBytesPerSecond()).isEqualTo(2048);
+
+        assertThat(reloaded.tryAcquireSend("topic", "producer", 2, 0)).isTrue();
+        assertThat(reloaded.tryAcquireSend("topic", "producer", 1, 0)).isFalse();
+    }
+
+    private static QuotaConfig createQuota(QuotaResourceType resourceType, String resourceName,
+        long messagesPerSecond, long bytesPerSecond) {
+        QuotaConfig config = new QuotaConfig();
+        config.setResourceType(resourceType);
+        config.setResourceName(resourceName);
+        config.setMessagesPerSecond(messagesPerSecond);
+        config.setBytesPerSecond(bytesPerSecond);
+        return config;
+    }
+
+    private static RemotingCommand createSendRequest(String topic, String producerGroup) {
+        SendMessageRequestHeader requestHeader = new SendMessageRequestHeader();
+        requestHeader.setTopic(topic);
+        requestHeader.setProducerGroup(producerGroup);
+        requestHeader.setDefaultTopic("TBW102");
+        requestHeader.setDefaultTopicQueueNums(4);
+        requestHeader.setQueueId(0);
+        requestHeader.setSysFlag(0);
+        requestHeader.setBornTimestamp(System.currentTimeMillis());
+        requestHeader.setFlag(0);
+        RemotingCommand request = RemotingCommand.createRequestCommand(RequestCode.SEND_MESSAGE, requestHeader);
+        request.setBody(new byte[16]);
+        request.makeCustomHeaderToNet();
+        return request;
+    }
+
+    private static RemotingCommand createSendRequestV2(String topic, String producerGroup, byte[] body) {
+        SendMessageRequestHeader requestHeader = new SendMessageRequestHeader();
+        requestHeader.setTopic(topic);
+        requestHeader.setProducerGroup(producerGroup);
+        requestHeader.setDefaultTopic("TBW102");
+        requestHeader.setDefaultTopicQueueNums(4);
+        requestHeader.setQueueId(0);
+        requestHeader.setSysFlag(0);
+        requestHeader.setBornTimestamp(System.currentTimeMillis());
+        requestHeader.setFlag(0);
+        SendMessageRequestHeaderV2 requestHeaderV2 = SendMessageRequestHeaderV2.createSendMessageRequestHeaderV2(requestHeader);
+        RemotingCommand request = RemotingCommand.createRequestCommand(RequestCode.SEND_MESSAGE_V2, requestHeaderV2);
+        request.setBody(body);
+        request.makeCustomHeaderToNet();
+        return request;
+    }
+
+    private static RemotingCommand createPullRequest(String consumerGroup) {
+        PullMessageRequestHeader requestHeader = new PullMessageRequestHeader();
+        requestHeader.setConsumerGroup(consumerGroup);
+        requestHeader.setTopic("topic");
+        requestHeader.setQueueId(0);
+        requestHeader.setQueueOffset(0L);
+        requestHeader.setMaxMsgNums(32);
+        requestHeader.setSysFlag(0);
+        requestHeader.setCommitOffset(0L);
+        requestHeader.setSuspendTimeoutMillis(15000L);
+        requestHeader.setSubVersion(0L);
+        RemotingCommand request = RemotingCommand.createRequestCommand(RequestCode.PULL_MESSAGE, requestHeader);
+        request.makeCustomHeaderToNet();
+        return request;
+    }
+}
@@ -28,6 +28,7 @@ import org.apache.rocketmq.client.log.ClientLogger;
 import org.apache.rocketmq.client.producer.RequestFutureTable;
 import org.apache.rocketmq.client.producer.RequestResponseFuture;
 import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.compression.CompressorFactory;
 import org.apache.rocketmq.common.message.MessageAccessor;
 import org.apache.rocketmq.common.message.MessageConst;
 import org.apache.rocketmq.common.message.MessageDecoder;
@@ -247,7 +248,7 @@ public class ClientRemotingProcessor extends AsyncNettyRequestProcessor implemen
             byte[] body = request.getBody();
             if ((requestHeader.getSysFlag() & MessageSysFlag.COMPRESSED_FLAG) == MessageSysFlag.COMPRESSED_FLAG) {
                 try {
-                    body = UtilAll.uncompress(body);
+                    body = CompressorFactory.getCompressor(requestHeader.getSysFlag()).decompress(body);
                 } catch (IOException e) {
                     log.warn("err when uncompress constant", e);
                 }
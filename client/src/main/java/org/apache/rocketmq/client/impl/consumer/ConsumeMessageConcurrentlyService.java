@@ -16,6 +16,7 @@
  */
 package org.apache.rocketmq.client.impl.consumer;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -35,14 +36,18 @@ import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
 import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
 import org.apache.rocketmq.client.consumer.listener.ConsumeReturnType;
 import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.client.consumer.listener.MessageViewListenerConcurrently;
 import org.apache.rocketmq.client.hook.ConsumeMessageContext;
 import org.apache.rocketmq.client.log.ClientLogger;
 import org.apache.rocketmq.client.stat.ConsumerStatsManager;
 import org.apache.rocketmq.common.MixAll;
 import org.apache.rocketmq.common.ThreadFactoryImpl;
 import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageDecoder;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.common.message.MessageQueue;
+import org.apache.rocketmq.common.message.MessageView;
+import org.apache.rocketmq.common.message.MessageViewExt;
 import org.apache.rocketmq.common.protocol.body.CMResult;
 import org.apache.rocketmq.common.protocol.body.ConsumeMessageDirectlyResult;
 import org.apache.rocketmq.common.utils.ThreadUtils;
@@ -446,4 +451,38 @@ public class ConsumeMessageConcurrentlyService implements ConsumeMessageService
         }
 
     }
+
+    /**
+     * Give the views the messages are decoded from, or views over them encoded again once their topic is changed,
+     * like the retried ones.
+     */
+    static class MessageViewListenerAdapter implements MessageListenerConcurrently {
+        private final MessageViewListenerConcurrently messageViewListener;
+
+        MessageViewListenerAdapter(MessageViewListenerConcurrently messageViewListener) {
+            this.messageViewListener = messageViewListener;
+        }
+
+        @Override
+        public ConsumeConcurrentlyStatus consumeMessage(List<MessageExt> msgs, ConsumeConcurrentlyContext context) {
+            List<MessageView> views = new ArrayList<MessageView>(msgs.size());
+            for (MessageExt msg : msgs) {
+                if (msg instanceof MessageViewExt && ((MessageViewExt) msg).getView().getTopic().equals(msg.getTopic())) {
+                    views.add(((MessageViewExt) msg).getView());
+                } else {
+                    // Sized again, the properties may have changed
+                    int storeSize = msg.getStoreSize();
+                    msg.setStoreSize(0);
+                    try {
+                        views.add(new MessageView(ByteBuffer.wrap(MessageDecoder.encode(msg, false)), 0));
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Failed to encode the message " + msg.getMsgId(), e);
+                    } finally {
+                        msg.setStoreSize(storeSize);
+                    }
+                }
+            }
+            return this.messageViewListener.consumeMessage(Collections.unmodifiableList(views), context);
+        }
+    }
 }
@@ -38,6 +38,7 @@ import org.apache.rocketmq.client.consumer.PullResult;
 import org.apache.rocketmq.client.consumer.listener.MessageListener;
 import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
 import org.apache.rocketmq.client.consumer.listener.MessageListenerOrderly;
+import org.apache.rocketmq.client.consumer.listener.MessageViewListenerConcurrently;
 import org.apache.rocketmq.client.consumer.store.LocalFileOffsetStore;
 import org.apache.rocketmq.client.consumer.store.OffsetStore;
 import org.apache.rocketmq.client.consumer.store.ReadOffsetType;
@@ -623,6 +624,12 @@ public class DefaultMQPushConsumerImpl implements MQConsumerInner {
                     this.consumeOrderly = false;
                     this.consumeMessageService =
                         new ConsumeMessageConcurrentlyService(this, (MessageListenerConcurrently) this.getMessageListenerInner());
+                } else if (this.getMessageListenerInner() instanceof MessageViewListenerConcurrently) {
+                    this.consumeOrderly = false;
+                    this.consumeMessageService =
+                        new ConsumeMessageConcurrentlyService(this, new ConsumeMessageConcurrentlyService.MessageViewListenerAdapter(
+                            (MessageViewListenerConcurrently) this.getMessageListenerInner()));
+                    this.pullAPIWrapper.setDecodeLazily(true);
                 }
 
                 this.consumeMessageService.start();
@@ -723,7 +730,8 @@ public class DefaultMQPushConsumerImpl implements MQConsumerInner {
         }
 
         boolean orderly = this.defaultMQPushConsumer.getMessageListener() instanceof MessageListenerOrderly;
-        boolean concurrently = this.defaultMQPushConsumer.getMessageListener() instanceof MessageListenerConcurrently;
+        boolean concurrently = this.defaultMQPushConsumer.getMessageListener() instanceof MessageListenerConcurrently
+            || this.defaultMQPushConsumer.getMessageListener() instanceof MessageViewListenerConcurrently;
         if (!orderly && !concurrently) {
             throw new MQClientException(
                 "messageListener must be instanceof MessageListenerOrderly or MessageListenerConcurrently"
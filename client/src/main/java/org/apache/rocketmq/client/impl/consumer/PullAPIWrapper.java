@@ -18,6 +18,7 @@ package org.apache.rocketmq.client.impl.consumer;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
@@ -43,6 +44,8 @@ import org.apache.rocketmq.common.message.MessageConst;
 import org.apache.rocketmq.common.message.MessageDecoder;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.common.message.MessageQueue;
+import org.apache.rocketmq.common.message.MessageView;
+import org.apache.rocketmq.common.message.MessageViewExt;
 import org.apache.rocketmq.common.protocol.header.PullMessageRequestHeader;
 import org.apache.rocketmq.common.protocol.heartbeat.SubscriptionData;
 import org.apache.rocketmq.common.protocol.route.TopicRouteData;
@@ -57,6 +60,8 @@ public class PullAPIWrapper {
     private ConcurrentMap<MessageQueue, AtomicLong/* brokerId */> pullFromWhichNodeTable =
         new ConcurrentHashMap<MessageQueue, AtomicLong>(32);
     private volatile boolean connectBrokerByUser = false;
+    // Decode the pulled messages as views, their body, properties and ids on first access
+    private volatile boolean decodeLazily = false;
     private volatile long defaultBrokerId = MixAll.MASTER_ID;
     private Random random = new Random(System.currentTimeMillis());
     private ArrayList<FilterMessageHook> filterMessageHookList = new ArrayList<FilterMessageHook>();
@@ -71,10 +76,16 @@ public class PullAPIWrapper {
         final SubscriptionData subscriptionData) {
         PullResultExt pullResultExt = (PullResultExt) pullResult;
 
-        this.updatePullFromWhichNode(mq, pullResultExt.getSuggestWhichBrokerId());
+        long suggestWhichBrokerId = pullResultExt.getSuggestWhichBrokerId();
+        if (MixAll.MASTER_ID == suggestWhichBrokerId && pullResultExt.getReplicatedMaxOffset() > pullResult.getNextBeginOffset()) {
+            // The next messages are on the slaves already, spread the reads among them
+            suggestWhichBrokerId = this.selectSlaveBrokerId(mq.getBrokerName());
+        }
+        this.updatePullFromWhichNode(mq, suggestWhichBrokerId);
         if (PullStatus.FOUND == pullResult.getPullStatus()) {
             ByteBuffer byteBuffer = ByteBuffer.wrap(pullResultExt.getMessageBinary());
-            List<MessageExt> msgList = MessageDecoder.decodes(byteBuffer);
+            List<MessageExt> msgList = this.decodeLazily
+                ? MessageViewExt.wrap(MessageView.decodes(byteBuffer)) : MessageDecoder.decodes(byteBuffer);
 
             List<MessageExt> msgListFilterAgain = msgList;
             if (!subscriptionData.getTagsSet().isEmpty() && !subscriptionData.isClassFilterMode()) {
@@ -124,6 +135,26 @@ public class PullAPIWrapper {
         }
     }
 
+    /**
+     * @return a random slave of the broker, the master if there is none
+     */
+    private long selectSlaveBrokerId(final String brokerName) {
+        HashMap<Long, String> brokerAddrs = this.mQClientFactory.getBrokerAddrTable().get(brokerName);
+        if (null == brokerAddrs) {
+            return MixAll.MASTER_ID;
+        }
+        List<Long> slaveIds = new ArrayList<Long>(brokerAddrs.size());
+        for (Long brokerId : brokerAddrs.keySet()) {
+            if (brokerId != MixAll.MASTER_ID) {
+                slaveIds.add(brokerId);
+            }
+        }
+        if (slaveIds.isEmpty()) {
+            return MixAll.MASTER_ID;
+        }
+        return slaveIds.get(this.random.nextInt(slaveIds.size()));
+    }
+
     public boolean hasHook() {
         return !this.filterMessageHookList.isEmpty();
     }
@@ -248,6 +279,14 @@ public class PullAPIWrapper {
 
     }
 
+    public boolean isDecodeLazily() {
+        return decodeLazily;
+    }
+
+    public void setDecodeLazily(boolean decodeLazily) {
+        this.decodeLazily = decodeLazily;
+    }
+
     public int randomNum() {
         int value = random.nextInt();
         if (value < 0) {
@@ -23,12 +23,20 @@ import org.apache.rocketmq.common.message.MessageExt;
 
 public class PullResultExt extends PullResult {
     private final long suggestWhichBrokerId;
+    private final long replicatedMaxOffset;
     private byte[] messageBinary;
 
     public PullResultExt(PullStatus pullStatus, long nextBeginOffset, long minOffset, long maxOffset,
         List<MessageExt> msgFoundList, final long suggestWhichBrokerId, final byte[] messageBinary) {
+        this(pullStatus, nextBeginOffset, minOffset, maxOffset, msgFoundList, suggestWhichBrokerId, -1, messageBinary);
+    }
+
+    public PullResultExt(PullStatus pullStatus, long nextBeginOffset, long minOffset, long maxOffset,
+        List<MessageExt> msgFoundList, final long suggestWhichBrokerId, final long replicatedMaxOffset,
+        final byte[] messageBinary) {
         super(pullStatus, nextBeginOffset, minOffset, maxOffset, msgFoundList);
         this.suggestWhichBrokerId = suggestWhichBrokerId;
+        this.replicatedMaxOffset = replicatedMaxOffset;
         this.messageBinary = messageBinary;
     }
 
@@ -43,4 +51,8 @@ public class PullResultExt extends PullResult {
     public long getSuggestWhichBrokerId() {
         return suggestWhichBrokerId;
     }
+
+    public long getReplicatedMaxOffset() {
+        return replicatedMaxOffset;
+    }
 }
@@ -35,6 +35,7 @@ import org.apache.rocketmq.client.trace.TraceDispatcher;
 import org.apache.rocketmq.client.trace.hook.EndTransactionTraceHookImpl;
 import org.apache.rocketmq.client.trace.hook.SendMessageTraceHookImpl;
 import org.apache.rocketmq.common.MixAll;
+import org.apache.rocketmq.common.compression.CompressionType;
 import org.apache.rocketmq.common.message.Message;
 import org.apache.rocketmq.common.message.MessageBatch;
 import org.apache.rocketmq.common.message.MessageClientIDSetter;
@@ -73,7 +74,8 @@ public class DefaultMQProducer extends ClientConfig implements MQProducer {
             ResponseCode.SYSTEM_ERROR,
             ResponseCode.NO_PERMISSION,
             ResponseCode.NO_BUYER_ID,
-            ResponseCode.NOT_IN_CURRENT_UNIT
+            ResponseCode.NOT_IN_CURRENT_UNIT,
+            ResponseCode.RATE_LIMITED
     ));
 
     /**
@@ -109,6 +111,11 @@ public class DefaultMQProducer extends ClientConfig implements MQProducer {
      */
     private int compressMsgBodyOverHowmuch = 1024 * 4;
 
+    /**
+     * Codec of the compressed message bodies, the consumers of the lz4 bodies must be of this version or later.
+     */
+    private CompressionType compressType = CompressionType.ZLIB;
+
     /**
      * Maximum number of retry to perform internally before claiming sending failure in synchronous mode. </p>
      *
@@ -1035,6 +1042,14 @@ public class DefaultMQProducer extends ClientConfig implements MQProducer {
         this.compressMsgBodyOverHowmuch = compressMsgBodyOverHowmuch;
     }
 
+    public CompressionType getCompressType() {
+        return compressType;
+    }
+
+    public void setCompressType(CompressionType compressType) {
+        this.compressType = compressType;
+    }
+
     @Deprecated
     public DefaultMQProducerImpl getDefaultMQProducerImpl() {
         return defaultMQProducerImpl;
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.client.impl.consumer;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.client.consumer.listener.MessageViewListenerConcurrently;
+import org.apache.rocketmq.common.MixAll;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageClientExt;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageView;
+import org.apache.rocketmq.common.message.MessageViewExt;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessageViewListenerAdapterTest {
+    private String consumerGroup = "FooBarGroup";
+    private String topic = "FooBar";
+
+    @Test
+    public void testConsumeMessageViews() throws Exception {
+        MessageClientExt msg = new MessageClientExt();
+        msg.setTopic(MixAll.getRetryTopic(consumerGroup));
+        msg.setBody(new byte[] {'a'});
+        msg.setBornHost(new InetSocketAddress(8080));
+        msg.setStoreHost(new InetSocketAddress(8080));
+        MessageAccessor.putProperty(msg, MessageConst.PROPERTY_RETRY_TOPIC, topic);
+        List<MessageExt> msgs = MessageViewExt.wrap(MessageView.decodes(ByteBuffer.wrap(MessageDecoder.encode(msg, false))));
+        MessageView decodedView = ((MessageViewExt) msgs.get(0)).getView();
+
+        final AtomicReference<MessageView> viewAtomic = new AtomicReference<MessageView>();
+        MessageListenerConcurrently adapter = new ConsumeMessageConcurrentlyService.MessageViewListenerAdapter(new MessageViewListenerConcurrently() {
+            @Override
+            public ConsumeConcurrentlyStatus consumeMessage(List<MessageView> views, ConsumeConcurrentlyContext context) {
+                viewAtomic.set(views.get(0));
+                return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+            }
+        });
+
+        // Given as decoded
+        assertThat(adapter.consumeMessage(msgs, null)).isEqualTo(ConsumeConcurrentlyStatus.CONSUME_SUCCESS);
+        assertThat(viewAtomic.get()).isSameAs(decodedView);
+
+        // Encoded again once the retry topic is reset
+        new DefaultMQPushConsumer(consumerGroup).getDefaultMQPushConsumerImpl().resetRetryAndNamespace(msgs, consumerGroup);
+        adapter.consumeMessage(msgs, null);
+        assertThat(viewAtomic.get()).isNotSameAs(decodedView);
+        assertThat(viewAtomic.get().getTopic()).isEqualTo(topic);
+        assertThat(viewAtomic.get().getBody()).isEqualTo(new byte[] {'a'});
+    }
+}
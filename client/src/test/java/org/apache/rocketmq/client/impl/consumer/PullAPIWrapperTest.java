@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.client.impl.consumer;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.rocketmq.client.consumer.PullStatus;
+import org.apache.rocketmq.client.impl.factory.MQClientInstance;
+import org.apache.rocketmq.common.MixAll;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.apache.rocketmq.common.protocol.heartbeat.SubscriptionData;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PullAPIWrapperTest {
+    private static final String BROKER_NAME = "BrokerA";
+
+    @Mock
+    private MQClientInstance mQClientFactory;
+    private PullAPIWrapper pullAPIWrapper;
+    private final MessageQueue mq = new MessageQueue("FooBar", BROKER_NAME, 0);
+    private final ConcurrentMap<String, HashMap<Long, String>> brokerAddrTable = new ConcurrentHashMap<String, HashMap<Long, String>>();
+
+    @Before
+    public void init() {
+        HashMap<Long, String> brokerAddrs = new HashMap<Long, String>();
+        brokerAddrs.put(MixAll.MASTER_ID, "127.0.0.1:10911");
+        brokerAddrs.put(1L, "127.0.0.2:10911");
+        brokerAddrTable.put(BROKER_NAME, brokerAddrs);
+        when(mQClientFactory.getBrokerAddrTable()).thenReturn(brokerAddrTable);
+        pullAPIWrapper = new PullAPIWrapper(mQClientFactory, "FooBarGroup", false);
+    }
+
+    @Test
+    public void testPullFromSlaveWhenReplicated() {
+        processPullResult(MixAll.MASTER_ID, 100, 120);
+        assertThat(pullAPIWrapper.recalculatePullFromWhichNode(mq)).isEqualTo(1L);
+
+        // Caught up with the slaves
+        processPullResult(MixAll.MASTER_ID, 120, 120);
+        assertThat(pullAPIWrapper.recalculatePullFromWhichNode(mq)).isEqualTo(MixAll.MASTER_ID);
+
+        // Not advertised by the broker
+        processPullResult(MixAll.MASTER_ID, 100, -1);
+        assertThat(pullAPIWrapper.recalculatePullFromWhichNode(mq)).isEqualTo(MixAll.MASTER_ID);
+
+        // The broker suggests a slave by itself
+        processPullResult(1L, 100, 100);
+        assertThat(pullAPIWrapper.recalculatePullFromWhichNode(mq)).isEqualTo(1L);
+    }
+
+    @Test
+    public void testPullFromMasterWithoutSlave() {
+        brokerAddrTable.get(BROKER_NAME).remove(1L);
+        processPullResult(MixAll.MASTER_ID, 100, 120);
+        assertThat(pullAPIWrapper.recalculatePullFromWhichNode(mq)).isEqualTo(MixAll.MASTER_ID);
+    }
+
+    private void processPullResult(long suggestWhichBrokerId, long nextBeginOffset, long replicatedMaxOffset) {
+        PullResultExt pullResult = new PullResultExt(PullStatus.NO_NEW_MSG, nextBeginOffset, 0, 120, null,
+            suggestWhichBrokerId, replicatedMaxOffset, null);
+        pullAPIWrapper.processPullResult(mq, pullResult, new SubscriptionData());
+    }
+}
@@ -76,6 +76,8 @@ public class BrokerConfig {
             sendMessageThreadPoolNums * 4);
 
     private int flushConsumerOffsetInterval = 1000 * 5;
+    // Persist the consumer offsets as a binary journal of the changed offsets instead of rewriting the json file
+    private boolean consumerOffsetJournalEnable = false;
 
     private int flushConsumerOffsetHistoryInterval = 1000 * 60;
 
@@ -109,6 +111,8 @@ public class BrokerConfig {
     private int commercialBaseCount = 1;
 
     private boolean transferMsgByHeap = true;
+    // Copy the pulled messages into the heap only for the TLS channels, the others are sent from the page cache
+    private boolean transferMsgByHeapOnlyWithTls = true;
     private int maxDelayTime = 40;
 
     private String regionId = MixAll.DEFAULT_TRACE_REGION_ID;
@@ -125,6 +129,17 @@ public class BrokerConfig {
     private long waitTimeMillsInHeartbeatQueue = 31 * 1000;
     private long waitTimeMillsInTransactionQueue = 3 * 1000;
 
+    // Serve the send and pull requests of the groups in weighted round robin instead of first in first out
+    private boolean fairRequestQueueEnable = false;
+    // Share the fair request queues by topic instead of by group
+    private boolean fairRequestQueueByTopic = false;
+    // Weights of the groups or topics in the fair request queues, as name:weight pairs separated by commas, others weigh 1
+    private String fairRequestQueueWeights = "";
+    // Groups or topics, separated by commas, whose requests are served before the others
+    private String fairRequestQueuePriorityTenants = "";
+    // Percentage of a fair request queue capacity one group or topic may fill, the same for all of them
+    private int fairRequestQueueTenantCapacityPercent = 50;
+
     private long startAcceptSendRequestTimeStamp = 0L;
 
     private boolean traceOn = true;
@@ -804,4 +819,60 @@ public class BrokerConfig {
     public void setAutoDeleteUnusedStats(boolean autoDeleteUnusedStats) {
         this.autoDeleteUnusedStats = autoDeleteUnusedStats;
     }
+
+    public boolean isTransferMsgByHeapOnlyWithTls() {
+        return transferMsgByHeapOnlyWithTls;
+    }
+
+    public void setTransferMsgByHeapOnlyWithTls(boolean transferMsgByHeapOnlyWithTls) {
+        this.transferMsgByHeapOnlyWithTls = transferMsgByHeapOnlyWithTls;
+    }
+
+    public boolean isConsumerOffsetJournalEnable() {
+        return consumerOffsetJournalEnable;
+    }
+
+    public void setConsumerOffsetJournalEnable(boolean consumerOffsetJournalEnable) {
+        this.consumerOffsetJournalEnable = consumerOffsetJournalEnable;
+    }
+
+    public boolean isFairRequestQueueEnable() {
+        return fairRequestQueueEnable;
+    }
+
+    public void setFairRequestQueueEnable(boolean fairRequestQueueEnable) {
+        this.fairRequestQueueEnable = fairRequestQueueEnable;
+    }
+
+    public boolean isFairRequestQueueByTopic() {
+        return fairRequestQueueByTopic;
+    }
+
+    public void setFairRequestQueueByTopic(boolean fairRequestQueueByTopic) {
+        this.fairRequestQueueByTopic = fairRequestQueueByTopic;
+    }
+
+    public String getFairRequestQueueWeights() {
+        return fairRequestQueueWeights;
+    }
+
+    public void setFairRequestQueueWeights(String fairRequestQueueWeights) {
+        this.fairRequestQueueWeights = fairRequestQueueWeights;
+    }
+
+    public String getFairRequestQueuePriorityTenants() {
+        return fairRequestQueuePriorityTenants;
+    }
+
+    public void setFairRequestQueuePriorityTenants(String fairRequestQueuePriorityTenants) {
+        this.fairRequestQueuePriorityTenants = fairRequestQueuePriorityTenants;
+    }
+
+    public int getFairRequestQueueTenantCapacityPercent() {
+        return fairRequestQueueTenantCapacityPercent;
+    }
+
+    public void setFairRequestQueueTenantCapacityPercent(int fairRequestQueueTenantCapacityPercent) {
+        this.fairRequestQueueTenantCapacityPercent = fairRequestQueueTenantCapacityPercent;
+    }
 }
@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.common.compression;
+
+import java.util.EnumMap;
+import java.util.Map;
+import org.apache.rocketmq.common.sysflag.MessageSysFlag;
+
+public class CompressorFactory {
+    private static final Map<CompressionType, Compressor> COMPRESSORS = new EnumMap<CompressionType, Compressor>(CompressionType.class);
+
+    static {
+        COMPRESSORS.put(CompressionType.ZLIB, new ZlibCompressor());
+        COMPRESSORS.put(CompressionType.LZ4, new Lz4Compressor());
+    }
+
+    public static Compressor getCompressor(CompressionType type) {
+        return COMPRESSORS.get(type);
+    }
+
+    /**
+     * @return compressor of the codec carried in the sysflag
+     */
+    public static Compressor getCompressor(int sysFlag) {
+        return getCompressor(MessageSysFlag.getCompressionType(sysFlag));
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.common.compression;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LZ4 block format prefixed by the original length in 4 bytes, with the greedy single hash probe of the fast LZ4
+ * compressor. The level is ignored.
+ */
+public class Lz4Compressor implements Compressor {
+    private static final int MIN_MATCH = 4;
+    // The last match starts at least 12 bytes before the end, the last 5 bytes are literals
+    private static final int MF_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_LOG = 12;
+    private static final int RUN_MASK = 15;
+    private static final int LENGTH_PREFIX = 4;
+    // Each byte of a block expands to at most 255 bytes, by extending a match length
+    private static final int MAX_RATIO = 255;
+
+    @Override
+    public byte[] compress(byte[] src, int level) throws IOException {
+        int length = src.length;
+        byte[] dst = new byte[LENGTH_PREFIX + length + length / 255 + 16];
+        writeIntBE(dst, 0, length);
+        int dOff = LENGTH_PREFIX;
+        int anchor = 0;
+
+        if (length > MF_LIMIT) {
+            // Positions plus one, zero for none
+            int[] hashTable = new int[1 << HASH_LOG];
+            int limit = length - MF_LIMIT;
+            int sOff = 0;
+            while (sOff < limit) {
+                int sequence = readIntLE(src, sOff);
+                int hash = hash(sequence);
+                int ref = hashTable[hash] - 1;
+                hashTable[hash] = sOff + 1;
+                if (ref < 0 || sOff - ref > MAX_DISTANCE || readIntLE(src, ref) != sequence) {
+                    sOff++;
+                    continue;
+                }
+
+                while (sOff > anchor && ref > 0 && src[sOff - 1] == src[ref - 1]) {
+                    sOff--;
+                    ref--;
+                }
+                int matchEnd = sOff + MIN_MATCH;
+                int refEnd = ref + MIN_MATCH;
+                int maxEnd = length - LAST_LITERALS;
+                while (matchEnd < maxEnd && src[matchEnd] == src[refEnd]) {
+                    matchEnd++;
+                    refEnd++;
+                }
+
+                dOff = writeSequence(src, anchor, sOff - anchor, sOff - ref, matchEnd - sOff - MIN_MATCH, dst, dOff);
+                sOff = matchEnd;
+                anchor = sOff;
+                if (sOff - 2 < limit) {
+                    hashTable[hash(readIntLE(src, sOff - 2))] = sOff - 2 + 1;
+                }
+            }
+        }
+
+        dOff = writeLastLiterals(src, anchor, length - anchor, dst, dOff);
+        return Arrays.copyOf(dst, dOff);
+    }
+
+    @Override
+    public byte[] decompress(byte[] src) throws IOException {
+        if (src.length < LENGTH_PREFIX + 1) {
+            throw new IOException("Malformed lz4 data, length " + src.length);
+        }
+        // The length prefix is not trusted, bound it by the data before allocating
+        int length = readIntBE(src, 0);
+        if (length < 0 || length > (long) (src.length - LENGTH_PREFIX) * MAX_RATIO) {
+            throw new IOException("Malformed lz4 data, original length " + length);
+        }
+        byte[] dst = new byte[length];
+        int sOff = LENGTH_PREFIX;
+        int dOff = 0;
+        try {
+            while (true) {
+                int token = src[sOff++] & 0xFF;
+
+                int literalLength = token >>> 4;
+                if (literalLength == RUN_MASK) {
+                    int b;
+                    do {
+                        b = src[sOff++] & 0xFF;
+                        literalLength += b;
+                    }
+                    while (b == 255);
+                }
+                System.arraycopy(src, sOff, dst, dOff, literalLength);
+                sOff += literalLength;
+                dOff += literalLength;
+                if (sOff >= src.length) {
+                    break;
+                }
+
+                int offset = (src[sOff] & 0xFF) | (src[sOff + 1] & 0xFF) << 8;
+                sOff += 2;
+                int matchLength = token & RUN_MASK;
+                if (matchLength == RUN_MASK) {
+                    int b;
+                    do {
+                        b = src[sOff++] & 0xFF;
+                        matchLength += b;
+                    }
+                    while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+
+                int ref = dOff - offset;
+                if (offset == 0 || ref < 0 || dOff + matchLength > length) {
+                    throw new IOException("Malformed lz4 data at " + sOff);
+                }
+                // The match may overlap the bytes being copied
+                for (int i = 0; i < matchLength; i++) {
+                    dst[dOff++] = dst[ref++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed lz4 data", e);
+        }
+
+        if (dOff != length) {
+            throw new IOException("Malformed lz4 data, decompressed " + dOff + " of " + length);
+        }
+        return dst;
+    }
+
+    private static int writeSequence(byte[] src, int literalOff, int literalLength, int offset, int matchLength,
+        byte[] dst, int dOff) {
+        int tokenOff = dOff++;
+        int token = Math.min(literalLength, RUN_MASK) << 4 | Math.min(matchLength, RUN_MASK);
+        dst[tokenOff] = (byte) token;
+        dOff = writeLength(literalLength, dst, dOff);
+        System.arraycopy(src, literalOff, dst, dOff, literalLength);
+        dOff += literalLength;
+        dst[dOff++] = (byte) offset;
+        dst[dOff++] = (byte) (offset >>> 8);
+        return writeLength(matchLength, dst, dOff);
+    }
+
+    private static int writeLastLiterals(byte[] src, int literalOff, int literalLength, byte[] dst, int dOff) {
+        dst[dOff++] = (byte) (Math.min(literalLength, RUN_MASK) << 4);
+        dOff = writeLength(literalLength, dst, dOff);
+        System.arraycopy(src, literalOff, dst, dOff, literalLength);
+        return dOff + literalLength;
+    }
+
+    private static int writeLength(int length, byte[] dst, int dOff) {
+        if (length >= RUN_MASK) {
+            int remaining = length - RUN_MASK;
+            while (remaining >= 255) {
+                dst[dOff++] = (byte) 255;
+                remaining -= 255;
+            }
+            dst[dOff++] = (byte) remaining;
+        }
+        return dOff;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int readIntLE(byte[] buf, int off) {
+        return (buf[off] & 0xFF) | (buf[off + 1] & 0xFF) << 8 | (buf[off + 2] & 0xFF) << 16 | (buf[off + 3] & 0xFF) << 24;
+    }
+
+    private static int readIntBE(byte[] buf, int off) {
+        return (buf[off] & 0xFF) << 24 | (buf[off + 1] & 0xFF) << 16 | (buf[off + 2] & 0xFF) << 8 | (buf[off + 3] & 0xFF);
+    }
+
+    private static void writeIntBE(byte[] buf, int off, int value) {
+        buf[off] = (byte) (value >>> 24);
+        buf[off + 1] = (byte) (value >>> 16);
+        buf[off + 2] = (byte) (value >>> 8);
+        buf[off + 3] = (byte) value;
+    }
+}
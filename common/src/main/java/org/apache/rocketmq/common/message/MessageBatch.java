@@ -16,11 +16,13 @@
  */
 package org.apache.rocketmq.common.message;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import org.apache.rocketmq.common.MixAll;
+import org.apache.rocketmq.common.compression.Compressor;
 
 public class MessageBatch extends Message implements Iterable<Message> {
 
@@ -35,6 +37,21 @@ public class MessageBatch extends Message implements Iterable<Message> {
         return MessageDecoder.encodeMessages(messages);
     }
 
+    /**
+     * Encode the messages with their bodies compressed, the messages themselves are left as they are.
+     */
+    public byte[] encode(final Compressor compressor, final int level) throws IOException {
+        List<Message> compressedMessages = new ArrayList<Message>(messages.size());
+        for (Message message : messages) {
+            Message compressedMessage = new Message();
+            compressedMessage.setFlag(message.getFlag());
+            compressedMessage.setBody(compressor.compress(message.getBody(), level));
+            MessageAccessor.setProperties(compressedMessage, message.getProperties());
+            compressedMessages.add(compressedMessage);
+        }
+        return MessageDecoder.encodeMessages(compressedMessages);
+    }
+
     public Iterator<Message> iterator() {
         return messages.iterator();
     }
@@ -24,10 +24,10 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.compression.CompressorFactory;
 import org.apache.rocketmq.common.sysflag.MessageSysFlag;
 
 public class MessageDecoder {
@@ -132,10 +132,8 @@ public class MessageDecoder {
         byteBuffer.position(topicLengthPosition + 1 + topicLength + 2);
 
         if (propertiesLength > 0) {
-            byte[] properties = new byte[propertiesLength];
-            byteBuffer.get(properties);
-            String propertiesString = new String(properties, CHARSET_UTF8);
-            Map<String, String> map = string2messageProperties(propertiesString);
+            Map<String, String> map = MessagePropertiesCodec.local().decode(byteBuffer, byteBuffer.position(), propertiesLength);
+            byteBuffer.position(byteBuffer.position() + propertiesLength);
             return map;
         }
         return null;
@@ -157,15 +155,15 @@ public class MessageDecoder {
         byte[] body = messageExt.getBody();
         byte[] topics = messageExt.getTopic().getBytes(CHARSET_UTF8);
         byte topicLen = (byte) topics.length;
-        String properties = messageProperties2String(messageExt.getProperties());
-        byte[] propertiesBytes = properties.getBytes(CHARSET_UTF8);
-        short propertiesLength = (short) propertiesBytes.length;
+        MessagePropertiesCodec propertiesCodec = MessagePropertiesCodec.local();
+        int propertiesBytesLength = propertiesCodec.encode(messageExt.getProperties());
+        short propertiesLength = (short) propertiesBytesLength;
         int sysFlag = messageExt.getSysFlag();
         int bornhostLength = (sysFlag & MessageSysFlag.BORNHOST_V6_FLAG) == 0 ? 8 : 20;
         int storehostAddressLength = (sysFlag & MessageSysFlag.STOREHOSTADDRESS_V6_FLAG) == 0 ? 8 : 20;
         byte[] newBody = messageExt.getBody();
         if (needCompress && (sysFlag & MessageSysFlag.COMPRESSED_FLAG) == MessageSysFlag.COMPRESSED_FLAG) {
-            newBody = UtilAll.compress(body, 5);
+            newBody = CompressorFactory.getCompressor(sysFlag).compress(body, 5);
         }
         int bodyLength = newBody.length;
         int storeSize = messageExt.getStoreSize();
@@ -258,7 +256,7 @@ public class MessageDecoder {
 
         // 17 properties
         byteBuffer.putShort(propertiesLength);
-        byteBuffer.put(propertiesBytes);
+        byteBuffer.put(propertiesCodec.bytes(), 0, propertiesBytesLength);
 
         return byteBuffer.array();
     }
@@ -349,7 +347,7 @@ public class MessageDecoder {
 
                     // uncompress body
                     if (deCompressBody && (sysFlag & MessageSysFlag.COMPRESSED_FLAG) == MessageSysFlag.COMPRESSED_FLAG) {
-                        body = UtilAll.uncompress(body);
+                        body = CompressorFactory.getCompressor(sysFlag).decompress(body);
                     }
 
                     msgExt.setBody(body);
@@ -367,11 +365,8 @@ public class MessageDecoder {
             // 17 properties
             short propertiesLength = byteBuffer.getShort();
             if (propertiesLength > 0) {
-                byte[] properties = new byte[propertiesLength];
-                byteBuffer.get(properties);
-                String propertiesString = new String(properties, CHARSET_UTF8);
-                Map<String, String> map = string2messageProperties(propertiesString);
-                msgExt.setProperties(map);
+                msgExt.setProperties(MessagePropertiesCodec.local().decode(byteBuffer, byteBuffer.position(), propertiesLength));
+                byteBuffer.position(byteBuffer.position() + propertiesLength);
             }
 
             int msgIDLength = storehostIPLength + 4 + 8;
@@ -409,76 +404,21 @@ public class MessageDecoder {
     }
 
     public static String messageProperties2String(Map<String, String> properties) {
-        if (properties == null) {
-            return "";
-        }
-        int len = 0;
-        for (final Map.Entry<String, String> entry : properties.entrySet()) {
-            final String name = entry.getKey();
-            final String value = entry.getValue();
-            if (value == null) {
-                continue;
-            }
-            if (name != null) {
-                len += name.length();
-            }
-            len += value.length();
-            len += 2; // separator
-        }
-        StringBuilder sb = new StringBuilder(len);
-        if (properties != null) {
-            for (final Map.Entry<String, String> entry : properties.entrySet()) {
-                final String name = entry.getKey();
-                final String value = entry.getValue();
-
-                if (value == null) {
-                    continue;
-                }
-                sb.append(name);
-                sb.append(NAME_VALUE_SEPARATOR);
-                sb.append(value);
-                sb.append(PROPERTY_SEPARATOR);
-            }
-            if (sb.length() > 0) {
-                sb.deleteCharAt(sb.length() - 1);
-            }
-        }
-        return sb.toString();
+        return MessagePropertiesCodec.local().encodeToString(properties);
     }
 
     public static Map<String, String> string2messageProperties(final String properties) {
-        Map<String, String> map = new HashMap<String, String>();
-        if (properties != null) {
-            int len = properties.length();
-            int index = 0;
-            while (index < len) {
-                int newIndex = properties.indexOf(PROPERTY_SEPARATOR, index);
-                if (newIndex < 0) {
-                    newIndex = len;
-                }
-                if (newIndex - index >= 3) {
-                    int kvSepIndex = properties.indexOf(NAME_VALUE_SEPARATOR, index);
-                    if (kvSepIndex > index && kvSepIndex < newIndex - 1) {
-                        String k = properties.substring(index, kvSepIndex);
-                        String v = properties.substring(kvSepIndex + 1, newIndex);
-                        map.put(k, v);
-                    }
-                }
-                index = newIndex + 1;
-            }
-        }
-
-        return map;
+        return MessagePropertiesCodec.local().decode(properties);
     }
 
     public static byte[] encodeMessage(Message message) {
         //only need flag, body, properties
         byte[] body = message.getBody();
         int bodyLen = body.length;
-        String properties = messageProperties2String(message.getProperties());
-        byte[] propertiesBytes = properties.getBytes(CHARSET_UTF8);
+        MessagePropertiesCodec propertiesCodec = MessagePropertiesCodec.local();
+        int propertiesBytesLength = propertiesCodec.encode(message.getProperties());
         //note properties length must not more than Short.MAX
-        short propertiesLength = (short) propertiesBytes.length;
+        short propertiesLength = (short) propertiesBytesLength;
         int sysFlag = message.getFlag();
         int storeSize = 4 // 1 TOTALSIZE
             + 4 // 2 MAGICCOD
@@ -506,7 +446,7 @@ public class MessageDecoder {
 
         // 6 properties
         byteBuffer.putShort(propertiesLength);
-        byteBuffer.put(propertiesBytes);
+        byteBuffer.put(propertiesCodec.bytes(), 0, propertiesBytesLength);
 
         return byteBuffer.array();
     }
@@ -535,9 +475,8 @@ public class MessageDecoder {
 
         // 6 properties
         short propertiesLen = byteBuffer.getShort();
-        byte[] propertiesBytes = new byte[propertiesLen];
-        byteBuffer.get(propertiesBytes);
-        message.setProperties(string2messageProperties(new String(propertiesBytes, CHARSET_UTF8)));
+        message.setProperties(MessagePropertiesCodec.local().decode(byteBuffer, byteBuffer.position(), propertiesLen));
+        byteBuffer.position(byteBuffer.position() + propertiesLen);
 
         return message;
     }
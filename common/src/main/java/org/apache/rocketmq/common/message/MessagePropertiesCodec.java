@@ -0,0 +1,315 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.common.message;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes message properties to, and decodes them from, their stored form: UTF-8 "name\u0001value\u0002name\u0001value".
+ * <p>
+ * The codec keeps its text and byte buffers between calls, so encoding a map to bytes creates no intermediate string,
+ * and decoding shares the system property names and common values instead of creating new strings for them.
+ * Instances are not thread safe, use {@link #local()} or keep one per thread.
+ */
+public class MessagePropertiesCodec {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final ThreadLocal<MessagePropertiesCodec> LOCAL = new ThreadLocal<MessagePropertiesCodec>() {
+        @Override
+        protected MessagePropertiesCodec initialValue() {
+            return new MessagePropertiesCodec();
+        }
+    };
+
+    private static final String[] CONSTANTS;
+    private static final int CONSTANTS_MASK;
+
+    static {
+        int size = Integer.highestOneBit(MessageConst.STRING_HASH_SET.size() * 4);
+        CONSTANTS = new String[size];
+        CONSTANTS_MASK = size - 1;
+        for (String name : MessageConst.STRING_HASH_SET) {
+            addConstant(name);
+        }
+        addConstant(Boolean.TRUE.toString());
+        addConstant(Boolean.FALSE.toString());
+    }
+
+    private final StringBuilder builder = new StringBuilder(INITIAL_CAPACITY);
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    private char[] chars = new char[INITIAL_CAPACITY];
+
+    public static MessagePropertiesCodec local() {
+        return LOCAL.get();
+    }
+
+    private static void addConstant(String constant) {
+        int index = constant.hashCode() & CONSTANTS_MASK;
+        while (CONSTANTS[index] != null) {
+            if (CONSTANTS[index].equals(constant)) {
+                return;
+            }
+            index = (index + 1) & CONSTANTS_MASK;
+        }
+        CONSTANTS[index] = constant;
+    }
+
+    /**
+     * @return the properties in their stored form, "" if there are none
+     */
+    public String encodeToString(Map<String, String> properties) {
+        if (properties == null) {
+            return "";
+        }
+        StringBuilder sb = this.builder;
+        sb.setLength(0);
+        for (final Map.Entry<String, String> entry : properties.entrySet()) {
+            final String value = entry.getValue();
+            if (value == null) {
+                continue;
+            }
+            sb.append(entry.getKey());
+            sb.append(MessageDecoder.NAME_VALUE_SEPARATOR);
+            sb.append(value);
+            sb.append(MessageDecoder.PROPERTY_SEPARATOR);
+        }
+        if (sb.length() > 0) {
+            sb.setLength(sb.length() - 1);
+        }
+        String result = sb.toString();
+        if (sb.capacity() > Short.MAX_VALUE) {
+            sb.setLength(0);
+            sb.trimToSize();
+        }
+        return result;
+    }
+
+    /**
+     * Encode the properties in UTF-8 into {@link #bytes()}.
+     *
+     * @return the encoded length
+     */
+    public int encode(Map<String, String> properties) {
+        if (properties == null) {
+            return 0;
+        }
+        int length = 0;
+        for (final Map.Entry<String, String> entry : properties.entrySet()) {
+            final String value = entry.getValue();
+            if (value == null) {
+                continue;
+            }
+            if (length > 0) {
+                length = this.put(length, MessageDecoder.PROPERTY_SEPARATOR);
+            }
+            length = this.put(length, String.valueOf(entry.getKey()));
+            length = this.put(length, MessageDecoder.NAME_VALUE_SEPARATOR);
+            length = this.put(length, value);
+        }
+        return length;
+    }
+
+    /**
+     * Encode the properties string in UTF-8 into {@link #bytes()}.
+     *
+     * @return the encoded length
+     */
+    public int encode(String properties) {
+        return properties == null ? 0 : this.put(0, properties);
+    }
+
+    /**
+     * @return the buffer holding the last encoded properties, valid until the next call on this codec
+     */
+    public byte[] bytes() {
+        return this.bytes;
+    }
+
+    public Map<String, String> decode(final String properties) {
+        Map<String, String> map = new HashMap<String, String>();
+        if (properties == null) {
+            return map;
+        }
+        int len = properties.length();
+        int index = 0;
+        while (index < len) {
+            int newIndex = properties.indexOf(MessageDecoder.PROPERTY_SEPARATOR, index);
+            if (newIndex < 0) {
+                newIndex = len;
+            }
+            if (newIndex - index >= 3) {
+                int kvSepIndex = properties.indexOf(MessageDecoder.NAME_VALUE_SEPARATOR, index);
+                if (kvSepIndex > index && kvSepIndex < newIndex - 1) {
+                    map.put(substring(properties, index, kvSepIndex), substring(properties, kvSepIndex + 1, newIndex));
+                }
+            }
+            index = newIndex + 1;
+        }
+        return map;
+    }
+
+    /**
+     * Decode the properties stored in {@code length} bytes of the buffer from {@code position}, without moving its
+     * position.
+     */
+    public Map<String, String> decode(final ByteBuffer buffer, final int position, final int length) {
+        Map<String, String> map = new HashMap<String, String>();
+        final byte[] array;
+        final int offset;
+        if (buffer.hasArray()) {
+            array = buffer.array();
+            offset = buffer.arrayOffset() + position;
+        } else {
+            array = this.ensureCapacity(length);
+            ByteBuffer source = buffer.duplicate();
+            source.position(position);
+            source.get(array, 0, length);
+            offset = 0;
+        }
+        final int end = offset + length;
+        int index = offset;
+        while (index < end) {
+            int newIndex = indexOf(array, index, end, MessageDecoder.PROPERTY_SEPARATOR);
+            if (newIndex - index >= 3) {
+                int kvSepIndex = indexOf(array, index, newIndex, MessageDecoder.NAME_VALUE_SEPARATOR);
+                if (kvSepIndex > index && kvSepIndex < newIndex - 1) {
+                    map.put(this.string(array, index, kvSepIndex), this.string(array, kvSepIndex + 1, newIndex));
+                }
+            }
+            index = newIndex + 1;
+        }
+        return map;
+    }
+
+    private static int indexOf(byte[] array, int from, int to, char separator) {
+        for (int i = from; i < to; i++) {
+            if (array[i] == separator) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static String substring(String source, int begin, int end) {
+        int hash = 0;
+        for (int i = begin; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        int length = end - begin;
+        for (int index = hash & CONSTANTS_MASK; CONSTANTS[index] != null; index = (index + 1) & CONSTANTS_MASK) {
+            String constant = CONSTANTS[index];
+            if (constant.length() == length && source.regionMatches(begin, constant, 0, length)) {
+                return constant;
+            }
+        }
+        return source.substring(begin, end);
+    }
+
+    private String string(byte[] array, int begin, int end) {
+        final int length = end - begin;
+        char[] text = this.chars.length < length ? this.chars = new char[Math.max(length, this.chars.length * 2)] : this.chars;
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = array[begin + i];
+            if (b < 0) {
+                return new String(array, begin, length, MessageDecoder.CHARSET_UTF8);
+            }
+            text[i] = (char) b;
+            hash = 31 * hash + b;
+        }
+        for (int index = hash & CONSTANTS_MASK; CONSTANTS[index] != null; index = (index + 1) & CONSTANTS_MASK) {
+            String constant = CONSTANTS[index];
+            if (constant.length() == length && matches(constant, text)) {
+                return constant;
+            }
+        }
+        return new String(text, 0, length);
+    }
+
+    private static boolean matches(String constant, char[] text) {
+        for (int i = 0; i < constant.length(); i++) {
+            if (constant.charAt(i) != text[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int put(int position, char c) {
+        this.ensureCapacity(position + 1)[position] = (byte) c;
+        return position + 1;
+    }
+
+    /**
+     * Same output as {@code String.getBytes(UTF_8)}, unpaired surrogates included.
+     */
+    private int put(int position, String s) {
+        final int length = s.length();
+        byte[] array = this.ensureCapacity(position + length);
+        char[] text = this.chars.length < length ? this.chars = new char[Math.max(length, this.chars.length * 2)] : this.chars;
+        s.getChars(0, length, text, 0);
+        int i = 0;
+        while (i < length) {
+            char c = text[i];
+            if (c >= 0x80) {
+                break;
+            }
+            array[position++] = (byte) c;
+            i++;
+        }
+        if (i == length) {
+            return position;
+        }
+        array = this.ensureCapacity(position + (length - i) * 3);
+        for (; i < length; i++) {
+            char c = text[i];
+            if (c < 0x80) {
+                array[position++] = (byte) c;
+            } else if (c < 0x800) {
+                array[position++] = (byte) (0xc0 | (c >> 6));
+                array[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text[i + 1])) {
+                    int codePoint = Character.toCodePoint(c, text[++i]);
+                    array[position++] = (byte) (0xf0 | (codePoint >> 18));
+                    array[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    array[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    array[position++] = (byte) (0x80 | (codePoint & 0x3f));
+                } else {
+                    array[position++] = '?';
+                }
+            } else {
+                array[position++] = (byte) (0xe0 | (c >> 12));
+                array[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                array[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return position;
+    }
+
+    private byte[] ensureCapacity(int capacity) {
+        if (this.bytes.length < capacity) {
+            byte[] newBytes = new byte[Math.max(capacity, this.bytes.length * 2)];
+            System.arraycopy(this.bytes, 0, newBytes, 0, this.bytes.length);
+            this.bytes = newBytes;
+        }
+        return this.bytes;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.common.message;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.rocketmq.common.compression.CompressorFactory;
+import org.apache.rocketmq.common.sysflag.MessageSysFlag;
+
+/**
+ * Read only view of a message in the buffer of a pull, the fixed fields are read in place and the body, properties
+ * and ids are decoded on first access. The views of a pull share its buffer, which lives as long as one of them.
+ */
+public class MessageView {
+    private static final int QUEUE_ID_POSITION = 4 + 4 + 4;
+    private static final int FLAG_POSITION = QUEUE_ID_POSITION + 4;
+    private static final int BORN_TIMESTAMP_POSITION = MessageDecoder.SYSFLAG_POSITION + 4;
+    private static final int BORN_HOST_POSITION = BORN_TIMESTAMP_POSITION + 8;
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int sysFlag;
+    private final int storeTimestampPosition;
+    private final int bodyLengthPosition;
+    private final int topicLengthPosition;
+
+    private byte[] body;
+    private Map<String, String> properties;
+    private String topic;
+    private String offsetMsgId;
+
+    public MessageView(final ByteBuffer buffer, final int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.sysFlag = buffer.getInt(offset + MessageDecoder.SYSFLAG_POSITION);
+        int bornHostLength = (this.sysFlag & MessageSysFlag.BORNHOST_V6_FLAG) == 0 ? 8 : 20;
+        int storeHostLength = (this.sysFlag & MessageSysFlag.STOREHOSTADDRESS_V6_FLAG) == 0 ? 8 : 20;
+        this.storeTimestampPosition = offset + BORN_HOST_POSITION + bornHostLength;
+        this.bodyLengthPosition = this.storeTimestampPosition
+            + 8 // 11 STORETIMESTAMP
+            + storeHostLength // 12 STOREHOSTADDRESS
+            + 4 // 13 RECONSUMETIMES
+            + 8; // 14 Prepared Transaction Offset
+        this.topicLengthPosition = this.bodyLengthPosition + 4 + buffer.getInt(this.bodyLengthPosition);
+    }
+
+    /**
+     * Views of the messages in the buffer of a pull, the first malformed one ends them.
+     */
+    public static List<MessageView> decodes(final ByteBuffer byteBuffer) {
+        List<MessageView> views = new ArrayList<MessageView>();
+        int position = byteBuffer.position();
+        while (position + MessageDecoder.SYSFLAG_POSITION + 4 <= byteBuffer.limit()) {
+            int storeSize = byteBuffer.getInt(position);
+            if (storeSize <= 0 || position + storeSize > byteBuffer.limit()) {
+                break;
+            }
+            try {
+                views.add(new MessageView(byteBuffer, position));
+            } catch (IndexOutOfBoundsException e) {
+                break;
+            }
+            position += storeSize;
+        }
+        byteBuffer.position(position);
+        return views;
+    }
+
+    public int getStoreSize() {
+        return this.buffer.getInt(this.offset);
+    }
+
+    public int getBodyCRC() {
+        return this.buffer.getInt(this.offset + 8);
+    }
+
+    public int getQueueId() {
+        return this.buffer.getInt(this.offset + QUEUE_ID_POSITION);
+    }
+
+    public int getFlag() {
+        return this.buffer.getInt(this.offset + FLAG_POSITION);
+    }
+
+    public long getQueueOffset() {
+        return this.buffer.getLong(this.offset + MessageDecoder.QUEUE_OFFSET_POSITION);
+    }
+
+    public long getCommitLogOffset() {
+        return this.buffer.getLong(this.offset + MessageDecoder.PHY_POS_POSITION);
+    }
+
+    public int getSysFlag() {
+        return this.sysFlag;
+    }
+
+    public long getBornTimestamp() {
+        return this.buffer.getLong(this.offset + BORN_TIMESTAMP_POSITION);
+    }
+
+    public SocketAddress getBornHost() {
+        return this.readHost(this.offset + BORN_HOST_POSITION, (this.sysFlag & MessageSysFlag.BORNHOST_V6_FLAG) == 0 ? 4 : 16);
+    }
+
+    public long getStoreTimestamp() {
+        return this.buffer.getLong(this.storeTimestampPosition);
+    }
+
+    public SocketAddress getStoreHost() {
+        return this.readHost(this.storeTimestampPosition + 8, this.getStoreHostIPLength());
+    }
+
+    public int getReconsumeTimes() {
+        return this.buffer.getInt(this.bodyLengthPosition - 8 - 4);
+    }
+
+    public long getPreparedTransactionOffset() {
+        return this.buffer.getLong(this.bodyLengthPosition - 8);
+    }
+
+    public int getBodyLength() {
+        return this.buffer.getInt(this.bodyLengthPosition);
+    }
+
+    /**
+     * @return the body as stored, compressed if flagged so, without copying it
+     */
+    public ByteBuffer getRawBody() {
+        ByteBuffer rawBody = this.buffer.asReadOnlyBuffer();
+        rawBody.limit(this.bodyLengthPosition + 4 + this.getBodyLength());
+        rawBody.position(this.bodyLengthPosition + 4);
+        return rawBody.slice();
+    }
+
+    /**
+     * @return the body, uncompressed, decoded once
+     */
+    public synchronized byte[] getBody() {
+        if (null == this.body) {
+            byte[] rawBody = new byte[this.getBodyLength()];
+            this.getRawBody().get(rawBody);
+            if ((this.sysFlag & MessageSysFlag.COMPRESSED_FLAG) == MessageSysFlag.COMPRESSED_FLAG) {
+                try {
+                    rawBody = CompressorFactory.getCompressor(this.sysFlag).decompress(rawBody);
+                } catch (Exception e) {
+                    throw new IllegalStateException("Failed to decompress the body of " + this.getOffsetMsgId(), e);
+                }
+            }
+            this.body = rawBody;
+        }
+        return this.body;
+    }
+
+    public synchronized String getTopic() {
+        if (null == this.topic) {
+            byte[] topicBytes = new byte[this.buffer.get(this.topicLengthPosition)];
+            for (int i = 0; i < topicBytes.length; i++) {
+                topicBytes[i] = this.buffer.get(this.topicLengthPosition + 1 + i);
+            }
+            this.topic = new String(topicBytes, MessageDecoder.CHARSET_UTF8);
+        }
+        return this.topic;
+    }
+
+    /**
+     * @return the properties, decoded once, not to be modified
+     */
+    public synchronized Map<String, String> getProperties() {
+        if (null == this.properties) {
+            this.properties = Collections.unmodifiableMap(this.decodeProperties());
+        }
+        return this.properties;
+    }
+
+    /**
+     * @return the properties decoded again, in a new map
+     */
+    Map<String, String> decodeProperties() {
+        int lengthPosition = this.topicLengthPosition + 1 + this.buffer.get(this.topicLengthPosition);
+        short propertiesLength = this.buffer.getShort(lengthPosition);
+        if (propertiesLength <= 0) {
+            return new HashMap<String, String>();
+        }
+        return MessagePropertiesCodec.local().decode(this.buffer, lengthPosition + 2, propertiesLength);
+    }
+
+    public String getProperty(final String name) {
+        return this.getProperties().get(name);
+    }
+
+    public String getTags() {
+        return this.getProperty(MessageConst.PROPERTY_TAGS);
+    }
+
+    public String getKeys() {
+        return this.getProperty(MessageConst.PROPERTY_KEYS);
+    }
+
+    /**
+     * @return the unique id given by the producer, the offset message id if none
+     */
+    public String getMsgId() {
+        String uniqID = this.getProperty(MessageConst.PROPERTY_UNIQ_CLIENT_MESSAGE_ID_KEYIDX);
+        return uniqID != null ? uniqID : this.getOffsetMsgId();
+    }
+
+    public synchronized String getOffsetMsgId() {
+        if (null == this.offsetMsgId) {
+            int storeHostLength = this.getStoreHostIPLength() + 4;
+            ByteBuffer storeHost = ByteBuffer.allocate(storeHostLength);
+            for (int i = 0; i < storeHostLength; i++) {
+                storeHost.put(this.buffer.get(this.storeTimestampPosition + 8 + i));
+            }
+            storeHost.flip();
+            this.offsetMsgId = MessageDecoder.createMessageId(ByteBuffer.allocate(storeHostLength + 8), storeHost,
+                this.getCommitLogOffset());
+        }
+        return this.offsetMsgId;
+    }
+
+    private int getStoreHostIPLength() {
+        return (this.sysFlag & MessageSysFlag.STOREHOSTADDRESS_V6_FLAG) == 0 ? 4 : 16;
+    }
+
+    private SocketAddress readHost(final int position, final int ipLength) {
+        byte[] ip = new byte[ipLength];
+        for (int i = 0; i < ipLength; i++) {
+            ip[i] = this.buffer.get(position + i);
+        }
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(ip), this.buffer.getInt(position + ipLength));
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("Malformed host of " + this.getOffsetMsgId(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MessageView [topic=" + getTopic() + ", queueId=" + getQueueId() + ", queueOffset=" + getQueueOffset()
+            + ", commitLogOffset=" + getCommitLogOffset() + ", storeSize=" + getStoreSize() + "]";
+    }
+}
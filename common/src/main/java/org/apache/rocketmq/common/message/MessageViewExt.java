@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.common.message;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Message backed by a {@link MessageView}, the body, properties, hosts and offset message id being copied from it on
+ * first access.
+ */
+public class MessageViewExt extends MessageClientExt {
+    private static final long serialVersionUID = -2745624371364915826L;
+
+    private final transient MessageView view;
+
+    private volatile boolean bodyLoaded;
+    private volatile boolean propertiesLoaded;
+    private volatile boolean hostsLoaded;
+    private volatile boolean offsetMsgIdLoaded;
+
+    public MessageViewExt(final MessageView view) {
+        this.view = view;
+        super.setStoreSize(view.getStoreSize());
+        super.setBodyCRC(view.getBodyCRC());
+        super.setQueueId(view.getQueueId());
+        super.setFlag(view.getFlag());
+        super.setQueueOffset(view.getQueueOffset());
+        super.setCommitLogOffset(view.getCommitLogOffset());
+        super.setSysFlag(view.getSysFlag());
+        super.setBornTimestamp(view.getBornTimestamp());
+        super.setStoreTimestamp(view.getStoreTimestamp());
+        super.setReconsumeTimes(view.getReconsumeTimes());
+        super.setPreparedTransactionOffset(view.getPreparedTransactionOffset());
+        super.setTopic(view.getTopic());
+    }
+
+    public static List<MessageExt> wrap(final List<MessageView> views) {
+        List<MessageExt> msgs = new ArrayList<MessageExt>(views.size());
+        for (MessageView view : views) {
+            msgs.add(new MessageViewExt(view));
+        }
+        return msgs;
+    }
+
+    public MessageView getView() {
+        return view;
+    }
+
+    private void ensureBody() {
+        if (!this.bodyLoaded) {
+            synchronized (this) {
+                if (!this.bodyLoaded) {
+                    super.setBody(this.view.getBody());
+                    this.bodyLoaded = true;
+                }
+            }
+        }
+    }
+
+    private void ensureProperties() {
+        if (!this.propertiesLoaded) {
+            synchronized (this) {
+                if (!this.propertiesLoaded) {
+                    // Own map, the client adds some
+                    super.setProperties(this.view.decodeProperties());
+                    this.propertiesLoaded = true;
+                }
+            }
+        }
+    }
+
+    private void ensureHosts() {
+        if (!this.hostsLoaded) {
+            synchronized (this) {
+                if (!this.hostsLoaded) {
+                    super.setBornHost(this.view.getBornHost());
+                    super.setStoreHost(this.view.getStoreHost());
+                    this.hostsLoaded = true;
+                }
+            }
+        }
+    }
+
+    private void ensureOffsetMsgId() {
+        if (!this.offsetMsgIdLoaded) {
+            synchronized (this) {
+                if (!this.offsetMsgIdLoaded) {
+                    super.setOffsetMsgId(this.view.getOffsetMsgId());
+                    this.offsetMsgIdLoaded = true;
+                }
+            }
+        }
+    }
+
+    @Override
+    public byte[] getBody() {
+        this.ensureBody();
+        return super.getBody();
+    }
+
+    @Override
+    public void setBody(byte[] body) {
+        synchronized (this) {
+            super.setBody(body);
+            this.bodyLoaded = true;
+        }
+    }
+
+    @Override
+    void putProperty(final String name, final String value) {
+        this.ensureProperties();
+        super.putProperty(name, value);
+    }
+
+    @Override
+    void clearProperty(final String name) {
+        this.ensureProperties();
+        super.clearProperty(name);
+    }
+
+    @Override
+    public String getProperty(final String name) {
+        this.ensureProperties();
+        return super.getProperty(name);
+    }
+
+    @Override
+    public Map<String, String> getProperties() {
+        this.ensureProperties();
+        return super.getProperties();
+    }
+
+    @Override
+    void setProperties(Map<String, String> properties) {
+        synchronized (this) {
+            super.setProperties(properties);
+            this.propertiesLoaded = true;
+        }
+    }
+
+    @Override
+    public SocketAddress getBornHost() {
+        this.ensureHosts();
+        return super.getBornHost();
+    }
+
+    @Override
+    public void setBornHost(SocketAddress bornHost) {
+        this.ensureHosts();
+        super.setBornHost(bornHost);
+    }
+
+    @Override
+    public ByteBuffer getBornHostBytes() {
+        this.ensureHosts();
+        return super.getBornHostBytes();
+    }
+
+    @Override
+    public ByteBuffer getBornHostBytes(ByteBuffer byteBuffer) {
+        this.ensureHosts();
+        return super.getBornHostBytes(byteBuffer);
+    }
+
+    @Override
+    public String getBornHostString() {
+        this.ensureHosts();
+        return super.getBornHostString();
+    }
+
+    @Override
+    public String getBornHostNameString() {
+        this.ensureHosts();
+        return super.getBornHostNameString();
+    }
+
+    @Override
+    public SocketAddress getStoreHost() {
+        this.ensureHosts();
+        return super.getStoreHost();
+    }
+
+    @Override
+    public void setStoreHost(SocketAddress storeHost) {
+        this.ensureHosts();
+        super.setStoreHost(storeHost);
+    }
+
+    @Override
+    public ByteBuffer getStoreHostBytes() {
+        this.ensureHosts();
+        return super.getStoreHostBytes();
+    }
+
+    @Override
+    public ByteBuffer getStoreHostBytes(ByteBuffer byteBuffer) {
+        this.ensureHosts();
+        return super.getStoreHostBytes(byteBuffer);
+    }
+
+    @Override
+    public String getOffsetMsgId() {
+        this.ensureOffsetMsgId();
+        return super.getOffsetMsgId();
+    }
+
+    @Override
+    public void setOffsetMsgId(String offsetMsgId) {
+        synchronized (this) {
+            super.setOffsetMsgId(offsetMsgId);
+            this.offsetMsgIdLoaded = true;
+        }
+    }
+
+    private void ensureAll() {
+        this.ensureBody();
+        this.ensureProperties();
+        this.ensureHosts();
+        this.ensureOffsetMsgId();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        this.ensureAll();
+        out.defaultWriteObject();
+    }
+
+    @Override
+    public String toString() {
+        this.ensureAll();
+        return super.toString();
+    }
+}
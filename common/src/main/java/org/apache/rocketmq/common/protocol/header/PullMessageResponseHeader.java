@@ -22,6 +22,7 @@ package org.apache.rocketmq.common.protocol.header;
 
 import org.apache.rocketmq.remoting.CommandCustomHeader;
 import org.apache.rocketmq.remoting.annotation.CFNotNull;
+import org.apache.rocketmq.remoting.annotation.CFNullable;
 import org.apache.rocketmq.remoting.exception.RemotingCommandException;
 
 public class PullMessageResponseHeader implements CommandCustomHeader {
@@ -33,6 +34,9 @@ public class PullMessageResponseHeader implements CommandCustomHeader {
     private Long minOffset;
     @CFNotNull
     private Long maxOffset;
+    // Queue offset up to which the messages can be read from the slaves
+    @CFNullable
+    private Long replicatedMaxOffset;
 
     @Override
     public void checkFields() throws RemotingCommandException {
@@ -69,4 +73,12 @@ public class PullMessageResponseHeader implements CommandCustomHeader {
     public void setSuggestWhichBrokerId(Long suggestWhichBrokerId) {
         this.suggestWhichBrokerId = suggestWhichBrokerId;
     }
+
+    public Long getReplicatedMaxOffset() {
+        return replicatedMaxOffset;
+    }
+
+    public void setReplicatedMaxOffset(Long replicatedMaxOffset) {
+        this.replicatedMaxOffset = replicatedMaxOffset;
+    }
 }
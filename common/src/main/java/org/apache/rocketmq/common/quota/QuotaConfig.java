@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.common.quota;
+
+/**
+ * Throughput quota of a topic, producer group or consumer group on a broker. A rate of zero or less is not limited.
+ */
+public class QuotaConfig {
+    private QuotaResourceType resourceType;
+
+    private String resourceName;
+
+    private long messagesPerSecond;
+
+    private long bytesPerSecond;
+
+    public QuotaResourceType getResourceType() {
+        return resourceType;
+    }
+
+    public void setResourceType(QuotaResourceType resourceType) {
+        this.resourceType = resourceType;
+    }
+
+    public String getResourceName() {
+        return resourceName;
+    }
+
+    public void setResourceName(String resourceName) {
+        this.resourceName = resourceName;
+    }
+
+    public long getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public void setMessagesPerSecond(long messagesPerSecond) {
+        this.messagesPerSecond = messagesPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "QuotaConfig [resourceType=" + resourceType + ", resourceName=" + resourceName
+            + ", messagesPerSecond=" + messagesPerSecond + ", bytesPerSecond=" + bytesPerSecond + "]";
+    }
+}
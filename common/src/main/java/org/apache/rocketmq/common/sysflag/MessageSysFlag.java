@@ -16,6 +16,8 @@
  */
 package org.apache.rocketmq.common.sysflag;
 
+import org.apache.rocketmq.common.compression.CompressionType;
+
 public class MessageSysFlag {
     public final static int COMPRESSED_FLAG = 0x1;
     public final static int MULTI_TAGS_FLAG = 0x1 << 1;
@@ -25,6 +27,11 @@ public class MessageSysFlag {
     public final static int TRANSACTION_ROLLBACK_TYPE = 0x3 << 2;
     public final static int BORNHOST_V6_FLAG = 0x1 << 4;
     public final static int STOREHOSTADDRESS_V6_FLAG = 0x1 << 5;
+    // Set on the messages of a batch but the last one, only for the topics with a batch consume queue
+    public final static int BATCH_CONTINUED_FLAG = 0x1 << 6;
+    // Codec of the compressed body, see CompressionType
+    public final static int COMPRESSION_TYPE_SHIFT = 8;
+    public final static int COMPRESSION_TYPE_COMPARATOR = 0x7 << COMPRESSION_TYPE_SHIFT;
 
     public static int getTransactionValue(final int flag) {
         return flag & TRANSACTION_ROLLBACK_TYPE;
@@ -35,7 +42,11 @@ public class MessageSysFlag {
     }
 
     public static int clearCompressedFlag(final int flag) {
-        return flag & (~COMPRESSED_FLAG);
+        return flag & ~(COMPRESSED_FLAG | COMPRESSION_TYPE_COMPARATOR);
+    }
+
+    public static CompressionType getCompressionType(final int flag) {
+        return CompressionType.findByValue((flag & COMPRESSION_TYPE_COMPARATOR) >>> COMPRESSION_TYPE_SHIFT);
     }
 
 }
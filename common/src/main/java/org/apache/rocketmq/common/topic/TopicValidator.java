@@ -29,6 +29,7 @@ public class TopicValidator {
 
     public static final String AUTO_CREATE_TOPIC_KEY_TOPIC = "TBW102"; // Will be created at broker when isAutoCreateTopicEnable
     public static final String RMQ_SYS_SCHEDULE_TOPIC = "SCHEDULE_TOPIC_XXXX";
+    public static final String RMQ_SYS_TIMER_TOPIC = "rmq_sys_wheel_timer";
     public static final String RMQ_SYS_BENCHMARK_TOPIC = "BenchmarkTest";
     public static final String RMQ_SYS_TRANS_HALF_TOPIC = "RMQ_SYS_TRANS_HALF_TOPIC";
     public static final String RMQ_SYS_TRACE_TOPIC = "RMQ_SYS_TRACE_TOPIC";
@@ -53,6 +54,7 @@ public class TopicValidator {
     static {
         SYSTEM_TOPIC_SET.add(AUTO_CREATE_TOPIC_KEY_TOPIC);
         SYSTEM_TOPIC_SET.add(RMQ_SYS_SCHEDULE_TOPIC);
+        SYSTEM_TOPIC_SET.add(RMQ_SYS_TIMER_TOPIC);
         SYSTEM_TOPIC_SET.add(RMQ_SYS_BENCHMARK_TOPIC);
         SYSTEM_TOPIC_SET.add(RMQ_SYS_TRANS_HALF_TOPIC);
         SYSTEM_TOPIC_SET.add(RMQ_SYS_TRACE_TOPIC);
@@ -62,6 +64,7 @@ public class TopicValidator {
         SYSTEM_TOPIC_SET.add(RMQ_SYS_OFFSET_MOVED_EVENT);
 
         NOT_ALLOWED_SEND_TOPIC_SET.add(RMQ_SYS_SCHEDULE_TOPIC);
+        NOT_ALLOWED_SEND_TOPIC_SET.add(RMQ_SYS_TIMER_TOPIC);
     }
 
     private static boolean regularExpressionMatcher(String origin, Pattern pattern) {
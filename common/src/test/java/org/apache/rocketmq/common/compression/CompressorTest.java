@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.common.compression;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageBatch;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.sysflag.MessageSysFlag;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class CompressorTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Random random = new Random(0);
+        byte[] randomBytes = new byte[64 * 1024];
+        random.nextBytes(randomBytes);
+        byte[] repeated = new byte[1024 * 1024];
+        for (int i = 0; i < repeated.length; i++) {
+            repeated[i] = (byte) ('a' + i % 7);
+        }
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 100 * 1024) {
+            sb.append("{\"orderId\":").append(random.nextInt(1000)).append(",\"status\":\"PAID\"},");
+        }
+        byte[] json = sb.toString().getBytes();
+
+        for (CompressionType type : CompressionType.values()) {
+            Compressor compressor = CompressorFactory.getCompressor(type);
+            for (byte[] src : Arrays.asList(new byte[0], "a".getBytes(), "abcdabcdabcdabcd".getBytes(), randomBytes, repeated, json)) {
+                byte[] compressed = compressor.compress(src, 5);
+                assertThat(compressor.decompress(compressed)).isEqualTo(src);
+            }
+            assertThat(compressor.compress(json, 5).length).isLessThan(json.length / 2);
+        }
+    }
+
+    @Test
+    public void testMalformedLz4() throws IOException {
+        Compressor compressor = CompressorFactory.getCompressor(CompressionType.LZ4);
+        byte[] compressed = compressor.compress("abcdabcdabcdabcdabcdabcdabcd".getBytes(), 5);
+        byte[] negativeLength = Arrays.copyOf(compressed, compressed.length);
+        negativeLength[0] = (byte) 0x80;
+        byte[] hugeLength = Arrays.copyOf(compressed, compressed.length);
+        hugeLength[0] = (byte) 0x7F;
+        for (byte[] malformed : Arrays.asList(new byte[2], Arrays.copyOf(compressed, compressed.length - 3),
+            Arrays.copyOf(compressed, compressed.length + 3), negativeLength, hugeLength)) {
+            try {
+                compressor.decompress(malformed);
+                fail("Malformed data is decompressed");
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void testSysFlag() {
+        int sysFlag = MessageSysFlag.COMPRESSED_FLAG | MessageSysFlag.TRANSACTION_PREPARED_TYPE;
+        assertThat(MessageSysFlag.getCompressionType(sysFlag)).isEqualTo(CompressionType.ZLIB);
+
+        sysFlag |= CompressionType.LZ4.getCompressionFlag();
+        assertThat(MessageSysFlag.getCompressionType(sysFlag)).isEqualTo(CompressionType.LZ4);
+        assertThat(CompressorFactory.getCompressor(sysFlag)).isInstanceOf(Lz4Compressor.class);
+        assertThat(MessageSysFlag.getTransactionValue(sysFlag)).isEqualTo(MessageSysFlag.TRANSACTION_PREPARED_TYPE);
+
+        assertThat(MessageSysFlag.clearCompressedFlag(sysFlag)).isEqualTo(MessageSysFlag.TRANSACTION_PREPARED_TYPE);
+    }
+
+    @Test
+    public void testBatchEncode() throws Exception {
+        Compressor compressor = CompressorFactory.getCompressor(CompressionType.LZ4);
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < 10; i++) {
+            Message message = new Message("TopicTest", "TagA", ("hello hello hello hello " + i).getBytes());
+            message.putUserProperty("index", String.valueOf(i));
+            messages.add(message);
+        }
+        MessageBatch batch = MessageBatch.generateFromList(messages);
+
+        List<Message> decoded = MessageDecoder.decodeMessages(ByteBuffer.wrap(batch.encode(compressor, 5)));
+        assertThat(decoded).hasSize(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertThat(compressor.decompress(decoded.get(i).getBody())).isEqualTo(messages.get(i).getBody());
+            assertThat(decoded.get(i).getUserProperty("index")).isEqualTo(String.valueOf(i));
+            // Left as they are
+            assertThat(messages.get(i).getBody()).isEqualTo(("hello hello hello hello " + i).getBytes());
+        }
+    }
+
+    @Test
+    public void testDecodeStoredMessage() throws Exception {
+        byte[] body = "hello hello hello hello hello".getBytes();
+        MessageExt messageExt = new MessageExt();
+        messageExt.setTopic("TopicTest");
+        messageExt.setBody(body);
+        messageExt.setSysFlag(MessageSysFlag.COMPRESSED_FLAG | CompressionType.LZ4.getCompressionFlag());
+        messageExt.setBornHost(new InetSocketAddress("127.0.0.1", 0));
+        messageExt.setStoreHost(new InetSocketAddress("127.0.0.1", 0));
+
+        MessageExt decoded = MessageDecoder.decode(ByteBuffer.wrap(MessageDecoder.encode(messageExt, true)), true, true);
+        assertThat(decoded.getBody()).isEqualTo(body);
+        assertThat(MessageSysFlag.getCompressionType(decoded.getSysFlag())).isEqualTo(CompressionType.LZ4);
+    }
+}
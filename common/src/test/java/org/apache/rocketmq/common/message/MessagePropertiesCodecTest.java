@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.common.message;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessagePropertiesCodecTest {
+
+    @Test
+    public void testEncodeLikeStringForm() {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        properties.put(MessageConst.PROPERTY_TAGS, "TagA");
+        properties.put(MessageConst.PROPERTY_KEYS, "key 1");
+        properties.put("nullValue", null);
+        properties.put("unicode", "é中😀");
+        properties.put("unpaired", "a\ud83db");
+
+        MessagePropertiesCodec codec = new MessagePropertiesCodec();
+        String string = codec.encodeToString(properties);
+        assertThat(string).isEqualTo("TAGS\u0001TagA\u0002KEYS\u0001key 1\u0002unicode\u0001é中😀"
+            + "\u0002unpaired\u0001a\ud83db");
+
+        int length = codec.encode(properties);
+        assertThat(Arrays.copyOf(codec.bytes(), length)).isEqualTo(string.getBytes(MessageDecoder.CHARSET_UTF8));
+        length = codec.encode(string);
+        assertThat(Arrays.copyOf(codec.bytes(), length)).isEqualTo(string.getBytes(MessageDecoder.CHARSET_UTF8));
+
+        assertThat(codec.encodeToString(null)).isEmpty();
+        assertThat(codec.encode((Map<String, String>) null)).isZero();
+        assertThat(codec.encode((String) null)).isZero();
+    }
+
+    @Test
+    public void testDecode() {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(MessageConst.PROPERTY_WAIT_STORE_MSG_OK, new String("true"));
+        properties.put(MessageConst.PROPERTY_UNIQ_CLIENT_MESSAGE_ID_KEYIDX, "7F00000100002A9F0000000000000000");
+        properties.put("unicode", "é中😀");
+        String string = new MessagePropertiesCodec().encodeToString(properties) + "\u0002bad\u0002\u0001x\u0002y\u0001";
+        byte[] bytes = string.getBytes(MessageDecoder.CHARSET_UTF8);
+
+        MessagePropertiesCodec codec = new MessagePropertiesCodec();
+        Map<String, String> decoded = codec.decode(string);
+        assertThat(decoded).isEqualTo(properties);
+
+        ByteBuffer heap = ByteBuffer.allocate(bytes.length + 3);
+        heap.position(3);
+        heap.put(bytes);
+        assertThat(codec.decode(heap, 3, bytes.length)).isEqualTo(properties);
+        assertThat(heap.position()).isEqualTo(heap.capacity());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes);
+        Map<String, String> decodedDirect = codec.decode(direct, 0, bytes.length);
+        assertThat(decodedDirect).isEqualTo(properties);
+
+        // System property names and common values are shared, not copied
+        for (Map.Entry<String, String> entry : decodedDirect.entrySet()) {
+            if (entry.getKey().equals(MessageConst.PROPERTY_WAIT_STORE_MSG_OK)) {
+                assertThat(entry.getKey()).isSameAs(MessageConst.PROPERTY_WAIT_STORE_MSG_OK);
+                assertThat(entry.getValue()).isSameAs(Boolean.TRUE.toString());
+            }
+        }
+        assertThat(codec.decode((String) null)).isEmpty();
+    }
+}
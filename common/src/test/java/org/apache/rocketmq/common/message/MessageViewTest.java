@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.common.message;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.apache.rocketmq.common.sysflag.MessageSysFlag;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessageViewTest {
+
+    @Test
+    public void testDecodesLikeMessageDecoder() throws Exception {
+        ByteBuffer byteBuffer = encode(3, false);
+        List<MessageExt> msgExts = MessageDecoder.decodes(byteBuffer.duplicate());
+        List<MessageView> views = MessageView.decodes(byteBuffer.duplicate());
+
+        assertThat(views).hasSize(3);
+        for (int i = 0; i < views.size(); i++) {
+            MessageExt msgExt = msgExts.get(i);
+            MessageView view = views.get(i);
+            assertThat(view.getStoreSize()).isEqualTo(msgExt.getStoreSize());
+            assertThat(view.getQueueId()).isEqualTo(msgExt.getQueueId());
+            assertThat(view.getFlag()).isEqualTo(msgExt.getFlag());
+            assertThat(view.getQueueOffset()).isEqualTo(msgExt.getQueueOffset());
+            assertThat(view.getCommitLogOffset()).isEqualTo(msgExt.getCommitLogOffset());
+            assertThat(view.getBornTimestamp()).isEqualTo(msgExt.getBornTimestamp());
+            assertThat(view.getStoreTimestamp()).isEqualTo(msgExt.getStoreTimestamp());
+            assertThat(view.getBornHost()).isEqualTo(msgExt.getBornHost());
+            assertThat(view.getStoreHost()).isEqualTo(msgExt.getStoreHost());
+            assertThat(view.getReconsumeTimes()).isEqualTo(msgExt.getReconsumeTimes());
+            assertThat(view.getTopic()).isEqualTo(msgExt.getTopic());
+            assertThat(view.getBody()).isEqualTo(msgExt.getBody());
+            assertThat(view.getProperties()).isEqualTo(msgExt.getProperties());
+            assertThat(view.getTags()).isEqualTo("TagA");
+            assertThat(view.getMsgId()).isEqualTo(msgExt.getMsgId());
+            assertThat(view.getOffsetMsgId()).isEqualTo(((MessageClientExt) msgExt).getOffsetMsgId());
+        }
+    }
+
+    @Test
+    public void testCompressedBody() throws Exception {
+        List<MessageView> views = MessageView.decodes(encode(1, true));
+        assertThat(views.get(0).getBody()).isEqualTo(body(0));
+        assertThat(views.get(0).getRawBody().remaining()).isNotEqualTo(body(0).length);
+    }
+
+    @Test
+    public void testDecodesStopsAtTruncatedMessage() throws Exception {
+        ByteBuffer byteBuffer = encode(2, false);
+        byteBuffer.limit(byteBuffer.limit() - 1);
+        assertThat(MessageView.decodes(byteBuffer)).hasSize(1);
+    }
+
+    @Test
+    public void testMessageViewExt() throws Exception {
+        List<MessageExt> msgs = MessageViewExt.wrap(MessageView.decodes(encode(1, false)));
+        MessageExt msg = msgs.get(0);
+        assertThat(msg.getTopic()).isEqualTo("TopicTest");
+        assertThat(msg.getQueueOffset()).isEqualTo(100);
+        assertThat(msg.getTags()).isEqualTo("TagA");
+        assertThat(msg.getBody()).isEqualTo(body(0));
+
+        // The properties are copied, the view stays as decoded
+        MessageAccessor.putProperty(msg, MessageConst.PROPERTY_MIN_OFFSET, "0");
+        assertThat(msg.getProperty(MessageConst.PROPERTY_MIN_OFFSET)).isEqualTo("0");
+        assertThat(((MessageViewExt) msg).getView().getProperty(MessageConst.PROPERTY_MIN_OFFSET)).isNull();
+
+        // Encoded again with the added property
+        msg.setStoreSize(0);
+        MessageExt decoded = MessageDecoder.decode(ByteBuffer.wrap(MessageDecoder.encode(msg, false)));
+        assertThat(decoded.getBody()).isEqualTo(body(0));
+        assertThat(decoded.getStoreHost()).isEqualTo(msg.getStoreHost());
+        assertThat(msg.getMsgId()).isEqualTo(((MessageViewExt) msg).getView().getMsgId());
+    }
+
+    private static byte[] body(int index) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 64; i++) {
+            sb.append("body-").append(index);
+        }
+        return sb.toString().getBytes(MessageDecoder.CHARSET_UTF8);
+    }
+
+    private static ByteBuffer encode(int num, boolean compressed) throws Exception {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(num * 2048);
+        for (int i = 0; i < num; i++) {
+            MessageExt messageExt = new MessageExt();
+            messageExt.setTopic("TopicTest");
+            messageExt.setBody(body(i));
+            messageExt.setBornHost(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 1000 + i));
+            messageExt.setStoreHost(new InetSocketAddress(InetAddress.getByName("127.0.0.2"), 10911));
+            messageExt.setBornTimestamp(System.currentTimeMillis());
+            messageExt.setStoreTimestamp(System.currentTimeMillis() + 1);
+            messageExt.setCommitLogOffset(123456 + i * 1000);
+            messageExt.setQueueId(1);
+            messageExt.setQueueOffset(100 + i);
+            messageExt.setFlag(7);
+            messageExt.setReconsumeTimes(i);
+            messageExt.setTags("TagA");
+            messageExt.setKeys("key-" + i);
+            if (i % 2 == 1) {
+                MessageClientIDSetter.setUniqID(messageExt);
+            }
+            if (compressed) {
+                messageExt.setSysFlag(MessageSysFlag.COMPRESSED_FLAG);
+            }
+            byteBuffer.put(MessageDecoder.encode(messageExt, compressed));
+        }
+        byteBuffer.flip();
+        return byteBuffer;
+    }
+}
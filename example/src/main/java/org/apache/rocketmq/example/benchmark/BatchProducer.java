@@ -43,6 +43,7 @@ import org.apache.rocketmq.client.producer.DefaultMQProducer;
 import org.apache.rocketmq.client.producer.SendResult;
 import org.apache.rocketmq.client.producer.SendStatus;
 import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.common.compression.CompressionType;
 import org.apache.rocketmq.common.message.Message;
 import org.apache.rocketmq.remoting.RPCHook;
 import org.apache.rocketmq.remoting.exception.RemotingException;
@@ -72,9 +73,10 @@ public class BatchProducer {
         final boolean aclEnable = getOptionValue(commandLine, 'a', false);
         final String ak = getOptionValue(commandLine, 'c', "rocketmq2");
         final String sk = getOptionValue(commandLine, 'e', "12346789");
+        final String compressType = getOptionValue(commandLine, 'z', "none");
 
-        System.out.printf("topic: %s threadCount: %d messageSize: %d batchSize: %d keyEnable: %s propertySize: %d tagCount: %d traceEnable: %s aclEnable: %s%n",
-                topic, threadCount, messageSize, batchSize, keyEnable, propertySize, tagCount, msgTraceEnable, aclEnable);
+        System.out.printf("topic: %s threadCount: %d messageSize: %d batchSize: %d keyEnable: %s propertySize: %d tagCount: %d traceEnable: %s aclEnable: %s compressType: %s%n",
+                topic, threadCount, messageSize, batchSize, keyEnable, propertySize, tagCount, msgTraceEnable, aclEnable, compressType);
 
         StringBuilder sb = new StringBuilder(messageSize);
         for (int i = 0; i < messageSize; i++) {
@@ -85,7 +87,7 @@ public class BatchProducer {
         final StatsBenchmarkBatchProducer statsBenchmark = new StatsBenchmarkBatchProducer();
         statsBenchmark.start();
 
-        final DefaultMQProducer producer = initInstance(namesrv, msgTraceEnable, aclEnable, ak, sk);
+        final DefaultMQProducer producer = initInstance(namesrv, msgTraceEnable, aclEnable, ak, sk, compressType);
         producer.start();
 
         final InternalLogger log = ClientLogger.getLog();
@@ -213,6 +215,10 @@ public class BatchProducer {
         opt = new Option("n", "namesrv", true, "name server, Default: 127.0.0.1:9876");
         opt.setRequired(false);
         options.addOption(opt);
+
+        opt = new Option("z", "compressType", true, "Compress the batches by none, zlib or lz4, Default: none");
+        opt.setRequired(false);
+        options.addOption(opt);
         return options;
     }
 
@@ -292,13 +298,18 @@ public class BatchProducer {
     }
 
     private static DefaultMQProducer initInstance(String namesrv, boolean traceEnable, boolean aclEnable, String ak,
-                                                  String sk) {
+                                                  String sk, String compressType) {
         RPCHook rpcHook = aclEnable ? new AclClientRPCHook(new SessionCredentials(ak, sk)) : null;
         final DefaultMQProducer producer = new DefaultMQProducer("benchmark_batch_producer", rpcHook, traceEnable, null);
         producer.setInstanceName(Long.toString(System.currentTimeMillis()));
 
         producer.setNamesrvAddr(namesrv);
-        producer.setCompressMsgBodyOverHowmuch(Integer.MAX_VALUE);
+        if ("none".equalsIgnoreCase(compressType)) {
+            producer.setCompressMsgBodyOverHowmuch(Integer.MAX_VALUE);
+        } else {
+            producer.setCompressMsgBodyOverHowmuch(0);
+            producer.setCompressType(CompressionType.of(compressType));
+        }
         return producer;
     }
 }
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.example.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+import org.apache.rocketmq.common.compression.CompressionType;
+import org.apache.rocketmq.common.compression.Compressor;
+import org.apache.rocketmq.common.compression.CompressorFactory;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageBatch;
+import org.apache.rocketmq.srvutil.ServerUtil;
+
+/**
+ * Throughput and ratio of each codec on batches of JSON bodies, as encoded by the producer, without a broker.
+ */
+public class CompressionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Options options = ServerUtil.buildCommandlineOptions(new Options());
+        CommandLine commandLine = ServerUtil.parseCmdLine("benchmarkCompression", args, buildCommandlineOptions(options), new PosixParser());
+        if (null == commandLine) {
+            System.exit(-1);
+        }
+
+        final int messageSize = commandLine.hasOption('s') ? Integer.parseInt(commandLine.getOptionValue('s').trim()) : 1024;
+        final int batchSize = commandLine.hasOption('b') ? Integer.parseInt(commandLine.getOptionValue('b').trim()) : 16;
+        final int seconds = commandLine.hasOption('d') ? Integer.parseInt(commandLine.getOptionValue('d').trim()) : 5;
+        final int level = commandLine.hasOption('v') ? Integer.parseInt(commandLine.getOptionValue('v').trim()) : 5;
+
+        System.out.printf("messageSize: %d batchSize: %d duration: %ds level: %d%n", messageSize, batchSize, seconds, level);
+
+        List<MessageBatch> batches = new ArrayList<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 64; i++) {
+            List<Message> messages = new ArrayList<>(batchSize);
+            for (int j = 0; j < batchSize; j++) {
+                messages.add(new Message("BenchmarkTest", buildJsonBody(random, messageSize)));
+            }
+            batches.add(MessageBatch.generateFromList(messages));
+        }
+
+        for (CompressionType type : CompressionType.values()) {
+            Compressor compressor = CompressorFactory.getCompressor(type);
+            List<byte[]> compressedBodies = new ArrayList<>();
+            long rawBytes = 0;
+            long compressedBytes = 0;
+            for (MessageBatch batch : batches) {
+                for (Message message : batch) {
+                    byte[] compressed = compressor.compress(message.getBody(), level);
+                    compressedBodies.add(compressed);
+                    rawBytes += message.getBody().length;
+                    compressedBytes += compressed.length;
+                }
+            }
+
+            long encodedBytes = 0;
+            long begin = System.nanoTime();
+            long deadline = begin + seconds * 1000000000L;
+            long batchNum = 0;
+            while (System.nanoTime() < deadline) {
+                MessageBatch batch = batches.get((int) (batchNum++ % batches.size()));
+                batch.encode(compressor, level);
+                for (Message message : batch) {
+                    encodedBytes += message.getBody().length;
+                }
+            }
+            double compressSeconds = (System.nanoTime() - begin) / 1e9;
+
+            long decodedBytes = 0;
+            begin = System.nanoTime();
+            deadline = begin + seconds * 1000000000L;
+            int index = 0;
+            while (System.nanoTime() < deadline) {
+                decodedBytes += compressor.decompress(compressedBodies.get(index++ % compressedBodies.size())).length;
+            }
+            double decompressSeconds = (System.nanoTime() - begin) / 1e9;
+
+            System.out.printf("%-5s Ratio: %.2f Batch Encode MB/s: %.1f Decompress MB/s: %.1f%n",
+                type, rawBytes / (double) compressedBytes, encodedBytes / 1024.0 / 1024.0 / compressSeconds,
+                decodedBytes / 1024.0 / 1024.0 / decompressSeconds);
+        }
+    }
+
+    private static byte[] buildJsonBody(Random random, int size) {
+        StringBuilder sb = new StringBuilder(size + 64);
+        sb.append('[');
+        while (sb.length() < size) {
+            sb.append("{\"orderId\":").append(random.nextInt(1000000))
+                .append(",\"status\":\"").append(random.nextBoolean() ? "PAID" : "SHIPPED")
+                .append("\",\"amount\":").append(random.nextInt(10000))
+                .append(",\"region\":\"region-").append(random.nextInt(8)).append("\"},");
+        }
+        sb.setCharAt(sb.length() - 1, ']');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static Options buildCommandlineOptions(final Options options) {
+        Option opt = new Option("s", "messageSize", true, "Message Size, Default: 1024");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option("b", "batchSize", true, "Batch Size, Default: 16");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option("d", "duration", true, "Seconds per codec, Default: 5");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option("v", "level", true, "Compression level, Default: 5");
+        opt.setRequired(false);
+        options.addOption(opt);
+        return options;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.example.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.rocketmq.client.consumer.DefaultLitePullConsumer;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.apache.rocketmq.srvutil.ServerUtil;
+
+/**
+ * Latency of long polling wake-ups while many pull requests are suspended on idle queues of the broker.
+ * <p>
+ * Keeps at least {@code idlePulls} pulls suspended on the queues of an idle topic, by lite pull consumers of their own
+ * groups each assigned all its queues, then sends messages one by one to a hot topic on which one pull is suspended,
+ * and reports the time from sending each message to its poll returning. A lite pull consumer blocks one of its pull
+ * threads per suspended pull, so the client needs as many threads as idle pulls.
+ */
+public class LongPollingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Options options = ServerUtil.buildCommandlineOptions(new Options());
+        CommandLine commandLine = ServerUtil.parseCmdLine("benchmarkLongPolling", args, buildCommandlineOptions(options), new PosixParser());
+        if (null == commandLine) {
+            System.exit(-1);
+        }
+
+        final String idleTopic = commandLine.hasOption('i') ? commandLine.getOptionValue('i').trim() : "BenchmarkIdleTest";
+        final String hotTopic = commandLine.hasOption('t') ? commandLine.getOptionValue('t').trim() : "BenchmarkTest";
+        final int idlePulls = commandLine.hasOption('c') ? Integer.parseInt(commandLine.getOptionValue('c').trim()) : 1000;
+        final long intervalMillis = commandLine.hasOption('s') ? Long.parseLong(commandLine.getOptionValue('s').trim()) : 10;
+        final String namesrvAddr = commandLine.hasOption('n') ? commandLine.getOptionValue('n') : null;
+
+        final DefaultMQProducer producer = new DefaultMQProducer("benchmark_long_polling_producer");
+        final DefaultLitePullConsumer hotConsumer = buildConsumer("benchmark_long_polling", namesrvAddr, 1);
+        if (namesrvAddr != null) {
+            producer.setNamesrvAddr(namesrvAddr);
+        }
+        producer.start();
+        hotConsumer.start();
+
+        List<MessageQueue> idleQueues = new ArrayList<MessageQueue>(hotConsumer.fetchMessageQueues(idleTopic));
+        int idleConsumerNums = (idlePulls + idleQueues.size() - 1) / idleQueues.size();
+        final List<DefaultLitePullConsumer> idleConsumers = new ArrayList<DefaultLitePullConsumer>(idleConsumerNums);
+        for (int i = 0; i < idleConsumerNums; i++) {
+            DefaultLitePullConsumer idleConsumer = buildConsumer("benchmark_long_polling_idle_" + i, namesrvAddr, idleQueues.size());
+            idleConsumer.start();
+            idleConsumer.assign(idleQueues);
+            idleConsumers.add(idleConsumer);
+        }
+
+        System.out.printf("idleTopic: %s hotTopic: %s idlePulls: %d sendInterval: %dms%n", idleTopic, hotTopic,
+            idleConsumerNums * idleQueues.size(), intervalMillis);
+
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong latencyTotal = new AtomicLong();
+        final AtomicLong latencyMax = new AtomicLong();
+        final MessageQueue hotQueue = new ArrayList<MessageQueue>(hotConsumer.fetchMessageQueues(hotTopic)).get(0);
+        hotConsumer.assign(Collections.singletonList(hotQueue));
+        hotConsumer.seekToEnd(hotQueue);
+        Thread pollThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    List<MessageExt> msgs = hotConsumer.poll();
+                    long now = System.currentTimeMillis();
+                    for (MessageExt msg : msgs) {
+                        long latency = now - Long.parseLong(msg.getUserProperty("sendTimestamp"));
+                        received.incrementAndGet();
+                        latencyTotal.addAndGet(latency);
+                        if (latency > latencyMax.get()) {
+                            latencyMax.set(latency);
+                        }
+                    }
+                }
+            }
+        }, "BenchmarkPollThread");
+        pollThread.setDaemon(true);
+        pollThread.start();
+
+        ScheduledExecutorService executorService = new ScheduledThreadPoolExecutor(1,
+            new BasicThreadFactory.Builder().namingPattern("BenchmarkTimerThread-%d").daemon(true).build());
+        executorService.scheduleAtFixedRate(new Runnable() {
+            private long lastReceived;
+            private long lastLatencyTotal;
+
+            @Override
+            public void run() {
+                long count = received.get() - lastReceived;
+                long total = latencyTotal.get() - lastLatencyTotal;
+                lastReceived += count;
+                lastLatencyTotal += total;
+                System.out.printf("Current Time: %s Idle consumers: %d Received: %d AVG(S2C) RT(ms): %7.3f MAX(S2C) RT(ms): %d%n",
+                    System.currentTimeMillis(), idleConsumers.size(), count, count == 0 ? 0 : (double) total / count,
+                    latencyMax.getAndSet(0));
+            }
+        }, 10000, 10000, TimeUnit.MILLISECONDS);
+
+        byte[] body = new byte[128];
+        while (true) {
+            Message msg = new Message(hotTopic, body);
+            msg.putUserProperty("sendTimestamp", String.valueOf(System.currentTimeMillis()));
+            try {
+                producer.send(msg, hotQueue);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            Thread.sleep(intervalMillis);
+        }
+    }
+
+    private static DefaultLitePullConsumer buildConsumer(final String group, final String namesrvAddr,
+        final int pullThreadNums) {
+        DefaultLitePullConsumer consumer = new DefaultLitePullConsumer(group);
+        if (namesrvAddr != null) {
+            consumer.setNamesrvAddr(namesrvAddr);
+        }
+        consumer.setAutoCommit(false);
+        consumer.setPullThreadNums(pullThreadNums);
+        return consumer;
+    }
+
+    public static Options buildCommandlineOptions(final Options options) {
+        Option opt = new Option("i", "idleTopic", true, "Topic of the idle pulls, Default: BenchmarkIdleTest");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option("t", "topic", true, "Topic messages are sent to, Default: BenchmarkTest");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option("c", "idlePulls", true, "Pulls suspended on the idle topic, Default: 1000");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option("s", "sendInterval", true, "Milliseconds between two messages, Default: 10");
+        opt.setRequired(false);
+        options.addOption(opt);
+        return options;
+    }
+}
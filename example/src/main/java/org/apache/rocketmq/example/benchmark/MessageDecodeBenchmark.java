@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.example.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+import org.apache.rocketmq.common.message.MessageClientIDSetter;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageView;
+import org.apache.rocketmq.common.message.MessageViewExt;
+import org.apache.rocketmq.srvutil.ServerUtil;
+
+/**
+ * Decode rate and allocation of the eager decoder against the message views on pulled buffers, for consumers reading
+ * the offsets only, the tags, or the whole message.
+ */
+public class MessageDecodeBenchmark {
+
+    private enum Access {
+        OFFSET, TAGS, BODY
+    }
+
+    private interface Decoder {
+        long decode(ByteBuffer byteBuffer, Access access);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = ServerUtil.buildCommandlineOptions(new Options());
+        CommandLine commandLine = ServerUtil.parseCmdLine("benchmarkMessageDecode", args, buildCommandlineOptions(options), new PosixParser());
+        if (null == commandLine) {
+            System.exit(-1);
+        }
+
+        final int messageSize = commandLine.hasOption('s') ? Integer.parseInt(commandLine.getOptionValue('s').trim()) : 1024;
+        final int batchSize = commandLine.hasOption('b') ? Integer.parseInt(commandLine.getOptionValue('b').trim()) : 32;
+        final int seconds = commandLine.hasOption('d') ? Integer.parseInt(commandLine.getOptionValue('d').trim()) : 5;
+
+        System.out.printf("messageSize: %d batchSize: %d duration: %ds%n", messageSize, batchSize, seconds);
+
+        final byte[] pulled = buildPulledBody(messageSize, batchSize);
+        Decoder eager = new Decoder() {
+            @Override
+            public long decode(ByteBuffer byteBuffer, Access access) {
+                return consume(MessageDecoder.decodes(byteBuffer), access);
+            }
+        };
+        Decoder lazy = new Decoder() {
+            @Override
+            public long decode(ByteBuffer byteBuffer, Access access) {
+                return consume(MessageViewExt.wrap(MessageView.decodes(byteBuffer)), access);
+            }
+        };
+
+        for (Access access : Access.values()) {
+            run("Eager", eager, pulled, batchSize, access, seconds);
+            run("View", lazy, pulled, batchSize, access, seconds);
+        }
+    }
+
+    private static void run(String name, Decoder decoder, byte[] pulled, int batchSize, Access access, int seconds) {
+        // Warm up
+        long deadline = System.nanoTime() + 1000000000L;
+        long blackhole = 0;
+        while (System.nanoTime() < deadline) {
+            blackhole += decoder.decode(ByteBuffer.wrap(pulled), access);
+        }
+
+        long allocatedBegin = allocatedBytes();
+        long pulls = 0;
+        long begin = System.nanoTime();
+        deadline = begin + seconds * 1000000000L;
+        while (System.nanoTime() < deadline) {
+            blackhole += decoder.decode(ByteBuffer.wrap(pulled), access);
+            pulls++;
+        }
+        double elapsedSeconds = (System.nanoTime() - begin) / 1e9;
+        long allocated = allocatedBytes() - allocatedBegin;
+
+        System.out.printf("%-5s Access: %-6s Msgs/s: %.0f Allocated B/msg: %s (%d)%n", name, access,
+            pulls * batchSize / elapsedSeconds, allocated < 0 ? "n/a" : String.valueOf(allocated / (pulls * batchSize)),
+            blackhole & 1);
+    }
+
+    private static long consume(List<MessageExt> msgs, Access access) {
+        long sum = 0;
+        for (MessageExt msg : msgs) {
+            switch (access) {
+                case OFFSET:
+                    sum += msg.getQueueOffset();
+                    break;
+                case TAGS:
+                    sum += msg.getTags().length();
+                    break;
+                default:
+                    sum += msg.getBody().length + msg.getMsgId().length();
+                    break;
+            }
+        }
+        return sum;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static byte[] buildPulledBody(int messageSize, int batchSize) throws Exception {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(batchSize * (messageSize + 512));
+        for (int i = 0; i < batchSize; i++) {
+            MessageExt msg = new MessageExt();
+            msg.setTopic("BenchmarkTest");
+            msg.setBody(new byte[messageSize]);
+            msg.setTags("TagA");
+            msg.setKeys("key-" + i);
+            msg.putUserProperty("region", "region-" + i % 8);
+            MessageClientIDSetter.setUniqID(msg);
+            msg.setBornHost(new InetSocketAddress("127.0.0.1", 50000));
+            msg.setStoreHost(new InetSocketAddress("127.0.0.1", 10911));
+            msg.setBornTimestamp(System.currentTimeMillis());
+            msg.setStoreTimestamp(System.currentTimeMillis());
+            msg.setQueueOffset(i);
+            msg.setCommitLogOffset(i * (messageSize + 256L));
+            byteBuffer.put(MessageDecoder.encode(msg, false));
+        }
+        byte[] pulled = new byte[byteBuffer.position()];
+        byteBuffer.flip();
+        byteBuffer.get(pulled);
+        return pulled;
+    }
+
+    public static Options buildCommandlineOptions(final Options options) {
+        Option opt = new Option("s", "messageSize", true, "Message Size, Default: 1024");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option("b", "batchSize", true, "Messages per pull, Default: 32");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option("d", "duration", true, "Seconds per case, Default: 5");
+        opt.setRequired(false);
+        options.addOption(opt);
+        return options;
+    }
+}
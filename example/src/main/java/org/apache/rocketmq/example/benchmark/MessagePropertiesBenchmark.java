@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.example.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageClientIDSetter;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessagePropertiesCodec;
+import org.apache.rocketmq.srvutil.ServerUtil;
+
+/**
+ * CPU time and allocation per message of the properties encoding on the send path: the producer building the request
+ * header, the broker writing the properties to the commit log, and decoding them back, with the string based codec
+ * against the reusable {@link MessagePropertiesCodec}.
+ */
+public class MessagePropertiesBenchmark {
+
+    private enum Stage {
+        PRODUCE, STORE, DECODE
+    }
+
+    private interface Codec {
+        long run(Stage stage, Map<String, String> properties, String propertiesString, ByteBuffer storeBuffer);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = ServerUtil.buildCommandlineOptions(new Options());
+        CommandLine commandLine = ServerUtil.parseCmdLine("benchmarkMessageProperties", args, buildCommandlineOptions(options), new PosixParser());
+        if (null == commandLine) {
+            System.exit(-1);
+        }
+
+        final int userProperties = commandLine.hasOption('p') ? Integer.parseInt(commandLine.getOptionValue('p').trim()) : 4;
+        final int seconds = commandLine.hasOption('d') ? Integer.parseInt(commandLine.getOptionValue('d').trim()) : 5;
+
+        System.out.printf("userProperties: %d duration: %ds%n", userProperties, seconds);
+
+        Message msg = new Message("BenchmarkTest", "TagA", "key-1", new byte[0]);
+        for (int i = 0; i < userProperties; i++) {
+            msg.putUserProperty("user-" + i, "value-" + i);
+        }
+        MessageClientIDSetter.setUniqID(msg);
+        MessageAccessor.putProperty(msg, MessageConst.PROPERTY_CLUSTER, "DefaultCluster");
+        final Map<String, String> properties = msg.getProperties();
+        final String propertiesString = MessageDecoder.messageProperties2String(properties);
+        final ByteBuffer storeBuffer = ByteBuffer.allocateDirect(Short.MAX_VALUE);
+        storeBuffer.put(propertiesString.getBytes(MessageDecoder.CHARSET_UTF8));
+
+        Codec string = new Codec() {
+            @Override
+            public long run(Stage stage, Map<String, String> properties, String propertiesString, ByteBuffer storeBuffer) {
+                switch (stage) {
+                    case PRODUCE:
+                        return legacyToString(properties).length();
+                    case STORE:
+                        byte[] data = propertiesString.getBytes(MessageDecoder.CHARSET_UTF8);
+                        storeBuffer.clear();
+                        storeBuffer.put(data);
+                        return data.length;
+                    default:
+                        byte[] bytes = new byte[storeBuffer.position()];
+                        ByteBuffer source = storeBuffer.duplicate();
+                        source.flip();
+                        source.get(bytes);
+                        return legacyToMap(new String(bytes, MessageDecoder.CHARSET_UTF8)).size();
+                }
+            }
+        };
+        final MessagePropertiesCodec propertiesCodec = new MessagePropertiesCodec();
+        Codec pooled = new Codec() {
+            @Override
+            public long run(Stage stage, Map<String, String> properties, String propertiesString, ByteBuffer storeBuffer) {
+                switch (stage) {
+                    case PRODUCE:
+                        return propertiesCodec.encodeToString(properties).length();
+                    case STORE:
+                        int length = propertiesCodec.encode(propertiesString);
+                        storeBuffer.clear();
+                        storeBuffer.put(propertiesCodec.bytes(), 0, length);
+                        return length;
+                    default:
+                        return propertiesCodec.decode(storeBuffer, 0, storeBuffer.position()).size();
+                }
+            }
+        };
+
+        for (Stage stage : Stage.values()) {
+            run("String", string, stage, properties, propertiesString, storeBuffer, seconds);
+            run("Codec", pooled, stage, properties, propertiesString, storeBuffer, seconds);
+        }
+    }
+
+    private static void run(String name, Codec codec, Stage stage, Map<String, String> properties,
+        String propertiesString, ByteBuffer storeBuffer, int seconds) {
+        // Warm up
+        long deadline = System.nanoTime() + 1000000000L;
+        long blackhole = 0;
+        while (System.nanoTime() < deadline) {
+            blackhole += codec.run(stage, properties, propertiesString, storeBuffer);
+        }
+
+        long allocatedBegin = allocatedBytes();
+        long cpuBegin = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+        long msgs = 0;
+        deadline = System.nanoTime() + seconds * 1000000000L;
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 1024; i++) {
+                blackhole += codec.run(stage, properties, propertiesString, storeBuffer);
+            }
+            msgs += 1024;
+        }
+        long cpu = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime() - cpuBegin;
+        long allocated = allocatedBytes() - allocatedBegin;
+
+        System.out.printf("%-6s Stage: %-7s CPU ns/msg: %.1f Allocated B/msg: %s (%d)%n", name, stage,
+            (double) cpu / msgs, allocated < 0 ? "n/a" : String.valueOf(allocated / msgs), blackhole & 1);
+    }
+
+    private static String legacyToString(Map<String, String> properties) {
+        StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<String, String> entry : properties.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+            sb.append(entry.getKey());
+            sb.append(MessageDecoder.NAME_VALUE_SEPARATOR);
+            sb.append(entry.getValue());
+            sb.append(MessageDecoder.PROPERTY_SEPARATOR);
+        }
+        if (sb.length() > 0) {
+            sb.deleteCharAt(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+
+    private static Map<String, String> legacyToMap(String properties) {
+        Map<String, String> map = new HashMap<String, String>();
+        int len = properties.length();
+        int index = 0;
+        while (index < len) {
+            int newIndex = properties.indexOf(MessageDecoder.PROPERTY_SEPARATOR, index);
+            if (newIndex < 0) {
+                newIndex = len;
+            }
+            int kvSepIndex = properties.indexOf(MessageDecoder.NAME_VALUE_SEPARATOR, index);
+            if (kvSepIndex > index && kvSepIndex < newIndex - 1) {
+                map.put(properties.substring(index, kvSepIndex), properties.substring(kvSepIndex + 1, newIndex));
+            }
+            index = newIndex + 1;
+        }
+        return map;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    public static Options buildCommandlineOptions(final Options options) {
+        Option opt = new Option("p", "userProperties", true, "User properties per message, Default: 4");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option("d", "duration", true, "Seconds per case, Default: 5");
+        opt.setRequired(false);
+        options.addOption(opt);
+        return options;
+    }
+}
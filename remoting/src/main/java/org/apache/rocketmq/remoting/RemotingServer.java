@@ -32,6 +32,8 @@ public interface RemotingServer extends RemotingService {
 
     void registerDefaultProcessor(final NettyRequestProcessor processor, final ExecutorService executor);
 
+    void registerRequestLimiter(final RequestLimiter requestLimiter);
+
     int localListenPort();
 
     Pair<NettyRequestProcessor, ExecutorService> getProcessorPair(final int requestCode);
@@ -0,0 +1,32 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.remoting;
+
+import io.netty.channel.Channel;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+
+public interface RequestLimiter {
+    /**
+     * Check a request on the I/O thread, before it is handed to the executor of its processor and before its custom
+     * header is decoded. When rpc hooks are registered, the request is checked in the executor right after them
+     * instead, so requests they reject consume no quota.
+     *
+     * @return null to accept the request, otherwise the response rejecting it
+     */
+    RemotingCommand limitRequest(final Channel channel, final RemotingCommand request);
+}
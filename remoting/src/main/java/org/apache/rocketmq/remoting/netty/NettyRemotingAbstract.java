@@ -42,6 +42,7 @@ import org.apache.rocketmq.logging.InternalLoggerFactory;
 import org.apache.rocketmq.remoting.ChannelEventListener;
 import org.apache.rocketmq.remoting.InvokeCallback;
 import org.apache.rocketmq.remoting.RPCHook;
+import org.apache.rocketmq.remoting.RequestLimiter;
 import org.apache.rocketmq.remoting.common.Pair;
 import org.apache.rocketmq.remoting.common.RemotingHelper;
 import org.apache.rocketmq.remoting.common.SemaphoreReleaseOnlyOnce;
@@ -102,6 +103,11 @@ public abstract class NettyRemotingAbstract {
      */
     protected List<RPCHook> rpcHooks = new ArrayList<RPCHook>();
 
+    /**
+     * Limiter checking the requests before they are queued to their executor.
+     */
+    protected volatile RequestLimiter requestLimiter;
+
 
     static {
         NettyLogger.initNettyLogger();
@@ -183,6 +189,11 @@ public abstract class NettyRemotingAbstract {
     }
 
 
+    private RemotingCommand limitRequest(final ChannelHandlerContext ctx, final RemotingCommand cmd) {
+        final RequestLimiter limiter = this.requestLimiter;
+        return limiter != null ? limiter.limitRequest(ctx.channel(), cmd) : null;
+    }
+
     /**
      * Process incoming request command issued by remote peer.
      *
@@ -221,7 +232,11 @@ public abstract class NettyRemotingAbstract {
                                 }
                             }
                         };
-                        if (pair.getObject1() instanceof AsyncNettyRequestProcessor) {
+                        // With rpc hooks, such as acl, only the requests they let through are limited
+                        final RemotingCommand limited = rpcHooks.size() > 0 ? limitRequest(ctx, cmd) : null;
+                        if (limited != null) {
+                            callback.callback(limited);
+                        } else if (pair.getObject1() instanceof AsyncNettyRequestProcessor) {
                             AsyncNettyRequestProcessor processor = (AsyncNettyRequestProcessor)pair.getObject1();
                             processor.asyncProcessRequest(ctx, cmd, callback);
                         } else {
@@ -251,6 +266,17 @@ public abstract class NettyRemotingAbstract {
                 return;
             }
 
+            if (rpcHooks.isEmpty()) {
+                final RemotingCommand response = limitRequest(ctx, cmd);
+                if (response != null) {
+                    if (!cmd.isOnewayRPC()) {
+                        response.setOpaque(opaque);
+                        ctx.writeAndFlush(response);
+                    }
+                    return;
+                }
+            }
+
             try {
                 final RequestTask requestTask = new RequestTask(run, ctx.channel(), cmd);
                 pair.getObject2().submit(requestTask);
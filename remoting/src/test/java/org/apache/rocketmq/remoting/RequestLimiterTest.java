@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.remoting;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.rocketmq.remoting.netty.AsyncNettyRequestProcessor;
+import org.apache.rocketmq.remoting.netty.NettyRemotingServer;
+import org.apache.rocketmq.remoting.netty.NettyServerConfig;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RequestLimiterTest {
+    private static final int LIMITED_CODE = 212;
+    private static final String ADDR = "localhost:8899";
+
+    private RemotingServer remotingServer;
+    private RemotingClient remotingClient;
+    private final AtomicInteger limited = new AtomicInteger();
+
+    @Before
+    public void setup() {
+        NettyServerConfig config = new NettyServerConfig();
+        config.setListenPort(8899);
+        remotingServer = new NettyRemotingServer(config);
+        remotingServer.registerProcessor(0, new AsyncNettyRequestProcessor() {
+            @Override
+            public RemotingCommand processRequest(ChannelHandlerContext ctx, RemotingCommand request) {
+                return RemotingCommand.createResponseCommand(0, null);
+            }
+
+            @Override
+            public boolean rejectRequest() {
+                return false;
+            }
+        }, Executors.newCachedThreadPool());
+        remotingServer.registerRequestLimiter(new RequestLimiter() {
+            @Override
+            public RemotingCommand limitRequest(Channel channel, RemotingCommand request) {
+                limited.incrementAndGet();
+                return "limited".equals(request.getRemark()) ? RemotingCommand.createResponseCommand(LIMITED_CODE, null) : null;
+            }
+        });
+        remotingServer.start();
+        remotingClient = RemotingServerTest.createRemotingClient();
+    }
+
+    @After
+    public void destroy() {
+        remotingClient.shutdown();
+        remotingServer.shutdown();
+    }
+
+    @Test
+    public void testLimitRequest() throws Exception {
+        assertThat(remotingClient.invokeSync(ADDR, createRequest("limited"), 3000).getCode()).isEqualTo(LIMITED_CODE);
+        assertThat(remotingClient.invokeSync(ADDR, createRequest("passed"), 3000).getCode()).isEqualTo(0);
+        assertThat(limited.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testLimitAfterRpcHook() throws Exception {
+        remotingServer.registerRPCHook(new RPCHook() {
+            @Override
+            public void doBeforeRequest(String remoteAddr, RemotingCommand request) {
+                if ("denied".equals(request.getRemark())) {
+                    throw new IllegalStateException("denied");
+                }
+            }
+
+            @Override
+            public void doAfterResponse(String remoteAddr, RemotingCommand request, RemotingCommand response) {
+            }
+        });
+
+        assertThat(remotingClient.invokeSync(ADDR, createRequest("denied"), 3000).getCode()).isNotEqualTo(LIMITED_CODE);
+        assertThat(limited.get()).isEqualTo(0);
+        assertThat(remotingClient.invokeSync(ADDR, createRequest("limited"), 3000).getCode()).isEqualTo(LIMITED_CODE);
+        assertThat(limited.get()).isEqualTo(1);
+    }
+
+    private static RemotingCommand createRequest(String remark) {
+        RemotingCommand request = RemotingCommand.createRequestCommand(0, null);
+        request.setRemark(remark);
+        return request;
+    }
+}
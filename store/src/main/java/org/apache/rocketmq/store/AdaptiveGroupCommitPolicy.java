@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+/**
+ * Decide how long the group commit thread lingers for more requests before it flushes the batch at hand.
+ * <p>
+ * The p99 of the fsync time is estimated like a TCP retransmission timeout, mean plus four times the mean deviation,
+ * both smoothed over the recent batches, and the arrival rate of the flush requests is smoothed the same way. The
+ * thread lingers only when the latency target leaves room after the estimated fsync time and at least one more
+ * request is expected to arrive meanwhile, so a lone request is never delayed and a burst shares one fsync.
+ * <p>
+ * The arrival rate says nothing about producers which are all blocked in the batch at hand, so the requests which
+ * actually joined during the recent lingers are smoothed too. Lingering stops when they are fewer than one, and is
+ * probed again every {@link #PROBE_INTERVAL} batches in case the load changes.
+ * <p>
+ * Only accessed by the group commit thread, the volatile fields are for the statistics readers.
+ */
+public class AdaptiveGroupCommitPolicy {
+    // Weight of the latest sample, 1/8 as the smoothed round trip time of TCP
+    private static final double ALPHA = 0.125;
+    // Weight of the latest deviation, 1/4 as the round trip time variation of TCP
+    private static final double BETA = 0.25;
+    private static final int PROBE_INTERVAL = 128;
+
+    private final long latencyTargetNanos;
+    private final long maxLingerNanos;
+    private volatile double fsyncMeanNanos = 0;
+    private volatile double fsyncDeviationNanos = 0;
+    private volatile double arrivalsPerNano = 0;
+    private volatile double joinedPerLinger = 1;
+    private long lastBatchTimeNanos = -1;
+    private int batchesSinceProbe = 0;
+
+    public AdaptiveGroupCommitPolicy(final long latencyTargetNanos, final long maxLingerNanos) {
+        this.latencyTargetNanos = latencyTargetNanos;
+        this.maxLingerNanos = maxLingerNanos;
+    }
+
+    /**
+     * Decide the linger of the next batch, called once per batch.
+     *
+     * @return nanoseconds to wait for more requests, 0 to flush at once
+     */
+    public long nextLingerNanos() {
+        long linger = this.lingerNanos();
+        if (linger > 0 && this.joinedPerLinger < 1) {
+            if (++this.batchesSinceProbe < PROBE_INTERVAL) {
+                return 0;
+            }
+            this.batchesSinceProbe = 0;
+        }
+        return linger;
+    }
+
+    /**
+     * Record how many requests joined the batch while lingering.
+     */
+    public void onLingerEnd(final int joined) {
+        this.joinedPerLinger += ALPHA * (joined - this.joinedPerLinger);
+    }
+
+    /**
+     * @return the linger allowed by the latency target and the arrival rate
+     */
+    public long lingerNanos() {
+        long budget = this.latencyTargetNanos - this.getFsyncP99Nanos();
+        long linger = Math.min(budget, this.maxLingerNanos);
+        if (linger <= 0) {
+            return 0;
+        }
+
+        // Not worth waiting if nobody else is expected to join the batch
+        if (this.arrivalsPerNano * linger < 1) {
+            return 0;
+        }
+        return linger;
+    }
+
+    /**
+     * Record a flushed batch.
+     *
+     * @param batchSize requests in the batch
+     * @param fsyncNanos time spent in flushing the batch
+     * @param nowNanos {@link System#nanoTime()} after the flush
+     */
+    public void onBatchFlushed(final int batchSize, final long fsyncNanos, final long nowNanos) {
+        if (this.fsyncMeanNanos == 0) {
+            this.fsyncMeanNanos = fsyncNanos;
+            this.fsyncDeviationNanos = fsyncNanos / 2.0;
+        } else {
+            this.fsyncDeviationNanos += BETA * (Math.abs(fsyncNanos - this.fsyncMeanNanos) - this.fsyncDeviationNanos);
+            this.fsyncMeanNanos += ALPHA * (fsyncNanos - this.fsyncMeanNanos);
+        }
+
+        if (this.lastBatchTimeNanos > 0 && nowNanos > this.lastBatchTimeNanos) {
+            double rate = (double) batchSize / (nowNanos - this.lastBatchTimeNanos);
+            this.arrivalsPerNano += ALPHA * (rate - this.arrivalsPerNano);
+        }
+        this.lastBatchTimeNanos = nowNanos;
+    }
+
+    public double getJoinedPerLinger() {
+        return joinedPerLinger;
+    }
+
+    public long getFsyncP99Nanos() {
+        return (long) (this.fsyncMeanNanos + 4 * this.fsyncDeviationNanos);
+    }
+
+    public long getFsyncMeanNanos() {
+        return (long) this.fsyncMeanNanos;
+    }
+
+    /**
+     * @return smoothed flush requests per second
+     */
+    public long getArrivalRate() {
+        return (long) (this.arrivalsPerNano * 1000 * 1000 * 1000);
+    }
+}
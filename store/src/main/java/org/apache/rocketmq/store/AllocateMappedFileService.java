@@ -18,24 +18,42 @@ package org.apache.rocketmq.store;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.ServiceLoader;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.ThreadFactoryImpl;
 import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.logging.InternalLogger;
 import org.apache.rocketmq.logging.InternalLoggerFactory;
 import org.apache.rocketmq.store.config.BrokerRole;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
 
 /**
  * Create MappedFile in advance
+ * <p>
+ * {@link MessageStoreConfig#getMappedFileAllocateAheadNum()} files following the requested one are created ahead,
+ * and warmed on {@link MessageStoreConfig#getMappedFileWarmThreadNum()} threads, so creating the next file never
+ * waits for the warming of the ones after it. The expired CommitLog files are moved to a directory beside the
+ * CommitLog if {@link MessageStoreConfig#isMappedFileRecycleEnable()}, and renamed to the new files instead of
+ * creating them, so their disk blocks are allocated already.
  */
 public class AllocateMappedFileService extends ServiceThread {
     private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+    public static final String RECYCLE_DIR_SUFFIX = "-recycle";
     private static int waitTimeOut = 1000 * 5;
     private ConcurrentMap<String, AllocateRequest> requestTable =
         new ConcurrentHashMap<String, AllocateRequest>();
@@ -43,13 +61,34 @@ public class AllocateMappedFileService extends ServiceThread {
         new PriorityBlockingQueue<AllocateRequest>();
     private volatile boolean hasException = false;
     private DefaultMessageStore messageStore;
+    private final ExecutorService warmExecutor;
+    private final ConcurrentLinkedQueue<File> recycledFiles = new ConcurrentLinkedQueue<File>();
+
+    private final AtomicLong createTimes = new AtomicLong(0);
+    private final AtomicLong reuseTimes = new AtomicLong(0);
+    private final AtomicLong warmTimes = new AtomicLong(0);
+    private final AtomicLong warmTotalTime = new AtomicLong(0);
 
     public AllocateMappedFileService(DefaultMessageStore messageStore) {
         this.messageStore = messageStore;
+        MessageStoreConfig config = messageStore.getMessageStoreConfig();
+        if (config.isWarmMapedFileEnable() && config.getMappedFileWarmThreadNum() > 0) {
+            this.warmExecutor = Executors.newFixedThreadPool(config.getMappedFileWarmThreadNum(),
+                new ThreadFactoryImpl("MappedFileWarmThread_"));
+        } else {
+            this.warmExecutor = null;
+        }
     }
 
     public MappedFile putRequestAndReturnMappedFile(String nextFilePath, String nextNextFilePath, int fileSize) {
-        int canSubmitRequests = 2;
+        return this.putRequestAndReturnMappedFile(nextFilePath, Collections.singletonList(nextNextFilePath), fileSize);
+    }
+
+    /**
+     * @param aheadFilePaths the files following the next one, created in advance without waiting for them
+     */
+    public MappedFile putRequestAndReturnMappedFile(String nextFilePath, List<String> aheadFilePaths, int fileSize) {
+        int canSubmitRequests = 1 + aheadFilePaths.size();
         if (this.messageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
             if (this.messageStore.getMessageStoreConfig().isFastFailIfNoBufferInStorePool()
                 && BrokerRole.SLAVE != this.messageStore.getMessageStoreConfig().getBrokerRole()) { //if broker is slave, don't fast fail even no buffer in pool
@@ -74,18 +113,21 @@ public class AllocateMappedFileService extends ServiceThread {
             canSubmitRequests--;
         }
 
-        AllocateRequest nextNextReq = new AllocateRequest(nextNextFilePath, fileSize);
-        boolean nextNextPutOK = this.requestTable.putIfAbsent(nextNextFilePath, nextNextReq) == null;
-        if (nextNextPutOK) {
-            if (canSubmitRequests <= 0) {
-                log.warn("[NOTIFYME]TransientStorePool is not enough, so skip preallocate mapped file, " +
-                    "RequestQueueSize : {}, StorePoolSize: {}", this.requestQueue.size(), this.messageStore.getTransientStorePool().availableBufferNums());
-                this.requestTable.remove(nextNextFilePath);
-            } else {
-                boolean offerOK = this.requestQueue.offer(nextNextReq);
+        for (String aheadFilePath : aheadFilePaths) {
+            AllocateRequest aheadReq = new AllocateRequest(aheadFilePath, fileSize);
+            boolean aheadPutOK = this.requestTable.putIfAbsent(aheadFilePath, aheadReq) == null;
+            if (aheadPutOK) {
+                if (canSubmitRequests <= 0) {
+                    log.warn("[NOTIFYME]TransientStorePool is not enough, so skip preallocate mapped file, " +
+                        "RequestQueueSize : {}, StorePoolSize: {}", this.requestQueue.size(), this.messageStore.getTransientStorePool().availableBufferNums());
+                    this.requestTable.remove(aheadFilePath);
+                    break;
+                }
+                boolean offerOK = this.requestQueue.offer(aheadReq);
                 if (!offerOK) {
                     log.warn("never expected here, add a request to preallocate queue failed");
                 }
+                canSubmitRequests--;
             }
         }
 
@@ -120,11 +162,42 @@ public class AllocateMappedFileService extends ServiceThread {
         return AllocateMappedFileService.class.getSimpleName();
     }
 
+    public MessageStoreConfig getMessageStoreConfig() {
+        return this.messageStore.getMessageStoreConfig();
+    }
+
+    public int getAllocateAheadNum() {
+        return Math.max(1, this.messageStore.getMessageStoreConfig().getMappedFileAllocateAheadNum());
+    }
+
+    @Override
+    public void start() {
+        if (this.messageStore.getMessageStoreConfig().isMappedFileRecycleEnable()) {
+            this.loadRecycledFiles();
+        }
+        super.start();
+    }
+
     @Override
     public void shutdown() {
         super.shutdown(true);
+        if (this.warmExecutor != null) {
+            this.warmExecutor.shutdownNow();
+            try {
+                // The files can't be unmapped while being warmed
+                this.warmExecutor.awaitTermination(waitTimeOut, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                log.warn("wait for the warm threads interrupted", e);
+            }
+        }
         for (AllocateRequest req : this.requestTable.values()) {
             if (req.mappedFile != null) {
+                // A warm task not started never starts now, a started one must be done before the file is unmapped
+                if (!req.startWarm() && req.getCountDownLatch().getCount() > 0) {
+                    log.warn("skip deleting pre allocated maped file {}, it is still being warmed",
+                        req.mappedFile.getFileName());
+                    continue;
+                }
                 log.info("delete pre allocated maped file, {}", req.mappedFile.getFileName());
                 req.mappedFile.destroy(1000);
             }
@@ -163,6 +236,7 @@ public class AllocateMappedFileService extends ServiceThread {
             if (req.getMappedFile() == null) {
                 long beginTime = System.currentTimeMillis();
 
+                boolean reused = this.reuseRecycledFile(req.getFilePath(), req.getFileSize());
                 MappedFile mappedFile;
                 if (messageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
                     try {
@@ -175,6 +249,11 @@ public class AllocateMappedFileService extends ServiceThread {
                 } else {
                     mappedFile = new MappedFile(req.getFilePath(), req.getFileSize());
                 }
+                if (reused) {
+                    // Looks never written until the first message is appended, the rest is overwritten or ignored
+                    mappedFile.getMappedByteBuffer().putLong(0, 0);
+                }
+                this.createTimes.incrementAndGet();
 
                 long elapsedTime = UtilAll.computeElapsedTimeMilliseconds(beginTime);
                 if (elapsedTime > 10) {
@@ -183,17 +262,26 @@ public class AllocateMappedFileService extends ServiceThread {
                         + " " + req.getFilePath() + " " + req.getFileSize());
                 }
 
+                req.setMappedFile(mappedFile);
+                this.hasException = false;
+
                 // pre write mappedFile
                 if (mappedFile.getFileSize() >= this.messageStore.getMessageStoreConfig()
                     .getMappedFileSizeCommitLog()
                     &&
                     this.messageStore.getMessageStoreConfig().isWarmMapedFileEnable()) {
-                    mappedFile.warmMappedFile(this.messageStore.getMessageStoreConfig().getFlushDiskType(),
-                        this.messageStore.getMessageStoreConfig().getFlushLeastPagesWhenWarmMapedFile());
+                    if (this.warmExecutor != null) {
+                        final AllocateRequest warmReq = req;
+                        this.warmExecutor.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                warmMappedFile(warmReq);
+                            }
+                        });
+                        return true;
+                    }
+                    this.warmMappedFile(req);
                 }
-
-                req.setMappedFile(mappedFile);
-                this.hasException = false;
                 isSuccess = true;
             }
         } catch (InterruptedException e) {
@@ -217,12 +305,110 @@ public class AllocateMappedFileService extends ServiceThread {
         return true;
     }
 
+    private void warmMappedFile(final AllocateRequest req) {
+        long beginTime = System.currentTimeMillis();
+        try {
+            if (!req.startWarm()) {
+                log.info("skip warming mapped file {}, the service is shut down", req.getFilePath());
+                return;
+            }
+            req.getMappedFile().warmMappedFile(this.messageStore.getMessageStoreConfig().getFlushDiskType(),
+                this.messageStore.getMessageStoreConfig().getFlushLeastPagesWhenWarmMapedFile());
+            this.warmTimes.incrementAndGet();
+            this.warmTotalTime.addAndGet(UtilAll.computeElapsedTimeMilliseconds(beginTime));
+        } catch (Throwable e) {
+            log.warn("warm mapped file " + req.getFilePath() + " failed, use it as it is", e);
+        } finally {
+            req.getCountDownLatch().countDown();
+        }
+    }
+
+    /**
+     * Keep an expired file to be renamed to a new one, unless there are enough kept already.
+     *
+     * @return false if the file is not kept and should be deleted
+     */
+    public boolean recycle(final File file, final int fileSize) {
+        if (!this.messageStore.getMessageStoreConfig().isMappedFileRecycleEnable() || file.length() != fileSize
+            || this.recycledFiles.size() >= this.messageStore.getMessageStoreConfig().getMappedFileRecycleMaxNum()) {
+            return false;
+        }
+        File recycleDir = new File(file.getParent() + RECYCLE_DIR_SUFFIX);
+        File recycledFile = new File(recycleDir, file.getName());
+        if (!recycleDir.exists() && !recycleDir.mkdirs() || !file.renameTo(recycledFile)) {
+            log.warn("recycle mapped file {} failed", file);
+            return false;
+        }
+        this.recycledFiles.offer(recycledFile);
+        log.info("recycle mapped file {}", file);
+        return true;
+    }
+
+    /**
+     * Rename a recycled file of the same directory and size to the new file.
+     */
+    private boolean reuseRecycledFile(final String filePath, final int fileSize) {
+        File file = new File(filePath);
+        String recycleDir = file.getParent() + RECYCLE_DIR_SUFFIX;
+        for (Iterator<File> it = this.recycledFiles.iterator(); it.hasNext(); ) {
+            File recycledFile = it.next();
+            if (!recycledFile.getParent().equals(recycleDir) || recycledFile.length() != fileSize) {
+                continue;
+            }
+            it.remove();
+            if (!file.exists() && recycledFile.renameTo(file)) {
+                this.reuseTimes.incrementAndGet();
+                log.info("reuse recycled mapped file {} as {}", recycledFile, filePath);
+                return true;
+            }
+            UtilAll.deleteFile(recycledFile);
+            return false;
+        }
+        return false;
+    }
+
+    private void loadRecycledFiles() {
+        int fileSize = this.messageStore.getMessageStoreConfig().getMappedFileSizeCommitLog();
+        for (String path : this.messageStore.getMessageStoreConfig().getStorePathCommitLog().trim()
+            .split(MessageStoreConfig.MULTI_PATH_SPLITTER)) {
+            File[] files = new File(path + RECYCLE_DIR_SUFFIX).listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.isFile() && file.length() == fileSize) {
+                    this.recycledFiles.offer(file);
+                } else {
+                    UtilAll.deleteFile(file);
+                }
+            }
+        }
+        log.info("load {} recycled mapped files", this.recycledFiles.size());
+    }
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        long warmTimes = this.warmTimes.get();
+        stats.put("mappedFileAllocateTimes", String.format("%d,%d,%d", this.createTimes.get(), this.reuseTimes.get(),
+            this.recycledFiles.size()));
+        stats.put("mappedFileWarmTimes", String.format("%d,%d", warmTimes,
+            warmTimes > 0 ? this.warmTotalTime.get() / warmTimes : 0));
+    }
+
+    public long getReuseTimes() {
+        return reuseTimes.get();
+    }
+
+    public int getRecycledFileNums() {
+        return recycledFiles.size();
+    }
+
     static class AllocateRequest implements Comparable<AllocateRequest> {
         // Full file path
         private String filePath;
         private int fileSize;
         private CountDownLatch countDownLatch = new CountDownLatch(1);
         private volatile MappedFile mappedFile = null;
+        private final AtomicBoolean warmStarted = new AtomicBoolean(false);
 
         public AllocateRequest(String filePath, int fileSize) {
             this.filePath = filePath;
@@ -261,6 +447,15 @@ public class AllocateMappedFileService extends ServiceThread {
             this.mappedFile = mappedFile;
         }
 
+        /**
+         * Only one of the warm task and the shutdown can start on the file.
+         *
+         * @return false if the warm task or the shutdown has started already
+         */
+        public boolean startWarm() {
+            return this.warmStarted.compareAndSet(false, true);
+        }
+
         public int compareTo(AllocateRequest other) {
             if (this.fileSize < other.fileSize)
                 return 1;
@@ -0,0 +1,537 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.sysflag.MessageSysFlag;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.config.BrokerRole;
+
+/**
+ * Consume queue keeping one entry per message batch, of COMMIT LOG OFFSET + SIZE + TAGS CODE + BASE QUEUE OFFSET +
+ * MESSAGE NUM, the messages of a batch being contiguous in the CommitLog.
+ * <p>
+ * All the messages of a batch but the last one are flagged with {@link MessageSysFlag#BATCH_CONTINUED_FLAG}, the
+ * entry is written when the last one is dispatched. Queue offsets are still one per message, the entry of an offset
+ * is found by a binary search on the base offsets.
+ */
+public class BatchConsumeQueue extends ConsumeQueue {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    public static final int CQ_STORE_UNIT_SIZE = 8 + 4 + 8 + 8 + 4;
+    // Tags code of a batch whose messages have different tags, left to the consumer to filter
+    public static final long MIXED_TAGS_CODE = Long.MIN_VALUE;
+
+    private volatile long minOffsetInQueue = 0;
+    private volatile long maxOffsetInQueue = 0;
+
+    // The batch being dispatched, only accessed by the dispatching thread
+    private long pendingPhyOffset;
+    private int pendingSize;
+    private long pendingTagsCode;
+    private long pendingBaseOffset;
+    private int pendingNum = 0;
+    private long pendingStoreTimestamp;
+
+    public BatchConsumeQueue(
+        final String topic,
+        final int queueId,
+        final String storePath,
+        final int mappedFileSize,
+        final DefaultMessageStore defaultMessageStore) {
+        super(topic, queueId, storePath, mappedFileSize, CQ_STORE_UNIT_SIZE, defaultMessageStore);
+    }
+
+    @Override
+    public boolean load() {
+        boolean result = this.mappedFileQueue.load();
+        log.info("load batch consume queue " + this.topic + "-" + this.queueId + " " + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+    @Override
+    public void recover() {
+        final List<MappedFile> mappedFiles = this.mappedFileQueue.getMappedFiles();
+        if (!mappedFiles.isEmpty()) {
+            int index = mappedFiles.size() - 3;
+            if (index < 0) {
+                index = 0;
+            }
+
+            MappedFile mappedFile = mappedFiles.get(index);
+            ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+            long processOffset = mappedFile.getFileFromOffset();
+            long mappedFileOffset = 0;
+            while (true) {
+                for (int i = 0; i < this.mappedFileSize; i += CQ_STORE_UNIT_SIZE) {
+                    Entry entry = readEntry(byteBuffer);
+                    if (entry.isValid()) {
+                        mappedFileOffset = i + CQ_STORE_UNIT_SIZE;
+                    } else {
+                        break;
+                    }
+                }
+
+                if (mappedFileOffset == this.mappedFileSize) {
+                    index++;
+                    if (index >= mappedFiles.size()) {
+                        break;
+                    }
+                    mappedFile = mappedFiles.get(index);
+                    byteBuffer = mappedFile.sliceByteBuffer();
+                    processOffset = mappedFile.getFileFromOffset();
+                    mappedFileOffset = 0;
+                } else {
+                    break;
+                }
+            }
+
+            processOffset += mappedFileOffset;
+            log.info("recover batch consume queue {}-{} over, offset {}", this.topic, this.queueId, processOffset);
+            this.mappedFileQueue.setFlushedWhere(processOffset);
+            this.mappedFileQueue.setCommittedWhere(processOffset);
+            this.mappedFileQueue.truncateDirtyFiles(processOffset);
+        }
+
+        this.refreshMaxOffset();
+        this.refreshMinOffset();
+    }
+
+    @Override
+    public void truncateDirtyLogicFiles(long phyOffset) {
+        this.pendingNum = 0;
+        while (true) {
+            MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
+            if (null == mappedFile) {
+                break;
+            }
+
+            ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+            int pos = 0;
+            for (; pos < this.mappedFileSize; pos += CQ_STORE_UNIT_SIZE) {
+                Entry entry = readEntry(byteBuffer);
+                // A batch partly truncated is dropped as a whole
+                if (!entry.isValid() || entry.getPhyOffset() + entry.getSize() > phyOffset) {
+                    break;
+                }
+            }
+
+            if (0 == pos) {
+                this.mappedFileQueue.deleteLastMappedFile();
+                continue;
+            }
+            mappedFile.setWrotePosition(pos);
+            mappedFile.setCommittedPosition(pos);
+            mappedFile.setFlushedPosition(pos);
+            break;
+        }
+
+        this.refreshMaxOffset();
+        this.refreshMinOffset();
+    }
+
+    @Override
+    public long getLastOffset() {
+        Entry entry = this.getEntry(this.getMaxIndex() - 1);
+        return entry != null ? entry.getPhyOffset() + entry.getSize() : -1;
+    }
+
+    @Override
+    public int deleteExpiredFile(long offset) {
+        int cnt = this.mappedFileQueue.deleteExpiredFileByOffset(offset, CQ_STORE_UNIT_SIZE);
+        this.correctMinOffset(offset);
+        return cnt;
+    }
+
+    @Override
+    public void correctMinOffset(long phyMinOffset) {
+        MappedFile mappedFile = this.mappedFileQueue.getFirstMappedFile();
+        if (mappedFile != null) {
+            SelectMappedBufferResult result = mappedFile.selectMappedBuffer(0);
+            if (result != null) {
+                try {
+                    for (int i = 0; i < result.getSize(); i += CQ_STORE_UNIT_SIZE) {
+                        Entry entry = readEntry(result.getByteBuffer());
+                        // A batch doesn't span CommitLog files
+                        if (entry.getPhyOffset() >= phyMinOffset) {
+                            this.minLogicOffset = mappedFile.getFileFromOffset() + i;
+                            break;
+                        }
+                    }
+                } finally {
+                    result.release();
+                }
+            }
+        }
+        this.refreshMinOffset();
+        log.info("Compute batch consume queue min offset: {}, topic: {}, queueId: {}", this.minOffsetInQueue, this.topic, this.queueId);
+    }
+
+    @Override
+    public long getMinOffsetInQueue() {
+        return this.minOffsetInQueue;
+    }
+
+    @Override
+    public long getMaxOffsetInQueue() {
+        return this.maxOffsetInQueue;
+    }
+
+    @Override
+    public void putMessagePositionInfoWrapper(DispatchRequest request) {
+        if (request.getCommitLogOffset() + request.getMsgSize() <= this.maxPhysicOffset) {
+            log.warn("Maybe try to build batch consume queue repeatedly maxPhysicOffset={} phyOffset={}",
+                this.maxPhysicOffset, request.getCommitLogOffset());
+            return;
+        }
+
+        if (this.pendingNum > 0 && (request.getCommitLogOffset() != this.pendingPhyOffset + this.pendingSize
+            || request.getConsumeQueueOffset() != this.pendingBaseOffset + this.pendingNum)) {
+            // The rest of the batch is lost, its messages never get queue offsets the producer is told of
+            log.warn("Drop the incomplete batch of {}-{}, base offset {}, {} messages", this.topic, this.queueId,
+                this.pendingBaseOffset, this.pendingNum);
+            this.pendingNum = 0;
+        }
+
+        if (0 == this.pendingNum) {
+            this.pendingPhyOffset = request.getCommitLogOffset();
+            this.pendingSize = request.getMsgSize();
+            this.pendingTagsCode = request.getTagsCode();
+            this.pendingBaseOffset = request.getConsumeQueueOffset();
+        } else {
+            this.pendingSize += request.getMsgSize();
+            if (this.pendingTagsCode != request.getTagsCode()) {
+                this.pendingTagsCode = MIXED_TAGS_CODE;
+            }
+        }
+        this.pendingNum++;
+        this.pendingStoreTimestamp = request.getStoreTimestamp();
+
+        if ((request.getSysFlag() & MessageSysFlag.BATCH_CONTINUED_FLAG) != 0) {
+            return;
+        }
+
+        final int maxRetries = 30;
+        boolean canWrite = this.defaultMessageStore.getRunningFlags().isCQWriteable();
+        for (int i = 0; i < maxRetries && canWrite; i++) {
+            if (this.putBatchPositionInfo()) {
+                this.pendingNum = 0;
+                if (this.defaultMessageStore.getMessageStoreConfig().getBrokerRole() == BrokerRole.SLAVE ||
+                    this.defaultMessageStore.getMessageStoreConfig().isEnableDLegerCommitLog()) {
+                    this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(this.pendingStoreTimestamp);
+                }
+                if (!this.defaultMessageStore.getMessageStoreConfig().isEnableParallelDispatch()) {
+                    this.defaultMessageStore.getStoreCheckpoint().setLogicsMsgTimestamp(this.pendingStoreTimestamp);
+                }
+                return;
+            }
+
+            log.warn("[BUG]put commit log position info to " + this.topic + ":" + this.queueId + " " + this.pendingPhyOffset
+                + " failed, retry " + i + " times");
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                log.warn("", e);
+            }
+        }
+
+        log.error("[BUG]batch consume queue can not write, {} {}", this.topic, this.queueId);
+        this.pendingNum = 0;
+        this.defaultMessageStore.getRunningFlags().makeLogicsQueueError();
+    }
+
+    private boolean putBatchPositionInfo() {
+        this.byteBufferIndex.clear();
+        this.byteBufferIndex.putLong(this.pendingPhyOffset);
+        this.byteBufferIndex.putInt(this.pendingSize);
+        this.byteBufferIndex.putLong(this.pendingTagsCode);
+        this.byteBufferIndex.putLong(this.pendingBaseOffset);
+        this.byteBufferIndex.putInt(this.pendingNum);
+
+        MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+        if (null == mappedFile) {
+            return false;
+        }
+        boolean empty = this.getMaxIndex() <= this.getMinIndex();
+        if (!mappedFile.appendMessage(this.byteBufferIndex.array())) {
+            return false;
+        }
+
+        this.maxPhysicOffset = this.pendingPhyOffset + this.pendingSize;
+        this.maxOffsetInQueue = this.pendingBaseOffset + this.pendingNum;
+        if (empty) {
+            this.minOffsetInQueue = this.pendingBaseOffset;
+        }
+        return true;
+    }
+
+    /**
+     * A unit of {@link ConsumeQueue#CQ_STORE_UNIT_SIZE} of the message at the queue offset, for the callers reading
+     * a message at a time.
+     */
+    @Override
+    public SelectMappedBufferResult getIndexBuffer(final long startIndex) {
+        Entry entry = this.getEntry(this.findEntryIndex(startIndex));
+        if (null == entry || startIndex >= entry.getBaseOffset() + entry.getMsgNum()) {
+            return null;
+        }
+        SelectMappedBufferResult batchResult = this.defaultMessageStore.getCommitLog().getMessage(entry.getPhyOffset(), entry.getSize());
+        if (null == batchResult) {
+            return null;
+        }
+        try {
+            int position = messagePosition(batchResult.getByteBuffer(), (int) (startIndex - entry.getBaseOffset()));
+            if (position < 0 || position + 4 > entry.getSize()) {
+                return null;
+            }
+            ByteBuffer unit = ByteBuffer.allocate(ConsumeQueue.CQ_STORE_UNIT_SIZE);
+            unit.putLong(entry.getPhyOffset() + position);
+            unit.putInt(batchResult.getByteBuffer().getInt(position));
+            unit.putLong(entry.getTagsCode());
+            unit.flip();
+            return new SelectMappedBufferResult(startIndex * ConsumeQueue.CQ_STORE_UNIT_SIZE, unit, unit.limit(), null);
+        } finally {
+            batchResult.release();
+        }
+    }
+
+    /**
+     * @return position of the message after skipping some in the buffer of a batch, -1 if it's out of the buffer
+     */
+    public static int messagePosition(final ByteBuffer batchBuffer, final int skipNum) {
+        int position = 0;
+        for (int i = 0; i < skipNum; i++) {
+            if (position + 4 > batchBuffer.limit()) {
+                return -1;
+            }
+            int msgSize = batchBuffer.getInt(position);
+            if (msgSize <= 0) {
+                return -1;
+            }
+            position += msgSize;
+        }
+        return position <= batchBuffer.limit() ? position : -1;
+    }
+
+    @Override
+    public long getOffsetInQueueByTime(final long timestamp) {
+        long low = this.getMinIndex();
+        long high = this.getMaxIndex() - 1;
+        long targetIndex = -1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            Entry entry = this.getEntry(mid);
+            if (null == entry) {
+                return 0;
+            }
+            long storeTime = this.defaultMessageStore.getCommitLog().pickupStoreTimestamp(entry.getPhyOffset(), entry.getSize());
+            if (storeTime < 0) {
+                low = mid + 1;
+            } else if (storeTime >= timestamp) {
+                targetIndex = mid;
+                high = mid - 1;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        if (targetIndex < 0) {
+            return this.maxOffsetInQueue;
+        }
+        Entry entry = this.getEntry(targetIndex);
+        return entry != null ? entry.getBaseOffset() : 0;
+    }
+
+    @Override
+    public long getOffsetInQueueByPhyOffset(final long phyOffset) {
+        long low = this.getMinIndex();
+        long high = this.getMaxIndex() - 1;
+        Entry last = this.getEntry(high);
+        if (null == last || last.getPhyOffset() + last.getSize() <= phyOffset) {
+            return this.maxOffsetInQueue;
+        }
+        long result = this.minOffsetInQueue;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            Entry entry = this.getEntry(mid);
+            if (null == entry) {
+                break;
+            }
+            if (entry.getPhyOffset() + entry.getSize() <= phyOffset) {
+                result = entry.getBaseOffset() + entry.getMsgNum();
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return index of the entry holding the queue offset, the last one before it if missing, -1 if none
+     */
+    public long findEntryIndex(final long queueOffset) {
+        long low = this.getMinIndex();
+        long high = this.getMaxIndex() - 1;
+        // Mostly the consumers read the latest batches
+        Entry last = this.getEntry(high);
+        if (last != null && last.getBaseOffset() <= queueOffset) {
+            return high;
+        }
+        long result = -1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            Entry entry = this.getEntry(mid);
+            if (null == entry) {
+                return -1;
+            }
+            if (entry.getBaseOffset() <= queueOffset) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the entry, null if out of range
+     */
+    public Entry getEntry(final long index) {
+        if (index < this.getMinIndex() || index >= this.getMaxIndex()) {
+            return null;
+        }
+        long offset = index * CQ_STORE_UNIT_SIZE;
+        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset);
+        if (null == mappedFile) {
+            return null;
+        }
+        SelectMappedBufferResult result = mappedFile.selectMappedBuffer((int) (offset % this.mappedFileSize), CQ_STORE_UNIT_SIZE);
+        if (null == result) {
+            return null;
+        }
+        try {
+            Entry entry = readEntry(result.getByteBuffer());
+            return entry.isValid() ? entry : null;
+        } finally {
+            result.release();
+        }
+    }
+
+    private static Entry readEntry(final ByteBuffer byteBuffer) {
+        return new Entry(byteBuffer.getLong(), byteBuffer.getInt(), byteBuffer.getLong(), byteBuffer.getLong(), byteBuffer.getInt());
+    }
+
+    private long getMinIndex() {
+        return this.minLogicOffset / CQ_STORE_UNIT_SIZE;
+    }
+
+    private long getMaxIndex() {
+        return this.mappedFileQueue.getMaxOffset() / CQ_STORE_UNIT_SIZE;
+    }
+
+    private void refreshMaxOffset() {
+        Entry last = this.getEntry(this.getMaxIndex() - 1);
+        if (last != null) {
+            this.maxPhysicOffset = last.getPhyOffset() + last.getSize();
+            this.maxOffsetInQueue = last.getBaseOffset() + last.getMsgNum();
+        } else {
+            this.maxPhysicOffset = -1;
+            this.maxOffsetInQueue = 0;
+        }
+    }
+
+    private void refreshMinOffset() {
+        if (this.minLogicOffset < this.mappedFileQueue.getMinOffset()) {
+            this.minLogicOffset = this.mappedFileQueue.getMinOffset();
+        }
+        Entry first = this.getEntry(this.getMinIndex());
+        this.minOffsetInQueue = first != null ? first.getBaseOffset() : this.maxOffsetInQueue;
+    }
+
+    @Override
+    public void setMinLogicOffset(long minLogicOffset) {
+        this.minLogicOffset = minLogicOffset;
+        this.refreshMinOffset();
+    }
+
+    @Override
+    public long rollNextFile(final long index) {
+        return index + 1;
+    }
+
+    @Override
+    public boolean isExtAddr(long tagsCode) {
+        return false;
+    }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+        this.minOffsetInQueue = 0;
+        this.maxOffsetInQueue = 0;
+        this.pendingNum = 0;
+    }
+
+    public static class Entry {
+        private final long phyOffset;
+        private final int size;
+        private final long tagsCode;
+        private final long baseOffset;
+        private final int msgNum;
+
+        public Entry(long phyOffset, int size, long tagsCode, long baseOffset, int msgNum) {
+            this.phyOffset = phyOffset;
+            this.size = size;
+            this.tagsCode = tagsCode;
+            this.baseOffset = baseOffset;
+            this.msgNum = msgNum;
+        }
+
+        public boolean isValid() {
+            return this.phyOffset >= 0 && this.size > 0 && this.msgNum > 0;
+        }
+
+        public boolean isMixedTags() {
+            return MIXED_TAGS_CODE == this.tagsCode;
+        }
+
+        public long getPhyOffset() {
+            return phyOffset;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getTagsCode() {
+            return tagsCode;
+        }
+
+        public long getBaseOffset() {
+            return baseOffset;
+        }
+
+        public int getMsgNum() {
+            return msgNum;
+        }
+    }
+}
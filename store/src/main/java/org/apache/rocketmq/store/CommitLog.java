@@ -29,7 +29,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Supplier;
+import java.util.zip.CRC32;
 
 import org.apache.rocketmq.common.ServiceThread;
 import org.apache.rocketmq.common.UtilAll;
@@ -39,6 +44,7 @@ import org.apache.rocketmq.common.message.MessageConst;
 import org.apache.rocketmq.common.message.MessageDecoder;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.common.message.MessageExtBatch;
+import org.apache.rocketmq.common.message.MessagePropertiesCodec;
 import org.apache.rocketmq.common.sysflag.MessageSysFlag;
 import org.apache.rocketmq.common.topic.TopicValidator;
 import org.apache.rocketmq.logging.InternalLogger;
@@ -48,6 +54,7 @@ import org.apache.rocketmq.store.config.FlushDiskType;
 import org.apache.rocketmq.store.config.MessageStoreConfig;
 import org.apache.rocketmq.store.ha.HAService;
 import org.apache.rocketmq.store.schedule.ScheduleMessageService;
+import org.apache.rocketmq.store.tiered.TieredStorageService;
 
 /**
  * Store all metadata downtime for recovery, data protection reliability
@@ -58,6 +65,11 @@ public class CommitLog {
     protected static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
     // End of file empty MAGIC CODE cbd43194
     protected final static int BLANK_MAGIC_CODE = -875286124;
+    // Padding of a failed lock-free append MAGIC CODE cbd43195
+    protected final static int PADDING_MAGIC_CODE = -875286123;
+    // Rounds a lock-free appender yields before parking while it waits for the others
+    private static final int APPEND_SPIN_ROUNDS = 64;
+    private static final long APPEND_PARK_NANOS = 20 * 1000;
     protected final MappedFileQueue mappedFileQueue;
     protected final DefaultMessageStore defaultMessageStore;
     private final FlushCommitLogService flushCommitLogService;
@@ -65,9 +77,9 @@ public class CommitLog {
     //If TransientStorePool enabled, we must flush message to FileChannel at fixed periods
     private final FlushCommitLogService commitLogService;
 
-    private final AppendMessageCallback appendMessageCallback;
+    private final DefaultAppendMessageCallback appendMessageCallback;
     private final ThreadLocal<PutMessageThreadLocal> putMessageThreadLocal;
-    protected HashMap<String/* topic-queueid */, Long/* offset */> topicQueueTable = new HashMap<String, Long>(1024);
+    protected ConcurrentMap<String/* topic-queueid */, Long/* offset */> topicQueueTable = new ConcurrentHashMap<String, Long>(1024);
     protected volatile long confirmOffset = -1L;
 
     private volatile long beginTimeInLock = 0;
@@ -119,6 +131,9 @@ public class CommitLog {
 
     public boolean load() {
         boolean result = this.mappedFileQueue.load();
+        if (result) {
+            this.mappedFileQueue.deleteUnwrittenTailFiles();
+        }
         log.info("load commit log " + (result ? "OK" : "Failed"));
         return result;
     }
@@ -137,6 +152,10 @@ public class CommitLog {
         }
 
         this.flushCommitLogService.shutdown();
+
+        if (this.mappedFileQueue instanceof MultiPathMappedFileQueue) {
+            ((MultiPathMappedFileQueue) this.mappedFileQueue).shutdownStripeFlush();
+        }
     }
 
     public long flush() {
@@ -145,6 +164,10 @@ public class CommitLog {
         return this.mappedFileQueue.getFlushedWhere();
     }
 
+    public long getFlushedWhere() {
+        return this.mappedFileQueue.getFlushedWhere();
+    }
+
     public long getMaxOffset() {
         return this.mappedFileQueue.getMaxOffset();
     }
@@ -166,6 +189,19 @@ public class CommitLog {
         return this.mappedFileQueue.deleteExpiredFileByTime(expiredTime, deleteFilesInterval, intervalForcibly, cleanImmediately);
     }
 
+    /**
+     * Delete the files which have been uploaded to the tiered storage and kept locally longer than expiredTime.
+     */
+    public int deleteUploadedFile(
+        final long expiredTime,
+        final int deleteFilesInterval,
+        final long intervalForcibly,
+        final long uploadedMaxOffset
+    ) {
+        return this.mappedFileQueue.deleteExpiredFileByTime(expiredTime, deleteFilesInterval, intervalForcibly, false,
+            uploadedMaxOffset);
+    }
+
     /**
      * Read CommitLog data, use data replication
      */
@@ -204,6 +240,10 @@ public class CommitLog {
             while (true) {
                 DispatchRequest dispatchRequest = this.checkMessageAndReturnSize(byteBuffer, checkCRCOnRecover);
                 int size = dispatchRequest.getMsgSize();
+                if (this.isStaleMessage(dispatchRequest, processOffset + mappedFileOffset)) {
+                    log.info("recover physics file end, " + mappedFile.getFileName());
+                    break;
+                }
                 // Normal data
                 if (dispatchRequest.isSuccess() && size > 0) {
                     mappedFileOffset += size;
@@ -255,6 +295,18 @@ public class CommitLog {
         return this.checkMessageAndReturnSize(byteBuffer, checkCRC, true);
     }
 
+    /**
+     * A message left in a recycled file by its former use carries the offset it was written at then.
+     */
+    private boolean isStaleMessage(final DispatchRequest dispatchRequest, final long offset) {
+        if (dispatchRequest.isSuccess() && dispatchRequest.getMsgSize() > 0 && !dispatchRequest.isPadding()
+            && dispatchRequest.getCommitLogOffset() != offset) {
+            log.warn("found a stale message of offset {} at {}", dispatchRequest.getCommitLogOffset(), offset);
+            return true;
+        }
+        return false;
+    }
+
     private void doNothingForDeadCode(final Object obj) {
         if (obj != null) {
             log.debug(String.valueOf(obj.hashCode()));
@@ -279,6 +331,11 @@ public class CommitLog {
                     break;
                 case BLANK_MAGIC_CODE:
                     return new DispatchRequest(0, true /* success */);
+                case PADDING_MAGIC_CODE:
+                    byteBuffer.position(byteBuffer.position() + totalSize - 8);
+                    DispatchRequest padding = new DispatchRequest(totalSize, true /* success */);
+                    padding.setPadding(true);
+                    return padding;
                 default:
                     log.warn("found a illegal magic code 0x" + Integer.toHexString(magicCode));
                     return new DispatchRequest(-1, false /* success */);
@@ -376,6 +433,15 @@ public class CommitLog {
                                 storeTimestamp);
                         }
                     }
+
+                    String deliverMs = propertiesMap.get(MessageConst.PROPERTY_TIMER_DELIVER_MS);
+                    if (TopicValidator.RMQ_SYS_TIMER_TOPIC.equals(topic) && deliverMs != null) {
+                        try {
+                            tagsCode = Long.parseLong(deliverMs);
+                        } catch (NumberFormatException e) {
+                            tagsCode = storeTimestamp;
+                        }
+                    }
                 }
             }
 
@@ -453,9 +519,15 @@ public class CommitLog {
             // Looking beginning to recover from which file
             int index = mappedFiles.size() - 1;
             MappedFile mappedFile = null;
+            long journalOffset = this.findJournalConfirmedOffset();
             for (; index >= 0; index--) {
                 mappedFile = mappedFiles.get(index);
-                if (this.isMappedFileMatchedRecover(mappedFile)) {
+                if (journalOffset >= 0) {
+                    if (journalOffset >= mappedFile.getFileFromOffset()) {
+                        log.info("recover from the confirmed offset {} of mapped file {}", journalOffset, mappedFile.getFileName());
+                        break;
+                    }
+                } else if (this.isMappedFileMatchedRecover(mappedFile)) {
                     log.info("recover from this mapped file " + mappedFile.getFileName());
                     break;
                 }
@@ -469,13 +541,24 @@ public class CommitLog {
             ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
             long processOffset = mappedFile.getFileFromOffset();
             long mappedFileOffset = 0;
+            if (journalOffset >= 0) {
+                // Replay only the messages after the confirmed offset
+                mappedFileOffset = journalOffset - processOffset;
+                byteBuffer.position((int) mappedFileOffset);
+            }
             while (true) {
                 DispatchRequest dispatchRequest = this.checkMessageAndReturnSize(byteBuffer, checkCRCOnRecover);
                 int size = dispatchRequest.getMsgSize();
+                if (this.isStaleMessage(dispatchRequest, processOffset + mappedFileOffset)) {
+                    log.info("recover physics file end, " + mappedFile.getFileName() + " pos=" + byteBuffer.position());
+                    break;
+                }
 
                 if (dispatchRequest.isSuccess()) {
                     // Normal data
-                    if (size > 0) {
+                    if (size > 0 && dispatchRequest.isPadding()) {
+                        mappedFileOffset += size;
+                    } else if (size > 0) {
                         mappedFileOffset += size;
 
                         if (this.defaultMessageStore.getMessageStoreConfig().isDuplicationEnable()) {
@@ -530,6 +613,64 @@ public class CommitLog {
         }
     }
 
+    /**
+     * Find the latest offset of the checkpoint journal whose data is verified by its CRC.
+     *
+     * @return the offset to recover from, -1 if the journal is not there or none is verified
+     */
+    private long findJournalConfirmedOffset() {
+        StoreCheckpointJournal journal = this.defaultMessageStore.getStoreCheckpointJournal();
+        // The index is not covered by the journal
+        if (null == journal || this.defaultMessageStore.getMessageStoreConfig().isMessageIndexEnable()
+            && this.defaultMessageStore.getMessageStoreConfig().isMessageIndexSafe()) {
+            return -1;
+        }
+
+        MappedFile lastMappedFile = this.mappedFileQueue.getLastMappedFile();
+        long maxOffset = null == lastMappedFile ? 0 : lastMappedFile.getFileFromOffset() + lastMappedFile.getFileSize();
+        for (StoreCheckpointJournal.Record record : journal.getRecords()) {
+            // The last file is not created yet when the offset is the end of a file
+            if (record.getConfirmedOffset() < this.getMinOffset() || record.getConfirmedOffset() >= maxOffset) {
+                log.info("checkpoint journal record out of the commit log, {}", record);
+                continue;
+            }
+            long dataCrc = this.crc32(record.getCrcFrom(), record.getConfirmedOffset());
+            if (dataCrc != record.getDataCrc()) {
+                log.warn("checkpoint journal record not matched, {}, data crc {}", record, dataCrc);
+                continue;
+            }
+            return record.getConfirmedOffset();
+        }
+        return -1;
+    }
+
+    /**
+     * @return CRC32 of the data in the range, -1 if some of it is not readable from the local files
+     */
+    public long crc32(final long from, final long to) {
+        CRC32 crc32 = new CRC32();
+        long offset = from;
+        while (offset < to) {
+            MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset, false);
+            if (null == mappedFile) {
+                return -1;
+            }
+            int pos = (int) (offset - mappedFile.getFileFromOffset());
+            int size = (int) Math.min(to - offset, mappedFile.getFileSize() - pos);
+            SelectMappedBufferResult result = mappedFile.selectMappedBuffer(pos, size);
+            if (null == result) {
+                return -1;
+            }
+            try {
+                crc32.update(result.getByteBuffer());
+            } finally {
+                result.release();
+            }
+            offset += size;
+        }
+        return crc32.getValue();
+    }
+
     private boolean isMappedFileMatchedRecover(final MappedFile mappedFile) {
         ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
 
@@ -586,6 +727,44 @@ public class CommitLog {
         return keyBuilder.toString();
     }
 
+    /**
+     * Redirect a delay message to the schedule topic, or to the timer topic when the timing wheel is enabled.
+     */
+    protected void transformDelayMessage(final MessageExtBrokerInner msg) {
+        ScheduleMessageService scheduleMessageService = this.defaultMessageStore.getScheduleMessageService();
+        boolean timerWheelEnable = this.defaultMessageStore.getTimerMessageService() != null;
+        String topic;
+        int queueId;
+        if (msg.getDelayTimeLevel() > 0) {
+            if (msg.getDelayTimeLevel() > scheduleMessageService.getMaxDelayLevel()) {
+                msg.setDelayTimeLevel(scheduleMessageService.getMaxDelayLevel());
+            }
+
+            if (timerWheelEnable) {
+                long deliverMs = scheduleMessageService.computeDeliverTimestamp(msg.getDelayTimeLevel(), msg.getStoreTimestamp());
+                MessageAccessor.putProperty(msg, MessageConst.PROPERTY_TIMER_DELIVER_MS, String.valueOf(deliverMs));
+                topic = TopicValidator.RMQ_SYS_TIMER_TOPIC;
+                queueId = 0;
+            } else {
+                topic = TopicValidator.RMQ_SYS_SCHEDULE_TOPIC;
+                queueId = ScheduleMessageService.delayLevel2QueueId(msg.getDelayTimeLevel());
+            }
+        } else if (timerWheelEnable && msg.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS) != null) {
+            topic = TopicValidator.RMQ_SYS_TIMER_TOPIC;
+            queueId = 0;
+        } else {
+            return;
+        }
+
+        // Backup real topic, queueId
+        MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_TOPIC, msg.getTopic());
+        MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_QUEUE_ID, String.valueOf(msg.getQueueId()));
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+
+        msg.setTopic(topic);
+        msg.setQueueId(queueId);
+    }
+
     public CompletableFuture<PutMessageResult> asyncPutMessage(final MessageExtBrokerInner msg) {
         // Set the storage time
         msg.setStoreTimestamp(System.currentTimeMillis());
@@ -604,22 +783,9 @@ public class CommitLog {
         if (tranType == MessageSysFlag.TRANSACTION_NOT_TYPE
                 || tranType == MessageSysFlag.TRANSACTION_COMMIT_TYPE) {
             // Delay Delivery
-            if (msg.getDelayTimeLevel() > 0) {
-                if (msg.getDelayTimeLevel() > this.defaultMessageStore.getScheduleMessageService().getMaxDelayLevel()) {
-                    msg.setDelayTimeLevel(this.defaultMessageStore.getScheduleMessageService().getMaxDelayLevel());
-                }
-
-                topic = TopicValidator.RMQ_SYS_SCHEDULE_TOPIC;
-                queueId = ScheduleMessageService.delayLevel2QueueId(msg.getDelayTimeLevel());
-
-                // Backup real topic, queueId
-                MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_TOPIC, msg.getTopic());
-                MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_QUEUE_ID, String.valueOf(msg.getQueueId()));
-                msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
-
-                msg.setTopic(topic);
-                msg.setQueueId(queueId);
-            }
+            this.transformDelayMessage(msg);
+            topic = msg.getTopic();
+            queueId = msg.getQueueId();
         }
 
         InetSocketAddress bornSocketAddress = (InetSocketAddress) msg.getBornHost();
@@ -643,59 +809,75 @@ public class CommitLog {
         long elapsedTimeInLock = 0;
         MappedFile unlockMappedFile = null;
 
-        putMessageLock.lock(); //spin or ReentrantLock ,depending on store config
-        try {
-            MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
-            long beginLockTimestamp = this.defaultMessageStore.getSystemClock().now();
-            this.beginTimeInLock = beginLockTimestamp;
-
-            // Here settings are stored timestamp, in order to ensure an orderly
-            // global
-            msg.setStoreTimestamp(beginLockTimestamp);
-
-            if (null == mappedFile || mappedFile.isFull()) {
-                mappedFile = this.mappedFileQueue.getLastMappedFile(0); // Mark: NewFile may be cause noise
-            }
-            if (null == mappedFile) {
-                log.error("create mapped file1 error, topic: " + msg.getTopic() + " clientAddr: " + msg.getBornHostString());
-                beginTimeInLock = 0;
+        if (this.defaultMessageStore.getMessageStoreConfig().isLockFreeAppendEnable()) {
+            result = this.appendLockFree(msg, putMessageContext);
+            if (null == result) {
+                log.error("create mapped file error, topic: " + msg.getTopic() + " clientAddr: " + msg.getBornHostString());
                 return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null));
             }
+            if (AppendMessageStatus.MESSAGE_SIZE_EXCEEDED == result.getStatus()
+                || AppendMessageStatus.PROPERTIES_SIZE_EXCEEDED == result.getStatus()) {
+                return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result));
+            }
+            if (AppendMessageStatus.PUT_OK != result.getStatus()) {
+                return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result));
+            }
+        } else {
+            putMessageLock.lock(); //spin or ReentrantLock ,depending on store config
+            try {
+                MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
+                long beginLockTimestamp = this.defaultMessageStore.getSystemClock().now();
+                this.beginTimeInLock = beginLockTimestamp;
 
-            result = mappedFile.appendMessage(msg, this.appendMessageCallback, putMessageContext);
-            switch (result.getStatus()) {
-                case PUT_OK:
-                    break;
-                case END_OF_FILE:
-                    unlockMappedFile = mappedFile;
-                    // Create a new file, re-write the message
-                    mappedFile = this.mappedFileQueue.getLastMappedFile(0);
-                    if (null == mappedFile) {
-                        // XXX: warn and notify me
-                        log.error("create mapped file2 error, topic: " + msg.getTopic() + " clientAddr: " + msg.getBornHostString());
-                        beginTimeInLock = 0;
-                        return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, result));
-                    }
-                    result = mappedFile.appendMessage(msg, this.appendMessageCallback, putMessageContext);
-                    break;
-                case MESSAGE_SIZE_EXCEEDED:
-                case PROPERTIES_SIZE_EXCEEDED:
-                    beginTimeInLock = 0;
-                    return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result));
-                case UNKNOWN_ERROR:
-                    beginTimeInLock = 0;
-                    return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result));
-                default:
+                // Here settings are stored timestamp, in order to ensure an orderly
+                // global
+                msg.setStoreTimestamp(beginLockTimestamp);
+
+                if (null == mappedFile || mappedFile.isFull()) {
+                    mappedFile = this.mappedFileQueue.getLastMappedFile(0); // Mark: NewFile may be cause noise
+                }
+                if (null == mappedFile) {
+                    log.error("create mapped file1 error, topic: " + msg.getTopic() + " clientAddr: " + msg.getBornHostString());
                     beginTimeInLock = 0;
-                    return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result));
-            }
+                    return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null));
+                }
 
-            elapsedTimeInLock = this.defaultMessageStore.getSystemClock().now() - beginLockTimestamp;
-            beginTimeInLock = 0;
-        } finally {
-            putMessageLock.unlock();
+                result = mappedFile.appendMessage(msg, this.appendMessageCallback, putMessageContext);
+                switch (result.getStatus()) {
+                    case PUT_OK:
+                        break;
+                    case END_OF_FILE:
+                        unlockMappedFile = mappedFile;
+                        // Create a new file, re-write the message
+                        mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+                        if (null == mappedFile) {
+                            // XXX: warn and notify me
+                            log.error("create mapped file2 error, topic: " + msg.getTopic() + " clientAddr: " + msg.getBornHostString());
+                            beginTimeInLock = 0;
+                            return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, result));
+                        }
+                        result = mappedFile.appendMessage(msg, this.appendMessageCallback, putMessageContext);
+                        break;
+                    case MESSAGE_SIZE_EXCEEDED:
+                    case PROPERTIES_SIZE_EXCEEDED:
+                        beginTimeInLock = 0;
+                        return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result));
+                    case UNKNOWN_ERROR:
+                        beginTimeInLock = 0;
+                        return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result));
+                    default:
+                        beginTimeInLock = 0;
+                        return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result));
+                }
+
+                elapsedTimeInLock = this.defaultMessageStore.getSystemClock().now() - beginLockTimestamp;
+                beginTimeInLock = 0;
+            } finally {
+                putMessageLock.unlock();
+            }
         }
 
+
         if (elapsedTimeInLock > 500) {
             log.warn("[NOTIFYME]putMessage in lock cost time(ms)={}, bodyLength={} AppendMessageResult={}", elapsedTimeInLock, msg.getBody().length, result);
         }
@@ -761,58 +943,75 @@ public class CommitLog {
         MessageExtEncoder batchEncoder = pmThreadLocal.getEncoder();
 
         PutMessageContext putMessageContext = new PutMessageContext(generateKey(pmThreadLocal.getKeyBuilder(), messageExtBatch));
-        messageExtBatch.setEncodedBuff(batchEncoder.encode(messageExtBatch, putMessageContext));
-
-        putMessageLock.lock();
-        try {
-            long beginLockTimestamp = this.defaultMessageStore.getSystemClock().now();
-            this.beginTimeInLock = beginLockTimestamp;
+        messageExtBatch.setEncodedBuff(batchEncoder.encode(messageExtBatch, putMessageContext,
+            this.defaultMessageStore.isBatchConsumeQueueTopic(messageExtBatch.getTopic())));
 
-            // Here settings are stored timestamp, in order to ensure an orderly
-            // global
-            messageExtBatch.setStoreTimestamp(beginLockTimestamp);
-
-            if (null == mappedFile || mappedFile.isFull()) {
-                mappedFile = this.mappedFileQueue.getLastMappedFile(0); // Mark: NewFile may be cause noise
-            }
-            if (null == mappedFile) {
-                log.error("Create mapped file1 error, topic: {} clientAddr: {}", messageExtBatch.getTopic(), messageExtBatch.getBornHostString());
-                beginTimeInLock = 0;
+        if (this.defaultMessageStore.getMessageStoreConfig().isLockFreeAppendEnable()) {
+            result = this.appendLockFree(messageExtBatch, putMessageContext);
+            if (null == result) {
+                log.error("Create mapped file error, topic: {} clientAddr: {}", messageExtBatch.getTopic(), messageExtBatch.getBornHostString());
                 return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null));
             }
+            if (AppendMessageStatus.MESSAGE_SIZE_EXCEEDED == result.getStatus()
+                || AppendMessageStatus.PROPERTIES_SIZE_EXCEEDED == result.getStatus()) {
+                return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result));
+            }
+            if (AppendMessageStatus.PUT_OK != result.getStatus()) {
+                return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result));
+            }
+        } else {
+            putMessageLock.lock();
+            try {
+                long beginLockTimestamp = this.defaultMessageStore.getSystemClock().now();
+                this.beginTimeInLock = beginLockTimestamp;
 
-            result = mappedFile.appendMessages(messageExtBatch, this.appendMessageCallback, putMessageContext);
-            switch (result.getStatus()) {
-                case PUT_OK:
-                    break;
-                case END_OF_FILE:
-                    unlockMappedFile = mappedFile;
-                    // Create a new file, re-write the message
-                    mappedFile = this.mappedFileQueue.getLastMappedFile(0);
-                    if (null == mappedFile) {
-                        // XXX: warn and notify me
-                        log.error("Create mapped file2 error, topic: {} clientAddr: {}", messageExtBatch.getTopic(), messageExtBatch.getBornHostString());
-                        beginTimeInLock = 0;
-                        return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, result));
-                    }
-                    result = mappedFile.appendMessages(messageExtBatch, this.appendMessageCallback, putMessageContext);
-                    break;
-                case MESSAGE_SIZE_EXCEEDED:
-                case PROPERTIES_SIZE_EXCEEDED:
-                    beginTimeInLock = 0;
-                    return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result));
-                case UNKNOWN_ERROR:
-                default:
+                // Here settings are stored timestamp, in order to ensure an orderly
+                // global
+                messageExtBatch.setStoreTimestamp(beginLockTimestamp);
+
+                if (null == mappedFile || mappedFile.isFull()) {
+                    mappedFile = this.mappedFileQueue.getLastMappedFile(0); // Mark: NewFile may be cause noise
+                }
+                if (null == mappedFile) {
+                    log.error("Create mapped file1 error, topic: {} clientAddr: {}", messageExtBatch.getTopic(), messageExtBatch.getBornHostString());
                     beginTimeInLock = 0;
-                    return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result));
-            }
+                    return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null));
+                }
 
-            elapsedTimeInLock = this.defaultMessageStore.getSystemClock().now() - beginLockTimestamp;
-            beginTimeInLock = 0;
-        } finally {
-            putMessageLock.unlock();
+                result = mappedFile.appendMessages(messageExtBatch, this.appendMessageCallback, putMessageContext);
+                switch (result.getStatus()) {
+                    case PUT_OK:
+                        break;
+                    case END_OF_FILE:
+                        unlockMappedFile = mappedFile;
+                        // Create a new file, re-write the message
+                        mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+                        if (null == mappedFile) {
+                            // XXX: warn and notify me
+                            log.error("Create mapped file2 error, topic: {} clientAddr: {}", messageExtBatch.getTopic(), messageExtBatch.getBornHostString());
+                            beginTimeInLock = 0;
+                            return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, result));
+                        }
+                        result = mappedFile.appendMessages(messageExtBatch, this.appendMessageCallback, putMessageContext);
+                        break;
+                    case MESSAGE_SIZE_EXCEEDED:
+                    case PROPERTIES_SIZE_EXCEEDED:
+                        beginTimeInLock = 0;
+                        return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result));
+                    case UNKNOWN_ERROR:
+                    default:
+                        beginTimeInLock = 0;
+                        return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result));
+                }
+
+                elapsedTimeInLock = this.defaultMessageStore.getSystemClock().now() - beginLockTimestamp;
+                beginTimeInLock = 0;
+            } finally {
+                putMessageLock.unlock();
+            }
         }
 
+
         if (elapsedTimeInLock > 500) {
             log.warn("[NOTIFYME]putMessages in lock cost time(ms)={}, bodyLength={} AppendMessageResult={}", elapsedTimeInLock, messageExtBatch.getBody().length, result);
         }
@@ -845,6 +1044,130 @@ public class CommitLog {
 
     }
 
+    private AppendMessageResult appendLockFree(final MessageExtBrokerInner msg, final PutMessageContext putMessageContext) {
+        msg.setStoreTimestamp(this.defaultMessageStore.getSystemClock().now());
+        final int tranType = MessageSysFlag.getTransactionValue(msg.getSysFlag());
+        // Prepared and Rollback message is not consumed, will not enter the consumer queue
+        boolean assignQueueOffset = tranType != MessageSysFlag.TRANSACTION_PREPARED_TYPE
+            && tranType != MessageSysFlag.TRANSACTION_ROLLBACK_TYPE;
+        return this.appendLockFree(putMessageContext.getTopicQueueTableKey(), msg.getEncodedBuff().getInt(0), 1,
+            assignQueueOffset, msg.getStoreTimestamp(),
+            (wroteOffset, byteBuffer, queueOffset) -> this.appendMessageCallback.doAppend(wroteOffset, byteBuffer, queueOffset, msg));
+    }
+
+    private AppendMessageResult appendLockFree(final MessageExtBatch messageExtBatch, final PutMessageContext putMessageContext) {
+        messageExtBatch.setStoreTimestamp(this.defaultMessageStore.getSystemClock().now());
+        return this.appendLockFree(putMessageContext.getTopicQueueTableKey(), messageExtBatch.getEncodedBuff().remaining(),
+            putMessageContext.getBatchSize(), true, messageExtBatch.getStoreTimestamp(),
+            (wroteOffset, byteBuffer, queueOffset) -> this.appendMessageCallback.doAppend(wroteOffset, byteBuffer, queueOffset,
+                messageExtBatch, putMessageContext));
+    }
+
+    /**
+     * Append without the put message lock, the space of the encoded messages is reserved in the last file by a CAS,
+     * then they are written concurrently and published in the order of the reservations.
+     * <p>
+     * The queue offsets are assigned in the same compute of the topic queue table as the reservation, so the messages
+     * of a queue are in the physical order as the dispatcher expects. The appender which can't reserve enough space
+     * writes the blank at the end of file, and only rolling to the next file takes the put message lock. A reserved
+     * space whose append failed is filled with a padding record before it is published, which the reput and the
+     * recovery skip, so the data after it is still dispatched. The queue offsets assigned to it are lost.
+     *
+     * @return null if the mapped file can't be created, MESSAGE_SIZE_EXCEEDED if the messages can't fit in an empty
+     * file, the status of the appender or UNKNOWN_ERROR if it threw when the append failed
+     */
+    private AppendMessageResult appendLockFree(final String key, final int size, final int msgNum,
+        final boolean assignQueueOffset, final long storeTimestamp, final ReservedSpaceAppender appender) {
+        final int minBlank = DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH;
+        if (size + minBlank > this.defaultMessageStore.getMessageStoreConfig().getMappedFileSizeCommitLog()) {
+            log.warn("message size exceeded, the mapped file can't hold it, msg total size: {}, file size: {}", size,
+                this.defaultMessageStore.getMessageStoreConfig().getMappedFileSizeCommitLog());
+            return new AppendMessageResult(AppendMessageStatus.MESSAGE_SIZE_EXCEEDED);
+        }
+        final int[] reservedPos = new int[1];
+        final long[] queueOffset = new long[1];
+        for (int round = 0; ; round++) {
+            MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
+            if (null == mappedFile || mappedFile.isFull()) {
+                putMessageLock.lock();
+                try {
+                    mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+                } finally {
+                    putMessageLock.unlock();
+                }
+            }
+            if (null == mappedFile) {
+                return null;
+            }
+
+            final MappedFile reservedFile = mappedFile;
+            if (assignQueueOffset) {
+                this.topicQueueTable.compute(key, (k, v) -> {
+                    long offset = null == v ? 0L : v;
+                    reservedPos[0] = reservedFile.reserve(size, minBlank);
+                    queueOffset[0] = offset;
+                    return reservedPos[0] < 0 ? offset : offset + msgNum;
+                });
+            } else {
+                reservedPos[0] = reservedFile.reserve(size, minBlank);
+                queueOffset[0] = 0L;
+            }
+
+            int pos = reservedPos[0];
+            if (pos >= 0) {
+                AppendMessageResult result = null;
+                try {
+                    result = appender.append(reservedFile.getFileFromOffset() + pos, reservedFile.sliceForAppend(pos),
+                        queueOffset[0]);
+                } catch (RuntimeException e) {
+                    log.error("append in the reserved space of {} at {} failed", reservedFile.getFileName(), pos, e);
+                } finally {
+                    if (null == result || AppendMessageStatus.PUT_OK != result.getStatus()) {
+                        log.error("fill the reserved space of {} at {} with {} bytes of padding, queue offset {} of {} is lost",
+                            reservedFile.getFileName(), pos, size, queueOffset[0], key);
+                        this.appendMessageCallback.doAppendPadding(reservedFile.sliceForAppend(pos), size);
+                    }
+                    if (!reservedFile.publish(pos, pos + size, storeTimestamp)) {
+                        this.waitForPublished(reservedFile, pos + size);
+                    }
+                }
+                return null != result ? result : new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR);
+            }
+
+            // Not enough space, the first one who finds it ends the file, others wait for the next file
+            pos = reservedFile.reserveRemaining();
+            if (pos >= 0) {
+                this.appendMessageCallback.doAppendBlank(reservedFile.sliceForAppend(pos), reservedFile.getFileSize() - pos);
+                reservedFile.publish(pos, reservedFile.getFileSize(), storeTimestamp);
+                if (this.defaultMessageStore.getMessageStoreConfig().isWarmMapedFileEnable()) {
+                    this.defaultMessageStore.unlockMappedFile(reservedFile);
+                }
+            } else {
+                backoff(round);
+            }
+        }
+    }
+
+    private static void backoff(final int round) {
+        if (round < APPEND_SPIN_ROUNDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(APPEND_PARK_NANOS);
+        }
+    }
+
+    /**
+     * The group commit only flushes the published data, so wait for the appenders ahead before requesting it.
+     */
+    private void waitForPublished(final MappedFile mappedFile, final int end) {
+        if (FlushDiskType.SYNC_FLUSH != this.defaultMessageStore.getMessageStoreConfig().getFlushDiskType()) {
+            return;
+        }
+        for (int round = 0; mappedFile.getWrotePosition() < end; round++) {
+            backoff(round);
+        }
+    }
+
     public CompletableFuture<PutMessageStatus> submitFlushRequest(AppendMessageResult result, MessageExt messageExt) {
         // Synchronization flush
         if (FlushDiskType.SYNC_FLUSH == this.defaultMessageStore.getMessageStoreConfig().getFlushDiskType()) {
@@ -893,7 +1216,7 @@ public class CommitLog {
      * According to receive certain message or offset storage time if an error occurs, it returns -1
      */
     public long pickupStoreTimestamp(final long offset, final int size) {
-        if (offset >= this.getMinOffset()) {
+        if (offset >= this.defaultMessageStore.getReadableMinPhyOffset()) {
             SelectMappedBufferResult result = this.getMessage(offset, size);
             if (null != result) {
                 try {
@@ -925,11 +1248,18 @@ public class CommitLog {
 
     public SelectMappedBufferResult getMessage(final long offset, final int size) {
         int mappedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMappedFileSizeCommitLog();
-        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset, offset == 0);
+        TieredStorageService tieredStorageService = this.defaultMessageStore.getTieredStorageService();
+        // The first file may have been offloaded, don't fall back to the first local one
+        boolean returnFirstOnNotFound = offset == 0 && tieredStorageService == null;
+        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset, returnFirstOnNotFound);
         if (mappedFile != null) {
             int pos = (int) (offset % mappedFileSize);
             return mappedFile.selectMappedBuffer(pos, size);
         }
+
+        if (tieredStorageService != null) {
+            return tieredStorageService.getMessage(offset, size);
+        }
         return null;
     }
 
@@ -938,12 +1268,22 @@ public class CommitLog {
         return offset + mappedFileSize - offset % mappedFileSize;
     }
 
-    public HashMap<String, Long> getTopicQueueTable() {
+    public void buildRunningStats(HashMap<String, String> stats) {
+        if (this.flushCommitLogService instanceof GroupCommitService) {
+            ((GroupCommitService) this.flushCommitLogService).buildRunningStats(stats);
+        }
+    }
+
+    public MappedFileQueue getMappedFileQueue() {
+        return mappedFileQueue;
+    }
+
+    public ConcurrentMap<String, Long> getTopicQueueTable() {
         return topicQueueTable;
     }
 
     public void setTopicQueueTable(HashMap<String, Long> topicQueueTable) {
-        this.topicQueueTable = topicQueueTable;
+        this.topicQueueTable = new ConcurrentHashMap<String, Long>(topicQueueTable);
     }
 
     public void destroy() {
@@ -1171,6 +1511,24 @@ public class CommitLog {
         private volatile LinkedList<GroupCommitRequest> requestsWrite = new LinkedList<GroupCommitRequest>();
         private volatile LinkedList<GroupCommitRequest> requestsRead = new LinkedList<GroupCommitRequest>();
         private final PutMessageSpinLock lock = new PutMessageSpinLock();
+        private final AdaptiveGroupCommitPolicy adaptivePolicy;
+        private final AtomicLong batchTimes = new AtomicLong(0);
+        private final AtomicLong requestTimes = new AtomicLong(0);
+        private final AtomicLong lingerTimes = new AtomicLong(0);
+        private final AtomicLong fsyncTotalNanos = new AtomicLong(0);
+        private volatile long fsyncMaxNanos = 0;
+        private volatile int maxBatchSize = 0;
+
+        GroupCommitService() {
+            MessageStoreConfig messageStoreConfig = CommitLog.this.defaultMessageStore.getMessageStoreConfig();
+            if (messageStoreConfig.isGroupCommitAdaptiveEnable()) {
+                this.adaptivePolicy = new AdaptiveGroupCommitPolicy(
+                    messageStoreConfig.getGroupCommitLatencyTargetMicros() * 1000L,
+                    messageStoreConfig.getGroupCommitMaxLingerMicros() * 1000L);
+            } else {
+                this.adaptivePolicy = null;
+            }
+        }
 
         public synchronized void putRequest(final GroupCommitRequest request) {
             lock.lock();
@@ -1193,8 +1551,34 @@ public class CommitLog {
             }
         }
 
+        /**
+         * Wait for more requests to join the batch at hand when the adaptive policy allows.
+         */
+        private void linger() {
+            if (this.adaptivePolicy == null || this.requestsRead.isEmpty()) {
+                return;
+            }
+
+            long lingerNanos = this.adaptivePolicy.nextLingerNanos();
+            if (lingerNanos > 0) {
+                LockSupport.parkNanos(lingerNanos);
+                int joined;
+                lock.lock();
+                try {
+                    joined = this.requestsWrite.size();
+                    this.requestsRead.addAll(this.requestsWrite);
+                    this.requestsWrite.clear();
+                } finally {
+                    lock.unlock();
+                }
+                this.adaptivePolicy.onLingerEnd(joined);
+                this.lingerTimes.incrementAndGet();
+            }
+        }
+
         private void doCommit() {
             if (!this.requestsRead.isEmpty()) {
+                long beginTime = System.nanoTime();
                 for (GroupCommitRequest req : this.requestsRead) {
                     // There may be a message in the next file, so a maximum of
                     // two times the flush
@@ -1206,6 +1590,8 @@ public class CommitLog {
 
                     req.wakeupCustomer(flushOK ? PutMessageStatus.PUT_OK : PutMessageStatus.FLUSH_DISK_TIMEOUT);
                 }
+                long endTime = System.nanoTime();
+                this.recordBatch(this.requestsRead.size(), endTime - beginTime, endTime);
 
                 long storeTimestamp = CommitLog.this.mappedFileQueue.getStoreTimestamp();
                 if (storeTimestamp > 0) {
@@ -1220,12 +1606,43 @@ public class CommitLog {
             }
         }
 
+        private void recordBatch(final int batchSize, final long fsyncNanos, final long nowNanos) {
+            this.batchTimes.incrementAndGet();
+            this.requestTimes.addAndGet(batchSize);
+            this.fsyncTotalNanos.addAndGet(fsyncNanos);
+            if (fsyncNanos > this.fsyncMaxNanos) {
+                this.fsyncMaxNanos = fsyncNanos;
+            }
+            if (batchSize > this.maxBatchSize) {
+                this.maxBatchSize = batchSize;
+            }
+            if (this.adaptivePolicy != null) {
+                this.adaptivePolicy.onBatchFlushed(batchSize, fsyncNanos, nowNanos);
+            }
+        }
+
+        public void buildRunningStats(HashMap<String, String> stats) {
+            long batches = this.batchTimes.get();
+            long requests = this.requestTimes.get();
+            stats.put("groupCommitBatchTimes", String.format("%d,%d", batches, requests));
+            stats.put("groupCommitBatchSize", String.format("%.2f,%d",
+                batches > 0 ? (double) requests / batches : 0, this.maxBatchSize));
+            stats.put("groupCommitFsyncMicros", String.format("%d,%d",
+                batches > 0 ? this.fsyncTotalNanos.get() / batches / 1000 : 0, this.fsyncMaxNanos / 1000));
+            if (this.adaptivePolicy != null) {
+                stats.put("groupCommitAdaptive", String.format("%d,%.2f,%d,%d,%d", this.lingerTimes.get(),
+                    this.adaptivePolicy.getJoinedPerLinger(), this.adaptivePolicy.lingerNanos() / 1000,
+                    this.adaptivePolicy.getFsyncP99Nanos() / 1000, this.adaptivePolicy.getArrivalRate()));
+            }
+        }
+
         public void run() {
             CommitLog.log.info(this.getServiceName() + " service started");
 
             while (!this.isStopped()) {
                 try {
                     this.waitForRunning(10);
+                    this.linger();
                     this.doCommit();
                 } catch (Exception e) {
                     CommitLog.log.warn(this.getServiceName() + " service has exception. ", e);
@@ -1289,16 +1706,6 @@ public class CommitLog {
             // PHY OFFSET
             long wroteOffset = fileFromOffset + byteBuffer.position();
 
-            Supplier<String> msgIdSupplier = () -> {
-                int sysflag = msgInner.getSysFlag();
-                int msgIdLen = (sysflag & MessageSysFlag.STOREHOSTADDRESS_V6_FLAG) == 0 ? 4 + 4 + 8 : 16 + 4 + 8;
-                ByteBuffer msgIdBuffer = ByteBuffer.allocate(msgIdLen);
-                MessageExt.socketAddress2ByteBuffer(msgInner.getStoreHost(), msgIdBuffer);
-                msgIdBuffer.clear();//because socketAddress2ByteBuffer flip the buffer
-                msgIdBuffer.putLong(msgIdLen - 8, wroteOffset);
-                return UtilAll.bytes2string(msgIdBuffer.array());
-            };
-
             // Record ConsumeQueue information
             String key = putMessageContext.getTopicQueueTableKey();
             Long queueOffset = CommitLog.this.topicQueueTable.get(key);
@@ -1338,16 +1745,41 @@ public class CommitLog {
                 byteBuffer.put(this.msgStoreItemMemory.array(), 0, 8);
                 return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset,
                         maxBlank, /* only wrote 8 bytes, but declare wrote maxBlank for compute write position */
-                        msgIdSupplier, msgInner.getStoreTimestamp(),
+                        msgIdSupplier(msgInner, wroteOffset), msgInner.getStoreTimestamp(),
                         queueOffset, CommitLog.this.defaultMessageStore.now() - beginTimeMills);
             }
 
+            AppendMessageResult result = this.doAppend(wroteOffset, byteBuffer, queueOffset, msgInner);
+
+            switch (tranType) {
+                case MessageSysFlag.TRANSACTION_PREPARED_TYPE:
+                case MessageSysFlag.TRANSACTION_ROLLBACK_TYPE:
+                    break;
+                case MessageSysFlag.TRANSACTION_NOT_TYPE:
+                case MessageSysFlag.TRANSACTION_COMMIT_TYPE:
+                    // The next update ConsumeQueue information
+                    CommitLog.this.topicQueueTable.put(key, ++queueOffset);
+                    break;
+                default:
+                    break;
+            }
+            return result;
+        }
+
+        /**
+         * Write the encoded message at the position of the buffer, whose space and offsets are already assigned.
+         */
+        AppendMessageResult doAppend(final long wroteOffset, final ByteBuffer byteBuffer, final long queueOffset,
+            final MessageExtBrokerInner msgInner) {
+            ByteBuffer preEncodeBuffer = msgInner.getEncodedBuff();
+            final int msgLen = preEncodeBuffer.getInt(0);
+
             int pos = 4 + 4 + 4 + 4 + 4;
             // 6 QUEUEOFFSET
             preEncodeBuffer.putLong(pos, queueOffset);
             pos += 8;
             // 7 PHYSICALOFFSET
-            preEncodeBuffer.putLong(pos, fileFromOffset + byteBuffer.position());
+            preEncodeBuffer.putLong(pos, wroteOffset);
             int ipLen = (msgInner.getSysFlag() & MessageSysFlag.BORNHOST_V6_FLAG) == 0 ? 4 + 4 : 16 + 4;
             // 8 SYSFLAG, 9 BORNTIMESTAMP, 10 BORNHOST, 11 STORETIMESTAMP
             pos += 8 + 4 + 8 + ipLen;
@@ -1359,27 +1791,12 @@ public class CommitLog {
             // Write messages to the queue buffer
             byteBuffer.put(preEncodeBuffer);
             msgInner.setEncodedBuff(null);
-            AppendMessageResult result = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLen, msgIdSupplier,
+            return new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLen, msgIdSupplier(msgInner, wroteOffset),
                 msgInner.getStoreTimestamp(), queueOffset, CommitLog.this.defaultMessageStore.now() - beginTimeMills);
-
-            switch (tranType) {
-                case MessageSysFlag.TRANSACTION_PREPARED_TYPE:
-                case MessageSysFlag.TRANSACTION_ROLLBACK_TYPE:
-                    break;
-                case MessageSysFlag.TRANSACTION_NOT_TYPE:
-                case MessageSysFlag.TRANSACTION_COMMIT_TYPE:
-                    // The next update ConsumeQueue information
-                    CommitLog.this.topicQueueTable.put(key, ++queueOffset);
-                    break;
-                default:
-                    break;
-            }
-            return result;
         }
 
         public AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer, final int maxBlank,
             final MessageExtBatch messageExtBatch, PutMessageContext putMessageContext) {
-            byteBuffer.mark();
             //physical offset
             long wroteOffset = fileFromOffset + byteBuffer.position();
             // Record ConsumeQueue information
@@ -1389,42 +1806,15 @@ public class CommitLog {
                 queueOffset = 0L;
                 CommitLog.this.topicQueueTable.put(key, queueOffset);
             }
-            long beginQueueOffset = queueOffset;
             int totalMsgLen = 0;
-            int msgNum = 0;
 
             final long beginTimeMills = CommitLog.this.defaultMessageStore.now();
             ByteBuffer messagesByteBuff = messageExtBatch.getEncodedBuff();
 
-            int sysFlag = messageExtBatch.getSysFlag();
-            int bornHostLength = (sysFlag & MessageSysFlag.BORNHOST_V6_FLAG) == 0 ? 4 + 4 : 16 + 4;
-            int storeHostLength = (sysFlag & MessageSysFlag.STOREHOSTADDRESS_V6_FLAG) == 0 ? 4 + 4 : 16 + 4;
-            Supplier<String> msgIdSupplier = () -> {
-                int msgIdLen = storeHostLength + 8;
-                int batchCount = putMessageContext.getBatchSize();
-                long[] phyPosArray = putMessageContext.getPhyPos();
-                ByteBuffer msgIdBuffer = ByteBuffer.allocate(msgIdLen);
-                MessageExt.socketAddress2ByteBuffer(messageExtBatch.getStoreHost(), msgIdBuffer);
-                msgIdBuffer.clear();//because socketAddress2ByteBuffer flip the buffer
-
-                StringBuilder buffer = new StringBuilder(batchCount * msgIdLen * 2 + batchCount - 1);
-                for (int i = 0; i < phyPosArray.length; i++) {
-                    msgIdBuffer.putLong(msgIdLen - 8, phyPosArray[i]);
-                    String msgId = UtilAll.bytes2string(msgIdBuffer.array());
-                    if (i != 0) {
-                        buffer.append(',');
-                    }
-                    buffer.append(msgId);
-                }
-                return buffer.toString();
-            };
-
-            messagesByteBuff.mark();
-            int index = 0;
-            while (messagesByteBuff.hasRemaining()) {
+            int msgPos = messagesByteBuff.position();
+            while (msgPos < messagesByteBuff.limit()) {
                 // 1 TOTALSIZE
-                final int msgPos = messagesByteBuff.position();
-                final int msgLen = messagesByteBuff.getInt();
+                final int msgLen = messagesByteBuff.getInt(msgPos);
                 final int bodyLen = msgLen - 40; //only for log, just estimate it
                 // Exceeds the maximum message
                 if (msgLen > this.maxMessageSize) {
@@ -1441,14 +1831,40 @@ public class CommitLog {
                     // 2 MAGICCODE
                     this.msgStoreItemMemory.putInt(CommitLog.BLANK_MAGIC_CODE);
                     // 3 The remaining space may be any value
-                    //ignore previous read
-                    messagesByteBuff.reset();
                     // Here the length of the specially set maxBlank
-                    byteBuffer.reset(); //ignore the previous appended messages
                     byteBuffer.put(this.msgStoreItemMemory.array(), 0, 8);
-                    return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset, maxBlank, msgIdSupplier, messageExtBatch.getStoreTimestamp(),
-                        beginQueueOffset, CommitLog.this.defaultMessageStore.now() - beginTimeMills);
+                    return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset, maxBlank,
+                        msgIdSupplier(messageExtBatch, putMessageContext), messageExtBatch.getStoreTimestamp(),
+                        queueOffset, CommitLog.this.defaultMessageStore.now() - beginTimeMills);
                 }
+                msgPos += msgLen;
+            }
+
+            AppendMessageResult result = this.doAppend(wroteOffset, byteBuffer, queueOffset, messageExtBatch, putMessageContext);
+            CommitLog.this.topicQueueTable.put(key, queueOffset + result.getMsgNum());
+
+            return result;
+        }
+
+        /**
+         * Write the encoded messages at the position of the buffer, whose space and offsets are already assigned.
+         */
+        AppendMessageResult doAppend(final long wroteOffset, final ByteBuffer byteBuffer, final long beginQueueOffset,
+            final MessageExtBatch messageExtBatch, PutMessageContext putMessageContext) {
+            long queueOffset = beginQueueOffset;
+            int totalMsgLen = 0;
+            int msgNum = 0;
+
+            final long beginTimeMills = CommitLog.this.defaultMessageStore.now();
+            ByteBuffer messagesByteBuff = messageExtBatch.getEncodedBuff();
+
+            int bornHostLength = (messageExtBatch.getSysFlag() & MessageSysFlag.BORNHOST_V6_FLAG) == 0 ? 4 + 4 : 16 + 4;
+            int index = 0;
+            while (messagesByteBuff.hasRemaining()) {
+                // 1 TOTALSIZE
+                final int msgPos = messagesByteBuff.position();
+                final int msgLen = messagesByteBuff.getInt();
+                totalMsgLen += msgLen;
                 //move to add queue offset and commitlog offset
                 int pos = msgPos + 20;
                 messagesByteBuff.putLong(pos, queueOffset);
@@ -1469,14 +1885,69 @@ public class CommitLog {
             messagesByteBuff.limit(totalMsgLen);
             byteBuffer.put(messagesByteBuff);
             messageExtBatch.setEncodedBuff(null);
-            AppendMessageResult result = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, totalMsgLen, msgIdSupplier,
-                messageExtBatch.getStoreTimestamp(), beginQueueOffset, CommitLog.this.defaultMessageStore.now() - beginTimeMills);
+            AppendMessageResult result = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, totalMsgLen,
+                msgIdSupplier(messageExtBatch, putMessageContext), messageExtBatch.getStoreTimestamp(), beginQueueOffset,
+                CommitLog.this.defaultMessageStore.now() - beginTimeMills);
             result.setMsgNum(msgNum);
-            CommitLog.this.topicQueueTable.put(key, queueOffset);
-
             return result;
         }
 
+        /**
+         * Write the blank at the end of file into the buffer, whose space is already assigned.
+         */
+        void doAppendBlank(final ByteBuffer byteBuffer, final int maxBlank) {
+            // 1 TOTALSIZE
+            byteBuffer.putInt(maxBlank);
+            // 2 MAGICCODE
+            byteBuffer.putInt(CommitLog.BLANK_MAGIC_CODE);
+        }
+
+        /**
+         * Write the padding of a failed append over its assigned space, the rest of which may be any value.
+         */
+        void doAppendPadding(final ByteBuffer byteBuffer, final int size) {
+            // 1 TOTALSIZE
+            byteBuffer.putInt(size);
+            // 2 MAGICCODE
+            byteBuffer.putInt(CommitLog.PADDING_MAGIC_CODE);
+        }
+
+        private Supplier<String> msgIdSupplier(final MessageExtBrokerInner msgInner, final long wroteOffset) {
+            return () -> {
+                int sysflag = msgInner.getSysFlag();
+                int msgIdLen = (sysflag & MessageSysFlag.STOREHOSTADDRESS_V6_FLAG) == 0 ? 4 + 4 + 8 : 16 + 4 + 8;
+                ByteBuffer msgIdBuffer = ByteBuffer.allocate(msgIdLen);
+                MessageExt.socketAddress2ByteBuffer(msgInner.getStoreHost(), msgIdBuffer);
+                msgIdBuffer.clear();//because socketAddress2ByteBuffer flip the buffer
+                msgIdBuffer.putLong(msgIdLen - 8, wroteOffset);
+                return UtilAll.bytes2string(msgIdBuffer.array());
+            };
+        }
+
+        private Supplier<String> msgIdSupplier(final MessageExtBatch messageExtBatch,
+            final PutMessageContext putMessageContext) {
+            int storeHostLength = (messageExtBatch.getSysFlag() & MessageSysFlag.STOREHOSTADDRESS_V6_FLAG) == 0 ? 4 + 4 : 16 + 4;
+            return () -> {
+                int msgIdLen = storeHostLength + 8;
+                int batchCount = putMessageContext.getBatchSize();
+                long[] phyPosArray = putMessageContext.getPhyPos();
+                ByteBuffer msgIdBuffer = ByteBuffer.allocate(msgIdLen);
+                MessageExt.socketAddress2ByteBuffer(messageExtBatch.getStoreHost(), msgIdBuffer);
+                msgIdBuffer.clear();//because socketAddress2ByteBuffer flip the buffer
+
+                StringBuilder buffer = new StringBuilder(batchCount * msgIdLen * 2 + batchCount - 1);
+                for (int i = 0; i < phyPosArray.length; i++) {
+                    msgIdBuffer.putLong(msgIdLen - 8, phyPosArray[i]);
+                    String msgId = UtilAll.bytes2string(msgIdBuffer.array());
+                    if (i != 0) {
+                        buffer.append(',');
+                    }
+                    buffer.append(msgId);
+                }
+                return buffer.toString();
+            };
+        }
+
         private void resetByteBuffer(final ByteBuffer byteBuffer, final int limit) {
             byteBuffer.flip();
             byteBuffer.limit(limit);
@@ -1489,6 +1960,8 @@ public class CommitLog {
         private final ByteBuffer encoderBuffer;
         // The maximum length of the message
         private final int maxMessageSize;
+        // Properties are encoded here, then copied to the encoderBuffer
+        private final MessagePropertiesCodec propertiesCodec = new MessagePropertiesCodec();
 
         MessageExtEncoder(final int size) {
             this.encoderBuffer = ByteBuffer.allocateDirect(size);
@@ -1510,13 +1983,10 @@ public class CommitLog {
             /**
              * Serialize message
              */
-            final byte[] propertiesData =
-                    msgInner.getPropertiesString() == null ? null : msgInner.getPropertiesString().getBytes(MessageDecoder.CHARSET_UTF8);
-
-            final int propertiesLength = propertiesData == null ? 0 : propertiesData.length;
+            final int propertiesLength = this.propertiesCodec.encode(msgInner.getPropertiesString());
 
             if (propertiesLength > Short.MAX_VALUE) {
-                log.warn("putMessage message properties length too long. length={}", propertiesData.length);
+                log.warn("putMessage message properties length too long. length={}", propertiesLength);
                 return new PutMessageResult(PutMessageStatus.PROPERTIES_SIZE_EXCEEDED, null);
             }
 
@@ -1574,13 +2044,21 @@ public class CommitLog {
             // 17 PROPERTIES
             this.encoderBuffer.putShort((short) propertiesLength);
             if (propertiesLength > 0)
-                this.encoderBuffer.put(propertiesData);
+                this.encoderBuffer.put(this.propertiesCodec.bytes(), 0, propertiesLength);
 
             encoderBuffer.flip();
             return null;
         }
 
         protected ByteBuffer encode(final MessageExtBatch messageExtBatch, PutMessageContext putMessageContext) {
+            return this.encode(messageExtBatch, putMessageContext, false);
+        }
+
+        /**
+         * @param markBatchContinued whether to flag the messages but the last one, for the batch consume queue
+         */
+        protected ByteBuffer encode(final MessageExtBatch messageExtBatch, PutMessageContext putMessageContext,
+            final boolean markBatchContinued) {
             encoderBuffer.clear(); //not thread-safe
             int totalMsgLen = 0;
             ByteBuffer messagesByteBuff = messageExtBatch.wrap();
@@ -1592,9 +2070,8 @@ public class CommitLog {
             ByteBuffer storeHostHolder = ByteBuffer.allocate(storeHostLength);
 
             // properties from MessageExtBatch
-            String batchPropStr = MessageDecoder.messageProperties2String(messageExtBatch.getProperties());
-            final byte[] batchPropData = batchPropStr.getBytes(MessageDecoder.CHARSET_UTF8);
-            final short batchPropLen = (short) batchPropData.length;
+            final short batchPropLen = (short) this.propertiesCodec.encode(messageExtBatch.getProperties());
+            final byte[] batchPropData = this.propertiesCodec.bytes();
 
             int batchSize = 0;
             while (messagesByteBuff.hasRemaining()) {
@@ -1652,7 +2129,8 @@ public class CommitLog {
                 // 7 PHYSICALOFFSET
                 this.encoderBuffer.putLong(0);
                 // 8 SYSFLAG
-                this.encoderBuffer.putInt(messageExtBatch.getSysFlag());
+                this.encoderBuffer.putInt(markBatchContinued && messagesByteBuff.hasRemaining()
+                    ? sysFlag | MessageSysFlag.BATCH_CONTINUED_FLAG : sysFlag);
                 // 9 BORNTIMESTAMP
                 this.encoderBuffer.putLong(messageExtBatch.getBornTimestamp());
                 // 10 BORNHOST
@@ -1713,6 +2191,10 @@ public class CommitLog {
         }
     }
 
+    interface ReservedSpaceAppender {
+        AppendMessageResult append(long wroteOffset, ByteBuffer byteBuffer, long queueOffset);
+    }
+
     static class PutMessageContext {
         private String topicQueueTableKey;
         private long[] phyPos;
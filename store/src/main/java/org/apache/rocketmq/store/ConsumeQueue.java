@@ -31,18 +31,19 @@ public class ConsumeQueue {
     public static final int CQ_STORE_UNIT_SIZE = 20;
     private static final InternalLogger LOG_ERROR = InternalLoggerFactory.getLogger(LoggerName.STORE_ERROR_LOGGER_NAME);
 
-    private final DefaultMessageStore defaultMessageStore;
+    protected final DefaultMessageStore defaultMessageStore;
 
-    private final MappedFileQueue mappedFileQueue;
-    private final String topic;
-    private final int queueId;
-    private final ByteBuffer byteBufferIndex;
+    protected final MappedFileQueue mappedFileQueue;
+    protected final String topic;
+    protected final int queueId;
+    protected final ByteBuffer byteBufferIndex;
 
     private final String storePath;
-    private final int mappedFileSize;
-    private long maxPhysicOffset = -1;
-    private volatile long minLogicOffset = 0;
+    protected final int mappedFileSize;
+    protected long maxPhysicOffset = -1;
+    protected volatile long minLogicOffset = 0;
     private ConsumeQueueExt consumeQueueExt = null;
+    private ConsumeQueueTimeIndex timeIndex = null;
 
     public ConsumeQueue(
         final String topic,
@@ -50,6 +51,43 @@ public class ConsumeQueue {
         final String storePath,
         final int mappedFileSize,
         final DefaultMessageStore defaultMessageStore) {
+        this(topic, queueId, storePath, mappedFileSize, CQ_STORE_UNIT_SIZE, defaultMessageStore);
+
+        if (defaultMessageStore.getMessageStoreConfig().isEnableConsumeQueueExt()) {
+            this.consumeQueueExt = new ConsumeQueueExt(
+                topic,
+                queueId,
+                StorePathConfigHelper.getStorePathConsumeQueueExt(defaultMessageStore.getMessageStoreConfig().getStorePathRootDir()),
+                defaultMessageStore.getMessageStoreConfig().getMappedFileSizeConsumeQueueExt(),
+                defaultMessageStore.getMessageStoreConfig().getBitMapLengthConsumeQueueExt()
+            );
+        }
+
+        if (defaultMessageStore.getMessageStoreConfig().isEnableConsumeQueueTimeIndex()) {
+            int sampleInterval = defaultMessageStore.getMessageStoreConfig().getConsumeQueueTimeIndexInterval();
+            // One time index file covers about one consume queue file
+            int timeIndexFileSize = Math.max(mappedFileSize / CQ_STORE_UNIT_SIZE / sampleInterval, 1)
+                * ConsumeQueueTimeIndex.UNIT_SIZE;
+            this.timeIndex = new ConsumeQueueTimeIndex(
+                topic,
+                queueId,
+                StorePathConfigHelper.getStorePathConsumeQueueTimeIndex(defaultMessageStore.getMessageStoreConfig().getStorePathRootDir()),
+                timeIndexFileSize,
+                sampleInterval
+            );
+        }
+    }
+
+    /**
+     * Create a queue of another unit size, without extension nor time index.
+     */
+    protected ConsumeQueue(
+        final String topic,
+        final int queueId,
+        final String storePath,
+        final int mappedFileSize,
+        final int unitSize,
+        final DefaultMessageStore defaultMessageStore) {
         this.storePath = storePath;
         this.mappedFileSize = mappedFileSize;
         this.defaultMessageStore = defaultMessageStore;
@@ -63,17 +101,7 @@ public class ConsumeQueue {
 
         this.mappedFileQueue = new MappedFileQueue(queueDir, mappedFileSize, null);
 
-        this.byteBufferIndex = ByteBuffer.allocate(CQ_STORE_UNIT_SIZE);
-
-        if (defaultMessageStore.getMessageStoreConfig().isEnableConsumeQueueExt()) {
-            this.consumeQueueExt = new ConsumeQueueExt(
-                topic,
-                queueId,
-                StorePathConfigHelper.getStorePathConsumeQueueExt(defaultMessageStore.getMessageStoreConfig().getStorePathRootDir()),
-                defaultMessageStore.getMessageStoreConfig().getMappedFileSizeConsumeQueueExt(),
-                defaultMessageStore.getMessageStoreConfig().getBitMapLengthConsumeQueueExt()
-            );
-        }
+        this.byteBufferIndex = ByteBuffer.allocate(unitSize);
     }
 
     public boolean load() {
@@ -82,6 +110,9 @@ public class ConsumeQueue {
         if (isExtReadEnable()) {
             result &= this.consumeQueueExt.load();
         }
+        if (isTimeIndexEnable()) {
+            result &= this.timeIndex.load();
+        }
         return result;
     }
 
@@ -150,9 +181,59 @@ public class ConsumeQueue {
                 this.consumeQueueExt.truncateByMaxAddress(maxExtAddr);
             }
         }
+
+        if (isTimeIndexEnable()) {
+            this.timeIndex.recover();
+        }
+    }
+
+    /**
+     * Drop the time samples beyond the queue and sample the entries which are not sampled yet, must be called after
+     * the min offset of the queue is corrected.
+     */
+    public void recoverTimeIndex() {
+        if (!isTimeIndexEnable()) {
+            return;
+        }
+
+        long maxOffset = this.getMaxOffsetInQueue();
+        this.timeIndex.truncateByMaxOffset(maxOffset);
+
+        int sampleInterval = this.timeIndex.getSampleInterval();
+        long from = Math.max(this.timeIndex.getMaxSampledOffset() + 1, this.getMinOffsetInQueue());
+        from = (from + sampleInterval - 1) / sampleInterval * sampleInterval;
+        int sampled = 0;
+        for (long cqOffset = from; cqOffset < maxOffset; cqOffset += sampleInterval) {
+            SelectMappedBufferResult bufferCQ = this.getIndexBuffer(cqOffset);
+            if (bufferCQ == null) {
+                continue;
+            }
+            try {
+                long offsetPy = bufferCQ.getByteBuffer().getLong();
+                int sizePy = bufferCQ.getByteBuffer().getInt();
+                long storeTimestamp = this.defaultMessageStore.getCommitLog().pickupStoreTimestamp(offsetPy, sizePy);
+                if (storeTimestamp > 0 && this.timeIndex.put(cqOffset, storeTimestamp)) {
+                    sampled++;
+                }
+            } finally {
+                bufferCQ.release();
+            }
+        }
+
+        if (sampled > 0) {
+            log.info("rebuild consume queue time index {}-{}, {} samples from offset {}",
+                this.topic, this.queueId, sampled, from);
+        }
     }
 
     public long getOffsetInQueueByTime(final long timestamp) {
+        if (isTimeIndexEnable()) {
+            long offset = this.getOffsetInQueueByTimeIndex(timestamp);
+            if (offset >= 0) {
+                return offset;
+            }
+        }
+
         MappedFile mappedFile = this.mappedFileQueue.getMappedFileByTime(timestamp);
         if (mappedFile != null) {
             long offset = 0;
@@ -160,7 +241,7 @@ public class ConsumeQueue {
             int high = 0;
             int midOffset = -1, targetOffset = -1, leftOffset = -1, rightOffset = -1;
             long leftIndexValue = -1L, rightIndexValue = -1L;
-            long minPhysicOffset = this.defaultMessageStore.getMinPhyOffset();
+            long minPhysicOffset = this.defaultMessageStore.getReadableMinPhyOffset();
             SelectMappedBufferResult sbr = mappedFile.selectMappedBuffer(0);
             if (null != sbr) {
                 ByteBuffer byteBuffer = sbr.getByteBuffer();
@@ -221,6 +302,77 @@ public class ConsumeQueue {
         return 0;
     }
 
+    /**
+     * Binary search between the two samples around the timestamp.
+     *
+     * @return the offset, -1 if the time index can't answer it
+     */
+    private long getOffsetInQueueByTimeIndex(final long timestamp) {
+        long minOffset = this.getMinOffsetInQueue();
+        long maxOffset = this.getMaxOffsetInQueue();
+        long[] range = this.timeIndex.searchRange(timestamp);
+        if (range == null || maxOffset <= minOffset) {
+            return -1;
+        }
+
+        long low = Math.max(range[0], minOffset);
+        long high = range[1] >= 0 && range[1] < maxOffset ? range[1] : maxOffset - 1;
+        if (low > high) {
+            return -1;
+        }
+
+        long targetOffset = -1, leftOffset = -1, rightOffset = -1;
+        long leftIndexValue = -1L, rightIndexValue = -1L;
+        long minPhysicOffset = this.defaultMessageStore.getReadableMinPhyOffset();
+        while (high >= low) {
+            long midOffset = (low + high) >>> 1;
+            SelectMappedBufferResult sbr = this.getIndexBuffer(midOffset);
+            if (sbr == null) {
+                return -1;
+            }
+            long phyOffset;
+            int size;
+            try {
+                phyOffset = sbr.getByteBuffer().getLong();
+                size = sbr.getByteBuffer().getInt();
+            } finally {
+                sbr.release();
+            }
+
+            if (phyOffset < minPhysicOffset) {
+                low = midOffset + 1;
+                leftOffset = midOffset;
+                continue;
+            }
+
+            long storeTime = this.defaultMessageStore.getCommitLog().pickupStoreTimestamp(phyOffset, size);
+            if (storeTime < 0) {
+                return 0;
+            } else if (storeTime == timestamp) {
+                targetOffset = midOffset;
+                break;
+            } else if (storeTime > timestamp) {
+                high = midOffset - 1;
+                rightOffset = midOffset;
+                rightIndexValue = storeTime;
+            } else {
+                low = midOffset + 1;
+                leftOffset = midOffset;
+                leftIndexValue = storeTime;
+            }
+        }
+
+        if (targetOffset != -1) {
+            return targetOffset;
+        } else if (leftIndexValue == -1) {
+            return rightOffset;
+        } else if (rightIndexValue == -1) {
+            return leftOffset;
+        } else {
+            return Math.abs(timestamp - leftIndexValue) > Math.abs(timestamp - rightIndexValue) ? rightOffset : leftOffset;
+        }
+    }
+
     public void truncateDirtyLogicFiles(long phyOffet) {
 
         int logicFileSize = this.mappedFileSize;
@@ -289,6 +441,10 @@ public class ConsumeQueue {
         if (isExtReadEnable()) {
             this.consumeQueueExt.truncateByMaxAddress(maxExtAddr);
         }
+
+        if (isTimeIndexEnable()) {
+            this.timeIndex.truncateByMaxOffset(this.getMaxOffsetInQueue());
+        }
     }
 
     public long getLastOffset() {
@@ -326,6 +482,9 @@ public class ConsumeQueue {
         if (isExtReadEnable()) {
             result = result & this.consumeQueueExt.flush(flushLeastPages);
         }
+        if (isTimeIndexEnable()) {
+            result = result & this.timeIndex.flush(flushLeastPages);
+        }
 
         return result;
     }
@@ -333,6 +492,9 @@ public class ConsumeQueue {
     public int deleteExpiredFile(long offset) {
         int cnt = this.mappedFileQueue.deleteExpiredFileByOffset(offset, CQ_STORE_UNIT_SIZE);
         this.correctMinOffset(offset);
+        if (isTimeIndexEnable()) {
+            this.timeIndex.deleteExpiredFile(this.getMinOffsetInQueue());
+        }
         return cnt;
     }
 
@@ -402,7 +564,13 @@ public class ConsumeQueue {
                     this.defaultMessageStore.getMessageStoreConfig().isEnableDLegerCommitLog()) {
                     this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(request.getStoreTimestamp());
                 }
-                this.defaultMessageStore.getStoreCheckpoint().setLogicsMsgTimestamp(request.getStoreTimestamp());
+                // With parallel dispatch, the pipeline advances it once the lanes behind have caught up
+                if (!this.defaultMessageStore.getMessageStoreConfig().isEnableParallelDispatch()) {
+                    this.defaultMessageStore.getStoreCheckpoint().setLogicsMsgTimestamp(request.getStoreTimestamp());
+                }
+                if (isTimeIndexEnable() && this.timeIndex.isSampled(request.getConsumeQueueOffset())) {
+                    this.timeIndex.put(request.getConsumeQueueOffset(), request.getStoreTimestamp());
+                }
                 return;
             } else {
                 // XXX: warn and notify me
@@ -552,6 +720,9 @@ public class ConsumeQueue {
         if (isExtReadEnable()) {
             this.consumeQueueExt.destroy();
         }
+        if (isTimeIndexEnable()) {
+            this.timeIndex.destroy();
+        }
     }
 
     public long getMessageTotalInQueue() {
@@ -562,11 +733,50 @@ public class ConsumeQueue {
         return this.mappedFileQueue.getMaxOffset() / CQ_STORE_UNIT_SIZE;
     }
 
+    /**
+     * @return the first queue offset whose message doesn't end before the physical offset, max offset if none
+     */
+    public long getOffsetInQueueByPhyOffset(final long phyOffset) {
+        long low = this.getMinOffsetInQueue();
+        long high = this.getMaxOffsetInQueue() - 1;
+        // Mostly all the messages are replicated
+        if (high < low || this.isBeforePhyOffset(high, phyOffset)) {
+            return high + 1;
+        }
+        high--;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            if (this.isBeforePhyOffset(mid, phyOffset)) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private boolean isBeforePhyOffset(final long index, final long phyOffset) {
+        SelectMappedBufferResult result = this.getIndexBuffer(index);
+        if (null == result) {
+            return false;
+        }
+        try {
+            long offsetPy = result.getByteBuffer().getLong();
+            int sizePy = result.getByteBuffer().getInt();
+            return offsetPy + sizePy <= phyOffset;
+        } finally {
+            result.release();
+        }
+    }
+
     public void checkSelf() {
         mappedFileQueue.checkSelf();
         if (isExtReadEnable()) {
             this.consumeQueueExt.checkSelf();
         }
+        if (isTimeIndexEnable()) {
+            this.timeIndex.checkSelf();
+        }
     }
 
     protected boolean isExtReadEnable() {
@@ -578,6 +788,10 @@ public class ConsumeQueue {
             && this.defaultMessageStore.getMessageStoreConfig().isEnableConsumeQueueExt();
     }
 
+    protected boolean isTimeIndexEnable() {
+        return this.timeIndex != null;
+    }
+
     /**
      * Check {@code tagsCode} is address of extend file or tags code.
      */
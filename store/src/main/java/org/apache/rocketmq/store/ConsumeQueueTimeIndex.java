@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+
+/**
+ * Sparse time index of one consume queue, a sample of the store timestamp is kept every {@code sampleInterval}
+ * consume queue units, so a lookup by time only binary searches between two neighbouring samples.
+ * <p>
+ * Append only, unit format:
+ * <pre>
+ * consumeQueueOffset(8) | storeTimestamp(8)
+ * </pre>
+ * The samples are derived data, missing ones are rebuilt from the consume queue and the commit log on recovery.
+ */
+public class ConsumeQueueTimeIndex {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    public static final int UNIT_SIZE = 16;
+
+    private final MappedFileQueue mappedFileQueue;
+    private final String topic;
+    private final int queueId;
+    private final int mappedFileSize;
+    private final int sampleInterval;
+    private final ByteBuffer unitBuffer = ByteBuffer.allocate(UNIT_SIZE);
+    private volatile long maxSampledOffset = -1;
+
+    public ConsumeQueueTimeIndex(
+        final String topic,
+        final int queueId,
+        final String storePath,
+        final int mappedFileSize,
+        final int sampleInterval) {
+        this.topic = topic;
+        this.queueId = queueId;
+        this.mappedFileSize = Math.max(mappedFileSize - mappedFileSize % UNIT_SIZE, UNIT_SIZE);
+        this.sampleInterval = Math.max(sampleInterval, 1);
+
+        String queueDir = storePath
+            + File.separator + topic
+            + File.separator + queueId;
+
+        this.mappedFileQueue = new MappedFileQueue(queueDir, this.mappedFileSize, null);
+    }
+
+    public boolean load() {
+        boolean result = this.mappedFileQueue.load();
+        log.info("load consume queue time index " + this.topic + "-" + this.queueId + " " + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+    public void recover() {
+        final List<MappedFile> mappedFiles = this.mappedFileQueue.getMappedFiles();
+        if (mappedFiles.isEmpty()) {
+            return;
+        }
+
+        int index = mappedFiles.size() - 3;
+        if (index < 0) {
+            index = 0;
+        }
+
+        long processOffset = mappedFiles.get(index).getFileFromOffset();
+        long lastSampledOffset = -1;
+        for (; index < mappedFiles.size(); index++) {
+            MappedFile mappedFile = mappedFiles.get(index);
+            ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+            int pos = 0;
+            for (; pos + UNIT_SIZE <= this.mappedFileSize; pos += UNIT_SIZE) {
+                long cqOffset = byteBuffer.getLong(pos);
+                long storeTimestamp = byteBuffer.getLong(pos + 8);
+                if (storeTimestamp <= 0 || cqOffset < 0 || cqOffset <= lastSampledOffset) {
+                    break;
+                }
+                lastSampledOffset = cqOffset;
+            }
+            processOffset = mappedFile.getFileFromOffset() + pos;
+            if (pos < this.mappedFileSize) {
+                break;
+            }
+        }
+
+        this.mappedFileQueue.setFlushedWhere(processOffset);
+        this.mappedFileQueue.setCommittedWhere(processOffset);
+        this.mappedFileQueue.truncateDirtyFiles(processOffset);
+        this.maxSampledOffset = lastSampledOffset;
+    }
+
+    public boolean isSampled(final long cqOffset) {
+        return cqOffset % this.sampleInterval == 0;
+    }
+
+    /**
+     * Append a sample, samples not after the last one are ignored as the consume queue may be built repeatedly.
+     */
+    public boolean put(final long cqOffset, final long storeTimestamp) {
+        if (cqOffset <= this.maxSampledOffset) {
+            return true;
+        }
+
+        MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+        if (mappedFile == null) {
+            log.error("create consume queue time index file failed, {}-{}", this.topic, this.queueId);
+            return false;
+        }
+
+        this.unitBuffer.clear();
+        this.unitBuffer.putLong(cqOffset);
+        this.unitBuffer.putLong(storeTimestamp);
+        if (mappedFile.appendMessage(this.unitBuffer.array())) {
+            this.maxSampledOffset = cqOffset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove the samples at or after the given consume queue offset.
+     */
+    public void truncateByMaxOffset(final long maxCqOffset) {
+        if (this.maxSampledOffset < maxCqOffset) {
+            return;
+        }
+
+        long minPos = this.mappedFileQueue.getMinOffset();
+        long count = (this.mappedFileQueue.getMaxOffset() - minPos) / UNIT_SIZE;
+        // the first sample which should be removed
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            long cqOffset = this.readLong(minPos + mid * UNIT_SIZE);
+            if (cqOffset >= maxCqOffset) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        long truncatePos = minPos + low * UNIT_SIZE;
+        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(truncatePos);
+        if (mappedFile != null) {
+            // So the stale samples are never recovered
+            mappedFile.sliceByteBuffer().putLong((int) (truncatePos % this.mappedFileSize) + 8, 0L);
+        }
+        this.mappedFileQueue.setFlushedWhere(Math.min(this.mappedFileQueue.getFlushedWhere(), truncatePos));
+        this.mappedFileQueue.setCommittedWhere(Math.min(this.mappedFileQueue.getCommittedWhere(), truncatePos));
+        this.mappedFileQueue.truncateDirtyFiles(truncatePos);
+        this.maxSampledOffset = low > 0 ? this.readLong(truncatePos - UNIT_SIZE) : -1;
+        log.info("truncate consume queue time index {}-{} by max offset {}, max sampled offset {}",
+            this.topic, this.queueId, maxCqOffset, this.maxSampledOffset);
+    }
+
+    /**
+     * Find the neighbouring samples of the timestamp.
+     *
+     * @return {the offset of the last sample not later than the timestamp, the offset of the next sample}, -1 if
+     * absent
+     */
+    public long[] searchRange(final long timestamp) {
+        long minPos = this.mappedFileQueue.getMinOffset();
+        long count = (this.mappedFileQueue.getMaxOffset() - minPos) / UNIT_SIZE;
+        // the first sample later than the timestamp
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            long storeTimestamp = this.readLong(minPos + mid * UNIT_SIZE + 8);
+            if (storeTimestamp < 0) {
+                return null;
+            }
+            if (storeTimestamp > timestamp) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        long floor = low > 0 ? this.readLong(minPos + (low - 1) * UNIT_SIZE) : -1;
+        long ceil = low < count ? this.readLong(minPos + low * UNIT_SIZE) : -1;
+        return new long[] {floor, ceil};
+    }
+
+    private long readLong(final long pos) {
+        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(pos);
+        if (mappedFile != null) {
+            SelectMappedBufferResult result = mappedFile.selectMappedBuffer((int) (pos % this.mappedFileSize), 8);
+            if (result != null) {
+                try {
+                    return result.getByteBuffer().getLong();
+                } finally {
+                    result.release();
+                }
+            }
+        }
+        return -1;
+    }
+
+    public long getMaxSampledOffset() {
+        return maxSampledOffset;
+    }
+
+    public int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    public boolean flush(final int flushLeastPages) {
+        return this.mappedFileQueue.flush(flushLeastPages);
+    }
+
+    public int deleteExpiredFile(final long minCqOffset) {
+        return this.mappedFileQueue.deleteExpiredFileByOffset(minCqOffset, UNIT_SIZE);
+    }
+
+    public void checkSelf() {
+        this.mappedFileQueue.checkSelf();
+    }
+
+    public void destroy() {
+        this.maxSampledOffset = -1;
+        this.mappedFileQueue.destroy();
+    }
+}
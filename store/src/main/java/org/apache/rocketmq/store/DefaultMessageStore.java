@@ -47,6 +47,7 @@ import org.apache.rocketmq.common.SystemClock;
 import org.apache.rocketmq.common.ThreadFactoryImpl;
 import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.MessageConst;
 import org.apache.rocketmq.common.message.MessageDecoder;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.common.message.MessageExtBatch;
@@ -55,6 +56,7 @@ import org.apache.rocketmq.common.sysflag.MessageSysFlag;
 import org.apache.rocketmq.common.topic.TopicValidator;
 import org.apache.rocketmq.logging.InternalLogger;
 import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.compaction.CompactionService;
 import org.apache.rocketmq.store.config.BrokerRole;
 import org.apache.rocketmq.store.config.MessageStoreConfig;
 import org.apache.rocketmq.store.config.StorePathConfigHelper;
@@ -63,6 +65,8 @@ import org.apache.rocketmq.store.ha.HAService;
 import org.apache.rocketmq.store.index.IndexService;
 import org.apache.rocketmq.store.index.QueryOffsetResult;
 import org.apache.rocketmq.store.schedule.ScheduleMessageService;
+import org.apache.rocketmq.store.tiered.TieredStorageService;
+import org.apache.rocketmq.store.timer.TimerMessageService;
 import org.apache.rocketmq.store.stats.BrokerStatsManager;
 
 public class DefaultMessageStore implements MessageStore {
@@ -86,10 +90,23 @@ public class DefaultMessageStore implements MessageStore {
 
     private final ReputMessageService reputMessageService;
 
+    private final DispatchPipelineService dispatchPipelineService;
+
     private final HAService haService;
 
     private final ScheduleMessageService scheduleMessageService;
 
+    private final TimerMessageService timerMessageService;
+
+    private final TieredStorageService tieredStorageService;
+
+    private final PageCacheResidencyService pageCacheResidencyService;
+
+    private final CompactionService compactionService;
+
+    // Topics whose queues keep an entry per message batch
+    private final Set<String> batchConsumeQueueTopics = new HashSet<String>();
+
     private final StoreStatsService storeStatsService;
 
     private final TransientStorePool transientStorePool;
@@ -107,6 +124,8 @@ public class DefaultMessageStore implements MessageStore {
 
     private StoreCheckpoint storeCheckpoint;
 
+    private StoreCheckpointJournal storeCheckpointJournal;
+
     private AtomicLong printTimes = new AtomicLong(0);
 
     private final LinkedList<CommitLogDispatcher> dispatcherList;
@@ -145,9 +164,44 @@ public class DefaultMessageStore implements MessageStore {
             this.haService = null;
         }
         this.reputMessageService = new ReputMessageService();
+        if (messageStoreConfig.isEnableParallelDispatch()) {
+            this.dispatchPipelineService = new DispatchPipelineService(this);
+        } else {
+            this.dispatchPipelineService = null;
+        }
 
         this.scheduleMessageService = new ScheduleMessageService(this);
 
+        if (messageStoreConfig.isTimerWheelEnable()) {
+            this.timerMessageService = new TimerMessageService(this);
+        } else {
+            this.timerMessageService = null;
+        }
+
+        if (messageStoreConfig.isTieredStorageEnable() && !messageStoreConfig.isEnableDLegerCommitLog()) {
+            this.tieredStorageService = new TieredStorageService(this);
+        } else {
+            this.tieredStorageService = null;
+        }
+
+        if (messageStoreConfig.isPageCacheResidencyEnable() && !messageStoreConfig.isEnableDLegerCommitLog()) {
+            this.pageCacheResidencyService = new PageCacheResidencyService(this);
+        } else {
+            this.pageCacheResidencyService = null;
+        }
+
+        if (!messageStoreConfig.getCompactionTopics().trim().isEmpty() && !messageStoreConfig.isEnableDLegerCommitLog()) {
+            this.compactionService = new CompactionService(this);
+        } else {
+            this.compactionService = null;
+        }
+
+        for (String topic : messageStoreConfig.getBatchConsumeQueueTopics().split(",")) {
+            if (!topic.trim().isEmpty()) {
+                this.batchConsumeQueueTopics.add(topic.trim());
+            }
+        }
+
         this.transientStorePool = new TransientStorePool(messageStoreConfig);
 
         if (messageStoreConfig.isTransientStorePoolEnable()) {
@@ -195,9 +249,22 @@ public class DefaultMessageStore implements MessageStore {
             // load Consume Queue
             result = result && this.loadConsumeQueue();
 
+            // load the manifest of the tiered storage, the consume queues are corrected by it when recovering
+            if (result && null != tieredStorageService) {
+                result = this.tieredStorageService.load();
+            }
+
+            if (result && null != compactionService) {
+                result = this.compactionService.load();
+            }
+
             if (result) {
                 this.storeCheckpoint =
                     new StoreCheckpoint(StorePathConfigHelper.getStoreCheckpoint(this.messageStoreConfig.getStorePathRootDir()));
+                if (this.messageStoreConfig.isCheckpointJournalEnable() && !this.messageStoreConfig.isEnableDLegerCommitLog()) {
+                    this.storeCheckpointJournal = new StoreCheckpointJournal(
+                        StorePathConfigHelper.getStoreCheckpointJournal(this.messageStoreConfig.getStorePathRootDir()));
+                }
 
                 this.indexService.load(lastExitOK);
 
@@ -208,6 +275,10 @@ public class DefaultMessageStore implements MessageStore {
                 if (null != scheduleMessageService) {
                     result =  this.scheduleMessageService.load();
                 }
+
+                if (result && null != timerMessageService) {
+                    result = this.timerMessageService.load(lastExitOK);
+                }
             }
 
         } catch (Exception e) {
@@ -267,6 +338,9 @@ public class DefaultMessageStore implements MessageStore {
             log.info("[SetReputOffset] maxPhysicalPosInLogicQueue={} clMinOffset={} clMaxOffset={} clConfirmedOffset={}",
                 maxPhysicalPosInLogicQueue, this.commitLog.getMinOffset(), this.commitLog.getMaxOffset(), this.commitLog.getConfirmOffset());
             this.reputMessageService.setReputFromOffset(maxPhysicalPosInLogicQueue);
+            if (this.dispatchPipelineService != null) {
+                this.dispatchPipelineService.start();
+            }
             this.reputMessageService.start();
 
             /**
@@ -290,6 +364,15 @@ public class DefaultMessageStore implements MessageStore {
 
         this.flushConsumeQueueService.start();
         this.commitLog.start();
+        if (this.tieredStorageService != null) {
+            this.tieredStorageService.start();
+        }
+        if (this.pageCacheResidencyService != null) {
+            this.pageCacheResidencyService.start();
+        }
+        if (this.compactionService != null) {
+            this.compactionService.start();
+        }
         this.storeStatsService.start();
 
         this.createTempFile();
@@ -313,6 +396,18 @@ public class DefaultMessageStore implements MessageStore {
             if (this.scheduleMessageService != null) {
                 this.scheduleMessageService.shutdown();
             }
+            if (this.timerMessageService != null) {
+                this.timerMessageService.close();
+            }
+            if (this.tieredStorageService != null) {
+                this.tieredStorageService.close();
+            }
+            if (this.pageCacheResidencyService != null) {
+                this.pageCacheResidencyService.shutdown();
+            }
+            if (this.compactionService != null) {
+                this.compactionService.shutdown();
+            }
             if (this.haService != null) {
                 this.haService.shutdown();
             }
@@ -321,10 +416,16 @@ public class DefaultMessageStore implements MessageStore {
             this.indexService.shutdown();
             this.commitLog.shutdown();
             this.reputMessageService.shutdown();
+            if (this.dispatchPipelineService != null) {
+                this.dispatchPipelineService.shutdown();
+            }
             this.flushConsumeQueueService.shutdown();
             this.allocateMappedFileService.shutdown();
             this.storeCheckpoint.flush();
             this.storeCheckpoint.shutdown();
+            if (this.storeCheckpointJournal != null) {
+                this.storeCheckpointJournal.shutdown();
+            }
 
             if (this.runningFlags.isWriteable() && dispatchBehindBytes() == 0) {
                 this.deleteFile(StorePathConfigHelper.getAbortFile(this.messageStoreConfig.getStorePathRootDir()));
@@ -349,6 +450,15 @@ public class DefaultMessageStore implements MessageStore {
         this.destroyLogics();
         this.commitLog.destroy();
         this.indexService.destroy();
+        if (this.timerMessageService != null) {
+            this.timerMessageService.destroy();
+        }
+        if (this.tieredStorageService != null) {
+            this.tieredStorageService.destroy();
+        }
+        if (this.compactionService != null) {
+            this.compactionService.destroy();
+        }
         this.deleteFile(StorePathConfigHelper.getAbortFile(this.messageStoreConfig.getStorePathRootDir()));
         this.deleteFile(StorePathConfigHelper.getStoreCheckpoint(this.messageStoreConfig.getStorePathRootDir()));
     }
@@ -371,6 +481,22 @@ public class DefaultMessageStore implements MessageStore {
             log.warn("putMessage message properties length too long " + msg.getPropertiesString().length());
             return PutMessageStatus.MESSAGE_ILLEGAL;
         }
+
+        if (this.timerMessageService != null) {
+            String deliverMs = msg.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS);
+            if (deliverMs != null) {
+                try {
+                    long delayMs = Long.parseLong(deliverMs) - System.currentTimeMillis();
+                    if (delayMs > this.messageStoreConfig.getTimerMaxDelaySec() * 1000L) {
+                        log.warn("putMessage message deliver time too far " + deliverMs);
+                        return PutMessageStatus.MESSAGE_ILLEGAL;
+                    }
+                } catch (NumberFormatException e) {
+                    log.warn("putMessage message deliver time illegal " + deliverMs);
+                    return PutMessageStatus.MESSAGE_ILLEGAL;
+                }
+            }
+        }
         return PutMessageStatus.PUT_OK;
     }
 
@@ -534,6 +660,14 @@ public class DefaultMessageStore implements MessageStore {
 
         long beginTime = this.getSystemClock().now();
 
+        if (this.compactionService != null && this.compactionService.isCompactionTopic(topic)
+            && offset < this.compactionService.getCompactedOffset(topic, queueId)) {
+            GetMessageResult compactedResult = this.getCompactedMessage(topic, queueId, offset, maxMsgNums, messageFilter);
+            if (compactedResult != null) {
+                return compactedResult;
+            }
+        }
+
         GetMessageStatus status = GetMessageStatus.NO_MESSAGE_IN_QUEUE;
         long nextBeginOffset = offset;
         long minOffset = 0;
@@ -565,6 +699,11 @@ public class DefaultMessageStore implements MessageStore {
                 } else {
                     nextBeginOffset = nextOffsetCorrection(offset, maxOffset);
                 }
+            } else if (consumeQueue instanceof BatchConsumeQueue) {
+                getResult = this.getBatchMessage(group, topic, queueId, (BatchConsumeQueue) consumeQueue, offset,
+                    maxMsgNums, messageFilter, maxOffsetPy);
+                status = getResult.getStatus();
+                nextBeginOffset = getResult.getNextBeginOffset();
             } else {
                 SelectMappedBufferResult bufferConsumeQueue = consumeQueue.getIndexBuffer(offset);
                 if (bufferConsumeQueue != null) {
@@ -573,6 +712,10 @@ public class DefaultMessageStore implements MessageStore {
 
                         long nextPhyFileStartOffset = Long.MIN_VALUE;
                         long maxPhyOffsetPulling = 0;
+                        // End of the range known to be in the page cache, probed once for the following messages
+                        long residentEndPy = Long.MIN_VALUE;
+                        int pageCacheHitNums = 0;
+                        int pageCacheMissNums = 0;
 
                         int i = 0;
                         final int maxFilterMessageCount = Math.max(16000, maxMsgNums * ConsumeQueue.CQ_STORE_UNIT_SIZE);
@@ -593,7 +736,19 @@ public class DefaultMessageStore implements MessageStore {
                                     continue;
                             }
 
-                            boolean isInDisk = checkInDiskByCommitOffset(offsetPy, maxOffsetPy);
+                            boolean isInDisk;
+                            boolean isResidencyTold = false;
+                            if (this.pageCacheResidencyService != null) {
+                                if (offsetPy + sizePy > residentEndPy) {
+                                    residentEndPy = this.pageCacheResidencyService.residentEnd(offsetPy, sizePy);
+                                }
+                                isResidencyTold = residentEndPy >= 0;
+                            }
+                            if (isResidencyTold) {
+                                isInDisk = offsetPy + sizePy > residentEndPy;
+                            } else {
+                                isInDisk = checkInDiskByCommitOffset(offsetPy, maxOffsetPy);
+                            }
 
                             if (this.isTheBatchFull(sizePy, maxMsgNums, getResult.getBufferTotalSize(), getResult.getMessageCount(),
                                 isInDisk)) {
@@ -645,9 +800,24 @@ public class DefaultMessageStore implements MessageStore {
                             this.storeStatsService.getGetMessageTransferedMsgCount().add(1);
                             getResult.addMessage(selectResult);
                             status = GetMessageStatus.FOUND;
+                            if (isResidencyTold) {
+                                if (isInDisk) {
+                                    pageCacheMissNums++;
+                                } else {
+                                    pageCacheHitNums++;
+                                }
+                            }
                             nextPhyFileStartOffset = Long.MIN_VALUE;
                         }
 
+                        if (this.pageCacheResidencyService != null && pageCacheHitNums + pageCacheMissNums > 0) {
+                            this.pageCacheResidencyService.recordAccess(pageCacheHitNums, pageCacheMissNums);
+                            // The consumer is catching up, get its next pulls into memory in advance
+                            if (pageCacheMissNums > 0) {
+                                this.pageCacheResidencyService.readAhead(maxPhyOffsetPulling);
+                            }
+                        }
+
                         if (diskFallRecorded) {
                             long fallBehind = maxOffsetPy - maxPhyOffsetPulling;
                             brokerStatsManager.recordDiskFallBehindSize(group, topic, queueId, fallBehind);
@@ -695,6 +865,136 @@ public class DefaultMessageStore implements MessageStore {
         return getResult;
     }
 
+    /**
+     * Read whole batches where they match, in a buffer each, the first one from the message of the offset.
+     */
+    private GetMessageResult getBatchMessage(final String group, final String topic, final int queueId,
+        final BatchConsumeQueue consumeQueue, final long offset, final int maxMsgNums, final MessageFilter messageFilter,
+        final long maxOffsetPy) {
+        GetMessageResult getResult = new GetMessageResult(maxMsgNums);
+        long entryIndex = consumeQueue.findEntryIndex(offset);
+        BatchConsumeQueue.Entry entry = consumeQueue.getEntry(entryIndex);
+        if (null == entry || offset >= entry.getBaseOffset() + entry.getMsgNum()) {
+            getResult.setStatus(GetMessageStatus.OFFSET_FOUND_NULL);
+            getResult.setNextBeginOffset(nextOffsetCorrection(offset, null == entry
+                ? consumeQueue.getMinOffsetInQueue() : entry.getBaseOffset() + entry.getMsgNum()));
+            log.warn("consumer request topic: " + topic + " offset: " + offset + ", but access batch consume queue failed.");
+            return getResult;
+        }
+
+        GetMessageStatus status = GetMessageStatus.NO_MATCHED_MESSAGE;
+        long nextBeginOffset = offset;
+        long maxPhyOffsetPulling = 0;
+        final int maxFilterMessageCount = Math.max(16000, maxMsgNums * ConsumeQueue.CQ_STORE_UNIT_SIZE);
+        int filteredNum = 0;
+
+        for (; entry != null && filteredNum < maxFilterMessageCount; entry = consumeQueue.getEntry(++entryIndex)) {
+            final int skipNum = (int) Math.max(0, nextBeginOffset - entry.getBaseOffset());
+            final int msgNum = Math.min(entry.getMsgNum() - skipNum, maxMsgNums - getResult.getMessageCount());
+            maxPhyOffsetPulling = entry.getPhyOffset();
+            boolean isInDisk = checkInDiskByCommitOffset(entry.getPhyOffset(), maxOffsetPy);
+            if (msgNum <= 0 || this.isTheBatchFull(entry.getSize(), maxMsgNums, getResult.getBufferTotalSize(),
+                getResult.getMessageCount(), isInDisk)) {
+                break;
+            }
+
+            filteredNum += entry.getMsgNum();
+            if (messageFilter != null
+                && !messageFilter.isMatchedByConsumeQueue(entry.isMixedTags() ? null : entry.getTagsCode(), null)) {
+                nextBeginOffset = entry.getBaseOffset() + entry.getMsgNum();
+                continue;
+            }
+
+            SelectMappedBufferResult batchResult = this.commitLog.getMessage(entry.getPhyOffset(), entry.getSize());
+            if (null == batchResult) {
+                if (getResult.getBufferTotalSize() == 0) {
+                    status = GetMessageStatus.MESSAGE_WAS_REMOVING;
+                }
+                nextBeginOffset = entry.getBaseOffset() + entry.getMsgNum();
+                continue;
+            }
+
+            int[] positions = new int[entry.getMsgNum() + 1];
+            ByteBuffer batchBuffer = batchResult.getByteBuffer();
+            for (int i = 1; i < positions.length; i++) {
+                positions[i] = positions[i - 1] + batchBuffer.getInt(positions[i - 1]);
+            }
+
+            boolean wholeRead = skipNum == 0 && msgNum == entry.getMsgNum();
+            if (wholeRead && messageFilter != null) {
+                for (int i = 0; i < entry.getMsgNum() && wholeRead; i++) {
+                    wholeRead = isMatchedByCommitLog(messageFilter, batchBuffer, positions[i], positions[i + 1]);
+                }
+            }
+
+            if (wholeRead) {
+                getResult.addMessage(batchResult, msgNum);
+                this.storeStatsService.getGetMessageTransferedMsgCount().add(msgNum);
+                status = GetMessageStatus.FOUND;
+            } else {
+                // Runs of the matched messages, from the skipped ones
+                int runStart = -1;
+                for (int i = skipNum; i <= skipNum + msgNum; i++) {
+                    boolean matched = i < skipNum + msgNum && (messageFilter == null
+                        || isMatchedByCommitLog(messageFilter, batchBuffer, positions[i], positions[i + 1]));
+                    if (matched && runStart < 0) {
+                        runStart = i;
+                    } else if (!matched && runStart >= 0) {
+                        SelectMappedBufferResult runResult = this.commitLog.getMessage(
+                            entry.getPhyOffset() + positions[runStart], positions[i] - positions[runStart]);
+                        if (runResult != null) {
+                            getResult.addMessage(runResult, i - runStart);
+                            this.storeStatsService.getGetMessageTransferedMsgCount().add(i - runStart);
+                            status = GetMessageStatus.FOUND;
+                        }
+                        runStart = -1;
+                    }
+                }
+                batchResult.release();
+            }
+            nextBeginOffset = entry.getBaseOffset() + skipNum + msgNum;
+        }
+
+        if (this.messageStoreConfig.isDiskFallRecorded()) {
+            long fallBehind = maxOffsetPy - maxPhyOffsetPulling;
+            brokerStatsManager.recordDiskFallBehindSize(group, topic, queueId, fallBehind);
+        }
+
+        long diff = maxOffsetPy - maxPhyOffsetPulling;
+        long memory = (long) (StoreUtil.TOTAL_PHYSICAL_MEMORY_SIZE
+            * (this.messageStoreConfig.getAccessMessageInMemoryMaxRatio() / 100.0));
+        getResult.setSuggestPullingFromSlave(diff > memory);
+        getResult.setStatus(status);
+        getResult.setNextBeginOffset(nextBeginOffset);
+        return getResult;
+    }
+
+    private static boolean isMatchedByCommitLog(final MessageFilter messageFilter, final ByteBuffer batchBuffer,
+        final int from, final int to) {
+        ByteBuffer msgBuffer = batchBuffer.duplicate();
+        msgBuffer.position(from);
+        msgBuffer.limit(to);
+        return messageFilter.isMatchedByCommitLog(msgBuffer.slice(), null);
+    }
+
+    private GetMessageResult getCompactedMessage(final String topic, final int queueId, final long offset,
+        final int maxMsgNums, final MessageFilter messageFilter) {
+        GetMessageResult getResult = this.compactionService.getMessage(topic, queueId, offset, maxMsgNums, messageFilter);
+        if (null == getResult) {
+            return null;
+        }
+
+        if (GetMessageStatus.FOUND == getResult.getStatus()) {
+            this.storeStatsService.getGetMessageTimesTotalFound().add(1);
+            this.storeStatsService.getGetMessageTransferedMsgCount().add(getResult.getMessageCount());
+        } else {
+            this.storeStatsService.getGetMessageTimesTotalMiss().add(1);
+        }
+        getResult.setMaxOffset(this.getMaxOffsetInQueue(topic, queueId));
+        getResult.setMinOffset(this.getMinOffsetInQueue(topic, queueId));
+        return getResult;
+    }
+
     public long getMaxOffsetInQueue(String topic, int queueId) {
         ConsumeQueue logic = this.findConsumeQueue(topic, queueId);
         if (logic != null) {
@@ -705,9 +1005,31 @@ public class DefaultMessageStore implements MessageStore {
         return 0;
     }
 
+    public long getReplicatedMaxOffsetInQueue(String topic, int queueId) {
+        if (BrokerRole.SLAVE == this.messageStoreConfig.getBrokerRole()) {
+            return this.getMaxOffsetInQueue(topic, queueId);
+        }
+
+        ConsumeQueue logic = this.findConsumeQueue(topic, queueId);
+        if (null == logic || null == this.haService) {
+            return -1;
+        }
+        long replicatedPhyOffset = this.haService.getMinSlaveAckOffset();
+        if (replicatedPhyOffset < 0) {
+            return -1;
+        }
+        return logic.getOffsetInQueueByPhyOffset(replicatedPhyOffset);
+    }
+
     public long getMinOffsetInQueue(String topic, int queueId) {
         ConsumeQueue logic = this.findConsumeQueue(topic, queueId);
         if (logic != null) {
+            if (this.compactionService != null && this.compactionService.isCompactionTopic(topic)) {
+                long compactedMinOffset = this.compactionService.getMinOffsetInQueue(topic, queueId);
+                if (compactedMinOffset >= 0) {
+                    return Math.min(compactedMinOffset, logic.getMinOffsetInQueue());
+                }
+            }
             return logic.getMinOffsetInQueue();
         }
 
@@ -821,6 +1143,30 @@ public class DefaultMessageStore implements MessageStore {
             if (this.scheduleMessageService != null) {
                 this.scheduleMessageService.buildRunningStats(result);
             }
+            if (this.timerMessageService != null) {
+                this.timerMessageService.buildRunningStats(result);
+            }
+            if (this.compactionService != null) {
+                this.compactionService.buildRunningStats(result);
+            }
+            if (this.tieredStorageService != null) {
+                this.tieredStorageService.buildRunningStats(result);
+            }
+            if (this.pageCacheResidencyService != null) {
+                this.pageCacheResidencyService.buildRunningStats(result);
+            }
+            if (this.messageStoreConfig.isTransientStorePoolEnable()) {
+                this.transientStorePool.buildRunningStats(result);
+            }
+            this.allocateMappedFileService.buildRunningStats(result);
+            this.commitLog.buildRunningStats(result);
+            if (this.haService != null) {
+                this.haService.buildRunningStats(result);
+            }
+        }
+
+        if (this.dispatchPipelineService != null) {
+            this.dispatchPipelineService.buildRunningStats(result, this.reputMessageService.getReputFromOffset());
         }
 
         result.put(RunningStats.commitLogMinOffset.name(), String.valueOf(DefaultMessageStore.this.getMinPhyOffset()));
@@ -839,13 +1185,22 @@ public class DefaultMessageStore implements MessageStore {
         return this.commitLog.getMinOffset();
     }
 
+    /**
+     * The min physical offset of the messages still readable, from the local commit log or the tiered storage.
+     */
+    public long getReadableMinPhyOffset() {
+        long minPhyOffset = this.commitLog.getMinOffset();
+        if (this.tieredStorageService != null) {
+            return this.tieredStorageService.getReadableMinOffset(minPhyOffset);
+        }
+        return minPhyOffset;
+    }
+
     @Override
     public long getEarliestMessageTime(String topic, int queueId) {
         ConsumeQueue logicQueue = this.findConsumeQueue(topic, queueId);
         if (logicQueue != null) {
-            long minLogicOffset = logicQueue.getMinLogicOffset();
-
-            SelectMappedBufferResult result = logicQueue.getIndexBuffer(minLogicOffset / ConsumeQueue.CQ_STORE_UNIT_SIZE);
+            SelectMappedBufferResult result = logicQueue.getIndexBuffer(logicQueue.getMinOffsetInQueue());
             return getStoreTime(result);
         }
 
@@ -1016,6 +1371,7 @@ public class DefaultMessageStore implements MessageStore {
             String topic = next.getKey();
 
             if (!topics.contains(topic) && !topic.equals(TopicValidator.RMQ_SYS_SCHEDULE_TOPIC)
+                    && !topic.equals(TopicValidator.RMQ_SYS_TIMER_TOPIC)
                     && !topic.equals(TopicValidator.RMQ_SYS_TRANS_OP_HALF_TOPIC)) {
                 ConcurrentMap<Integer, ConsumeQueue> queueTable = next.getValue();
                 for (ConsumeQueue cq : queueTable.values()) {
@@ -1041,13 +1397,13 @@ public class DefaultMessageStore implements MessageStore {
     }
 
     public void cleanExpiredConsumerQueue() {
-        long minCommitLogOffset = this.commitLog.getMinOffset();
+        long minCommitLogOffset = this.getReadableMinPhyOffset();
 
         Iterator<Entry<String, ConcurrentMap<Integer, ConsumeQueue>>> it = this.consumeQueueTable.entrySet().iterator();
         while (it.hasNext()) {
             Entry<String, ConcurrentMap<Integer, ConsumeQueue>> next = it.next();
             String topic = next.getKey();
-            if (!topic.equals(TopicValidator.RMQ_SYS_SCHEDULE_TOPIC)) {
+            if (!topic.equals(TopicValidator.RMQ_SYS_SCHEDULE_TOPIC) && !topic.equals(TopicValidator.RMQ_SYS_TIMER_TOPIC)) {
                 ConcurrentMap<Integer, ConsumeQueue> queueTable = next.getValue();
                 Iterator<Entry<Integer, ConsumeQueue>> itQT = queueTable.entrySet().iterator();
                 while (itQT.hasNext()) {
@@ -1143,6 +1499,13 @@ public class DefaultMessageStore implements MessageStore {
                     for (int i = 0; i < bufferConsumeQueue.getSize(); ) {
                         i += ConsumeQueue.CQ_STORE_UNIT_SIZE;
                         long offsetPy = bufferConsumeQueue.getByteBuffer().getLong();
+                        int sizePy = bufferConsumeQueue.getByteBuffer().getInt();
+                        if (this.pageCacheResidencyService != null) {
+                            long residentEndPy = this.pageCacheResidencyService.residentEnd(offsetPy, sizePy);
+                            if (residentEndPy >= 0) {
+                                return offsetPy + sizePy > residentEndPy;
+                            }
+                        }
                         return checkInDiskByCommitOffset(offsetPy, maxOffsetPy);
                     }
                 } finally {
@@ -1208,12 +1571,7 @@ public class DefaultMessageStore implements MessageStore {
 
         ConsumeQueue logic = map.get(queueId);
         if (null == logic) {
-            ConsumeQueue newLogic = new ConsumeQueue(
-                topic,
-                queueId,
-                StorePathConfigHelper.getStorePathConsumeQueue(this.messageStoreConfig.getStorePathRootDir()),
-                this.getMessageStoreConfig().getMappedFileSizeConsumeQueue(),
-                this);
+            ConsumeQueue newLogic = this.newConsumeQueue(topic, queueId, this.isBatchConsumeQueueTopic(topic));
             ConsumeQueue oldLogic = map.putIfAbsent(queueId, newLogic);
             if (oldLogic != null) {
                 logic = oldLogic;
@@ -1225,6 +1583,27 @@ public class DefaultMessageStore implements MessageStore {
         return logic;
     }
 
+    private ConsumeQueue newConsumeQueue(final String topic, final int queueId, final boolean batch) {
+        if (batch) {
+            return new BatchConsumeQueue(
+                topic,
+                queueId,
+                StorePathConfigHelper.getStorePathBatchConsumeQueue(this.messageStoreConfig.getStorePathRootDir()),
+                this.getMessageStoreConfig().getMappedFileSizeBatchConsumeQueue(),
+                this);
+        }
+        return new ConsumeQueue(
+            topic,
+            queueId,
+            StorePathConfigHelper.getStorePathConsumeQueue(this.messageStoreConfig.getStorePathRootDir()),
+            this.getMessageStoreConfig().getMappedFileSizeConsumeQueue(),
+            this);
+    }
+
+    public boolean isBatchConsumeQueueTopic(final String topic) {
+        return this.batchConsumeQueueTopics.contains(topic);
+    }
+
     private long nextOffsetCorrection(long oldOffset, long newOffset) {
         long nextOffset = oldOffset;
         if (this.getMessageStoreConfig().getBrokerRole() != BrokerRole.SLAVE || this.getMessageStoreConfig().isOffsetCheckInSlave()) {
@@ -1362,7 +1741,16 @@ public class DefaultMessageStore implements MessageStore {
     }
 
     private boolean loadConsumeQueue() {
-        File dirLogic = new File(StorePathConfigHelper.getStorePathConsumeQueue(this.messageStoreConfig.getStorePathRootDir()));
+        boolean result = this.loadConsumeQueue(StorePathConfigHelper.getStorePathConsumeQueue(this.messageStoreConfig.getStorePathRootDir()), false)
+            && this.loadConsumeQueue(StorePathConfigHelper.getStorePathBatchConsumeQueue(this.messageStoreConfig.getStorePathRootDir()), true);
+        if (result) {
+            log.info("load logics queue all over, OK");
+        }
+        return result;
+    }
+
+    private boolean loadConsumeQueue(final String storePath, final boolean batch) {
+        File dirLogic = new File(storePath);
         File[] fileTopicList = dirLogic.listFiles();
         if (fileTopicList != null) {
 
@@ -1378,12 +1766,7 @@ public class DefaultMessageStore implements MessageStore {
                         } catch (NumberFormatException e) {
                             continue;
                         }
-                        ConsumeQueue logic = new ConsumeQueue(
-                            topic,
-                            queueId,
-                            StorePathConfigHelper.getStorePathConsumeQueue(this.messageStoreConfig.getStorePathRootDir()),
-                            this.getMessageStoreConfig().getMappedFileSizeConsumeQueue(),
-                            this);
+                        ConsumeQueue logic = this.newConsumeQueue(topic, queueId, batch);
                         this.putConsumeQueue(topic, queueId, logic);
                         if (!logic.load()) {
                             return false;
@@ -1393,8 +1776,6 @@ public class DefaultMessageStore implements MessageStore {
             }
         }
 
-        log.info("load logics queue all over, OK");
-
         return true;
     }
 
@@ -1445,12 +1826,13 @@ public class DefaultMessageStore implements MessageStore {
 
     public void recoverTopicQueueTable() {
         HashMap<String/* topic-queueid */, Long/* offset */> table = new HashMap<String, Long>(1024);
-        long minPhyOffset = this.commitLog.getMinOffset();
+        long minPhyOffset = this.getReadableMinPhyOffset();
         for (ConcurrentMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
             for (ConsumeQueue logic : maps.values()) {
                 String key = logic.getTopic() + "-" + logic.getQueueId();
                 table.put(key, logic.getMaxOffsetInQueue());
                 logic.correctMinOffset(minPhyOffset);
+                logic.recoverTimeIndex();
             }
         }
 
@@ -1477,14 +1859,38 @@ public class DefaultMessageStore implements MessageStore {
         return storeCheckpoint;
     }
 
+    public StoreCheckpointJournal getStoreCheckpointJournal() {
+        return storeCheckpointJournal;
+    }
+
     public HAService getHaService() {
         return haService;
     }
 
+    public DispatchPipelineService getDispatchPipelineService() {
+        return dispatchPipelineService;
+    }
+
     public ScheduleMessageService getScheduleMessageService() {
         return scheduleMessageService;
     }
 
+    public TimerMessageService getTimerMessageService() {
+        return timerMessageService;
+    }
+
+    public TieredStorageService getTieredStorageService() {
+        return tieredStorageService;
+    }
+
+    public PageCacheResidencyService getPageCacheResidencyService() {
+        return pageCacheResidencyService;
+    }
+
+    public CompactionService getCompactionService() {
+        return compactionService;
+    }
+
     public RunningFlags getRunningFlags() {
         return runningFlags;
     }
@@ -1495,6 +1901,15 @@ public class DefaultMessageStore implements MessageStore {
         }
     }
 
+    void notifyMessageArrivingIfNecessary(DispatchRequest dispatchRequest) {
+        if (this.brokerConfig.isLongPollingEnable() && this.messageArrivingListener != null) {
+            this.messageArrivingListener.arriving(dispatchRequest.getTopic(),
+                dispatchRequest.getQueueId(), dispatchRequest.getConsumeQueueOffset() + 1,
+                dispatchRequest.getTagsCode(), dispatchRequest.getStoreTimestamp(),
+                dispatchRequest.getBitMap(), dispatchRequest.getPropertiesMap());
+        }
+    }
+
     public void putMessagePositionInfo(DispatchRequest dispatchRequest) {
         ConsumeQueue cq = this.findConsumeQueue(dispatchRequest.getTopic(), dispatchRequest.getQueueId());
         cq.putMessagePositionInfoWrapper(dispatchRequest);
@@ -1515,6 +1930,14 @@ public class DefaultMessageStore implements MessageStore {
             }
         }
 
+        if (this.timerMessageService != null) {
+            if (brokerRole == BrokerRole.SLAVE) {
+                this.timerMessageService.shutdown();
+            } else {
+                this.timerMessageService.start();
+            }
+        }
+
     }
 
     public int remainTransientStoreBufferNumbs() {
@@ -1599,6 +2022,8 @@ public class DefaultMessageStore implements MessageStore {
             try {
                 this.deleteExpiredFiles();
 
+                this.deleteUploadedFiles();
+
                 this.redeleteHangedFile();
             } catch (Throwable e) {
                 DefaultMessageStore.log.warn(this.getServiceName() + " service has exception. ", e);
@@ -1640,6 +2065,26 @@ public class DefaultMessageStore implements MessageStore {
             }
         }
 
+        /**
+         * Uploaded files are removed locally once they are older than tieredLocalFileReservedTime, no matter it's
+         * the time to delete or not.
+         */
+        private void deleteUploadedFiles() {
+            TieredStorageService tieredStorageService = DefaultMessageStore.this.tieredStorageService;
+            if (tieredStorageService == null) {
+                return;
+            }
+
+            long localReservedTime = DefaultMessageStore.this.getMessageStoreConfig().getTieredLocalFileReservedTime() * 60L * 60 * 1000;
+            int deletePhysicFilesInterval = DefaultMessageStore.this.getMessageStoreConfig().getDeleteCommitLogFilesInterval();
+            int destroyMapedFileIntervalForcibly = DefaultMessageStore.this.getMessageStoreConfig().getDestroyMapedFileIntervalForcibly();
+            int deleteCount = DefaultMessageStore.this.commitLog.deleteUploadedFile(localReservedTime, deletePhysicFilesInterval,
+                destroyMapedFileIntervalForcibly, tieredStorageService.getUploadedMaxOffset());
+            if (deleteCount > 0) {
+                log.info("delete {} commit log files which have been uploaded to the tiered storage", deleteCount);
+            }
+        }
+
         private void redeleteHangedFile() {
             int interval = DefaultMessageStore.this.getMessageStoreConfig().getRedeleteHangedFileInterval();
             long currentTimestamp = System.currentTimeMillis();
@@ -1807,7 +2252,7 @@ public class DefaultMessageStore implements MessageStore {
         private void deleteExpiredFiles() {
             int deleteLogicsFilesInterval = DefaultMessageStore.this.getMessageStoreConfig().getDeleteConsumeQueueFilesInterval();
 
-            long minOffset = DefaultMessageStore.this.commitLog.getMinOffset();
+            long minOffset = DefaultMessageStore.this.getReadableMinPhyOffset();
             if (minOffset > this.lastPhysicalMinOffset) {
                 this.lastPhysicalMinOffset = minOffset;
 
@@ -1856,6 +2301,11 @@ public class DefaultMessageStore implements MessageStore {
                 logicsMsgTimestamp = DefaultMessageStore.this.getStoreCheckpoint().getLogicsMsgTimestamp();
             }
 
+            long confirmedOffset = -1;
+            if (0 == flushConsumeQueueLeastPages && DefaultMessageStore.this.storeCheckpointJournal != null) {
+                confirmedOffset = this.captureConfirmedOffset();
+            }
+
             ConcurrentMap<String, ConcurrentMap<Integer, ConsumeQueue>> tables = DefaultMessageStore.this.consumeQueueTable;
 
             for (ConcurrentMap<Integer, ConsumeQueue> maps : tables.values()) {
@@ -1864,6 +2314,15 @@ public class DefaultMessageStore implements MessageStore {
                     for (int i = 0; i < retryTimes && !result; i++) {
                         result = cq.flush(flushConsumeQueueLeastPages);
                     }
+                    // One file is flushed a time, the confirmed offset needs all the files flushed
+                    if (confirmedOffset >= 0) {
+                        for (int i = 0; i < RETRY_TIMES_OVER && !result; i++) {
+                            result = cq.flush(0);
+                        }
+                        if (!result) {
+                            confirmedOffset = -1;
+                        }
+                    }
                 }
             }
 
@@ -1872,7 +2331,38 @@ public class DefaultMessageStore implements MessageStore {
                     DefaultMessageStore.this.getStoreCheckpoint().setLogicsMsgTimestamp(logicsMsgTimestamp);
                 }
                 DefaultMessageStore.this.getStoreCheckpoint().flush();
+                if (confirmedOffset >= 0) {
+                    this.appendCheckpointJournal(confirmedOffset);
+                }
+            }
+        }
+
+        /**
+         * @return offset below which the commit log is flushed and dispatched, -1 if it can't be told now
+         */
+        private long captureConfirmedOffset() {
+            long reputFromOffset = DefaultMessageStore.this.reputMessageService.getReputFromOffset();
+            // The requests before the reput offset are not built into the consume queues until the pipeline drains
+            if (DefaultMessageStore.this.dispatchPipelineService != null && !DefaultMessageStore.this.dispatchPipelineService.isIdle()) {
+                return -1;
+            }
+            return Math.min(reputFromOffset, DefaultMessageStore.this.commitLog.getFlushedWhere());
+        }
+
+        private void appendCheckpointJournal(final long confirmedOffset) {
+            StoreCheckpointJournal journal = DefaultMessageStore.this.storeCheckpointJournal;
+            long lastConfirmedOffset = journal.getConfirmedOffset();
+            if (confirmedOffset <= lastConfirmedOffset) {
+                return;
+            }
+            // The CRC covers the data since the last record, no more than a window
+            long crcFrom = Math.max(Math.max(lastConfirmedOffset, DefaultMessageStore.this.commitLog.getMinOffset()),
+                confirmedOffset - DefaultMessageStore.this.messageStoreConfig.getCheckpointJournalCrcWindow());
+            long dataCrc = DefaultMessageStore.this.commitLog.crc32(crcFrom, confirmedOffset);
+            if (dataCrc < 0) {
+                return;
             }
+            journal.append(crcFrom, confirmedOffset, dataCrc);
         }
 
         public void run() {
@@ -1934,14 +2424,18 @@ public class DefaultMessageStore implements MessageStore {
         }
 
         public long behind() {
-            return DefaultMessageStore.this.commitLog.getMaxOffset() - this.reputFromOffset;
+            long behind = DefaultMessageStore.this.commitLog.getMaxOffset() - this.reputFromOffset;
+            if (DefaultMessageStore.this.dispatchPipelineService != null) {
+                behind += DefaultMessageStore.this.dispatchPipelineService.getPendingBytes();
+            }
+            return behind;
         }
 
         private boolean isCommitLogAvailable() {
             return this.reputFromOffset < DefaultMessageStore.this.commitLog.getMaxOffset();
         }
 
-        private void doReput() {
+        private void doReput() throws InterruptedException {
             if (this.reputFromOffset < DefaultMessageStore.this.commitLog.getMinOffset()) {
                 log.warn("The reputFromOffset={} is smaller than minPyOffset={}, this usually indicate that the dispatch behind too much and the commitlog has expired.",
                     this.reputFromOffset, DefaultMessageStore.this.commitLog.getMinOffset());
@@ -1965,16 +2459,15 @@ public class DefaultMessageStore implements MessageStore {
                             int size = dispatchRequest.getBufferSize() == -1 ? dispatchRequest.getMsgSize() : dispatchRequest.getBufferSize();
 
                             if (dispatchRequest.isSuccess()) {
-                                if (size > 0) {
-                                    DefaultMessageStore.this.doDispatch(dispatchRequest);
-
-                                    if (BrokerRole.SLAVE != DefaultMessageStore.this.getMessageStoreConfig().getBrokerRole()
-                                            && DefaultMessageStore.this.brokerConfig.isLongPollingEnable()
-                                            && DefaultMessageStore.this.messageArrivingListener != null) {
-                                        DefaultMessageStore.this.messageArrivingListener.arriving(dispatchRequest.getTopic(),
-                                            dispatchRequest.getQueueId(), dispatchRequest.getConsumeQueueOffset() + 1,
-                                            dispatchRequest.getTagsCode(), dispatchRequest.getStoreTimestamp(),
-                                            dispatchRequest.getBitMap(), dispatchRequest.getPropertiesMap());
+                                if (size > 0 && dispatchRequest.isPadding()) {
+                                    this.reputFromOffset += size;
+                                    readSize += size;
+                                } else if (size > 0) {
+                                    if (DefaultMessageStore.this.dispatchPipelineService != null) {
+                                        DefaultMessageStore.this.dispatchPipelineService.dispatch(dispatchRequest, size);
+                                    } else {
+                                        DefaultMessageStore.this.doDispatch(dispatchRequest);
+                                        DefaultMessageStore.this.notifyMessageArrivingIfNecessary(dispatchRequest);
                                     }
 
                                     this.reputFromOffset += size;
@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+
+/**
+ * Dispatch the requests parsed by ReputMessageService on several lanes.
+ * <p>
+ * Requests are sharded by topic and queueId over the consume queue lanes, so the order inside one queue is kept,
+ * while the index is built on its own lane. Only enabled when {@link MessageStoreConfig#isEnableParallelDispatch()}.
+ * <p>
+ * A lane may run ahead of the others, so the logics timestamp of the checkpoint is advanced here, to the store
+ * timestamp of the last request every lane has dispatched with all the requests before it, rather than by the
+ * consume queues.
+ */
+public class DispatchPipelineService {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final DispatchLane[] queueLanes;
+    private final DispatchLane indexLane;
+    /**
+     * Bytes handed over by the reader but not yet dispatched by every lane
+     */
+    private final AtomicLong pendingBytes = new AtomicLong(0);
+    /**
+     * Requests in the order of the commit log, removed from the head once dispatched by every lane
+     */
+    private final ConcurrentLinkedQueue<DispatchTask> inflightTasks = new ConcurrentLinkedQueue<DispatchTask>();
+    private volatile long lowWatermark = 0;
+
+    public DispatchPipelineService(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+        MessageStoreConfig messageStoreConfig = defaultMessageStore.getMessageStoreConfig();
+        int laneNums = Math.max(1, messageStoreConfig.getDispatchThreadPoolNums());
+        int capacity = Math.max(1, messageStoreConfig.getDispatchQueueCapacity());
+        this.queueLanes = new DispatchLane[laneNums];
+        for (int i = 0; i < laneNums; i++) {
+            this.queueLanes[i] = new DispatchLane("DispatchQueueLane_" + i, capacity, false);
+        }
+        this.indexLane = new DispatchLane("DispatchIndexLane", capacity, true);
+    }
+
+    public void start() {
+        for (DispatchLane lane : this.queueLanes) {
+            lane.start();
+        }
+        this.indexLane.start();
+    }
+
+    public void shutdown() {
+        for (DispatchLane lane : this.queueLanes) {
+            lane.shutdown();
+        }
+        this.indexLane.shutdown();
+    }
+
+    /**
+     * Hand over one parsed request, block when the target lane is full.
+     *
+     * @param request the request parsed from the commit log
+     * @param size the size of the request in the commit log
+     */
+    public void dispatch(final DispatchRequest request, final int size) throws InterruptedException {
+        boolean buildIndex = this.defaultMessageStore.getMessageStoreConfig().isMessageIndexEnable();
+        DispatchTask task = new DispatchTask(request, size, buildIndex ? 2 : 1);
+        this.pendingBytes.addAndGet(size);
+        this.inflightTasks.add(task);
+        this.queueLanes[this.laneIndex(request.getTopic(), request.getQueueId())].put(task);
+        if (buildIndex) {
+            this.indexLane.put(task);
+        }
+    }
+
+    private int laneIndex(final String topic, final int queueId) {
+        int hash = 31 * topic.hashCode() + queueId;
+        return (hash & Integer.MAX_VALUE) % this.queueLanes.length;
+    }
+
+    /**
+     * Drop the dispatched requests at the head, and advance the checkpoint to the last of them.
+     */
+    private synchronized void advanceLowWatermark() {
+        long storeTimestamp = 0;
+        DispatchTask head;
+        while ((head = this.inflightTasks.peek()) != null && head.remainingLanes.get() == 0) {
+            this.inflightTasks.poll();
+            storeTimestamp = head.request.getStoreTimestamp();
+        }
+        if (storeTimestamp > 0) {
+            this.lowWatermark = storeTimestamp;
+            this.defaultMessageStore.getStoreCheckpoint().setLogicsMsgTimestamp(storeTimestamp);
+        }
+    }
+
+    /**
+     * @return the store timestamp up to which every request is dispatched
+     */
+    public long getLowWatermark() {
+        return this.lowWatermark;
+    }
+
+    public long getPendingBytes() {
+        return this.pendingBytes.get();
+    }
+
+    public boolean isIdle() {
+        return this.pendingBytes.get() <= 0;
+    }
+
+    public void buildRunningStats(final HashMap<String, String> stats, final long reputFromOffset) {
+        for (DispatchLane lane : this.queueLanes) {
+            lane.buildRunningStats(stats, reputFromOffset);
+        }
+        this.indexLane.buildRunningStats(stats, reputFromOffset);
+        stats.put("dispatchPendingBytes", String.valueOf(this.pendingBytes.get()));
+        stats.put("dispatchLowWatermark", String.valueOf(this.lowWatermark));
+    }
+
+    static class DispatchTask {
+        private final DispatchRequest request;
+        private final int size;
+        private final AtomicInteger remainingLanes;
+        private final long createTimestamp = System.currentTimeMillis();
+
+        DispatchTask(final DispatchRequest request, final int size, final int lanes) {
+            this.request = request;
+            this.size = size;
+            this.remainingLanes = new AtomicInteger(lanes);
+        }
+    }
+
+    class DispatchLane extends ServiceThread {
+        private final String laneName;
+        private final LinkedBlockingQueue<DispatchTask> taskQueue;
+        private final boolean indexLane;
+        private final AtomicLong dispatchedTimes = new AtomicLong(0);
+        private volatile long dispatchLatencyMax = 0;
+
+        DispatchLane(final String laneName, final int capacity, final boolean indexLane) {
+            this.laneName = laneName;
+            this.taskQueue = new LinkedBlockingQueue<DispatchTask>(capacity);
+            this.indexLane = indexLane;
+        }
+
+        void put(final DispatchTask task) throws InterruptedException {
+            this.taskQueue.put(task);
+        }
+
+        private void doDispatch(final DispatchTask task) {
+            try {
+                for (CommitLogDispatcher dispatcher : DispatchPipelineService.this.defaultMessageStore.getDispatcherList()) {
+                    boolean isIndexDispatcher = dispatcher instanceof DefaultMessageStore.CommitLogDispatcherBuildIndex;
+                    if (isIndexDispatcher == this.indexLane) {
+                        dispatcher.dispatch(task.request);
+                    }
+                }
+
+                if (!this.indexLane) {
+                    DispatchPipelineService.this.defaultMessageStore.notifyMessageArrivingIfNecessary(task.request);
+                }
+            } catch (Throwable e) {
+                log.error("{} dispatch error, commitLogOffset={}", this.laneName, task.request.getCommitLogOffset(), e);
+            } finally {
+                long latency = System.currentTimeMillis() - task.createTimestamp;
+                if (latency > this.dispatchLatencyMax) {
+                    this.dispatchLatencyMax = latency;
+                }
+                this.dispatchedTimes.incrementAndGet();
+                if (task.remainingLanes.decrementAndGet() == 0) {
+                    DispatchPipelineService.this.pendingBytes.addAndGet(-task.size);
+                    DispatchPipelineService.this.advanceLowWatermark();
+                }
+            }
+        }
+
+        void buildRunningStats(final HashMap<String, String> stats, final long reputFromOffset) {
+            DispatchTask head = this.taskQueue.peek();
+            long behindBytes = head == null ? 0 : Math.max(0, reputFromOffset - head.request.getCommitLogOffset());
+            stats.put(this.laneName + "_queueSize", String.valueOf(this.taskQueue.size()));
+            stats.put(this.laneName + "_behindBytes", String.valueOf(behindBytes));
+            stats.put(this.laneName + "_dispatchedTimes", String.valueOf(this.dispatchedTimes.get()));
+            stats.put(this.laneName + "_dispatchLatencyMax", String.valueOf(this.dispatchLatencyMax));
+            this.dispatchLatencyMax = 0;
+        }
+
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped() || !this.taskQueue.isEmpty()) {
+                try {
+                    DispatchTask task = this.taskQueue.poll(100, TimeUnit.MILLISECONDS);
+                    if (task != null) {
+                        this.doDispatch(task);
+                    }
+                } catch (InterruptedException e) {
+                    log.warn(this.getServiceName() + " interrupted, possibly by shutdown.");
+                } catch (Exception e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+        @Override
+        public String getServiceName() {
+            return this.laneName;
+        }
+    }
+}
@@ -35,6 +35,8 @@ public class DispatchRequest {
     private final Map<String, String> propertiesMap;
     private byte[] bitMap;
 
+    // A space left by a failed append in the middle of a file, skipped without being dispatched
+    private boolean padding = false;
     private int bufferSize = -1;//the buffer size maybe larger than the msg size if the message is wrapped by something
 
     public DispatchRequest(
@@ -170,4 +172,12 @@ public class DispatchRequest {
     public void setBufferSize(int bufferSize) {
         this.bufferSize = bufferSize;
     }
+
+    public boolean isPadding() {
+        return padding;
+    }
+
+    public void setPadding(boolean padding) {
+        this.padding = padding;
+    }
 }
@@ -33,6 +33,8 @@ public class GetMessageResult {
 
     private int bufferTotalSize = 0;
 
+    private int messageCount = 0;
+
     private boolean suggestPullingFromSlave = false;
 
     private int msgCount4Commercial = 0;
@@ -88,6 +90,14 @@ public class GetMessageResult {
     }
 
     public void addMessage(final SelectMappedBufferResult mapedBuffer) {
+        this.addMessage(mapedBuffer, 1);
+    }
+
+    /**
+     * @param msgNum number of the messages in the buffer, more than one for a batch read as a whole
+     */
+    public void addMessage(final SelectMappedBufferResult mapedBuffer, final int msgNum) {
+        this.messageCount += msgNum;
         this.messageMapedList.add(mapedBuffer);
         this.messageBufferList.add(mapedBuffer.getByteBuffer());
         this.bufferTotalSize += mapedBuffer.getSize();
@@ -110,7 +120,7 @@ public class GetMessageResult {
     }
 
     public int getMessageCount() {
-        return this.messageMapedList.size();
+        return this.messageCount;
     }
 
     public boolean isSuggestPullingFromSlave() {
@@ -29,6 +29,8 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import org.apache.rocketmq.common.UtilAll;
@@ -51,6 +53,10 @@ public class MappedFile extends ReferenceResource {
     private static final AtomicInteger TOTAL_MAPPED_FILES = new AtomicInteger(0);
     protected final AtomicInteger wrotePosition = new AtomicInteger(0);
     protected final AtomicInteger committedPosition = new AtomicInteger(0);
+    // End of the space reserved by the lock free appenders, see reserve
+    protected final AtomicInteger reservedPosition = new AtomicInteger(0);
+    // Reserved spaces written but not published yet, start position -> end position
+    private final ConcurrentMap<Integer, Integer> writtenSpaces = new ConcurrentHashMap<Integer, Integer>();
     private final AtomicInteger flushedPosition = new AtomicInteger(0);
     protected int fileSize;
     protected FileChannel fileChannel;
@@ -231,6 +237,79 @@ public class MappedFile extends ReferenceResource {
         return this.fileFromOffset;
     }
 
+    /**
+     * Reserve space for a lock free appender, the space between the reserved and the wrote position is being written.
+     *
+     * @param size bytes to reserve
+     * @param minBlank bytes which must be left for the blank at the end of file
+     * @return the position of the reserved space, -1 if the file has no room for it
+     */
+    public int reserve(final int size, final int minBlank) {
+        while (true) {
+            int reserved = this.reservedPosition.get();
+            int start = Math.max(reserved, this.wrotePosition.get());
+            if (start + size + minBlank > this.fileSize) {
+                return -1;
+            }
+            if (this.reservedPosition.compareAndSet(reserved, start + size)) {
+                return start;
+            }
+        }
+    }
+
+    /**
+     * Reserve the rest of the file to write the blank at the end.
+     *
+     * @return the position of the rest, -1 if it is reserved by others
+     */
+    public int reserveRemaining() {
+        while (true) {
+            int reserved = this.reservedPosition.get();
+            int start = Math.max(reserved, this.wrotePosition.get());
+            if (start >= this.fileSize) {
+                return -1;
+            }
+            if (this.reservedPosition.compareAndSet(reserved, this.fileSize)) {
+                return start;
+            }
+        }
+    }
+
+    /**
+     * @return a buffer to write the reserved space from the position
+     */
+    public ByteBuffer sliceForAppend(final int pos) {
+        ByteBuffer byteBuffer = writeBuffer != null ? writeBuffer.slice() : this.mappedByteBuffer.slice();
+        byteBuffer.position(pos);
+        return byteBuffer;
+    }
+
+    /**
+     * Make the written space visible to the flush, commit and reput services. The wrote position never passes a space
+     * still being written, so a space written before the ones ahead of it is left to be published by the appender who
+     * fills the gap, instead of waiting for it.
+     *
+     * @return whether the space is visible already
+     */
+    public boolean publish(final int start, final int end, final long storeTimestamp) {
+        this.storeTimestamp = storeTimestamp;
+        if (this.wrotePosition.get() == start) {
+            this.wrotePosition.set(end);
+        } else {
+            this.writtenSpaces.put(start, end);
+        }
+
+        // Only the one who takes the space at the wrote position moves it
+        while (true) {
+            int pos = this.wrotePosition.get();
+            Integer next = this.writtenSpaces.remove(pos);
+            if (null == next) {
+                return this.wrotePosition.get() >= end;
+            }
+            this.wrotePosition.set(next);
+        }
+    }
+
     public boolean appendMessage(final byte[] data) {
         int currentPos = this.wrotePosition.get();
 
@@ -442,12 +521,22 @@ public class MappedFile extends ReferenceResource {
     }
 
     public boolean destroy(final long intervalForcibly) {
+        return this.destroy(intervalForcibly, true);
+    }
+
+    /**
+     * @param deleteFile false to keep the file after it is unmapped and closed, so it can be recycled
+     */
+    public boolean destroy(final long intervalForcibly, final boolean deleteFile) {
         this.shutdown(intervalForcibly);
 
         if (this.isCleanupOver()) {
             try {
                 this.fileChannel.close();
                 log.info("close file channel " + this.fileName + " OK");
+                if (!deleteFile) {
+                    return true;
+                }
 
                 long beginTime = System.currentTimeMillis();
                 boolean result = this.file.delete();
@@ -474,6 +563,8 @@ public class MappedFile extends ReferenceResource {
 
     public void setWrotePosition(int pos) {
         this.wrotePosition.set(pos);
+        this.reservedPosition.set(pos);
+        this.writtenSpaces.clear();
     }
 
     /**
@@ -509,7 +600,10 @@ public class MappedFile extends ReferenceResource {
                 try {
                     Thread.sleep(0);
                 } catch (InterruptedException e) {
-                    log.error("Interrupted", e);
+                    // Stop between the page batches, so the file can be unmapped soon after
+                    log.warn("mapped file warm-up interrupted, mappedFile={}, warmed={}", this.getFileName(), i);
+                    Thread.currentThread().interrupt();
+                    return;
                 }
             }
         }
@@ -565,6 +659,53 @@ public class MappedFile extends ReferenceResource {
         }
     }
 
+    /**
+     * Check which pages of the range are in the page cache, by mincore.
+     *
+     * @return bytes from the page of pos which are resident without a gap, -1 if mincore failed
+     */
+    public int residentSize(final int pos, final int size) {
+        int pageStart = pos - pos % OS_PAGE_SIZE;
+        int end = Math.min(pos + size, this.fileSize);
+        if (end <= pageStart || !this.hold()) {
+            return 0;
+        }
+        try {
+            int pageNum = (end - pageStart + OS_PAGE_SIZE - 1) / OS_PAGE_SIZE;
+            byte[] vec = new byte[pageNum];
+            Pointer pointer = new Pointer(((DirectBuffer) this.mappedByteBuffer).address() + pageStart);
+            if (LibC.INSTANCE.mincore(pointer, new NativeLong(end - pageStart), vec) != 0) {
+                return -1;
+            }
+            int resident = 0;
+            while (resident < pageNum && (vec[resident] & 1) != 0) {
+                resident++;
+            }
+            return Math.min(resident * OS_PAGE_SIZE, end - pageStart);
+        } finally {
+            this.release();
+        }
+    }
+
+    /**
+     * Ask the kernel to read the range into the page cache asynchronously, by madvise(WILLNEED).
+     *
+     * @return whether the advice is taken
+     */
+    public boolean willNeed(final int pos, final int size) {
+        int pageStart = pos - pos % OS_PAGE_SIZE;
+        int end = Math.min(pos + size, this.fileSize);
+        if (end <= pageStart || !this.hold()) {
+            return false;
+        }
+        try {
+            Pointer pointer = new Pointer(((DirectBuffer) this.mappedByteBuffer).address() + pageStart);
+            return LibC.INSTANCE.madvise(pointer, new NativeLong(end - pageStart), LibC.MADV_WILLNEED) == 0;
+        } finally {
+            this.release();
+        }
+    }
+
     public void munlock() {
         final long beginTime = System.currentTimeMillis();
         final long address = ((DirectBuffer) (this.mappedByteBuffer)).address();
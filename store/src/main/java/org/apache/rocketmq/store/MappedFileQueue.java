@@ -47,7 +47,7 @@ public class MappedFileQueue {
     protected long flushedWhere = 0;
     private long committedWhere = 0;
 
-    private volatile long storeTimestamp = 0;
+    protected volatile long storeTimestamp = 0;
 
     public MappedFileQueue(final String storePath, int mappedFileSize,
         AllocateMappedFileService allocateMappedFileService) {
@@ -218,17 +218,24 @@ public class MappedFileQueue {
 
     protected MappedFile tryCreateMappedFile(long createOffset) {
         String nextFilePath = this.storePath + File.separator + UtilAll.offset2FileName(createOffset);
-        String nextNextFilePath = this.storePath + File.separator + UtilAll.offset2FileName(createOffset
-                + this.mappedFileSize);
-        return doCreateMappedFile(nextFilePath, nextNextFilePath);
+        List<String> aheadFilePaths = new ArrayList<String>();
+        for (int i = 1; i <= this.getAllocateAheadNum(); i++) {
+            aheadFilePaths.add(this.storePath + File.separator + UtilAll.offset2FileName(createOffset
+                + (long) i * this.mappedFileSize));
+        }
+        return doCreateMappedFile(nextFilePath, aheadFilePaths);
+    }
+
+    protected int getAllocateAheadNum() {
+        return this.allocateMappedFileService != null ? this.allocateMappedFileService.getAllocateAheadNum() : 1;
     }
 
-    protected MappedFile doCreateMappedFile(String nextFilePath, String nextNextFilePath) {
+    protected MappedFile doCreateMappedFile(String nextFilePath, List<String> aheadFilePaths) {
         MappedFile mappedFile = null;
 
         if (this.allocateMappedFileService != null) {
             mappedFile = this.allocateMappedFileService.putRequestAndReturnMappedFile(nextFilePath,
-                    nextNextFilePath, this.mappedFileSize);
+                    aheadFilePaths, this.mappedFileSize);
         } else {
             try {
                 mappedFile = new MappedFile(nextFilePath, this.mappedFileSize);
@@ -351,6 +358,18 @@ public class MappedFileQueue {
         final int deleteFilesInterval,
         final long intervalForcibly,
         final boolean cleanImmediately) {
+        return this.deleteExpiredFileByTime(expiredTime, deleteFilesInterval, intervalForcibly, cleanImmediately,
+            Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxOffset files ending after it are never deleted
+     */
+    public int deleteExpiredFileByTime(final long expiredTime,
+        final int deleteFilesInterval,
+        final long intervalForcibly,
+        final boolean cleanImmediately,
+        final long maxOffset) {
         Object[] mfs = this.copyMappedFiles(0);
 
         if (null == mfs)
@@ -362,9 +381,12 @@ public class MappedFileQueue {
         if (null != mfs) {
             for (int i = 0; i < mfsLength; i++) {
                 MappedFile mappedFile = (MappedFile) mfs[i];
+                if (mappedFile.getFileFromOffset() + this.mappedFileSize > maxOffset) {
+                    break;
+                }
                 long liveMaxTimestamp = mappedFile.getLastModifiedTimestamp() + expiredTime;
                 if (System.currentTimeMillis() >= liveMaxTimestamp || cleanImmediately) {
-                    if (mappedFile.destroy(intervalForcibly)) {
+                    if (this.destroyOrRecycle(mappedFile, intervalForcibly)) {
                         files.add(mappedFile);
                         deleteCount++;
 
@@ -393,6 +415,36 @@ public class MappedFileQueue {
         return deleteCount;
     }
 
+    private boolean destroyOrRecycle(final MappedFile mappedFile, final long intervalForcibly) {
+        if (null == this.allocateMappedFileService
+            || !this.allocateMappedFileService.getMessageStoreConfig().isMappedFileRecycleEnable()) {
+            return mappedFile.destroy(intervalForcibly);
+        }
+        if (!mappedFile.destroy(intervalForcibly, false)) {
+            return false;
+        }
+        if (!this.allocateMappedFileService.recycle(mappedFile.getFile(), this.mappedFileSize)) {
+            UtilAll.deleteFile(mappedFile.getFile());
+        }
+        return true;
+    }
+
+    /**
+     * Delete the files at the tail created in advance but never written, whose first message is not there, so the
+     * recovery doesn't take them as the last files.
+     */
+    public void deleteUnwrittenTailFiles() {
+        while (!this.mappedFiles.isEmpty()) {
+            MappedFile mappedFile = this.getLastMappedFile();
+            if (mappedFile.getMappedByteBuffer().getLong(0) != 0) {
+                break;
+            }
+            log.info("delete the mapped file {} never written", mappedFile.getFileName());
+            mappedFile.destroy(1000);
+            this.mappedFiles.remove(mappedFile);
+        }
+    }
+
     public int deleteExpiredFileByOffset(long offset, int unitSize) {
         Object[] mfs = this.copyMappedFiles(0);
 
@@ -115,6 +115,15 @@ public interface MessageStore {
      */
     long getMaxOffsetInQueue(final String topic, final int queueId);
 
+    /**
+     * Get the offset of the topic queue up to which the messages are on all the slaves, the max offset on a slave.
+     *
+     * @param topic Topic name.
+     * @param queueId Queue ID.
+     * @return Replicated max offset, -1 if no slave has the messages.
+     */
+    long getReplicatedMaxOffsetInQueue(final String topic, final int queueId);
+
     /**
      * Get the minimum offset of the topic queue.
      *
@@ -18,11 +18,23 @@ package org.apache.rocketmq.store;
 
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Supplier;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.rocketmq.common.ThreadFactoryImpl;
 import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
 import org.apache.rocketmq.store.config.MessageStoreConfig;
 
 import java.io.File;
@@ -31,9 +43,16 @@ import java.util.Collections;
 import java.util.List;
 
 public class MultiPathMappedFileQueue extends MappedFileQueue {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+    // Generous write rate of a broker, in bytes per millisecond. A file larger than a flush interval of it can never
+    // leave a second file unflushed, so striping the flush has nothing to run in parallel.
+    static final long STRIPE_FLUSH_MAX_WRITE_RATE = 1024 * 1024;
 
     private final MessageStoreConfig config;
     private final Supplier<Set<String>> fullStorePathsSupplier;
+    // One flush thread per store path, used when commitLogStripeFlushEnable is on
+    private final ConcurrentMap<String, ExecutorService> stripeFlushExecutors = new ConcurrentHashMap<>();
+    private volatile boolean stripeFlushWarned = false;
 
     public MultiPathMappedFileQueue(MessageStoreConfig messageStoreConfig, int mappedFileSize,
                                     AllocateMappedFileService allocateMappedFileService,
@@ -100,13 +119,133 @@ public class MultiPathMappedFileQueue extends MappedFileQueue {
         Arrays.sort(paths);
         String nextFilePath = paths[(int) (fileIdx % paths.length)] + File.separator
                 + UtilAll.offset2FileName(createOffset);
-        String nextNextFilePath = paths[(int) ((fileIdx + 1) % paths.length)] + File.separator
-                + UtilAll.offset2FileName(createOffset + this.mappedFileSize);
-        return doCreateMappedFile(nextFilePath, nextNextFilePath);
+        List<String> aheadFilePaths = new ArrayList<>();
+        for (int i = 1; i <= getAllocateAheadNum(); i++) {
+            aheadFilePaths.add(paths[(int) ((fileIdx + i) % paths.length)] + File.separator
+                + UtilAll.offset2FileName(createOffset + (long) i * this.mappedFileSize));
+        }
+        return doCreateMappedFile(nextFilePath, aheadFilePaths);
+    }
+
+    /**
+     * With stripe flush enabled, every file not yet flushed is flushed by the thread of its store path, so the paths
+     * are written back in parallel. The flushed offset only moves over the files flushed without a hole, it still
+     * means all data before it is on disk.
+     */
+    @Override
+    public boolean flush(final int flushLeastPages) {
+        if (!isStripeFlushEffective()) {
+            return super.flush(flushLeastPages);
+        }
+
+        MappedFile firstMappedFile = this.findMappedFileByOffset(this.flushedWhere, this.flushedWhere == 0);
+        if (firstMappedFile == null) {
+            return true;
+        }
+
+        List<MappedFile> unflushedFiles = new ArrayList<>();
+        Map<String, List<MappedFile>> stripes = new HashMap<>();
+        for (MappedFile mappedFile : this.mappedFiles) {
+            if (mappedFile.getFileFromOffset() >= firstMappedFile.getFileFromOffset()) {
+                unflushedFiles.add(mappedFile);
+                stripes.computeIfAbsent(mappedFile.getFile().getParent(), k -> new ArrayList<>()).add(mappedFile);
+            }
+        }
+        long[] storeTimestamps = new long[unflushedFiles.size()];
+        for (int i = 0; i < storeTimestamps.length; i++) {
+            storeTimestamps[i] = unflushedFiles.get(i).getStoreTimestamp();
+        }
+
+        if (stripes.size() == 1) {
+            flushStripe(unflushedFiles, flushLeastPages);
+        } else {
+            List<Future<?>> futures = new ArrayList<>(stripes.size());
+            for (Map.Entry<String, List<MappedFile>> entry : stripes.entrySet()) {
+                final List<MappedFile> stripe = entry.getValue();
+                ExecutorService executor = this.stripeFlushExecutors.computeIfAbsent(entry.getKey(),
+                    k -> Executors.newSingleThreadExecutor(
+                        new ThreadFactoryImpl("CommitLogStripeFlushThread_" + this.stripeFlushExecutors.size() + "_", true)));
+                futures.add(executor.submit(() -> flushStripe(stripe, flushLeastPages)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    log.warn("stripe flush interrupted", e);
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    log.error("stripe flush failed", e);
+                }
+            }
+        }
+
+        long where = this.flushedWhere;
+        long tmpTimeStamp = 0;
+        for (int i = 0; i < unflushedFiles.size(); i++) {
+            MappedFile mappedFile = unflushedFiles.get(i);
+            where = mappedFile.getFileFromOffset() + mappedFile.getFlushedPosition();
+            tmpTimeStamp = storeTimestamps[i];
+            if (mappedFile.getFlushedPosition() < mappedFile.getFileSize()) {
+                break;
+            }
+        }
+        boolean result = where == this.flushedWhere;
+        this.flushedWhere = where;
+        if (0 == flushLeastPages) {
+            this.storeTimestamp = tmpTimeStamp;
+        }
+        return result;
+    }
+
+    /**
+     * Stripe flush only runs files in parallel when several of them are unflushed on different paths, which needs
+     * several writable paths and files small enough to be filled within a flush interval. Otherwise the files are
+     * flushed one by one as without it, and a warning is logged once.
+     */
+    boolean isStripeFlushEffective() {
+        if (!config.isCommitLogStripeFlushEnable()) {
+            return false;
+        }
+        Set<String> writablePaths = getPaths();
+        writablePaths.removeAll(getReadonlyPaths());
+        long maxFileSize = Math.max(1, config.getFlushIntervalCommitLog()) * STRIPE_FLUSH_MAX_WRITE_RATE;
+        if (writablePaths.size() > 1 && this.mappedFileSize <= maxFileSize) {
+            return true;
+        }
+        if (!this.stripeFlushWarned) {
+            this.stripeFlushWarned = true;
+            log.warn("commitLogStripeFlushEnable has no effect with {} writable paths and mappedFileSizeCommitLog {}, "
+                + "which must not exceed {} to leave several files unflushed within a flush interval of {} ms",
+                writablePaths.size(), this.mappedFileSize, maxFileSize, config.getFlushIntervalCommitLog());
+        }
+        return false;
+    }
+
+    private static void flushStripe(List<MappedFile> stripe, int flushLeastPages) {
+        for (MappedFile mappedFile : stripe) {
+            if (mappedFile.getFlushedPosition() < mappedFile.getFileSize()) {
+                mappedFile.flush(flushLeastPages);
+            }
+        }
+    }
+
+    public void shutdownStripeFlush() {
+        for (ExecutorService executor : this.stripeFlushExecutors.values()) {
+            executor.shutdown();
+        }
+        this.stripeFlushExecutors.clear();
+    }
+
+    @Override
+    public void shutdown(final long intervalForcibly) {
+        this.shutdownStripeFlush();
+        super.shutdown(intervalForcibly);
     }
 
     @Override
     public void destroy() {
+        this.shutdownStripeFlush();
         for (MappedFile mf : this.mappedFiles) {
             mf.destroy(1000 * 3);
         }
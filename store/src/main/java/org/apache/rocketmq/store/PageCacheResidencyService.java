@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+
+/**
+ * Tell whether the pulled CommitLog data is in the page cache by mincore, instead of guessing it from
+ * {@link MessageStoreConfig#getAccessMessageInMemoryMaxRatio()}.
+ * <p>
+ * A pull which misses the page cache comes from a consumer catching up, so the range following it is read ahead by
+ * madvise(WILLNEED) on this thread, and the next pulls of the consumer find it in memory instead of faulting on the
+ * pull threads. The range is split into windows of {@link MessageStoreConfig#getPageCacheReadAheadSize()}, each of
+ * them advised at most once in a while for all the consumers reading it.
+ */
+public class PageCacheResidencyService extends ServiceThread {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+    private static final long ADVISE_EXPIRE_MILLIS = 30 * 1000;
+    private static final int MAX_PENDING_REQUESTS = 1024;
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final LinkedBlockingQueue<Long> readAheadRequests = new LinkedBlockingQueue<Long>(MAX_PENDING_REQUESTS);
+    private final ConcurrentMap<Long /* window index */, Long /* advised timestamp */> advisedWindows =
+        new ConcurrentHashMap<Long, Long>();
+    private volatile boolean available = true;
+
+    private final AtomicLong hitTimes = new AtomicLong(0);
+    private final AtomicLong missTimes = new AtomicLong(0);
+    private final AtomicLong readAheadTimes = new AtomicLong(0);
+    private final AtomicLong readAheadBytes = new AtomicLong(0);
+
+    public PageCacheResidencyService(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+    }
+
+    /**
+     * Probe the page cache from the page of the offset, at least {@link MessageStoreConfig#getPageCacheResidencyProbeSize()}
+     * bytes, so the following messages of a pull are told without another system call.
+     *
+     * @return end offset of the resident range, -1 if the residency can't be told
+     */
+    public long residentEnd(final long offset, final int size) {
+        if (!this.available) {
+            return -1;
+        }
+
+        MappedFile mappedFile = this.defaultMessageStore.getCommitLog().getMappedFileQueue().findMappedFileByOffset(offset, false);
+        if (null == mappedFile) {
+            return -1;
+        }
+
+        int pos = (int) (offset - mappedFile.getFileFromOffset());
+        int probeSize = Math.max(size, this.defaultMessageStore.getMessageStoreConfig().getPageCacheResidencyProbeSize());
+        try {
+            int residentSize = mappedFile.residentSize(pos, probeSize);
+            if (residentSize < 0) {
+                return -1;
+            }
+            return mappedFile.getFileFromOffset() + pos - pos % MappedFile.OS_PAGE_SIZE + residentSize;
+        } catch (Throwable e) {
+            // mincore is not there on some platforms, fall back to the guess from then on
+            this.available = false;
+            log.warn("page cache residency is not available, fall back to accessMessageInMemoryMaxRatio", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Record the messages of a pull found in or out of the page cache.
+     */
+    public void recordAccess(final int hitNums, final int missNums) {
+        this.hitTimes.addAndGet(hitNums);
+        this.missTimes.addAndGet(missNums);
+        BrokerStatsManager brokerStatsManager = this.defaultMessageStore.getBrokerStatsManager();
+        if (brokerStatsManager != null) {
+            brokerStatsManager.incBrokerPageCacheHitNums(hitNums);
+            brokerStatsManager.incBrokerPageCacheMissNums(missNums);
+        }
+    }
+
+    /**
+     * Read ahead the range from the offset asynchronously, the request is dropped if too many are pending.
+     */
+    public void readAhead(final long offset) {
+        if (this.available && this.readAheadRequests.offer(offset)) {
+            this.wakeup();
+        }
+    }
+
+    @Override
+    public String getServiceName() {
+        return PageCacheResidencyService.class.getSimpleName();
+    }
+
+    @Override
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStopped()) {
+            try {
+                this.waitForRunning(1000);
+                Long offset;
+                while ((offset = this.readAheadRequests.poll()) != null) {
+                    this.doReadAhead(offset);
+                }
+                this.cleanExpiredWindows();
+            } catch (Throwable e) {
+                log.warn(this.getServiceName() + " service has exception. ", e);
+            }
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        stats.put("pageCacheTimes", String.format("%d,%d", this.hitTimes.get(), this.missTimes.get()));
+        stats.put("pageCacheReadAhead", String.format("%d,%d", this.readAheadTimes.get(), this.readAheadBytes.get()));
+    }
+
+    public long getHitTimes() {
+        return hitTimes.get();
+    }
+
+    public long getMissTimes() {
+        return missTimes.get();
+    }
+
+    public long getReadAheadTimes() {
+        return readAheadTimes.get();
+    }
+
+    public long getReadAheadBytes() {
+        return readAheadBytes.get();
+    }
+
+    /**
+     * Advise the window of the offset and the one after it, which are not advised recently.
+     */
+    void doReadAhead(final long offset) {
+        int windowSize = Math.max(MappedFile.OS_PAGE_SIZE, this.defaultMessageStore.getMessageStoreConfig().getPageCacheReadAheadSize());
+        long maxOffset = this.defaultMessageStore.getCommitLog().getMaxOffset();
+        long now = System.currentTimeMillis();
+        long firstWindow = offset / windowSize;
+        for (long window = firstWindow; window <= firstWindow + 1; window++) {
+            long from = Math.max(window * windowSize, offset);
+            long to = Math.min((window + 1) * windowSize, maxOffset);
+            if (from >= to) {
+                break;
+            }
+            Long advised = this.advisedWindows.get(window);
+            if (advised != null && now - advised < ADVISE_EXPIRE_MILLIS) {
+                continue;
+            }
+            this.advisedWindows.put(window, now);
+            this.willNeed(from, to);
+        }
+    }
+
+    private void willNeed(long from, final long to) {
+        CommitLog commitLog = this.defaultMessageStore.getCommitLog();
+        while (from < to) {
+            MappedFile mappedFile = commitLog.getMappedFileQueue().findMappedFileByOffset(from, false);
+            if (null == mappedFile) {
+                return;
+            }
+            int pos = (int) (from - mappedFile.getFileFromOffset());
+            int size = (int) Math.min(to - from, mappedFile.getFileSize() - pos);
+            try {
+                if (mappedFile.willNeed(pos, size)) {
+                    this.readAheadTimes.incrementAndGet();
+                    this.readAheadBytes.addAndGet(size);
+                }
+            } catch (Throwable e) {
+                this.available = false;
+                log.warn("madvise is not available, stop reading ahead", e);
+                return;
+            }
+            from += size;
+        }
+    }
+
+    private void cleanExpiredWindows() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Long, Long>> it = this.advisedWindows.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue() >= ADVISE_EXPIRE_MILLIS) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -58,4 +58,11 @@ public class SelectMappedBufferResult {
     public long getStartOffset() {
         return startOffset;
     }
+
+    /**
+     * @return the file the buffer is mapped from, null once released
+     */
+    public synchronized MappedFile getMappedFile() {
+        return mappedFile;
+    }
 }
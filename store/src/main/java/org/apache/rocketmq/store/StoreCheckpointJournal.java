@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+
+/**
+ * Journal of the CommitLog offsets below which the commit log, the consume queues are all flushed, so an abnormal
+ * recovery only replays the messages after the last confirmed offset instead of the whole files after
+ * {@link StoreCheckpoint#getMinTimestamp()}.
+ * <p>
+ * The records are written in turn into the slots of one page, each carrying a sequence and its own CRC, so a torn
+ * write loses the latest record only. A record also carries the CRC of the CommitLog data just before its offset,
+ * which recovery checks before trusting the record.
+ */
+public class StoreCheckpointJournal {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+    private static final int RECORD_MAGIC_CODE = 0xCC5A7E01;
+    // MAGIC + SEQUENCE + CRC FROM + CONFIRMED OFFSET + DATA CRC + RECORD CRC
+    private static final int RECORD_SIZE = 4 + 8 + 8 + 8 + 8 + 8;
+    private static final int SLOT_SIZE = 64;
+    private static final int SLOT_NUM = MappedFile.OS_PAGE_SIZE / SLOT_SIZE;
+
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final MappedByteBuffer mappedByteBuffer;
+    // Newest first
+    private final List<Record> records = new ArrayList<Record>();
+    private long sequence = 0;
+
+    public StoreCheckpointJournal(final String path) throws IOException {
+        File file = new File(path);
+        MappedFile.ensureDirOK(file.getParent());
+
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.fileChannel = this.randomAccessFile.getChannel();
+        this.mappedByteBuffer = fileChannel.map(MapMode.READ_WRITE, 0, MappedFile.OS_PAGE_SIZE);
+
+        for (int slot = 0; slot < SLOT_NUM; slot++) {
+            Record record = this.readRecord(slot);
+            if (record != null) {
+                this.records.add(record);
+                this.sequence = Math.max(this.sequence, record.getSequence());
+            }
+        }
+        Collections.sort(this.records, (a, b) -> Long.compare(b.getSequence(), a.getSequence()));
+        log.info("store checkpoint journal loaded, {} records, latest {}", this.records.size(),
+            this.records.isEmpty() ? null : this.records.get(0));
+    }
+
+    /**
+     * Append a record and force it to disk.
+     *
+     * @param crcFrom start offset of the data covered by the CRC
+     * @param confirmedOffset offset below which the commit log and the consume queues are flushed
+     * @param dataCrc CRC of the data between crcFrom and confirmedOffset
+     */
+    public synchronized void append(final long crcFrom, final long confirmedOffset, final long dataCrc) {
+        Record record = new Record(++this.sequence, crcFrom, confirmedOffset, dataCrc);
+        int pos = (int) (record.getSequence() % SLOT_NUM) * SLOT_SIZE;
+        this.mappedByteBuffer.putInt(pos, RECORD_MAGIC_CODE);
+        this.mappedByteBuffer.putLong(pos + 4, record.getSequence());
+        this.mappedByteBuffer.putLong(pos + 12, record.getCrcFrom());
+        this.mappedByteBuffer.putLong(pos + 20, record.getConfirmedOffset());
+        this.mappedByteBuffer.putLong(pos + 28, record.getDataCrc());
+        this.mappedByteBuffer.putLong(pos + 36, this.recordCrc(pos));
+        this.mappedByteBuffer.force();
+
+        this.records.add(0, record);
+        if (this.records.size() > SLOT_NUM) {
+            this.records.remove(this.records.size() - 1);
+        }
+    }
+
+    /**
+     * @return the records newest first
+     */
+    public synchronized List<Record> getRecords() {
+        return new ArrayList<Record>(this.records);
+    }
+
+    /**
+     * @return the latest confirmed offset, -1 if none
+     */
+    public synchronized long getConfirmedOffset() {
+        return this.records.isEmpty() ? -1 : this.records.get(0).getConfirmedOffset();
+    }
+
+    public void shutdown() {
+        this.mappedByteBuffer.force();
+
+        // unmap mappedByteBuffer
+        MappedFile.clean(this.mappedByteBuffer);
+
+        try {
+            this.fileChannel.close();
+        } catch (IOException e) {
+            log.error("Failed to properly close the channel", e);
+        }
+    }
+
+    private Record readRecord(final int slot) {
+        int pos = slot * SLOT_SIZE;
+        if (this.mappedByteBuffer.getInt(pos) != RECORD_MAGIC_CODE) {
+            return null;
+        }
+        if (this.mappedByteBuffer.getLong(pos + 36) != this.recordCrc(pos)) {
+            log.warn("store checkpoint journal record torn, slot {}", slot);
+            return null;
+        }
+        return new Record(this.mappedByteBuffer.getLong(pos + 4), this.mappedByteBuffer.getLong(pos + 12),
+            this.mappedByteBuffer.getLong(pos + 20), this.mappedByteBuffer.getLong(pos + 28));
+    }
+
+    private long recordCrc(final int pos) {
+        byte[] content = new byte[RECORD_SIZE - 8];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = this.mappedByteBuffer.get(pos + i);
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(content);
+        return crc32.getValue();
+    }
+
+    public static class Record {
+        private final long sequence;
+        private final long crcFrom;
+        private final long confirmedOffset;
+        private final long dataCrc;
+
+        public Record(long sequence, long crcFrom, long confirmedOffset, long dataCrc) {
+            this.sequence = sequence;
+            this.crcFrom = crcFrom;
+            this.confirmedOffset = confirmedOffset;
+            this.dataCrc = dataCrc;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getCrcFrom() {
+            return crcFrom;
+        }
+
+        public long getConfirmedOffset() {
+            return confirmedOffset;
+        }
+
+        public long getDataCrc() {
+            return dataCrc;
+        }
+
+        @Override
+        public String toString() {
+            return "Record{sequence=" + sequence + ", crcFrom=" + crcFrom + ", confirmedOffset=" + confirmedOffset
+                + ", dataCrc=" + dataCrc + '}';
+        }
+    }
+}
@@ -19,8 +19,15 @@ package org.apache.rocketmq.store;
 import com.sun.jna.NativeLong;
 import com.sun.jna.Pointer;
 import java.nio.ByteBuffer;
-import java.util.Deque;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.ServiceThread;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.logging.InternalLogger;
 import org.apache.rocketmq.logging.InternalLoggerFactory;
@@ -28,41 +35,66 @@ import org.apache.rocketmq.store.config.MessageStoreConfig;
 import org.apache.rocketmq.store.util.LibC;
 import sun.nio.ch.DirectBuffer;
 
+/**
+ * Direct buffers the CommitLog is written to before they are committed to the file channel.
+ * <p>
+ * Only {@link MessageStoreConfig#getTransientStorePoolMinSize()} buffers are allocated at startup, more are
+ * allocated when the pool runs dry, up to {@link MessageStoreConfig#getTransientStorePoolSize()}, and the ones idle
+ * for {@link MessageStoreConfig#getTransientStorePoolShrinkIdleTime()} are released again. The buffers are mlocked by
+ * the background thread if {@link MessageStoreConfig#isTransientStorePoolLazyLock()}, so neither the startup nor the
+ * allocation waits for the memory to be faulted in.
+ */
 public class TransientStorePool {
     private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
 
+    private final int minPoolSize;
     private final int poolSize;
     private final int fileSize;
-    private final Deque<ByteBuffer> availableBuffers;
+    private final LinkedBlockingDeque<ByteBuffer> availableBuffers;
+    private final ConcurrentLinkedQueue<ByteBuffer> unlockedBuffers;
+    private final AtomicInteger totalBufferNums = new AtomicInteger(0);
     private final MessageStoreConfig storeConfig;
+    private final PoolMaintainService poolMaintainService = new PoolMaintainService();
+    private volatile long lastDrainedTimestamp = System.currentTimeMillis();
+
+    private final AtomicLong borrowTimes = new AtomicLong(0);
+    private final AtomicLong borrowWaitTimes = new AtomicLong(0);
+    private final AtomicLong borrowFailedTimes = new AtomicLong(0);
+    private final AtomicLong growTimes = new AtomicLong(0);
+    private final AtomicLong shrinkTimes = new AtomicLong(0);
+    private final AtomicInteger lockedBufferNums = new AtomicInteger(0);
+    // Addresses of the locked buffers, a lazily locked one may be released before it is locked
+    private final Set<Long> lockedAddresses = ConcurrentHashMap.newKeySet();
+    private volatile int peakUsedBufferNums = 0;
 
     public TransientStorePool(final MessageStoreConfig storeConfig) {
         this.storeConfig = storeConfig;
         this.poolSize = storeConfig.getTransientStorePoolSize();
+        this.minPoolSize = Math.max(0, Math.min(storeConfig.getTransientStorePoolMinSize(), this.poolSize));
         this.fileSize = storeConfig.getMappedFileSizeCommitLog();
-        this.availableBuffers = new ConcurrentLinkedDeque<>();
+        this.availableBuffers = new LinkedBlockingDeque<>();
+        this.unlockedBuffers = new ConcurrentLinkedQueue<>();
     }
 
     /**
-     * It's a heavy init method.
+     * Allocate the minimum buffers, they are locked in the background if the lock is lazy.
      */
     public void init() {
-        for (int i = 0; i < poolSize; i++) {
-            ByteBuffer byteBuffer = ByteBuffer.allocateDirect(fileSize);
-
-            final long address = ((DirectBuffer) byteBuffer).address();
-            Pointer pointer = new Pointer(address);
-            LibC.INSTANCE.mlock(pointer, new NativeLong(fileSize));
-
-            availableBuffers.offer(byteBuffer);
+        for (int i = 0; i < minPoolSize; i++) {
+            ByteBuffer byteBuffer = allocateBuffer();
+            if (byteBuffer != null) {
+                availableBuffers.offer(byteBuffer);
+            }
         }
+        this.poolMaintainService.start();
     }
 
     public void destroy() {
-        for (ByteBuffer byteBuffer : availableBuffers) {
-            final long address = ((DirectBuffer) byteBuffer).address();
-            Pointer pointer = new Pointer(address);
-            LibC.INSTANCE.munlock(pointer, new NativeLong(fileSize));
+        this.poolMaintainService.shutdown();
+        this.unlockedBuffers.clear();
+        ByteBuffer byteBuffer;
+        while ((byteBuffer = availableBuffers.pollLast()) != null) {
+            releaseBuffer(byteBuffer);
         }
     }
 
@@ -72,18 +104,174 @@ public class TransientStorePool {
         this.availableBuffers.offerFirst(byteBuffer);
     }
 
+    /**
+     * Take an idle buffer, or allocate one below the maximum, or wait for one to be returned for at most
+     * {@link MessageStoreConfig#getTransientStorePoolBorrowTimeout()}.
+     *
+     * @return the buffer, null if the pool is exhausted
+     */
     public ByteBuffer borrowBuffer() {
+        this.borrowTimes.incrementAndGet();
         ByteBuffer buffer = availableBuffers.pollFirst();
-        if (availableBuffers.size() < poolSize * 0.4) {
-            log.warn("TransientStorePool only remain {} sheets.", availableBuffers.size());
+        if (null == buffer) {
+            buffer = allocateBuffer();
+            if (buffer != null) {
+                this.growTimes.incrementAndGet();
+            }
+        }
+        if (null == buffer && storeConfig.getTransientStorePoolBorrowTimeout() > 0) {
+            this.borrowWaitTimes.incrementAndGet();
+            try {
+                buffer = availableBuffers.pollFirst(storeConfig.getTransientStorePoolBorrowTimeout(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (null == buffer) {
+            this.borrowFailedTimes.incrementAndGet();
+            log.warn("TransientStorePool is exhausted, {} buffers in use", totalBufferNums.get());
+            return null;
+        }
+
+        int usedBufferNums = totalBufferNums.get() - availableBuffers.size();
+        if (usedBufferNums > peakUsedBufferNums) {
+            peakUsedBufferNums = usedBufferNums;
+        }
+        if (availableBuffers.isEmpty()) {
+            lastDrainedTimestamp = System.currentTimeMillis();
+        }
+        if (availableBufferNums() < poolSize * 0.4) {
+            log.warn("TransientStorePool only remain {} sheets.", availableBufferNums());
         }
         return buffer;
     }
 
+    /**
+     * @return how many buffers can be borrowed without waiting, including the ones not allocated yet
+     */
     public int availableBufferNums() {
         if (storeConfig.isTransientStorePoolEnable()) {
-            return availableBuffers.size();
+            return availableBuffers.size() + poolSize - totalBufferNums.get();
         }
         return Integer.MAX_VALUE;
     }
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        stats.put("transientStorePoolBuffers", String.format("%d,%d,%d,%d", totalBufferNums.get(),
+            availableBuffers.size(), lockedBufferNums.get(), peakUsedBufferNums));
+        stats.put("transientStorePoolTimes", String.format("%d,%d,%d,%d,%d", borrowTimes.get(), borrowWaitTimes.get(),
+            borrowFailedTimes.get(), growTimes.get(), shrinkTimes.get()));
+    }
+
+    private ByteBuffer allocateBuffer() {
+        int total;
+        do {
+            total = totalBufferNums.get();
+            if (total >= poolSize) {
+                return null;
+            }
+        }
+        while (!totalBufferNums.compareAndSet(total, total + 1));
+
+        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(fileSize);
+        if (storeConfig.isTransientStorePoolLazyLock()) {
+            unlockedBuffers.offer(byteBuffer);
+            this.poolMaintainService.wakeup();
+        } else {
+            lockBuffer(byteBuffer);
+        }
+        return byteBuffer;
+    }
+
+    private void lockBuffer(ByteBuffer byteBuffer) {
+        final long address = ((DirectBuffer) byteBuffer).address();
+        Pointer pointer = new Pointer(address);
+        int ret = LibC.INSTANCE.mlock(pointer, new NativeLong(fileSize));
+        if (ret == 0) {
+            lockedAddresses.add(address);
+            lockedBufferNums.incrementAndGet();
+        } else {
+            log.warn("TransientStorePool mlock {} failed, ret = {}", address, ret);
+        }
+    }
+
+    private void releaseBuffer(ByteBuffer byteBuffer) {
+        final long address = ((DirectBuffer) byteBuffer).address();
+        if (lockedAddresses.remove(address)) {
+            Pointer pointer = new Pointer(address);
+            LibC.INSTANCE.munlock(pointer, new NativeLong(fileSize));
+            lockedBufferNums.decrementAndGet();
+        }
+        MappedFile.clean(byteBuffer);
+        totalBufferNums.decrementAndGet();
+    }
+
+    /**
+     * Release one idle buffer above the minimum if the pool has not been drained for the idle time. One is always
+     * left idle, as the next mapped file is allocated ahead. Called on the maintain thread only, after the pending
+     * buffers are locked, so a released buffer is never locked afterwards.
+     */
+    boolean shrink(final long now) {
+        if (!unlockedBuffers.isEmpty() || now - lastDrainedTimestamp < storeConfig.getTransientStorePoolShrinkIdleTime()
+            || totalBufferNums.get() <= minPoolSize || availableBuffers.size() <= 1) {
+            return false;
+        }
+        // The least recently returned one
+        ByteBuffer byteBuffer = availableBuffers.pollLast();
+        if (null == byteBuffer) {
+            return false;
+        }
+        releaseBuffer(byteBuffer);
+        this.shrinkTimes.incrementAndGet();
+        log.info("TransientStorePool shrinks to {} buffers", totalBufferNums.get());
+        return true;
+    }
+
+    public int getTotalBufferNums() {
+        return totalBufferNums.get();
+    }
+
+    public int getLockedBufferNums() {
+        return lockedBufferNums.get();
+    }
+
+    public int getPeakUsedBufferNums() {
+        return peakUsedBufferNums;
+    }
+
+    public long getBorrowFailedTimes() {
+        return borrowFailedTimes.get();
+    }
+
+    class PoolMaintainService extends ServiceThread {
+        private static final long INTERVAL = 1000;
+
+        @Override
+        public String getServiceName() {
+            return PoolMaintainService.class.getSimpleName();
+        }
+
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+            while (!this.isStopped()) {
+                try {
+                    lockPending();
+                    shrink(System.currentTimeMillis());
+                    this.waitForRunning(INTERVAL);
+                } catch (Throwable e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+            log.info(this.getServiceName() + " service end");
+        }
+
+        private void lockPending() {
+            ByteBuffer byteBuffer;
+            while ((byteBuffer = unlockedBuffers.poll()) != null) {
+                lockBuffer(byteBuffer);
+            }
+        }
+    }
 }
@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.compaction;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.store.MappedFile;
+import org.apache.rocketmq.store.MappedFileQueue;
+import org.apache.rocketmq.store.SelectMappedBufferResult;
+
+/**
+ * One generation of the compacted log of a queue, written once by the compaction and read only afterwards.
+ * <p>
+ * The messages are copied as they are in the CommitLog, so they keep their queue offsets, and indexed by entries of
+ * LOG OFFSET + SIZE + TAGS CODE + QUEUE OFFSET in the order of the queue offsets, with gaps where the messages are
+ * compacted away.
+ */
+public class CompactionLog {
+    public static final int INDEX_UNIT_SIZE = 8 + 4 + 8 + 8;
+    private static final int INDEX_FILE_UNITS = 300000;
+
+    private final String storePath;
+    private final long generation;
+    private final MappedFileQueue dataQueue;
+    private final MappedFileQueue indexQueue;
+    private long dataSize = 0;
+    private long entryNum = 0;
+
+    public CompactionLog(final String storePath, final long generation, final int dataFileSize) {
+        this.storePath = storePath;
+        this.generation = generation;
+        this.dataQueue = new MappedFileQueue(storePath + File.separator + "data", dataFileSize, null);
+        this.indexQueue = new MappedFileQueue(storePath + File.separator + "index", INDEX_FILE_UNITS * INDEX_UNIT_SIZE, null);
+    }
+
+    public boolean load(final long dataSize, final long entryNum) {
+        if (!this.dataQueue.load() || !this.indexQueue.load()) {
+            return false;
+        }
+        this.dataSize = dataSize;
+        this.entryNum = entryNum;
+        this.dataQueue.truncateDirtyFiles(dataSize);
+        this.indexQueue.truncateDirtyFiles(entryNum * INDEX_UNIT_SIZE);
+        return true;
+    }
+
+    /**
+     * Copy a message, the messages must be appended in the order of the queue offsets.
+     */
+    public boolean append(final ByteBuffer message, final int size, final long tagsCode, final long queueOffset) {
+        MappedFile dataFile = this.dataQueue.getLastMappedFile(0);
+        if (dataFile != null && dataFile.getFileSize() - dataFile.getWrotePosition() < size) {
+            // Messages don't span files, leave the rest of the file unused
+            dataFile.setWrotePosition(dataFile.getFileSize());
+            dataFile = this.dataQueue.getLastMappedFile(0);
+        }
+        if (null == dataFile) {
+            return false;
+        }
+        long logOffset = dataFile.getFileFromOffset() + dataFile.getWrotePosition();
+        byte[] data = new byte[size];
+        message.get(data);
+        if (!dataFile.appendMessage(data)) {
+            return false;
+        }
+
+        MappedFile indexFile = this.indexQueue.getLastMappedFile(0);
+        if (null == indexFile) {
+            return false;
+        }
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_UNIT_SIZE);
+        entry.putLong(logOffset);
+        entry.putInt(size);
+        entry.putLong(tagsCode);
+        entry.putLong(queueOffset);
+        if (!indexFile.appendMessage(entry.array())) {
+            return false;
+        }
+        this.dataSize = logOffset + size;
+        this.entryNum++;
+        return true;
+    }
+
+    public void flush() {
+        // One file is flushed a time
+        boolean flushed = false;
+        while (!flushed) {
+            flushed = this.dataQueue.flush(0);
+        }
+        flushed = false;
+        while (!flushed) {
+            flushed = this.indexQueue.flush(0);
+        }
+    }
+
+    /**
+     * @return index of the first entry whose queue offset is not less than the given one, entry number if none
+     */
+    public long findIndex(final long queueOffset) {
+        long low = 0;
+        long high = this.entryNum - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            Entry entry = this.getEntry(mid);
+            if (null == entry) {
+                return this.entryNum;
+            }
+            if (entry.getQueueOffset() < queueOffset) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the entry, null if out of range or the log has been destroyed
+     */
+    public Entry getEntry(final long index) {
+        if (index < 0 || index >= this.entryNum) {
+            return null;
+        }
+        long offset = index * INDEX_UNIT_SIZE;
+        MappedFile mappedFile = this.indexQueue.findMappedFileByOffset(offset, false);
+        if (null == mappedFile) {
+            return null;
+        }
+        SelectMappedBufferResult result = mappedFile.selectMappedBuffer((int) (offset - mappedFile.getFileFromOffset()), INDEX_UNIT_SIZE);
+        if (null == result) {
+            return null;
+        }
+        try {
+            ByteBuffer byteBuffer = result.getByteBuffer();
+            return new Entry(byteBuffer.getLong(), byteBuffer.getInt(), byteBuffer.getLong(), byteBuffer.getLong());
+        } finally {
+            result.release();
+        }
+    }
+
+    public SelectMappedBufferResult getMessage(final Entry entry) {
+        MappedFile mappedFile = this.dataQueue.findMappedFileByOffset(entry.getLogOffset(), false);
+        if (null == mappedFile) {
+            return null;
+        }
+        return mappedFile.selectMappedBuffer((int) (entry.getLogOffset() - mappedFile.getFileFromOffset()), entry.getSize());
+    }
+
+    /**
+     * @return queue offset of the first message, -1 if empty
+     */
+    public long getMinQueueOffset() {
+        Entry entry = this.getEntry(0);
+        return entry != null ? entry.getQueueOffset() : -1;
+    }
+
+    public void destroy() {
+        this.dataQueue.destroy();
+        this.indexQueue.destroy();
+        UtilAll.deleteFile(new File(this.storePath));
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    public long getEntryNum() {
+        return entryNum;
+    }
+
+    public static class Entry {
+        private final long logOffset;
+        private final int size;
+        private final long tagsCode;
+        private final long queueOffset;
+
+        public Entry(long logOffset, int size, long tagsCode, long queueOffset) {
+            this.logOffset = logOffset;
+            this.size = size;
+            this.tagsCode = tagsCode;
+            this.queueOffset = queueOffset;
+        }
+
+        public long getLogOffset() {
+            return logOffset;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getTagsCode() {
+            return tagsCode;
+        }
+
+        public long getQueueOffset() {
+            return queueOffset;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.compaction;
+
+/**
+ * The compacted log generation of a queue and the queue offset up to which it is compacted.
+ */
+public class CompactionProgress {
+    private String topic;
+    private int queueId;
+    private long generation;
+    // Messages before it are read from the compacted log
+    private long compactedOffset;
+    private long dataSize;
+    private long entryNum;
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public void setTopic(String topic) {
+        this.topic = topic;
+    }
+
+    public int getQueueId() {
+        return queueId;
+    }
+
+    public void setQueueId(int queueId) {
+        this.queueId = queueId;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public void setGeneration(long generation) {
+        this.generation = generation;
+    }
+
+    public long getCompactedOffset() {
+        return compactedOffset;
+    }
+
+    public void setCompactedOffset(long compactedOffset) {
+        this.compactedOffset = compactedOffset;
+    }
+
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    public void setDataSize(long dataSize) {
+        this.dataSize = dataSize;
+    }
+
+    public long getEntryNum() {
+        return entryNum;
+    }
+
+    public void setEntryNum(long entryNum) {
+        this.entryNum = entryNum;
+    }
+}
@@ -0,0 +1,525 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.compaction;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import org.apache.rocketmq.common.ConfigManager;
+import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.ConsumeQueue;
+import org.apache.rocketmq.store.ConsumeQueueExt;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.GetMessageResult;
+import org.apache.rocketmq.store.GetMessageStatus;
+import org.apache.rocketmq.store.MappedFile;
+import org.apache.rocketmq.store.MessageFilter;
+import org.apache.rocketmq.store.SelectMappedBufferResult;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
+
+/**
+ * Compact the queues of the topics in {@link MessageStoreConfig#getCompactionTopics()}, keeping only the latest message
+ * of each {@link MessageConst#PROPERTY_KEYS}, so the consumers bootstrap the state of such a topic without reading its
+ * full history, which is still deleted by time as the other topics.
+ * <p>
+ * Each round compacts the messages of a queue in the sealed CommitLog files into a new generation of its
+ * {@link CompactionLog}, together with the last generation, and then drops the last one. The pulls below the compacted
+ * offset are served from the compacted log, the ones after it from the consume queue as usual. Messages without keys
+ * are kept as they are.
+ */
+public class CompactionService extends ConfigManager {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+    private static final String TOPIC_QUEUE_SEPARATOR = "@";
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final MessageStoreConfig messageStoreConfig;
+    private final Set<String> compactionTopics = new HashSet<String>();
+    private final ConcurrentMap<String /* topic@queueId */, CompactionProgress> progressTable =
+        new ConcurrentHashMap<String, CompactionProgress>();
+    private final ConcurrentMap<String /* topic@queueId */, CompactionLog> compactionLogTable =
+        new ConcurrentHashMap<String, CompactionLog>();
+    private final AtomicLong compactionTimes = new AtomicLong(0);
+    private final AtomicLong compactedMsgNums = new AtomicLong(0);
+    private final AtomicLong removedMsgNums = new AtomicLong(0);
+    private final CompactionThread compactionThread = new CompactionThread();
+
+    public CompactionService(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+        this.messageStoreConfig = defaultMessageStore.getMessageStoreConfig();
+        for (String topic : this.messageStoreConfig.getCompactionTopics().split(",")) {
+            if (topic.trim().length() > 0) {
+                this.compactionTopics.add(topic.trim());
+            }
+        }
+    }
+
+    private static String buildKey(final String topic, final int queueId) {
+        return topic + TOPIC_QUEUE_SEPARATOR + queueId;
+    }
+
+    @Override
+    public boolean load() {
+        if (!super.load()) {
+            return false;
+        }
+
+        for (Map.Entry<String, CompactionProgress> entry : this.progressTable.entrySet()) {
+            CompactionProgress progress = entry.getValue();
+            CompactionLog compactionLog = this.createCompactionLog(progress.getTopic(), progress.getQueueId(), progress.getGeneration());
+            if (!compactionLog.load(progress.getDataSize(), progress.getEntryNum())) {
+                return false;
+            }
+            this.compactionLogTable.put(entry.getKey(), compactionLog);
+        }
+
+        // Generations which were being written or not removed yet
+        File[] topicDirs = new File(this.getStorePath()).listFiles();
+        if (topicDirs != null) {
+            for (File topicDir : topicDirs) {
+                File[] queueDirs = topicDir.listFiles();
+                for (int i = 0; queueDirs != null && i < queueDirs.length; i++) {
+                    int queueId;
+                    try {
+                        queueId = Integer.parseInt(queueDirs[i].getName());
+                    } catch (NumberFormatException e) {
+                        log.warn("skip the unknown compaction log directory {}", queueDirs[i]);
+                        continue;
+                    }
+                    CompactionProgress progress = this.progressTable.get(buildKey(topicDir.getName(), queueId));
+                    File[] generationDirs = queueDirs[i].listFiles();
+                    for (int j = 0; generationDirs != null && j < generationDirs.length; j++) {
+                        long generation;
+                        try {
+                            generation = Long.parseLong(generationDirs[j].getName());
+                        } catch (NumberFormatException e) {
+                            log.warn("skip the unknown compaction log directory {}", generationDirs[j]);
+                            continue;
+                        }
+                        if (null == progress || generation != progress.getGeneration()) {
+                            log.info("remove the stale compaction log {}", generationDirs[j]);
+                            new CompactionLog(generationDirs[j].getPath(), -1, this.messageStoreConfig.getMappedFileSizeCompactionLog()).destroy();
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    public void start() {
+        this.compactionThread.start();
+    }
+
+    public void shutdown() {
+        this.compactionThread.shutdown();
+        this.persist();
+    }
+
+    public void destroy() {
+        for (CompactionLog compactionLog : this.compactionLogTable.values()) {
+            compactionLog.destroy();
+        }
+        this.compactionLogTable.clear();
+        this.progressTable.clear();
+        this.persist();
+    }
+
+    public boolean isCompactionTopic(final String topic) {
+        return this.compactionTopics.contains(topic);
+    }
+
+    /**
+     * @return offset before which the messages are read from the compacted log, -1 if not compacted
+     */
+    public long getCompactedOffset(final String topic, final int queueId) {
+        CompactionProgress progress = this.progressTable.get(buildKey(topic, queueId));
+        return progress != null ? progress.getCompactedOffset() : -1;
+    }
+
+    /**
+     * @return queue offset of the first compacted message, -1 if none
+     */
+    public long getMinOffsetInQueue(final String topic, final int queueId) {
+        CompactionLog compactionLog = this.compactionLogTable.get(buildKey(topic, queueId));
+        return compactionLog != null ? compactionLog.getMinQueueOffset() : -1;
+    }
+
+    /**
+     * Read the compacted messages from the offset, which is before the compacted offset of the queue.
+     *
+     * @return the result with the status and the next offset set, null if the queue is not compacted
+     */
+    public GetMessageResult getMessage(final String topic, final int queueId, final long offset, final int maxMsgNums,
+        final MessageFilter messageFilter) {
+        String key = buildKey(topic, queueId);
+        CompactionProgress progress = this.progressTable.get(key);
+        CompactionLog compactionLog = this.compactionLogTable.get(key);
+        // The log is replaced before the progress, it covers at least the compacted offset of the progress
+        if (null == progress || null == compactionLog) {
+            return null;
+        }
+
+        GetMessageResult getResult = new GetMessageResult(maxMsgNums);
+        GetMessageStatus status = GetMessageStatus.NO_MATCHED_MESSAGE;
+        long nextBeginOffset = progress.getCompactedOffset();
+        long readOffset = offset;
+        for (long index = compactionLog.findIndex(offset); index < compactionLog.getEntryNum(); index++) {
+            CompactionLog.Entry entry = compactionLog.getEntry(index);
+            if (null == entry || entry.getQueueOffset() >= progress.getCompactedOffset()) {
+                // Replaced by a new generation, read the rest from it next time
+                nextBeginOffset = null == entry ? readOffset : nextBeginOffset;
+                break;
+            }
+            if (getResult.getMessageCount() >= maxMsgNums
+                || getResult.getBufferTotalSize() + entry.getSize() > this.messageStoreConfig.getMaxTransferBytesOnMessageInDisk()
+                && getResult.getMessageCount() > 0) {
+                nextBeginOffset = entry.getQueueOffset();
+                break;
+            }
+            readOffset = entry.getQueueOffset() + 1;
+            if (messageFilter != null && !messageFilter.isMatchedByConsumeQueue(entry.getTagsCode(), null)) {
+                continue;
+            }
+
+            SelectMappedBufferResult selectResult = compactionLog.getMessage(entry);
+            if (null == selectResult) {
+                nextBeginOffset = entry.getQueueOffset();
+                break;
+            }
+            if (messageFilter != null && !messageFilter.isMatchedByCommitLog(selectResult.getByteBuffer().slice(), null)) {
+                selectResult.release();
+                continue;
+            }
+            getResult.addMessage(selectResult);
+            status = GetMessageStatus.FOUND;
+        }
+
+        getResult.setStatus(status);
+        getResult.setNextBeginOffset(nextBeginOffset);
+        return getResult;
+    }
+
+    /**
+     * Compact the messages of the sealed commit log files of all the compaction topics.
+     *
+     * @return number of queues compacted
+     */
+    public int compact() {
+        long sealedPhyOffset = this.getSealedPhyOffset();
+        int compacted = 0;
+        for (String topic : this.compactionTopics) {
+            ConcurrentMap<Integer, ConsumeQueue> queues = this.defaultMessageStore.getConsumeQueueTable().get(topic);
+            if (null == queues) {
+                continue;
+            }
+            for (ConsumeQueue consumeQueue : queues.values()) {
+                try {
+                    if (this.compact(consumeQueue, sealedPhyOffset)) {
+                        compacted++;
+                    }
+                } catch (Throwable e) {
+                    log.error("compact {} failed", buildKey(topic, consumeQueue.getQueueId()), e);
+                }
+            }
+        }
+
+        if (compacted > 0) {
+            this.persist();
+        }
+        return compacted;
+    }
+
+    /**
+     * Messages before the last commit log file are sealed, they are compacted once dispatched.
+     */
+    private long getSealedPhyOffset() {
+        MappedFile lastMappedFile = this.defaultMessageStore.getCommitLog().getMappedFileQueue().getLastMappedFile();
+        return lastMappedFile != null ? lastMappedFile.getFileFromOffset() : 0;
+    }
+
+    private boolean compact(final ConsumeQueue consumeQueue, final long sealedPhyOffset) {
+        String topic = consumeQueue.getTopic();
+        int queueId = consumeQueue.getQueueId();
+        String key = buildKey(topic, queueId);
+        CompactionProgress progress = this.progressTable.get(key);
+        CompactionLog lastLog = this.compactionLogTable.get(key);
+
+        long fromOffset = consumeQueue.getMinOffsetInQueue();
+        if (progress != null) {
+            if (progress.getCompactedOffset() < fromOffset) {
+                log.warn("the messages of {} between {} and {} are removed before compacted", key,
+                    progress.getCompactedOffset(), fromOffset);
+            }
+            fromOffset = Math.max(fromOffset, progress.getCompactedOffset());
+        }
+        long toOffset = this.findSealedOffset(consumeQueue, fromOffset, sealedPhyOffset);
+        if (toOffset <= fromOffset) {
+            return false;
+        }
+
+        // The latest queue offset of each key, its memory is bounded by the number of distinct keys of the queue while
+        // the entries are streamed from the logs
+        final Map<String, Long> latestOffsets = new HashMap<String, Long>();
+        if (lastLog != null) {
+            for (long index = 0; index < lastLog.getEntryNum(); index++) {
+                CompactionLog.Entry entry = lastLog.getEntry(index);
+                SelectMappedBufferResult result = lastLog.getMessage(entry);
+                if (result != null) {
+                    this.recordKey(latestOffsets, result, entry.getQueueOffset());
+                }
+            }
+        }
+        this.scanConsumeQueue(consumeQueue, fromOffset, toOffset, entry -> {
+            SelectMappedBufferResult result = this.defaultMessageStore.getCommitLog().getMessage(entry.getLogOffset(), entry.getSize());
+            if (result != null) {
+                this.recordKey(latestOffsets, result, entry.getQueueOffset());
+            }
+            return true;
+        });
+
+        // Copy the latest messages of the keys into a new generation
+        long generation = progress != null ? progress.getGeneration() + 1 : 0;
+        CompactionLog newLog = this.createCompactionLog(topic, queueId, generation);
+        long lastEntryNum = lastLog != null ? lastLog.getEntryNum() : 0;
+        long sourceNum = lastEntryNum;
+        boolean success = true;
+        for (long index = 0; index < lastEntryNum && success; index++) {
+            CompactionLog.Entry entry = lastLog.getEntry(index);
+            success = this.copyIfLatest(newLog, latestOffsets, lastLog.getMessage(entry), entry);
+        }
+        if (success) {
+            long copiedNum = this.scanConsumeQueue(consumeQueue, fromOffset, toOffset, entry -> this.copyIfLatest(newLog,
+                latestOffsets, this.defaultMessageStore.getCommitLog().getMessage(entry.getLogOffset(), entry.getSize()), entry));
+            success = copiedNum >= 0;
+            sourceNum += copiedNum;
+        }
+        if (!success) {
+            log.error("write compaction log {} generation {} failed", key, generation);
+            newLog.destroy();
+            return false;
+        }
+        newLog.flush();
+
+        CompactionProgress newProgress = new CompactionProgress();
+        newProgress.setTopic(topic);
+        newProgress.setQueueId(queueId);
+        newProgress.setGeneration(generation);
+        newProgress.setCompactedOffset(toOffset);
+        newProgress.setDataSize(newLog.getDataSize());
+        newProgress.setEntryNum(newLog.getEntryNum());
+        this.compactionLogTable.put(key, newLog);
+        this.progressTable.put(key, newProgress);
+        this.persist();
+        if (lastLog != null) {
+            lastLog.destroy();
+        }
+
+        this.compactionTimes.incrementAndGet();
+        this.compactedMsgNums.addAndGet(toOffset - fromOffset);
+        this.removedMsgNums.addAndGet(sourceNum - newLog.getEntryNum());
+        log.info("compact {} to offset {}, generation {}, {} messages from {}", key, toOffset, generation,
+            newLog.getEntryNum(), sourceNum);
+        return true;
+    }
+
+    /**
+     * @return offset after the last message of the queue in the sealed commit log files
+     */
+    private long findSealedOffset(final ConsumeQueue consumeQueue, final long fromOffset, final long sealedPhyOffset) {
+        long offset = fromOffset;
+        long maxOffset = consumeQueue.getMaxOffsetInQueue();
+        while (offset < maxOffset) {
+            SelectMappedBufferResult result = consumeQueue.getIndexBuffer(offset);
+            if (null == result) {
+                break;
+            }
+            try {
+                ByteBuffer byteBuffer = result.getByteBuffer();
+                for (int i = 0; i < result.getSize(); i += ConsumeQueue.CQ_STORE_UNIT_SIZE) {
+                    if (byteBuffer.getLong() >= sealedPhyOffset) {
+                        return offset;
+                    }
+                    byteBuffer.position(byteBuffer.position() + 12);
+                    offset++;
+                }
+            } finally {
+                result.release();
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Pass the entries of the consume queue to the handler one by one, holding a single consume queue file at a time.
+     *
+     * @return the number of entries handled, -1 if the handler failed
+     */
+    private long scanConsumeQueue(final ConsumeQueue consumeQueue, final long fromOffset, final long toOffset,
+        final Predicate<CompactionLog.Entry> handler) {
+        ConsumeQueueExt.CqExtUnit cqExtUnit = new ConsumeQueueExt.CqExtUnit();
+        long offset = fromOffset;
+        while (offset < toOffset) {
+            SelectMappedBufferResult result = consumeQueue.getIndexBuffer(offset);
+            if (null == result) {
+                break;
+            }
+            try {
+                ByteBuffer byteBuffer = result.getByteBuffer();
+                for (int i = 0; i < result.getSize() && offset < toOffset; i += ConsumeQueue.CQ_STORE_UNIT_SIZE) {
+                    long offsetPy = byteBuffer.getLong();
+                    int sizePy = byteBuffer.getInt();
+                    long tagsCode = byteBuffer.getLong();
+                    if (consumeQueue.isExtAddr(tagsCode) && consumeQueue.getExt(tagsCode, cqExtUnit)) {
+                        tagsCode = cqExtUnit.getTagsCode();
+                    }
+                    if (!handler.test(new CompactionLog.Entry(offsetPy, sizePy, tagsCode, offset))) {
+                        return -1;
+                    }
+                    offset++;
+                }
+            } finally {
+                result.release();
+            }
+        }
+        return offset - fromOffset;
+    }
+
+    private void recordKey(final Map<String, Long> latestOffsets, final SelectMappedBufferResult result,
+        final long queueOffset) {
+        try {
+            String keys = this.getKeys(result);
+            if (keys != null) {
+                latestOffsets.put(keys, queueOffset);
+            }
+        } finally {
+            result.release();
+        }
+    }
+
+    private boolean copyIfLatest(final CompactionLog compactionLog, final Map<String, Long> latestOffsets,
+        final SelectMappedBufferResult result, final CompactionLog.Entry entry) {
+        if (null == result) {
+            // Removed from the commit log
+            return true;
+        }
+        try {
+            String keys = this.getKeys(result);
+            Long latestOffset = keys != null ? latestOffsets.get(keys) : null;
+            if (latestOffset != null && latestOffset != entry.getQueueOffset()) {
+                return true;
+            }
+            return compactionLog.append(result.getByteBuffer(), entry.getSize(), entry.getTagsCode(), entry.getQueueOffset());
+        } finally {
+            result.release();
+        }
+    }
+
+    private String getKeys(final SelectMappedBufferResult result) {
+        Map<String, String> properties = MessageDecoder.decodeProperties(result.getByteBuffer().slice());
+        return properties != null ? properties.get(MessageConst.PROPERTY_KEYS) : null;
+    }
+
+    private CompactionLog createCompactionLog(final String topic, final int queueId, final long generation) {
+        String storePath = this.getStorePath() + File.separator + topic + File.separator + queueId + File.separator + generation;
+        return new CompactionLog(storePath, generation, this.messageStoreConfig.getMappedFileSizeCompactionLog());
+    }
+
+    private String getStorePath() {
+        return StorePathConfigHelper.getStorePathCompaction(this.messageStoreConfig.getStorePathRootDir());
+    }
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        stats.put("compactionQueueNum", String.valueOf(this.compactionLogTable.size()));
+        stats.put("compactionTimes", String.valueOf(this.compactionTimes.get()));
+        stats.put("compactionMsgNums", String.format("%d,%d", this.compactedMsgNums.get(), this.removedMsgNums.get()));
+    }
+
+    public long getCompactionTimes() {
+        return compactionTimes.get();
+    }
+
+    public long getRemovedMsgNums() {
+        return removedMsgNums.get();
+    }
+
+    @Override
+    public String encode() {
+        return this.encode(false);
+    }
+
+    @Override
+    public String configFilePath() {
+        return StorePathConfigHelper.getCompactionManifestPath(this.messageStoreConfig.getStorePathRootDir());
+    }
+
+    @Override
+    public void decode(String jsonString) {
+        if (jsonString != null) {
+            CompactionManifestSerializeWrapper manifest =
+                CompactionManifestSerializeWrapper.fromJson(jsonString, CompactionManifestSerializeWrapper.class);
+            if (manifest != null && manifest.getCompactionProgresses() != null) {
+                for (CompactionProgress progress : manifest.getCompactionProgresses()) {
+                    this.progressTable.put(buildKey(progress.getTopic(), progress.getQueueId()), progress);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String encode(final boolean prettyFormat) {
+        CompactionManifestSerializeWrapper manifest = new CompactionManifestSerializeWrapper();
+        manifest.setCompactionProgresses(new ArrayList<CompactionProgress>(this.progressTable.values()));
+        return manifest.toJson(prettyFormat);
+    }
+
+    class CompactionThread extends ServiceThread {
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(CompactionService.this.messageStoreConfig.getCompactionInterval());
+                    CompactionService.this.compact();
+                } catch (Throwable e) {
+                    log.error(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+        @Override
+        public String getServiceName() {
+            return CompactionThread.class.getSimpleName();
+        }
+    }
+}
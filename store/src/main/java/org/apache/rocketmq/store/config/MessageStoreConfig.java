@@ -19,6 +19,7 @@ package org.apache.rocketmq.store.config;
 import java.io.File;
 
 import org.apache.rocketmq.common.annotation.ImportantField;
+import org.apache.rocketmq.store.BatchConsumeQueue;
 import org.apache.rocketmq.store.ConsumeQueue;
 
 public class MessageStoreConfig {
@@ -36,6 +37,13 @@ public class MessageStoreConfig {
 
     private String readOnlyCommitLogStorePaths = null;
 
+    // With several commitlog paths, flush the files of each path in its own thread, so the files striped across the
+    // disks are written back in parallel. The unit of the stripe is a file, and the appends still go to one file at a
+    // time, so it needs a mappedFileSizeCommitLog small enough to span several disks within a flush interval. It is
+    // ignored with a warning when mappedFileSizeCommitLog exceeds flushIntervalCommitLog milliseconds of 1 GB/s, as
+    // with the default 1 GB files.
+    private boolean commitLogStripeFlushEnable = false;
+
     // CommitLog file size,default is 1G
     private int mappedFileSizeCommitLog = 1024 * 1024 * 1024;
     // ConsumeQueue file size,default is 30W
@@ -126,6 +134,11 @@ public class MessageStoreConfig {
     @ImportantField
     private String haMasterAddress = null;
     private int haSlaveFallbehindMax = 1024 * 1024 * 256;
+    // Chunks written to a slave in a row without waiting for the selector
+    private int haTransferPipelineDepth = 4;
+    private boolean haTransferZeroCopyEnable = true;
+    // Slaves that must have the data before a put on the SYNC_MASTER succeeds
+    private int haSyncReplicas = 1;
     @ImportantField
     private BrokerRole brokerRole = BrokerRole.ASYNC_MASTER;
     @ImportantField
@@ -136,6 +149,13 @@ public class MessageStoreConfig {
     @ImportantField
     private boolean cleanFileForciblyEnable = true;
     private boolean warmMapedFileEnable = false;
+    // How many CommitLog files following the next one are created in advance
+    private int mappedFileAllocateAheadNum = 1;
+    // Threads warming the files created in advance, 0 to warm them on the allocating thread
+    private int mappedFileWarmThreadNum = 2;
+    // Rename the expired CommitLog files to the new ones instead of deleting them
+    private boolean mappedFileRecycleEnable = false;
+    private int mappedFileRecycleMaxNum = 4;
     private boolean offsetCheckInSlave = false;
     private boolean debugLockEnable = false;
     private boolean duplicationEnable = false;
@@ -146,6 +166,14 @@ public class MessageStoreConfig {
     @ImportantField
     private boolean transientStorePoolEnable = false;
     private int transientStorePoolSize = 5;
+    // Buffers allocated at startup, more are allocated on demand up to transientStorePoolSize
+    private int transientStorePoolMinSize = 1;
+    // mlock the buffers in the background instead of when they are allocated
+    private boolean transientStorePoolLazyLock = true;
+    // Release the idle buffers above the minimum once the pool has not been drained for so long
+    private long transientStorePoolShrinkIdleTime = 60 * 1000;
+    // Wait so long for a buffer to be returned before a CommitLog file is created without one
+    private long transientStorePoolBorrowTimeout = 1000;
     private boolean fastFailIfNoBufferInStorePool = false;
 
     private boolean enableDLegerCommitLog = false;
@@ -159,6 +187,107 @@ public class MessageStoreConfig {
 
     private boolean enableScheduleMessageStats = true;
 
+    /**
+     * Dispatch consume queue and index on separated lanes instead of the single reput thread.
+     */
+    private boolean enableParallelDispatch = false;
+    // Consume queue dispatch lanes, requests of one queue always go to the same lane
+    private int dispatchThreadPoolNums = 4;
+    // Max pending requests per dispatch lane, the reput thread blocks when it is exceeded
+    private int dispatchQueueCapacity = 16384;
+
+    /**
+     * Serve delay messages, both delay levels and TIMER_DELIVER_MS, by the persistent timing wheel.
+     */
+    private boolean timerWheelEnable = false;
+    // Tick of the lowest wheel level, a timer fires at most one tick late
+    private int timerPrecisionMs = 100;
+    private int timerWheelSlots = 3600;
+    private int timerWheelLevels = 2;
+    private long timerMaxDelaySec = 3 * 24 * 3600;
+    // TimerLog file size, 32M, must be a multiple of the timer log unit size
+    private int mappedFileSizeTimerLog = 32 * 1024 * 1024;
+
+    /**
+     * Keep an off-heap bloom filter per index file, so files which can't hold the key are skipped when querying.
+     * It costs maxIndexNum * indexBloomFilterBitsPerKey / 8 bytes of direct memory per index file.
+     */
+    private boolean indexBloomFilterEnable = false;
+    private int indexBloomFilterBitsPerKey = 10;
+    // Index files are searched in parallel by this many threads, no more than 1 means searching in the query thread
+    private int indexQueryThreadPoolNums = 4;
+
+    /**
+     * Keep a store timestamp sample every consumeQueueTimeIndexInterval consume queue units, so looking up an offset
+     * by time reads the commit log only between two samples.
+     */
+    private boolean enableConsumeQueueTimeIndex = false;
+    private int consumeQueueTimeIndexInterval = 32;
+
+    /**
+     * Upload the sealed commit log files to the tiered storage backend, uploaded files are removed locally after
+     * tieredLocalFileReservedTime hours and the reads of them are served by a read-through segment cache.
+     */
+    private boolean tieredStorageEnable = false;
+    private String tieredStorageBackendClass = "org.apache.rocketmq.store.tiered.LocalDirTieredStorageBackend";
+    // The directory in which LocalDirTieredStorageBackend keeps the segments
+    private String storePathTiered = System.getProperty("user.home") + File.separator + "store"
+        + File.separator + "tiered";
+    // Hours, uploaded commit log files are kept locally no longer than it
+    private int tieredLocalFileReservedTime = 12;
+    private int tieredUploadInterval = 10 * 1000;
+    private int tieredCacheBlockSize = 1024 * 1024;
+    // Heap memory of the segment cache
+    private long tieredCacheMaxSize = 64 * 1024 * 1024;
+    // Blocks read ahead asynchronously after each read of the tiered storage
+    private int tieredPrefetchBlocks = 4;
+    private int tieredPrefetchThreadNums = 2;
+
+    /**
+     * Under SYNC_FLUSH, let the group commit thread wait for more requests before a flush when the estimated p99 of
+     * the fsync time leaves room under groupCommitLatencyTargetMicros, instead of flushing as soon as woken up.
+     */
+    private boolean groupCommitAdaptiveEnable = false;
+    private int groupCommitLatencyTargetMicros = 2000;
+    private int groupCommitMaxLingerMicros = 1000;
+
+    /**
+     * Append messages to the CommitLog without the put message lock, space is reserved by a CAS on the last file and
+     * messages are written concurrently, the lock is only taken to roll to the next file.
+     */
+    private boolean lockFreeAppendEnable = false;
+
+    /**
+     * Tell whether the pulled messages are in memory by mincore instead of accessMessageInMemoryMaxRatio, and read
+     * ahead the CommitLog for the pulls which miss the page cache.
+     */
+    private boolean pageCacheResidencyEnable = false;
+    private int pageCacheResidencyProbeSize = 64 * 1024;
+    private int pageCacheReadAheadSize = 4 * 1024 * 1024;
+
+    /**
+     * Journal the CommitLog offset confirmed by each thorough flush of the consume queues, so an abnormal recovery
+     * replays from there instead of scanning the files after the checkpoint timestamps.
+     */
+    private boolean checkpointJournalEnable = false;
+    private int checkpointJournalCrcWindow = 1024 * 1024;
+
+    /**
+     * Topics separated by comma, whose messages in the sealed CommitLog files are compacted into a log keeping only
+     * the latest message of each KEYS, from which the consumers read the messages before the compacted offset.
+     */
+    private String compactionTopics = "";
+    private int compactionInterval = 10 * 60 * 1000;
+    // Not less than maxMessageSize, a message doesn't span files
+    private int mappedFileSizeCompactionLog = 100 * 1024 * 1024;
+
+    /**
+     * Topics separated by comma, whose consume queues keep one entry per message batch rather than per message. Must
+     * be set before the topic has any message, the two formats are not converted.
+     */
+    private String batchConsumeQueueTopics = "";
+    private int mappedFileSizeBatchConsumeQueue = 300000 * BatchConsumeQueue.CQ_STORE_UNIT_SIZE;
+
     public boolean isDebugLockEnable() {
         return debugLockEnable;
     }
@@ -744,4 +873,397 @@ public class MessageStoreConfig {
     public void setEnableScheduleMessageStats(boolean enableScheduleMessageStats) {
         this.enableScheduleMessageStats = enableScheduleMessageStats;
     }
+
+    public boolean isEnableParallelDispatch() {
+        return enableParallelDispatch;
+    }
+
+    public void setEnableParallelDispatch(boolean enableParallelDispatch) {
+        this.enableParallelDispatch = enableParallelDispatch;
+    }
+
+    public int getDispatchThreadPoolNums() {
+        return dispatchThreadPoolNums;
+    }
+
+    public void setDispatchThreadPoolNums(int dispatchThreadPoolNums) {
+        this.dispatchThreadPoolNums = dispatchThreadPoolNums;
+    }
+
+    public int getDispatchQueueCapacity() {
+        return dispatchQueueCapacity;
+    }
+
+    public void setDispatchQueueCapacity(int dispatchQueueCapacity) {
+        this.dispatchQueueCapacity = dispatchQueueCapacity;
+    }
+
+    public boolean isTimerWheelEnable() {
+        return timerWheelEnable;
+    }
+
+    public void setTimerWheelEnable(boolean timerWheelEnable) {
+        this.timerWheelEnable = timerWheelEnable;
+    }
+
+    public int getTimerPrecisionMs() {
+        return timerPrecisionMs;
+    }
+
+    public void setTimerPrecisionMs(int timerPrecisionMs) {
+        this.timerPrecisionMs = timerPrecisionMs;
+    }
+
+    public int getTimerWheelSlots() {
+        return timerWheelSlots;
+    }
+
+    public void setTimerWheelSlots(int timerWheelSlots) {
+        this.timerWheelSlots = timerWheelSlots;
+    }
+
+    public int getTimerWheelLevels() {
+        return timerWheelLevels;
+    }
+
+    public void setTimerWheelLevels(int timerWheelLevels) {
+        this.timerWheelLevels = timerWheelLevels;
+    }
+
+    public long getTimerMaxDelaySec() {
+        return timerMaxDelaySec;
+    }
+
+    public void setTimerMaxDelaySec(long timerMaxDelaySec) {
+        this.timerMaxDelaySec = timerMaxDelaySec;
+    }
+
+    public int getMappedFileSizeTimerLog() {
+        return mappedFileSizeTimerLog;
+    }
+
+    public void setMappedFileSizeTimerLog(int mappedFileSizeTimerLog) {
+        this.mappedFileSizeTimerLog = mappedFileSizeTimerLog;
+    }
+
+    public boolean isIndexBloomFilterEnable() {
+        return indexBloomFilterEnable;
+    }
+
+    public void setIndexBloomFilterEnable(boolean indexBloomFilterEnable) {
+        this.indexBloomFilterEnable = indexBloomFilterEnable;
+    }
+
+    public int getIndexBloomFilterBitsPerKey() {
+        return indexBloomFilterBitsPerKey;
+    }
+
+    public void setIndexBloomFilterBitsPerKey(int indexBloomFilterBitsPerKey) {
+        this.indexBloomFilterBitsPerKey = indexBloomFilterBitsPerKey;
+    }
+
+    public int getIndexQueryThreadPoolNums() {
+        return indexQueryThreadPoolNums;
+    }
+
+    public void setIndexQueryThreadPoolNums(int indexQueryThreadPoolNums) {
+        this.indexQueryThreadPoolNums = indexQueryThreadPoolNums;
+    }
+
+    public boolean isEnableConsumeQueueTimeIndex() {
+        return enableConsumeQueueTimeIndex;
+    }
+
+    public void setEnableConsumeQueueTimeIndex(boolean enableConsumeQueueTimeIndex) {
+        this.enableConsumeQueueTimeIndex = enableConsumeQueueTimeIndex;
+    }
+
+    public int getConsumeQueueTimeIndexInterval() {
+        return consumeQueueTimeIndexInterval;
+    }
+
+    public void setConsumeQueueTimeIndexInterval(int consumeQueueTimeIndexInterval) {
+        this.consumeQueueTimeIndexInterval = consumeQueueTimeIndexInterval;
+    }
+
+    public boolean isTieredStorageEnable() {
+        return tieredStorageEnable;
+    }
+
+    public void setTieredStorageEnable(boolean tieredStorageEnable) {
+        this.tieredStorageEnable = tieredStorageEnable;
+    }
+
+    public String getTieredStorageBackendClass() {
+        return tieredStorageBackendClass;
+    }
+
+    public void setTieredStorageBackendClass(String tieredStorageBackendClass) {
+        this.tieredStorageBackendClass = tieredStorageBackendClass;
+    }
+
+    public String getStorePathTiered() {
+        return storePathTiered;
+    }
+
+    public void setStorePathTiered(String storePathTiered) {
+        this.storePathTiered = storePathTiered;
+    }
+
+    public int getTieredLocalFileReservedTime() {
+        return tieredLocalFileReservedTime;
+    }
+
+    public void setTieredLocalFileReservedTime(int tieredLocalFileReservedTime) {
+        this.tieredLocalFileReservedTime = tieredLocalFileReservedTime;
+    }
+
+    public int getTieredUploadInterval() {
+        return tieredUploadInterval;
+    }
+
+    public void setTieredUploadInterval(int tieredUploadInterval) {
+        this.tieredUploadInterval = tieredUploadInterval;
+    }
+
+    public int getTieredCacheBlockSize() {
+        return tieredCacheBlockSize;
+    }
+
+    public void setTieredCacheBlockSize(int tieredCacheBlockSize) {
+        this.tieredCacheBlockSize = tieredCacheBlockSize;
+    }
+
+    public long getTieredCacheMaxSize() {
+        return tieredCacheMaxSize;
+    }
+
+    public void setTieredCacheMaxSize(long tieredCacheMaxSize) {
+        this.tieredCacheMaxSize = tieredCacheMaxSize;
+    }
+
+    public int getTieredPrefetchBlocks() {
+        return tieredPrefetchBlocks;
+    }
+
+    public void setTieredPrefetchBlocks(int tieredPrefetchBlocks) {
+        this.tieredPrefetchBlocks = tieredPrefetchBlocks;
+    }
+
+    public int getTieredPrefetchThreadNums() {
+        return tieredPrefetchThreadNums;
+    }
+
+    public void setTieredPrefetchThreadNums(int tieredPrefetchThreadNums) {
+        this.tieredPrefetchThreadNums = tieredPrefetchThreadNums;
+    }
+
+    public boolean isGroupCommitAdaptiveEnable() {
+        return groupCommitAdaptiveEnable;
+    }
+
+    public void setGroupCommitAdaptiveEnable(boolean groupCommitAdaptiveEnable) {
+        this.groupCommitAdaptiveEnable = groupCommitAdaptiveEnable;
+    }
+
+    public int getGroupCommitLatencyTargetMicros() {
+        return groupCommitLatencyTargetMicros;
+    }
+
+    public void setGroupCommitLatencyTargetMicros(int groupCommitLatencyTargetMicros) {
+        this.groupCommitLatencyTargetMicros = groupCommitLatencyTargetMicros;
+    }
+
+    public int getGroupCommitMaxLingerMicros() {
+        return groupCommitMaxLingerMicros;
+    }
+
+    public void setGroupCommitMaxLingerMicros(int groupCommitMaxLingerMicros) {
+        this.groupCommitMaxLingerMicros = groupCommitMaxLingerMicros;
+    }
+
+    public boolean isLockFreeAppendEnable() {
+        return lockFreeAppendEnable;
+    }
+
+    public void setLockFreeAppendEnable(boolean lockFreeAppendEnable) {
+        this.lockFreeAppendEnable = lockFreeAppendEnable;
+    }
+
+    public boolean isPageCacheResidencyEnable() {
+        return pageCacheResidencyEnable;
+    }
+
+    public void setPageCacheResidencyEnable(boolean pageCacheResidencyEnable) {
+        this.pageCacheResidencyEnable = pageCacheResidencyEnable;
+    }
+
+    public int getPageCacheResidencyProbeSize() {
+        return pageCacheResidencyProbeSize;
+    }
+
+    public void setPageCacheResidencyProbeSize(int pageCacheResidencyProbeSize) {
+        this.pageCacheResidencyProbeSize = pageCacheResidencyProbeSize;
+    }
+
+    public int getPageCacheReadAheadSize() {
+        return pageCacheReadAheadSize;
+    }
+
+    public void setPageCacheReadAheadSize(int pageCacheReadAheadSize) {
+        this.pageCacheReadAheadSize = pageCacheReadAheadSize;
+    }
+
+    public boolean isCheckpointJournalEnable() {
+        return checkpointJournalEnable;
+    }
+
+    public void setCheckpointJournalEnable(boolean checkpointJournalEnable) {
+        this.checkpointJournalEnable = checkpointJournalEnable;
+    }
+
+    public int getCheckpointJournalCrcWindow() {
+        return checkpointJournalCrcWindow;
+    }
+
+    public void setCheckpointJournalCrcWindow(int checkpointJournalCrcWindow) {
+        this.checkpointJournalCrcWindow = checkpointJournalCrcWindow;
+    }
+
+    public String getCompactionTopics() {
+        return compactionTopics;
+    }
+
+    public void setCompactionTopics(String compactionTopics) {
+        this.compactionTopics = compactionTopics;
+    }
+
+    public int getCompactionInterval() {
+        return compactionInterval;
+    }
+
+    public void setCompactionInterval(int compactionInterval) {
+        this.compactionInterval = compactionInterval;
+    }
+
+    public int getMappedFileSizeCompactionLog() {
+        return mappedFileSizeCompactionLog;
+    }
+
+    public void setMappedFileSizeCompactionLog(int mappedFileSizeCompactionLog) {
+        this.mappedFileSizeCompactionLog = mappedFileSizeCompactionLog;
+    }
+
+    public int getTransientStorePoolMinSize() {
+        return transientStorePoolMinSize;
+    }
+
+    public void setTransientStorePoolMinSize(int transientStorePoolMinSize) {
+        this.transientStorePoolMinSize = transientStorePoolMinSize;
+    }
+
+    public boolean isTransientStorePoolLazyLock() {
+        return transientStorePoolLazyLock;
+    }
+
+    public void setTransientStorePoolLazyLock(boolean transientStorePoolLazyLock) {
+        this.transientStorePoolLazyLock = transientStorePoolLazyLock;
+    }
+
+    public long getTransientStorePoolShrinkIdleTime() {
+        return transientStorePoolShrinkIdleTime;
+    }
+
+    public void setTransientStorePoolShrinkIdleTime(long transientStorePoolShrinkIdleTime) {
+        this.transientStorePoolShrinkIdleTime = transientStorePoolShrinkIdleTime;
+    }
+
+    public long getTransientStorePoolBorrowTimeout() {
+        return transientStorePoolBorrowTimeout;
+    }
+
+    public void setTransientStorePoolBorrowTimeout(long transientStorePoolBorrowTimeout) {
+        this.transientStorePoolBorrowTimeout = transientStorePoolBorrowTimeout;
+    }
+
+    public int getMappedFileAllocateAheadNum() {
+        return mappedFileAllocateAheadNum;
+    }
+
+    public void setMappedFileAllocateAheadNum(int mappedFileAllocateAheadNum) {
+        this.mappedFileAllocateAheadNum = mappedFileAllocateAheadNum;
+    }
+
+    public int getMappedFileWarmThreadNum() {
+        return mappedFileWarmThreadNum;
+    }
+
+    public void setMappedFileWarmThreadNum(int mappedFileWarmThreadNum) {
+        this.mappedFileWarmThreadNum = mappedFileWarmThreadNum;
+    }
+
+    public boolean isMappedFileRecycleEnable() {
+        return mappedFileRecycleEnable;
+    }
+
+    public void setMappedFileRecycleEnable(boolean mappedFileRecycleEnable) {
+        this.mappedFileRecycleEnable = mappedFileRecycleEnable;
+    }
+
+    public int getMappedFileRecycleMaxNum() {
+        return mappedFileRecycleMaxNum;
+    }
+
+    public void setMappedFileRecycleMaxNum(int mappedFileRecycleMaxNum) {
+        this.mappedFileRecycleMaxNum = mappedFileRecycleMaxNum;
+    }
+
+    public int getHaTransferPipelineDepth() {
+        return haTransferPipelineDepth;
+    }
+
+    public void setHaTransferPipelineDepth(int haTransferPipelineDepth) {
+        this.haTransferPipelineDepth = haTransferPipelineDepth;
+    }
+
+    public boolean isHaTransferZeroCopyEnable() {
+        return haTransferZeroCopyEnable;
+    }
+
+    public void setHaTransferZeroCopyEnable(boolean haTransferZeroCopyEnable) {
+        this.haTransferZeroCopyEnable = haTransferZeroCopyEnable;
+    }
+
+    public int getHaSyncReplicas() {
+        return haSyncReplicas;
+    }
+
+    public void setHaSyncReplicas(int haSyncReplicas) {
+        this.haSyncReplicas = haSyncReplicas;
+    }
+
+    public String getBatchConsumeQueueTopics() {
+        return batchConsumeQueueTopics;
+    }
+
+    public void setBatchConsumeQueueTopics(String batchConsumeQueueTopics) {
+        this.batchConsumeQueueTopics = batchConsumeQueueTopics;
+    }
+
+    public int getMappedFileSizeBatchConsumeQueue() {
+        int factor = (int) Math.ceil(this.mappedFileSizeBatchConsumeQueue / (BatchConsumeQueue.CQ_STORE_UNIT_SIZE * 1.0));
+        return factor * BatchConsumeQueue.CQ_STORE_UNIT_SIZE;
+    }
+
+    public void setMappedFileSizeBatchConsumeQueue(int mappedFileSizeBatchConsumeQueue) {
+        this.mappedFileSizeBatchConsumeQueue = mappedFileSizeBatchConsumeQueue;
+    }
+
+    public boolean isCommitLogStripeFlushEnable() {
+        return commitLogStripeFlushEnable;
+    }
+
+    public void setCommitLogStripeFlushEnable(boolean commitLogStripeFlushEnable) {
+        this.commitLogStripeFlushEnable = commitLogStripeFlushEnable;
+    }
 }
@@ -24,10 +24,18 @@ public class StorePathConfigHelper {
         return rootDir + File.separator + "consumequeue";
     }
 
+    public static String getStorePathBatchConsumeQueue(final String rootDir) {
+        return rootDir + File.separator + "batchconsumequeue";
+    }
+
     public static String getStorePathConsumeQueueExt(final String rootDir) {
         return rootDir + File.separator + "consumequeue_ext";
     }
 
+    public static String getStorePathConsumeQueueTimeIndex(final String rootDir) {
+        return rootDir + File.separator + "consumequeue_time";
+    }
+
     public static String getStorePathIndex(final String rootDir) {
         return rootDir + File.separator + "index";
     }
@@ -36,6 +44,10 @@ public class StorePathConfigHelper {
         return rootDir + File.separator + "checkpoint";
     }
 
+    public static String getStoreCheckpointJournal(final String rootDir) {
+        return rootDir + File.separator + "checkpointJournal";
+    }
+
     public static String getAbortFile(final String rootDir) {
         return rootDir + File.separator + "abort";
     }
@@ -48,6 +60,30 @@ public class StorePathConfigHelper {
         return rootDir + File.separator + "config" + File.separator + "delayOffset.json";
     }
 
+    public static String getTimerWheelPath(final String rootDir) {
+        return rootDir + File.separator + "timerwheel";
+    }
+
+    public static String getTimerLogStorePath(final String rootDir) {
+        return rootDir + File.separator + "timerlog";
+    }
+
+    public static String getTimerCheckpointPath(final String rootDir) {
+        return rootDir + File.separator + "config" + File.separator + "timerCheckpoint.json";
+    }
+
+    public static String getTieredManifestPath(final String rootDir) {
+        return rootDir + File.separator + "config" + File.separator + "tieredManifest.json";
+    }
+
+    public static String getStorePathCompaction(final String rootDir) {
+        return rootDir + File.separator + "compaction";
+    }
+
+    public static String getCompactionManifestPath(final String rootDir) {
+        return rootDir + File.separator + "config" + File.separator + "compaction.json";
+    }
+
     public static String getTranStateTableStorePath(final String rootDir) {
         return rootDir + File.separator + "transaction" + File.separator + "statetable";
     }
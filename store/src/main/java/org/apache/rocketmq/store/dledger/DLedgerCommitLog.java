@@ -37,13 +37,13 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.apache.rocketmq.common.UtilAll;
-import org.apache.rocketmq.common.message.MessageAccessor;
-import org.apache.rocketmq.common.message.MessageConst;
 import org.apache.rocketmq.common.message.MessageDecoder;
 import org.apache.rocketmq.common.message.MessageExtBatch;
+import org.apache.rocketmq.common.message.MessagePropertiesCodec;
 import org.apache.rocketmq.common.sysflag.MessageSysFlag;
-import org.apache.rocketmq.common.topic.TopicValidator;
 import org.apache.rocketmq.store.AppendMessageResult;
 import org.apache.rocketmq.store.AppendMessageStatus;
 import org.apache.rocketmq.store.CommitLog;
@@ -55,7 +55,6 @@ import org.apache.rocketmq.store.PutMessageResult;
 import org.apache.rocketmq.store.PutMessageStatus;
 import org.apache.rocketmq.store.SelectMappedBufferResult;
 import org.apache.rocketmq.store.StoreStatsService;
-import org.apache.rocketmq.store.schedule.ScheduleMessageService;
 
 /**
  * Store all metadata downtime for recovery, data protection reliability
@@ -382,23 +381,7 @@ public class DLedgerCommitLog extends CommitLog {
         if (tranType == MessageSysFlag.TRANSACTION_NOT_TYPE
             || tranType == MessageSysFlag.TRANSACTION_COMMIT_TYPE) {
             // Delay Delivery
-            if (msg.getDelayTimeLevel() > 0) {
-                if (msg.getDelayTimeLevel() > this.defaultMessageStore.getScheduleMessageService().getMaxDelayLevel()) {
-                    msg.setDelayTimeLevel(this.defaultMessageStore.getScheduleMessageService().getMaxDelayLevel());
-                }
-
-
-                String topic = TopicValidator.RMQ_SYS_SCHEDULE_TOPIC;
-                int queueId = ScheduleMessageService.delayLevel2QueueId(msg.getDelayTimeLevel());
-
-                // Backup real topic, queueId
-                MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_TOPIC, msg.getTopic());
-                MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_QUEUE_ID, String.valueOf(msg.getQueueId()));
-                msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
-
-                msg.setTopic(topic);
-                msg.setQueueId(queueId);
-            }
+            this.transformDelayMessage(msg);
         }
 
         InetSocketAddress bornSocketAddress = (InetSocketAddress) msg.getBornHost();
@@ -657,13 +640,13 @@ public class DLedgerCommitLog extends CommitLog {
     }
 
     @Override
-    public HashMap<String, Long> getTopicQueueTable() {
+    public ConcurrentMap<String, Long> getTopicQueueTable() {
         return topicQueueTable;
     }
 
     @Override
     public void setTopicQueueTable(HashMap<String, Long> topicQueueTable) {
-        this.topicQueueTable = topicQueueTable;
+        this.topicQueueTable = new ConcurrentHashMap<String, Long>(topicQueueTable);
     }
 
     @Override
@@ -787,13 +770,11 @@ public class DLedgerCommitLog extends CommitLog {
             /**
              * Serialize message
              */
-            final byte[] propertiesData =
-                msgInner.getPropertiesString() == null ? null : msgInner.getPropertiesString().getBytes(MessageDecoder.CHARSET_UTF8);
-
-            final int propertiesLength = propertiesData == null ? 0 : propertiesData.length;
+            final MessagePropertiesCodec propertiesCodec = MessagePropertiesCodec.local();
+            final int propertiesLength = propertiesCodec.encode(msgInner.getPropertiesString());
 
             if (propertiesLength > Short.MAX_VALUE) {
-                log.warn("putMessage message properties length too long. length={}", propertiesData.length);
+                log.warn("putMessage message properties length too long. length={}", propertiesLength);
                 return new EncodeResult(AppendMessageStatus.PROPERTIES_SIZE_EXCEEDED, null, key);
             }
 
@@ -856,7 +837,7 @@ public class DLedgerCommitLog extends CommitLog {
             // 17 PROPERTIES
             msgStoreItemMemory.putShort((short) propertiesLength);
             if (propertiesLength > 0) {
-                msgStoreItemMemory.put(propertiesData);
+                msgStoreItemMemory.put(propertiesCodec.bytes(), 0, propertiesLength);
             }
             return new EncodeResult(AppendMessageStatus.PUT_OK, msgStoreItemMemory, key);
         }
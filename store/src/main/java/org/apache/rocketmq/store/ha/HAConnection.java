@@ -26,6 +26,7 @@ import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.logging.InternalLogger;
 import org.apache.rocketmq.logging.InternalLoggerFactory;
 import org.apache.rocketmq.remoting.common.RemotingUtil;
+import org.apache.rocketmq.store.MappedFile;
 import org.apache.rocketmq.store.SelectMappedBufferResult;
 
 public class HAConnection {
@@ -78,6 +79,10 @@ public class HAConnection {
         return socketChannel;
     }
 
+    public long getSlaveAckOffset() {
+        return slaveAckOffset;
+    }
+
     class ReadSocketService extends ServiceThread {
         private static final int READ_MAX_BUFFER_SIZE = 1024 * 1024;
         private final Selector selector;
@@ -202,6 +207,7 @@ public class HAConnection {
 
         private final int headerSize = 8 + 4;
         private final ByteBuffer byteBufferHeader = ByteBuffer.allocate(headerSize);
+        private final ByteBuffer[] byteBuffersToWrite = new ByteBuffer[2];
         private long nextTransferFromWhere = -1;
         private SelectMappedBufferResult selectMappedBufferResult;
         private boolean lastWriteOver = true;
@@ -273,9 +279,18 @@ public class HAConnection {
                             continue;
                     }
 
-                    SelectMappedBufferResult selectResult =
-                        HAConnection.this.haService.getDefaultMessageStore().getCommitLogData(this.nextTransferFromWhere);
-                    if (selectResult != null) {
+                    // The next chunks are written right after the one before, without waiting for the selector
+                    int pipelineDepth = Math.max(1, HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().getHaTransferPipelineDepth());
+                    for (int i = 0; i < pipelineDepth && this.lastWriteOver; i++) {
+                        SelectMappedBufferResult selectResult =
+                            HAConnection.this.haService.getDefaultMessageStore().getCommitLogData(this.nextTransferFromWhere);
+                        if (null == selectResult) {
+                            if (0 == i) {
+                                HAConnection.this.haService.getWaitNotifyObject().allWaitForRunning(100);
+                            }
+                            break;
+                        }
+
                         int size = selectResult.getSize();
                         if (size > HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().getHaTransferBatchSize()) {
                             size = HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().getHaTransferBatchSize();
@@ -295,9 +310,6 @@ public class HAConnection {
                         this.byteBufferHeader.flip();
 
                         this.lastWriteOver = this.transferData();
-                    } else {
-
-                        HAConnection.this.haService.getWaitNotifyObject().allWaitForRunning(100);
                     }
                 } catch (Exception e) {
 
@@ -335,18 +347,32 @@ public class HAConnection {
 
         private boolean transferData() throws Exception {
             int writeSizeZeroTimes = 0;
-            // Write Header
-            while (this.byteBufferHeader.hasRemaining()) {
-                int writeSize = this.socketChannel.write(this.byteBufferHeader);
+            boolean zeroCopy = null != this.selectMappedBufferResult && null != this.selectMappedBufferResult.getMappedFile()
+                && HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().isHaTransferZeroCopyEnable();
+            while (this.byteBufferHeader.hasRemaining()
+                || null != this.selectMappedBufferResult && this.selectMappedBufferResult.getByteBuffer().hasRemaining()) {
+                long writeSize;
+                if (null == this.selectMappedBufferResult || zeroCopy && this.byteBufferHeader.hasRemaining()) {
+                    writeSize = this.socketChannel.write(this.byteBufferHeader);
+                } else if (zeroCopy) {
+                    writeSize = this.transferBody();
+                } else {
+                    // Header and body in one system call
+                    this.byteBuffersToWrite[0] = this.byteBufferHeader;
+                    this.byteBuffersToWrite[1] = this.selectMappedBufferResult.getByteBuffer();
+                    writeSize = this.socketChannel.write(this.byteBuffersToWrite);
+                }
+
                 if (writeSize > 0) {
                     writeSizeZeroTimes = 0;
                     this.lastWriteTimestamp = HAConnection.this.haService.getDefaultMessageStore().getSystemClock().now();
+                    HAConnection.this.haService.getTransferredBytes().addAndGet(writeSize);
                 } else if (writeSize == 0) {
                     if (++writeSizeZeroTimes >= 3) {
                         break;
                     }
                 } else {
-                    throw new Exception("ha master write header error < 0");
+                    throw new Exception("ha master write data error < 0");
                 }
             }
 
@@ -354,25 +380,6 @@ public class HAConnection {
                 return !this.byteBufferHeader.hasRemaining();
             }
 
-            writeSizeZeroTimes = 0;
-
-            // Write Body
-            if (!this.byteBufferHeader.hasRemaining()) {
-                while (this.selectMappedBufferResult.getByteBuffer().hasRemaining()) {
-                    int writeSize = this.socketChannel.write(this.selectMappedBufferResult.getByteBuffer());
-                    if (writeSize > 0) {
-                        writeSizeZeroTimes = 0;
-                        this.lastWriteTimestamp = HAConnection.this.haService.getDefaultMessageStore().getSystemClock().now();
-                    } else if (writeSize == 0) {
-                        if (++writeSizeZeroTimes >= 3) {
-                            break;
-                        }
-                    } else {
-                        throw new Exception("ha master write body error < 0");
-                    }
-                }
-            }
-
             boolean result = !this.byteBufferHeader.hasRemaining() && !this.selectMappedBufferResult.getByteBuffer().hasRemaining();
 
             if (!this.selectMappedBufferResult.getByteBuffer().hasRemaining()) {
@@ -383,6 +390,18 @@ public class HAConnection {
             return result;
         }
 
+        /**
+         * Send the body from the file by sendfile, the position of the mapped buffer tells what's sent.
+         */
+        private long transferBody() throws IOException {
+            ByteBuffer body = this.selectMappedBufferResult.getByteBuffer();
+            MappedFile mappedFile = this.selectMappedBufferResult.getMappedFile();
+            long position = this.selectMappedBufferResult.getStartOffset() - mappedFile.getFileFromOffset() + body.position();
+            long transferred = mappedFile.getFileChannel().transferTo(position, body.remaining(), this.socketChannel);
+            body.position(body.position() + (int) transferred);
+            return transferred;
+        }
+
         @Override
         public String getServiceName() {
             return WriteSocketService.class.getSimpleName();
@@ -25,6 +25,8 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -54,6 +56,9 @@ public class HAService {
 
     private final WaitNotifyObject waitNotifyObject = new WaitNotifyObject();
     private final AtomicLong push2SlaveMaxOffset = new AtomicLong(0);
+    // Acked by haSyncReplicas slaves at least
+    private final AtomicLong quorumAckOffset = new AtomicLong(0);
+    private final AtomicLong transferredBytes = new AtomicLong(0);
 
     private final GroupTransferService groupTransferService;
 
@@ -78,10 +83,10 @@ public class HAService {
     }
 
     public boolean isSlaveOK(final long masterPutWhere) {
-        boolean result = this.connectionCount.get() > 0;
+        boolean result = this.connectionCount.get() >= this.getSyncReplicas();
         result =
             result
-                && ((masterPutWhere - this.push2SlaveMaxOffset.get()) < this.defaultMessageStore
+                && ((masterPutWhere - this.quorumAckOffset.get()) < this.defaultMessageStore
                 .getMessageStoreConfig().getHaSlaveFallbehindMax());
         return result;
     }
@@ -90,12 +95,67 @@ public class HAService {
         for (long value = this.push2SlaveMaxOffset.get(); offset > value; ) {
             boolean ok = this.push2SlaveMaxOffset.compareAndSet(value, offset);
             if (ok) {
-                this.groupTransferService.notifyTransferSome();
                 break;
             } else {
                 value = this.push2SlaveMaxOffset.get();
             }
         }
+
+        long quorumOffset = this.computeQuorumAckOffset();
+        for (long value = this.quorumAckOffset.get(); quorumOffset > value; ) {
+            boolean ok = this.quorumAckOffset.compareAndSet(value, quorumOffset);
+            if (ok) {
+                this.groupTransferService.notifyTransferSome();
+                break;
+            } else {
+                value = this.quorumAckOffset.get();
+            }
+        }
+    }
+
+    /**
+     * @return the offset acked by haSyncReplicas slaves, the largest one of them all if only one is required
+     */
+    private long computeQuorumAckOffset() {
+        int syncReplicas = this.getSyncReplicas();
+        if (syncReplicas <= 1) {
+            return this.push2SlaveMaxOffset.get();
+        }
+
+        long[] ackOffsets;
+        synchronized (this.connectionList) {
+            if (this.connectionList.size() < syncReplicas) {
+                return -1;
+            }
+            ackOffsets = new long[this.connectionList.size()];
+            int i = 0;
+            for (HAConnection conn : this.connectionList) {
+                ackOffsets[i++] = conn.getSlaveAckOffset();
+            }
+        }
+        Arrays.sort(ackOffsets);
+        return ackOffsets[ackOffsets.length - syncReplicas];
+    }
+
+    /**
+     * @return the offset acked by all the slaves, -1 if no slave has acked yet
+     */
+    public long getMinSlaveAckOffset() {
+        long minOffset = -1;
+        synchronized (this.connectionList) {
+            for (HAConnection conn : this.connectionList) {
+                long ackOffset = conn.getSlaveAckOffset();
+                if (ackOffset < 0) {
+                    return -1;
+                }
+                minOffset = minOffset < 0 ? ackOffset : Math.min(minOffset, ackOffset);
+            }
+        }
+        return minOffset;
+    }
+
+    private int getSyncReplicas() {
+        return Math.max(1, this.defaultMessageStore.getMessageStoreConfig().getHaSyncReplicas());
     }
 
     public AtomicInteger getConnectionCount() {
@@ -154,6 +214,19 @@ public class HAService {
         return push2SlaveMaxOffset;
     }
 
+    public AtomicLong getQuorumAckOffset() {
+        return quorumAckOffset;
+    }
+
+    public AtomicLong getTransferredBytes() {
+        return transferredBytes;
+    }
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        stats.put("haTransfer", String.format("%d,%d,%d,%d", this.connectionCount.get(), this.transferredBytes.get(),
+            this.push2SlaveMaxOffset.get(), this.quorumAckOffset.get()));
+    }
+
     /**
      * Listens to slave connections to create {@link HAConnection}.
      */
@@ -286,12 +359,12 @@ public class HAService {
         private void doWaitTransfer() {
             if (!this.requestsRead.isEmpty()) {
                 for (CommitLog.GroupCommitRequest req : this.requestsRead) {
-                    boolean transferOK = HAService.this.push2SlaveMaxOffset.get() >= req.getNextOffset();
+                    boolean transferOK = HAService.this.quorumAckOffset.get() >= req.getNextOffset();
                     long waitUntilWhen = HAService.this.defaultMessageStore.getSystemClock().now()
                             + HAService.this.defaultMessageStore.getMessageStoreConfig().getSyncFlushTimeout();
                     while (!transferOK && HAService.this.defaultMessageStore.getSystemClock().now() < waitUntilWhen) {
                         this.notifyTransferObject.waitForRunning(1000);
-                        transferOK = HAService.this.push2SlaveMaxOffset.get() >= req.getNextOffset();
+                        transferOK = HAService.this.quorumAckOffset.get() >= req.getNextOffset();
                     }
 
                     if (!transferOK) {
@@ -475,15 +548,15 @@ public class HAService {
                         // 记录处理到的位置
                         this.dispatchPosition += msgHeaderSize + bodySize;
 
-                        // 同步写入进度
-                        if (!reportSlaveMaxOffsetPlus()) {
-                            return false;
-                        }
-
                         continue;
                     }
                 }
 
+                // One ack for all the chunks read
+                if (!reportSlaveMaxOffsetPlus()) {
+                    return false;
+                }
+
                 // 空间写满，重新分配空间
                 if (!this.byteBufferRead.hasRemaining()) {
                     this.reallocateByteBuffer();
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.index;
+
+import java.nio.ByteBuffer;
+import org.apache.rocketmq.store.MappedFile;
+
+/**
+ * Bloom filter over the key hashes of one {@link IndexFile}, the bits are kept in a direct buffer.
+ * <p>
+ * Only the index writer sets bits, so no synchronization is needed between writer and readers: a reader racing with
+ * the writer may miss a key which is being indexed, the same as reading the hash slots directly.
+ */
+public class IndexBloomFilter {
+    private final ByteBuffer bits;
+    private final long bitNum;
+    private final int hashNum;
+
+    public IndexBloomFilter(final int keyNum, final int bitsPerKey) {
+        long bytes = Math.max(((long) keyNum * bitsPerKey + 7) / 8, 8);
+        if (bytes > Integer.MAX_VALUE) {
+            bytes = Integer.MAX_VALUE;
+        }
+        this.bits = ByteBuffer.allocateDirect((int) bytes);
+        this.bitNum = bytes * 8;
+        // k = ln2 * m / n is the optimal number of hash functions
+        this.hashNum = Math.max(1, Math.min(16, (int) Math.round(bitsPerKey * 0.69)));
+    }
+
+    public void put(final int keyHash) {
+        long h1 = mix(keyHash);
+        long h2 = mix((int) (h1 >>> 32)) | 1;
+        for (int i = 0; i < this.hashNum; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % this.bitNum;
+            int index = (int) (bit >>> 3);
+            this.bits.put(index, (byte) (this.bits.get(index) | (1 << (bit & 7))));
+        }
+    }
+
+    public boolean mightContain(final int keyHash) {
+        long h1 = mix(keyHash);
+        long h2 = mix((int) (h1 >>> 32)) | 1;
+        for (int i = 0; i < this.hashNum; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % this.bitNum;
+            if ((this.bits.get((int) (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getByteSize() {
+        return this.bits.capacity();
+    }
+
+    public void destroy() {
+        MappedFile.clean(this.bits);
+    }
+
+    /**
+     * Finalizer of murmur3 spread to 64 bits.
+     */
+    private static long mix(final int value) {
+        long h = value & 0xFFFFFFFFL;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -38,6 +38,8 @@ public class IndexFile {
     private final FileChannel fileChannel;
     private final MappedByteBuffer mappedByteBuffer;
     private final IndexHeader indexHeader;
+    private volatile IndexBloomFilter bloomFilter;
+    private volatile boolean bloomFilterReady = false;
 
     public IndexFile(final String fileName, final int hashSlotNum, final int indexNum,
         final long endPhyOffset, final long endTimestamp) throws IOException {
@@ -86,10 +88,66 @@ public class IndexFile {
     }
 
     public boolean destroy(final long intervalForcibly) {
-        return this.mappedFile.destroy(intervalForcibly);
+        boolean result = this.mappedFile.destroy(intervalForcibly);
+        if (result) {
+            IndexBloomFilter filter = this.bloomFilter;
+            this.bloomFilterReady = false;
+            this.bloomFilter = null;
+            if (filter != null) {
+                filter.destroy();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Build the bloom filter from the keys already in the file, keys put meanwhile are added by the writer. The filter
+     * is installed and the keys to scan are counted under the lock of {@link #putKey}, so each key is either counted
+     * here or added by the writer.
+     */
+    public void buildBloomFilter(final int bitsPerKey) {
+        if (this.bloomFilter != null || !this.mappedFile.hold()) {
+            return;
+        }
+        try {
+            long beginTime = System.currentTimeMillis();
+            IndexBloomFilter filter = new IndexBloomFilter(this.indexNum, bitsPerKey);
+            int indexCount;
+            synchronized (this) {
+                if (this.bloomFilter != null) {
+                    return;
+                }
+                this.bloomFilter = filter;
+                indexCount = Math.min(this.indexHeader.getIndexCount(), this.indexNum);
+            }
+            for (int i = 1; i < indexCount; i++) {
+                int absIndexPos = IndexHeader.INDEX_HEADER_SIZE + this.hashSlotNum * hashSlotSize + i * indexSize;
+                filter.put(this.mappedByteBuffer.getInt(absIndexPos));
+            }
+            this.bloomFilterReady = true;
+            log.info("build bloom filter of index file {} OK, keys={}, bytes={}, elapsed time(ms)={}", this.getFileName(),
+                indexCount - 1, filter.getByteSize(), System.currentTimeMillis() - beginTime);
+        } finally {
+            this.mappedFile.release();
+        }
+    }
+
+    /**
+     * @return false only if the key is definitely not in this file
+     */
+    public boolean mightContainKey(final String key) {
+        IndexBloomFilter filter = this.bloomFilter;
+        if (!this.bloomFilterReady || filter == null) {
+            return true;
+        }
+        return filter.mightContain(indexKeyHashMethod(key));
     }
 
-    public boolean putKey(final String key, final long phyOffset, final long storeTimestamp) {
+    public boolean isBloomFilterReady() {
+        return bloomFilterReady;
+    }
+
+    public synchronized boolean putKey(final String key, final long phyOffset, final long storeTimestamp) {
         if (this.indexHeader.getIndexCount() < this.indexNum) {
             int keyHash = indexKeyHashMethod(key);
             int slotPos = keyHash % this.hashSlotNum;
@@ -122,6 +180,12 @@ public class IndexFile {
                     IndexHeader.INDEX_HEADER_SIZE + this.hashSlotNum * hashSlotSize
                         + this.indexHeader.getIndexCount() * indexSize;
 
+                // Publish to the bloom filter first, so a reader never skips a key which is already in the slots
+                IndexBloomFilter filter = this.bloomFilter;
+                if (filter != null) {
+                    filter.put(keyHash);
+                }
+
                 this.mappedByteBuffer.putInt(absIndexPos, keyHash);
                 this.mappedByteBuffer.putLong(absIndexPos + 4, phyOffset);
                 this.mappedByteBuffer.putInt(absIndexPos + 4 + 8, (int) timeDiff);
@@ -21,8 +21,15 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.rocketmq.common.ThreadFactoryImpl;
 import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.logging.InternalLogger;
@@ -43,6 +50,10 @@ public class IndexService {
     private final int hashSlotNum;
     private final int indexNum;
     private final String storePath;
+    private final boolean bloomFilterEnable;
+    private final int bloomFilterBitsPerKey;
+    private final int queryThreadPoolNums;
+    private ExecutorService queryExecutor;
     private final ArrayList<IndexFile> indexFileList = new ArrayList<IndexFile>();
     private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
 
@@ -52,6 +63,9 @@ public class IndexService {
         this.indexNum = store.getMessageStoreConfig().getMaxIndexNum();
         this.storePath =
             StorePathConfigHelper.getStorePathIndex(store.getMessageStoreConfig().getStorePathRootDir());
+        this.bloomFilterEnable = store.getMessageStoreConfig().isIndexBloomFilterEnable();
+        this.bloomFilterBitsPerKey = store.getMessageStoreConfig().getIndexBloomFilterBitsPerKey();
+        this.queryThreadPoolNums = store.getMessageStoreConfig().getIndexQueryThreadPoolNums();
     }
 
     public boolean load(final boolean lastExitOK) {
@@ -84,6 +98,22 @@ public class IndexService {
             }
         }
 
+        if (this.bloomFilterEnable && !this.indexFileList.isEmpty()) {
+            // Files are searched without the filter until it is built
+            final List<IndexFile> loadedFiles = new ArrayList<IndexFile>(this.indexFileList);
+            Thread buildThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = loadedFiles.size() - 1; i >= 0; i--) {
+                        loadedFiles.get(i).buildBloomFilter(IndexService.this.bloomFilterBitsPerKey);
+                    }
+                }
+            }, "BuildIndexBloomFilterThread");
+
+            buildThread.setDaemon(true);
+            buildThread.start();
+        }
+
         return true;
     }
 
@@ -156,6 +186,8 @@ public class IndexService {
 
     public QueryOffsetResult queryOffset(String topic, String key, int maxNum, long begin, long end) {
         List<Long> phyOffsets = new ArrayList<Long>(maxNum);
+        List<IndexFile> candidates = new ArrayList<IndexFile>();
+        String indexKey = buildKey(topic, key);
 
         long indexLastUpdateTimestamp = 0;
         long indexLastUpdatePhyoffset = 0;
@@ -163,26 +195,30 @@ public class IndexService {
         try {
             this.readWriteLock.readLock().lock();
             if (!this.indexFileList.isEmpty()) {
+                IndexFile newestFile = this.indexFileList.get(this.indexFileList.size() - 1);
+                indexLastUpdateTimestamp = newestFile.getEndTimestamp();
+                indexLastUpdatePhyoffset = newestFile.getEndPhyOffset();
                 for (int i = this.indexFileList.size(); i > 0; i--) {
                     IndexFile f = this.indexFileList.get(i - 1);
-                    boolean lastFile = i == this.indexFileList.size();
-                    if (lastFile) {
-                        indexLastUpdateTimestamp = f.getEndTimestamp();
-                        indexLastUpdatePhyoffset = f.getEndPhyOffset();
-                    }
 
-                    if (f.isTimeMatched(begin, end)) {
-
-                        f.selectPhyOffset(phyOffsets, buildKey(topic, key), maxNum, begin, end, lastFile);
+                    if (f.isTimeMatched(begin, end) && f.mightContainKey(indexKey)) {
+                        candidates.add(f);
                     }
 
                     if (f.getBeginTimestamp() < begin) {
                         break;
                     }
+                }
 
-                    if (phyOffsets.size() >= maxNum) {
-                        break;
+                if (this.queryExecutor == null || candidates.size() <= 1) {
+                    for (IndexFile f : candidates) {
+                        f.selectPhyOffset(phyOffsets, indexKey, maxNum, begin, end, f == newestFile);
+                        if (phyOffsets.size() >= maxNum) {
+                            break;
+                        }
                     }
+                } else {
+                    this.parallelSelectPhyOffset(candidates, newestFile, phyOffsets, indexKey, maxNum, begin, end);
                 }
             }
         } catch (Exception e) {
@@ -194,6 +230,39 @@ public class IndexService {
         return new QueryOffsetResult(phyOffsets, indexLastUpdateTimestamp, indexLastUpdatePhyoffset);
     }
 
+    /**
+     * Search the candidates newest first, a round of at most queryThreadPoolNums files at a time, and keep the result
+     * in the same order as searching them one by one.
+     */
+    private void parallelSelectPhyOffset(final List<IndexFile> candidates, final IndexFile newestFile,
+        final List<Long> phyOffsets, final String indexKey, final int maxNum, final long begin, final long end) throws Exception {
+        for (int from = 0; from < candidates.size() && phyOffsets.size() < maxNum; from += this.queryThreadPoolNums) {
+            int to = Math.min(from + this.queryThreadPoolNums, candidates.size());
+            List<Future<List<Long>>> futures = new ArrayList<Future<List<Long>>>(to - from);
+            for (int i = from; i < to; i++) {
+                final IndexFile f = candidates.get(i);
+                final boolean lastFile = f == newestFile;
+                futures.add(this.queryExecutor.submit(new Callable<List<Long>>() {
+                    @Override
+                    public List<Long> call() {
+                        List<Long> result = new ArrayList<Long>();
+                        f.selectPhyOffset(result, indexKey, maxNum, begin, end, lastFile);
+                        return result;
+                    }
+                }));
+            }
+
+            for (Future<List<Long>> future : futures) {
+                for (Long phyOffset : future.get()) {
+                    if (phyOffsets.size() >= maxNum) {
+                        break;
+                    }
+                    phyOffsets.add(phyOffset);
+                }
+            }
+        }
+    }
+
     private String buildKey(final String topic, final String key) {
         return topic + "#" + key;
     }
@@ -319,6 +388,9 @@ public class IndexService {
                 indexFile =
                     new IndexFile(fileName, this.hashSlotNum, this.indexNum, lastUpdateEndPhyOffset,
                         lastUpdateIndexTimestamp);
+                if (this.bloomFilterEnable) {
+                    indexFile.buildBloomFilter(this.bloomFilterBitsPerKey);
+                }
                 this.readWriteLock.writeLock().lock();
                 this.indexFileList.add(indexFile);
             } catch (Exception e) {
@@ -363,10 +435,16 @@ public class IndexService {
     }
 
     public void start() {
-
+        if (this.queryThreadPoolNums > 1) {
+            this.queryExecutor = new ThreadPoolExecutor(this.queryThreadPoolNums, this.queryThreadPoolNums,
+                1000 * 60, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(this.queryThreadPoolNums * 64),
+                new ThreadFactoryImpl("IndexQueryThread_"), new ThreadPoolExecutor.CallerRunsPolicy());
+        }
     }
 
     public void shutdown() {
-
+        if (this.queryExecutor != null) {
+            this.queryExecutor.shutdown();
+        }
     }
 }
@@ -44,6 +44,10 @@ public class BrokerStatsManager {
     public static final String GROUP_GET_FROM_DISK_SIZE = "GROUP_GET_FROM_DISK_SIZE";
     public static final String BROKER_GET_FROM_DISK_NUMS = "BROKER_GET_FROM_DISK_NUMS";
     public static final String BROKER_GET_FROM_DISK_SIZE = "BROKER_GET_FROM_DISK_SIZE";
+    public static final String BROKER_PAGE_CACHE_HIT_NUMS = "BROKER_PAGE_CACHE_HIT_NUMS";
+    public static final String BROKER_PAGE_CACHE_MISS_NUMS = "BROKER_PAGE_CACHE_MISS_NUMS";
+    // Bytes of the pulled messages copied rather than transferred from the files, per pull
+    public static final String BROKER_GET_COPIED_SIZE = "BROKER_GET_COPIED_SIZE";
     // For commercial
     public static final String COMMERCIAL_SEND_TIMES = "COMMERCIAL_SEND_TIMES";
     public static final String COMMERCIAL_SNDBCK_TIMES = "COMMERCIAL_SNDBCK_TIMES";
@@ -94,6 +98,9 @@ public class BrokerStatsManager {
         this.statsTable.put(GROUP_GET_FROM_DISK_SIZE, new StatsItemSet(GROUP_GET_FROM_DISK_SIZE, this.scheduledExecutorService, log));
         this.statsTable.put(BROKER_GET_FROM_DISK_NUMS, new StatsItemSet(BROKER_GET_FROM_DISK_NUMS, this.scheduledExecutorService, log));
         this.statsTable.put(BROKER_GET_FROM_DISK_SIZE, new StatsItemSet(BROKER_GET_FROM_DISK_SIZE, this.scheduledExecutorService, log));
+        this.statsTable.put(BROKER_PAGE_CACHE_HIT_NUMS, new StatsItemSet(BROKER_PAGE_CACHE_HIT_NUMS, this.scheduledExecutorService, log));
+        this.statsTable.put(BROKER_PAGE_CACHE_MISS_NUMS, new StatsItemSet(BROKER_PAGE_CACHE_MISS_NUMS, this.scheduledExecutorService, log));
+        this.statsTable.put(BROKER_GET_COPIED_SIZE, new StatsItemSet(BROKER_GET_COPIED_SIZE, this.scheduledExecutorService, log));
 
         this.statsTable.put(COMMERCIAL_SEND_TIMES, new StatsItemSet(COMMERCIAL_SEND_TIMES, this.commercialExecutor, COMMERCIAL_LOG));
         this.statsTable.put(COMMERCIAL_RCV_TIMES, new StatsItemSet(COMMERCIAL_RCV_TIMES, this.commercialExecutor, COMMERCIAL_LOG));
@@ -224,6 +231,18 @@ public class BrokerStatsManager {
         this.statsTable.get(BROKER_GET_NUMS).getAndCreateStatsItem(this.clusterName).getValue().add(incValue);
     }
 
+    public void incBrokerPageCacheHitNums(final int incValue) {
+        this.statsTable.get(BROKER_PAGE_CACHE_HIT_NUMS).getAndCreateStatsItem(this.clusterName).getValue().add(incValue);
+    }
+
+    public void incBrokerPageCacheMissNums(final int incValue) {
+        this.statsTable.get(BROKER_PAGE_CACHE_MISS_NUMS).getAndCreateStatsItem(this.clusterName).getValue().add(incValue);
+    }
+
+    public void incBrokerGetCopiedSize(final int incValue) {
+        this.statsTable.get(BROKER_GET_COPIED_SIZE).addValue(this.clusterName, incValue, 1);
+    }
+
     public void incSendBackNums(final String group, final String topic) {
         final String statsKey = buildStatsKey(topic, group);
         this.statsTable.get(SNDBCK_PUT_NUMS).addValue(statsKey, 1, 1);
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.tiered;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import org.apache.rocketmq.store.MappedFile;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+
+/**
+ * Keep the segments as files under {@code storePathTiered}, which may be a slower local disk or a mounted network
+ * file system.
+ */
+public class LocalDirTieredStorageBackend implements TieredStorageBackend {
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final String rootDir;
+
+    public LocalDirTieredStorageBackend(final MessageStoreConfig messageStoreConfig) {
+        this.rootDir = messageStoreConfig.getStorePathTiered();
+        MappedFile.ensureDirOK(this.rootDir);
+    }
+
+    @Override
+    public void upload(final String segmentName, final File file) throws IOException {
+        File target = this.segmentFile(segmentName);
+        MappedFile.ensureDirOK(target.getParent());
+        File tmp = new File(target.getPath() + TMP_SUFFIX);
+        Files.copy(file.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public int read(final String segmentName, final long position, final ByteBuffer buffer) throws IOException {
+        try (FileChannel channel = FileChannel.open(this.segmentFile(segmentName).toPath(), StandardOpenOption.READ)) {
+            if (position >= channel.size()) {
+                return -1;
+            }
+            int total = 0;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + total);
+                if (read < 0) {
+                    break;
+                }
+                total += read;
+            }
+            return total;
+        }
+    }
+
+    @Override
+    public boolean exists(final String segmentName) {
+        return this.segmentFile(segmentName).exists();
+    }
+
+    @Override
+    public boolean delete(final String segmentName) {
+        File file = this.segmentFile(segmentName);
+        return !file.exists() || file.delete();
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    private File segmentFile(final String segmentName) {
+        return new File(this.rootDir + File.separator + segmentName);
+    }
+}
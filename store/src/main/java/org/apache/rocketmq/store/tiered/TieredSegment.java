@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.tiered;
+
+/**
+ * A sealed commit log file which has been uploaded to the {@link TieredStorageBackend}.
+ */
+public class TieredSegment {
+    private long fromOffset;
+    private int size;
+    // Last modified time of the local file, the segment expires by it as the local file would
+    private long lastModifiedTimestamp;
+
+    public TieredSegment() {
+    }
+
+    public TieredSegment(long fromOffset, int size, long lastModifiedTimestamp) {
+        this.fromOffset = fromOffset;
+        this.size = size;
+        this.lastModifiedTimestamp = lastModifiedTimestamp;
+    }
+
+    public boolean contains(final long offset, final int length) {
+        return offset >= this.fromOffset && offset + length <= this.fromOffset + this.size;
+    }
+
+    public long getEndOffset() {
+        return this.fromOffset + this.size;
+    }
+
+    public long getFromOffset() {
+        return fromOffset;
+    }
+
+    public void setFromOffset(long fromOffset) {
+        this.fromOffset = fromOffset;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public long getLastModifiedTimestamp() {
+        return lastModifiedTimestamp;
+    }
+
+    public void setLastModifiedTimestamp(long lastModifiedTimestamp) {
+        this.lastModifiedTimestamp = lastModifiedTimestamp;
+    }
+}
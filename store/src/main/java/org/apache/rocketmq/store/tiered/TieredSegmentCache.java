@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.tiered;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.ThreadFactoryImpl;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+
+/**
+ * Read-through LRU cache of fixed size blocks of the tiered segments.
+ * <p>
+ * Consumers of cold data read forward, so every read schedules the following {@code prefetchBlocks} blocks to be
+ * fetched asynchronously. A block being fetched is shared by the readers through a future, the backend is read only
+ * once per block.
+ */
+public class TieredSegmentCache {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    private final TieredStorageBackend backend;
+    private final int blockSize;
+    private final int prefetchBlocks;
+    private final LinkedHashMap<Long /* block offset */, byte[]> blocks;
+    private final ConcurrentMap<Long /* block offset */, CompletableFuture<byte[]>> loadingBlocks =
+        new ConcurrentHashMap<Long, CompletableFuture<byte[]>>();
+    private final ThreadPoolExecutor prefetchExecutor;
+    private final AtomicLong hitTimes = new AtomicLong(0);
+    private final AtomicLong missTimes = new AtomicLong(0);
+    private final AtomicLong prefetchTimes = new AtomicLong(0);
+
+    public TieredSegmentCache(final TieredStorageBackend backend, final int blockSize, final long maxSize,
+        final int prefetchBlocks, final int prefetchThreadNums) {
+        this.backend = backend;
+        this.blockSize = Math.max(blockSize, 4096);
+        this.prefetchBlocks = Math.max(prefetchBlocks, 0);
+        final long maxBlocks = Math.max(maxSize / this.blockSize, 1);
+        this.blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > maxBlocks;
+            }
+        };
+        if (this.prefetchBlocks > 0) {
+            int threadNums = Math.max(prefetchThreadNums, 1);
+            this.prefetchExecutor = new ThreadPoolExecutor(threadNums, threadNums, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(1024), new ThreadFactoryImpl("TieredPrefetchThread_"),
+                new ThreadPoolExecutor.DiscardPolicy());
+        } else {
+            this.prefetchExecutor = null;
+        }
+    }
+
+    /**
+     * Read the range of the segment, then prefetch the blocks after it.
+     *
+     * @return a heap buffer ready to be read, null if the range can't be read
+     */
+    public ByteBuffer read(final TieredSegment segment, final long offset, final int size) {
+        if (!segment.contains(offset, size)) {
+            return null;
+        }
+
+        ByteBuffer result = ByteBuffer.allocate(size);
+        long pos = offset - segment.getFromOffset();
+        int lastBlockIndex = 0;
+        try {
+            while (result.hasRemaining()) {
+                lastBlockIndex = (int) (pos / this.blockSize);
+                byte[] block = this.getBlock(segment, lastBlockIndex, true);
+                int posInBlock = (int) (pos % this.blockSize);
+                int length = Math.min(result.remaining(), block.length - posInBlock);
+                if (length <= 0) {
+                    return null;
+                }
+                result.put(block, posInBlock, length);
+                pos += length;
+            }
+        } catch (IOException e) {
+            log.error("read tiered segment failed, offset={}, size={}", offset, size, e);
+            return null;
+        }
+
+        this.prefetch(segment, lastBlockIndex + 1, this.prefetchBlocks);
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Fetch the blocks from the index asynchronously, cached or loading blocks are skipped.
+     */
+    public void prefetch(final TieredSegment segment, final int fromBlockIndex, final int num) {
+        if (this.prefetchExecutor == null) {
+            return;
+        }
+
+        for (int i = fromBlockIndex; i < fromBlockIndex + num; i++) {
+            final int blockIndex = i;
+            final long blockOffset = this.blockOffset(segment, blockIndex);
+            if (blockOffset >= segment.getEndOffset()) {
+                break;
+            }
+            if (this.isCached(blockOffset) || this.loadingBlocks.containsKey(blockOffset)) {
+                continue;
+            }
+            this.prefetchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        TieredSegmentCache.this.getBlock(segment, blockIndex, false);
+                    } catch (IOException e) {
+                        log.warn("prefetch tiered segment block failed, blockOffset={}", blockOffset, e);
+                    }
+                }
+            });
+        }
+    }
+
+    public int getBlockNum(final TieredSegment segment) {
+        return (segment.getSize() + this.blockSize - 1) / this.blockSize;
+    }
+
+    public void invalidate(final TieredSegment segment) {
+        synchronized (this.blocks) {
+            Iterator<Long> it = this.blocks.keySet().iterator();
+            while (it.hasNext()) {
+                long blockOffset = it.next();
+                if (blockOffset >= segment.getFromOffset() && blockOffset < segment.getEndOffset()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public boolean isCached(final long blockOffset) {
+        synchronized (this.blocks) {
+            return this.blocks.containsKey(blockOffset);
+        }
+    }
+
+    public void shutdown() {
+        if (this.prefetchExecutor != null) {
+            this.prefetchExecutor.shutdown();
+        }
+        synchronized (this.blocks) {
+            this.blocks.clear();
+        }
+    }
+
+    public long getHitTimes() {
+        return hitTimes.get();
+    }
+
+    public long getMissTimes() {
+        return missTimes.get();
+    }
+
+    public long getPrefetchTimes() {
+        return prefetchTimes.get();
+    }
+
+    private long blockOffset(final TieredSegment segment, final int blockIndex) {
+        return segment.getFromOffset() + (long) blockIndex * this.blockSize;
+    }
+
+    private byte[] getBlock(final TieredSegment segment, final int blockIndex, final boolean read) throws IOException {
+        final long blockOffset = this.blockOffset(segment, blockIndex);
+        byte[] block;
+        synchronized (this.blocks) {
+            block = this.blocks.get(blockOffset);
+        }
+        if (block != null) {
+            if (read) {
+                this.hitTimes.incrementAndGet();
+            }
+            return block;
+        }
+
+        CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+        CompletableFuture<byte[]> loading = this.loadingBlocks.putIfAbsent(blockOffset, future);
+        if (loading != null) {
+            if (!read) {
+                return null;
+            }
+            // Fetched by another reader or the prefetcher
+            this.hitTimes.incrementAndGet();
+            try {
+                return loading.get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("wait for tiered segment block failed, blockOffset=" + blockOffset, e);
+            }
+        }
+
+        if (read) {
+            this.missTimes.incrementAndGet();
+        } else {
+            this.prefetchTimes.incrementAndGet();
+        }
+        try {
+            int position = (int) (blockOffset - segment.getFromOffset());
+            ByteBuffer buffer = ByteBuffer.allocate(Math.min(this.blockSize, segment.getSize() - position));
+            int readBytes = this.backend.read(TieredStorageService.segmentName(segment), position, buffer);
+            if (readBytes < buffer.capacity()) {
+                throw new IOException("tiered segment block is truncated, blockOffset=" + blockOffset
+                    + ", expected=" + buffer.capacity() + ", read=" + readBytes);
+            }
+            block = buffer.array();
+            synchronized (this.blocks) {
+                this.blocks.put(blockOffset, block);
+            }
+            future.complete(block);
+            return block;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.loadingBlocks.remove(blockOffset);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.tiered;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage of the sealed segments offloaded by {@link TieredStorageService}, e.g. an object store or a shared file
+ * system.
+ * <p>
+ * Implementations are created by reflection from {@code tieredStorageBackendClass} and must have a public constructor
+ * taking the {@link org.apache.rocketmq.store.config.MessageStoreConfig}. Segments are immutable once uploaded, an
+ * upload must either fully succeed or leave no segment behind.
+ */
+public interface TieredStorageBackend {
+
+    /**
+     * Store the whole local file as the segment.
+     */
+    void upload(final String segmentName, final File file) throws IOException;
+
+    /**
+     * Read the segment from the position until the buffer is full or the segment ends.
+     *
+     * @return bytes read, -1 if the position is at or after the end of the segment
+     */
+    int read(final String segmentName, final long position, final ByteBuffer buffer) throws IOException;
+
+    boolean exists(final String segmentName);
+
+    boolean delete(final String segmentName);
+
+    void shutdown();
+}
@@ -0,0 +1,324 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.tiered;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.ConfigManager;
+import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.MappedFile;
+import org.apache.rocketmq.store.SelectMappedBufferResult;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
+
+/**
+ * Offload the sealed commit log files to a pluggable {@link TieredStorageBackend}.
+ * <p>
+ * The files are uploaded in order by a background thread once they are full and flushed, and recorded in a manifest.
+ * Uploaded files may be removed locally long before fileReservedTime, the reads of them miss the mapped files and are
+ * served from the backend through the {@link TieredSegmentCache}, so hot data stays mapped while cold data is fetched
+ * and prefetched by block. The consume queues are small and stay local, they are kept as long as the commit log data
+ * is readable from either tier.
+ */
+public class TieredStorageService extends ConfigManager {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    private static final String COMMIT_LOG_SEGMENT_PREFIX = "commitlog/";
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final MessageStoreConfig messageStoreConfig;
+    private final TieredStorageBackend backend;
+    private final TieredSegmentCache segmentCache;
+    private final ConcurrentSkipListMap<Long /* from offset */, TieredSegment> commitLogSegments =
+        new ConcurrentSkipListMap<Long, TieredSegment>();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final AtomicLong uploadTimes = new AtomicLong(0);
+    private final AtomicLong uploadFailedTimes = new AtomicLong(0);
+    private final AtomicLong expiredTimes = new AtomicLong(0);
+    private TieredUploadService tieredUploadService;
+
+    public TieredStorageService(final DefaultMessageStore defaultMessageStore) throws IOException {
+        this.defaultMessageStore = defaultMessageStore;
+        this.messageStoreConfig = defaultMessageStore.getMessageStoreConfig();
+        this.backend = createBackend(this.messageStoreConfig);
+        this.segmentCache = new TieredSegmentCache(this.backend, this.messageStoreConfig.getTieredCacheBlockSize(),
+            this.messageStoreConfig.getTieredCacheMaxSize(), this.messageStoreConfig.getTieredPrefetchBlocks(),
+            this.messageStoreConfig.getTieredPrefetchThreadNums());
+    }
+
+    private static TieredStorageBackend createBackend(final MessageStoreConfig messageStoreConfig) throws IOException {
+        String className = messageStoreConfig.getTieredStorageBackendClass();
+        try {
+            Class<?> clazz = Class.forName(className);
+            return (TieredStorageBackend) clazz.getConstructor(MessageStoreConfig.class).newInstance(messageStoreConfig);
+        } catch (Exception e) {
+            throw new IOException("create tiered storage backend failed, " + className, e);
+        }
+    }
+
+    public static String segmentName(final TieredSegment segment) {
+        return COMMIT_LOG_SEGMENT_PREFIX + UtilAll.offset2FileName(segment.getFromOffset());
+    }
+
+    public void start() {
+        if (this.started.compareAndSet(false, true)) {
+            this.tieredUploadService = new TieredUploadService();
+            this.tieredUploadService.start();
+        }
+    }
+
+    public void shutdown() {
+        if (this.started.compareAndSet(true, false)) {
+            if (this.tieredUploadService != null) {
+                this.tieredUploadService.shutdown();
+            }
+        }
+    }
+
+    public void close() {
+        this.shutdown();
+        this.persist();
+        this.segmentCache.shutdown();
+        this.backend.shutdown();
+    }
+
+    public void destroy() {
+        for (TieredSegment segment : this.commitLogSegments.values()) {
+            this.backend.delete(segmentName(segment));
+        }
+        this.commitLogSegments.clear();
+        UtilAll.deleteFile(new File(this.configFilePath()));
+    }
+
+    /**
+     * Upload the full and flushed commit log files in order, stop at the first one which is not sealed or fails.
+     *
+     * @return number of files uploaded
+     */
+    public int uploadSealedSegments() {
+        List<MappedFile> mappedFiles = this.defaultMessageStore.getCommitLog().getMappedFileQueue().getMappedFiles();
+        int uploaded = 0;
+        // The last file is still being written
+        for (int i = 0; i < mappedFiles.size() - 1; i++) {
+            MappedFile mappedFile = mappedFiles.get(i);
+            if (this.commitLogSegments.containsKey(mappedFile.getFileFromOffset())) {
+                continue;
+            }
+            if (!mappedFile.isFull() || mappedFile.getFlushedPosition() < mappedFile.getFileSize()) {
+                break;
+            }
+            if (!mappedFile.hold()) {
+                // Being removed
+                continue;
+            }
+
+            try {
+                TieredSegment segment = new TieredSegment(mappedFile.getFileFromOffset(), mappedFile.getFileSize(),
+                    mappedFile.getLastModifiedTimestamp());
+                long beginTime = System.currentTimeMillis();
+                this.backend.upload(segmentName(segment), new File(mappedFile.getFileName()));
+                this.commitLogSegments.put(segment.getFromOffset(), segment);
+                this.uploadTimes.incrementAndGet();
+                uploaded++;
+                log.info("upload commit log file {} to tiered storage, cost {} ms", mappedFile.getFileName(),
+                    System.currentTimeMillis() - beginTime);
+            } catch (Throwable e) {
+                this.uploadFailedTimes.incrementAndGet();
+                log.error("upload commit log file {} to tiered storage failed", mappedFile.getFileName(), e);
+                break;
+            } finally {
+                mappedFile.release();
+            }
+        }
+
+        if (uploaded > 0) {
+            this.persist();
+        }
+        return uploaded;
+    }
+
+    /**
+     * Remove the segments older than fileReservedTime, oldest first.
+     *
+     * @return number of segments removed
+     */
+    public int deleteExpiredSegments() {
+        long reservedMillis = this.messageStoreConfig.getFileReservedTime() * 60L * 60 * 1000;
+        int deleted = 0;
+        for (TieredSegment segment : this.commitLogSegments.values()) {
+            if (System.currentTimeMillis() < segment.getLastModifiedTimestamp() + reservedMillis) {
+                break;
+            }
+            this.commitLogSegments.remove(segment.getFromOffset());
+            this.segmentCache.invalidate(segment);
+            if (!this.backend.delete(segmentName(segment))) {
+                log.warn("delete expired tiered segment {} failed", segmentName(segment));
+            }
+            this.expiredTimes.incrementAndGet();
+            deleted++;
+        }
+
+        if (deleted > 0) {
+            this.persist();
+        }
+        return deleted;
+    }
+
+    /**
+     * Read a message which is no longer in the local commit log.
+     */
+    public SelectMappedBufferResult getMessage(final long offset, final int size) {
+        Map.Entry<Long, TieredSegment> entry = this.commitLogSegments.floorEntry(offset);
+        if (entry == null || !entry.getValue().contains(offset, size)) {
+            return null;
+        }
+
+        TieredSegment segment = entry.getValue();
+        ByteBuffer byteBuffer = this.segmentCache.read(segment, offset, size);
+        if (byteBuffer == null) {
+            return null;
+        }
+
+        if (offset + size + this.messageStoreConfig.getTieredCacheBlockSize() * (long) this.messageStoreConfig.getTieredPrefetchBlocks()
+            >= segment.getEndOffset()) {
+            // Read ahead into the next segment
+            TieredSegment next = this.commitLogSegments.get(segment.getEndOffset());
+            if (next != null) {
+                this.segmentCache.prefetch(next, 0, this.messageStoreConfig.getTieredPrefetchBlocks());
+            }
+        }
+        return new SelectMappedBufferResult(offset, byteBuffer, size, null);
+    }
+
+    /**
+     * Files before the offset have been uploaded, so they may be removed locally.
+     */
+    public long getUploadedMaxOffset() {
+        Map.Entry<Long, TieredSegment> last = this.commitLogSegments.lastEntry();
+        return last != null ? last.getValue().getEndOffset() : -1;
+    }
+
+    /**
+     * The min offset from which the commit log is readable without a gap, from the tiered storage and then from the
+     * local files.
+     */
+    public long getReadableMinOffset(final long localMinOffset) {
+        if (localMinOffset < 0) {
+            return localMinOffset;
+        }
+
+        long minOffset = localMinOffset;
+        ConcurrentNavigableMap<Long, TieredSegment> segments = this.commitLogSegments.headMap(localMinOffset, true);
+        for (TieredSegment segment : segments.descendingMap().values()) {
+            if (segment.getEndOffset() < minOffset) {
+                break;
+            }
+            minOffset = Math.min(minOffset, segment.getFromOffset());
+        }
+        return minOffset;
+    }
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        Map.Entry<Long, TieredSegment> first = this.commitLogSegments.firstEntry();
+        stats.put("tieredSegmentNum", String.valueOf(this.commitLogSegments.size()));
+        stats.put("tieredOffset", String.format("%d,%d", first != null ? first.getKey() : -1, this.getUploadedMaxOffset()));
+        stats.put("tieredUploadTimes", String.format("%d,%d", this.uploadTimes.get(), this.uploadFailedTimes.get()));
+        stats.put("tieredExpiredTimes", String.valueOf(this.expiredTimes.get()));
+        stats.put("tieredCacheTimes", String.format("%d,%d,%d", this.segmentCache.getHitTimes(),
+            this.segmentCache.getMissTimes(), this.segmentCache.getPrefetchTimes()));
+    }
+
+    public int getSegmentNum() {
+        return this.commitLogSegments.size();
+    }
+
+    public TieredSegmentCache getSegmentCache() {
+        return segmentCache;
+    }
+
+    public TieredStorageBackend getBackend() {
+        return backend;
+    }
+
+    @Override
+    public String encode() {
+        return this.encode(false);
+    }
+
+    @Override
+    public String configFilePath() {
+        return StorePathConfigHelper.getTieredManifestPath(this.messageStoreConfig.getStorePathRootDir());
+    }
+
+    @Override
+    public void decode(String jsonString) {
+        if (jsonString != null) {
+            TieredManifestSerializeWrapper manifest =
+                TieredManifestSerializeWrapper.fromJson(jsonString, TieredManifestSerializeWrapper.class);
+            if (manifest != null && manifest.getCommitLogSegments() != null) {
+                for (TieredSegment segment : manifest.getCommitLogSegments()) {
+                    this.commitLogSegments.put(segment.getFromOffset(), segment);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String encode(final boolean prettyFormat) {
+        TieredManifestSerializeWrapper manifest = new TieredManifestSerializeWrapper();
+        manifest.setCommitLogSegments(new ArrayList<TieredSegment>(this.commitLogSegments.values()));
+        return manifest.toJson(prettyFormat);
+    }
+
+    class TieredUploadService extends ServiceThread {
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(TieredStorageService.this.messageStoreConfig.getTieredUploadInterval());
+                    TieredStorageService.this.uploadSealedSegments();
+                    TieredStorageService.this.deleteExpiredSegments();
+                } catch (Throwable e) {
+                    log.error(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+        @Override
+        public String getServiceName() {
+            return TieredUploadService.class.getSimpleName();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.rocketmq.remoting.protocol.RemotingSerializable;
+
+public class TimerCheckpointSerializeWrapper extends RemotingSerializable {
+    private long ingestOffset = 0;
+    private long cursorMs = 0;
+    private long timerLogWrotePosition = 0;
+    private int precisionMs;
+    private int slotsPerLevel;
+    private int levels;
+    private ConcurrentMap<Long /* file from offset */, Long/* max fire time */> fileMaxFireMsTable =
+        new ConcurrentHashMap<Long, Long>(32);
+
+    public long getIngestOffset() {
+        return ingestOffset;
+    }
+
+    public void setIngestOffset(long ingestOffset) {
+        this.ingestOffset = ingestOffset;
+    }
+
+    public long getCursorMs() {
+        return cursorMs;
+    }
+
+    public void setCursorMs(long cursorMs) {
+        this.cursorMs = cursorMs;
+    }
+
+    public long getTimerLogWrotePosition() {
+        return timerLogWrotePosition;
+    }
+
+    public void setTimerLogWrotePosition(long timerLogWrotePosition) {
+        this.timerLogWrotePosition = timerLogWrotePosition;
+    }
+
+    public int getPrecisionMs() {
+        return precisionMs;
+    }
+
+    public void setPrecisionMs(int precisionMs) {
+        this.precisionMs = precisionMs;
+    }
+
+    public int getSlotsPerLevel() {
+        return slotsPerLevel;
+    }
+
+    public void setSlotsPerLevel(int slotsPerLevel) {
+        this.slotsPerLevel = slotsPerLevel;
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public void setLevels(int levels) {
+        this.levels = levels;
+    }
+
+    public ConcurrentMap<Long, Long> getFileMaxFireMsTable() {
+        return fileMaxFireMsTable;
+    }
+
+    public void setFileMaxFireMsTable(ConcurrentMap<Long, Long> fileMaxFireMsTable) {
+        this.fileMaxFireMsTable = fileMaxFireMsTable;
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.timer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.MappedFile;
+import org.apache.rocketmq.store.MappedFileQueue;
+
+/**
+ * Append only log of timers, the records of one wheel slot are chained by prevPos. Record format:
+ * <pre>
+ * prevPos(8) | deliverMs(8) | commitLogOffset(8) | size(4) | magic(4)
+ * </pre>
+ * Records are relinked and marked as delivered in place, so a log file can be removed once every record in it has
+ * been fired.
+ */
+public class TimerLog {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    public static final int UNIT_SIZE = 32;
+    public static final int MAGIC_PENDING = 0xAABBCC01;
+    public static final int MAGIC_DELIVERED = 0xAABBCC02;
+
+    private final MappedFileQueue mappedFileQueue;
+    private final int mappedFileSize;
+    private final ByteBuffer recordBuffer = ByteBuffer.allocate(UNIT_SIZE);
+
+    public TimerLog(final String storePath, final int mappedFileSize) {
+        this.mappedFileSize = mappedFileSize - mappedFileSize % UNIT_SIZE;
+        this.mappedFileQueue = new MappedFileQueue(storePath, this.mappedFileSize, null);
+    }
+
+    public boolean load() {
+        return this.mappedFileQueue.load();
+    }
+
+    /**
+     * Find the end of the log by the magic of the records after an abnormal shutdown.
+     */
+    public long recoverWrotePosition() {
+        List<MappedFile> mappedFiles = this.mappedFileQueue.getMappedFiles();
+        long wrotePosition = mappedFiles.isEmpty() ? 0 : mappedFiles.get(0).getFileFromOffset();
+        for (MappedFile mappedFile : mappedFiles) {
+            ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+            int pos = 0;
+            for (; pos + UNIT_SIZE <= this.mappedFileSize; pos += UNIT_SIZE) {
+                int magic = byteBuffer.getInt(pos + 28);
+                if (magic != MAGIC_PENDING && magic != MAGIC_DELIVERED) {
+                    break;
+                }
+            }
+            wrotePosition = mappedFile.getFileFromOffset() + pos;
+            if (pos < this.mappedFileSize) {
+                break;
+            }
+        }
+        this.truncate(wrotePosition);
+        return wrotePosition;
+    }
+
+    public void truncate(final long wrotePosition) {
+        this.mappedFileQueue.setFlushedWhere(wrotePosition);
+        this.mappedFileQueue.truncateDirtyFiles(wrotePosition);
+    }
+
+    /**
+     * @return the position of the record, -1 if failed
+     */
+    public long append(final long prevPos, final long deliverMs, final long commitLogOffset, final int size) {
+        MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+        if (mappedFile == null) {
+            log.error("Create timer log mapped file failed");
+            return -1;
+        }
+        this.recordBuffer.clear();
+        this.recordBuffer.putLong(prevPos);
+        this.recordBuffer.putLong(deliverMs);
+        this.recordBuffer.putLong(commitLogOffset);
+        this.recordBuffer.putInt(size);
+        this.recordBuffer.putInt(MAGIC_PENDING);
+        long pos = mappedFile.getFileFromOffset() + mappedFile.getWrotePosition();
+        if (!mappedFile.appendMessage(this.recordBuffer.array())) {
+            log.error("Append timer log failed, pos={}", pos);
+            return -1;
+        }
+        return pos;
+    }
+
+    public Record read(final long pos) {
+        ByteBuffer byteBuffer = this.bufferOf(pos);
+        if (byteBuffer == null) {
+            return null;
+        }
+        int offset = (int) (pos % this.mappedFileSize);
+        return new Record(pos, byteBuffer.getLong(offset), byteBuffer.getLong(offset + 8),
+            byteBuffer.getLong(offset + 16), byteBuffer.getInt(offset + 24), byteBuffer.getInt(offset + 28));
+    }
+
+    /**
+     * Read the chain which starts from the newest record, the result is from the oldest to the newest.
+     */
+    public List<Record> readChain(final long lastPos, final int sizeHint) {
+        List<Record> records = new ArrayList<Record>(Math.max(sizeHint, 1));
+        long pos = lastPos;
+        while (pos >= 0) {
+            Record record = this.read(pos);
+            if (record == null) {
+                log.warn("Timer log record is missing, pos={}", pos);
+                break;
+            }
+            records.add(record);
+            pos = record.getPrevPos();
+        }
+        Collections.reverse(records);
+        return records;
+    }
+
+    public void relink(final long pos, final long prevPos) {
+        ByteBuffer byteBuffer = this.bufferOf(pos);
+        if (byteBuffer != null) {
+            byteBuffer.putLong((int) (pos % this.mappedFileSize), prevPos);
+        }
+    }
+
+    public void markDelivered(final long pos) {
+        ByteBuffer byteBuffer = this.bufferOf(pos);
+        if (byteBuffer != null) {
+            byteBuffer.putInt((int) (pos % this.mappedFileSize) + 28, MAGIC_DELIVERED);
+        }
+    }
+
+    private ByteBuffer bufferOf(final long pos) {
+        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(pos);
+        if (mappedFile == null) {
+            return null;
+        }
+        return mappedFile.sliceByteBuffer();
+    }
+
+    public long getMinOffset() {
+        return this.mappedFileQueue.getMinOffset();
+    }
+
+    public long getMaxOffset() {
+        return this.mappedFileQueue.getMaxOffset();
+    }
+
+    public int getMappedFileSize() {
+        return mappedFileSize;
+    }
+
+    public MappedFileQueue getMappedFileQueue() {
+        return mappedFileQueue;
+    }
+
+    public void flush() {
+        this.mappedFileQueue.flush(0);
+    }
+
+    /**
+     * Remove the files before the given offset, the last file is always kept.
+     */
+    public int deleteFilesBefore(final long offset) {
+        List<MappedFile> mappedFiles = this.mappedFileQueue.getMappedFiles();
+        int deleteCount = 0;
+        for (MappedFile mappedFile : mappedFiles) {
+            if (mappedFile == this.mappedFileQueue.getLastMappedFile()
+                || mappedFile.getFileFromOffset() + this.mappedFileSize > offset) {
+                break;
+            }
+            if (mappedFile.destroy(1000 * 10)) {
+                mappedFiles.remove(mappedFile);
+                deleteCount++;
+            } else {
+                break;
+            }
+        }
+        return deleteCount;
+    }
+
+    public void shutdown() {
+        this.flush();
+        this.mappedFileQueue.shutdown(1000 * 3);
+    }
+
+    public void destroy() {
+        this.mappedFileQueue.destroy();
+    }
+
+    public static class Record {
+        private final long pos;
+        private final long prevPos;
+        private final long deliverMs;
+        private final long commitLogOffset;
+        private final int size;
+        private final int magic;
+
+        public Record(final long pos, final long prevPos, final long deliverMs, final long commitLogOffset,
+            final int size, final int magic) {
+            this.pos = pos;
+            this.prevPos = prevPos;
+            this.deliverMs = deliverMs;
+            this.commitLogOffset = commitLogOffset;
+            this.size = size;
+            this.magic = magic;
+        }
+
+        public long getPos() {
+            return pos;
+        }
+
+        public long getPrevPos() {
+            return prevPos;
+        }
+
+        public long getDeliverMs() {
+            return deliverMs;
+        }
+
+        public long getCommitLogOffset() {
+            return commitLogOffset;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public boolean isDelivered() {
+            return magic == MAGIC_DELIVERED;
+        }
+    }
+}
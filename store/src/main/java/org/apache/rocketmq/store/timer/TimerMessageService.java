@@ -0,0 +1,526 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.timer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.ConfigManager;
+import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.TopicFilterType;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.topic.TopicValidator;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.ConsumeQueue;
+import org.apache.rocketmq.store.ConsumeQueueExt;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.MappedFile;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.PutMessageResult;
+import org.apache.rocketmq.store.PutMessageStatus;
+import org.apache.rocketmq.store.SelectMappedBufferResult;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
+
+/**
+ * Deliver the messages of {@link TopicValidator#RMQ_SYS_TIMER_TOPIC} at any millisecond deadline.
+ * <p>
+ * Timers are read from the consume queue of the timer topic, appended to the {@link TimerLog} and linked into the
+ * {@link TimerWheel}. A single thread moves the cursor of the wheel tick by tick, cascades the slots of the higher
+ * levels down and re-puts the due messages of a tick as one batch through asyncPutMessage. The ingest offset and the
+ * cursor are checkpointed like the offsets of {@link org.apache.rocketmq.store.schedule.ScheduleMessageService}.
+ */
+public class TimerMessageService extends ConfigManager {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    private static final int TIMER_QUEUE_ID = 0;
+    private static final int MAX_INGEST_NUM_PER_ROUND = 4096;
+    private static final int MAX_TICKS_PER_ROUND = 1024;
+    private static final long DELIVER_TIMEOUT_MILLS = 1000 * 3;
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final MessageStoreConfig messageStoreConfig;
+    private final TimerWheel timerWheel;
+    private final TimerLog timerLog;
+    private final ConcurrentMap<Long /* file from offset */, Long/* max fire time */> fileMaxFireMsTable =
+        new ConcurrentHashMap<Long, Long>(32);
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final AtomicLong deliveredTimes = new AtomicLong(0);
+    private final AtomicLong retryTimes = new AtomicLong(0);
+    private final AtomicLong droppedTimes = new AtomicLong(0);
+    private volatile long ingestOffset = 0;
+    private volatile long cursorMs = 0;
+    private volatile long timerLogWrotePosition = -1;
+    private TimerCheckpointSerializeWrapper loadedCheckpoint;
+    private TimerWheelService timerWheelService;
+
+    public TimerMessageService(final DefaultMessageStore defaultMessageStore) throws IOException {
+        this.defaultMessageStore = defaultMessageStore;
+        this.messageStoreConfig = defaultMessageStore.getMessageStoreConfig();
+        String rootDir = this.messageStoreConfig.getStorePathRootDir();
+        this.timerWheel = new TimerWheel(StorePathConfigHelper.getTimerWheelPath(rootDir),
+            this.messageStoreConfig.getTimerPrecisionMs(), this.messageStoreConfig.getTimerWheelSlots(),
+            this.messageStoreConfig.getTimerWheelLevels());
+        this.timerLog = new TimerLog(StorePathConfigHelper.getTimerLogStorePath(rootDir),
+            this.messageStoreConfig.getMappedFileSizeTimerLog());
+    }
+
+    public boolean load(final boolean lastExitOK) {
+        boolean result = super.load();
+        result = result && this.timerLog.load();
+        if (!result) {
+            return false;
+        }
+
+        TimerCheckpointSerializeWrapper checkpoint = this.loadedCheckpoint;
+        boolean layoutChanged = checkpoint != null
+            && (checkpoint.getPrecisionMs() != this.timerWheel.getPrecisionMs()
+            || checkpoint.getSlotsPerLevel() != this.timerWheel.getSlotsPerLevel()
+            || checkpoint.getLevels() != this.timerWheel.getLevels());
+        if (this.cursorMs <= 0) {
+            this.cursorMs = this.alignToTick(System.currentTimeMillis());
+        } else {
+            this.cursorMs = this.alignToTick(this.cursorMs);
+        }
+
+        if (lastExitOK && checkpoint != null && !layoutChanged) {
+            this.timerLog.truncate(checkpoint.getTimerLogWrotePosition());
+            this.fileMaxFireMsTable.putAll(checkpoint.getFileMaxFireMsTable());
+        } else {
+            long wrotePosition = this.timerLog.recoverWrotePosition();
+            log.info("Rebuild timer wheel, lastExitOK={}, layoutChanged={}, timerLogWrotePosition={}",
+                lastExitOK, layoutChanged, wrotePosition);
+            this.rebuildWheel(wrotePosition);
+        }
+
+        this.correctIngestOffset();
+        log.info("Load timer wheel OK, cursorMs={}, ingestOffset={}, pending={}",
+            this.cursorMs, this.ingestOffset, this.timerWheel.countPending());
+        return true;
+    }
+
+    private long alignToTick(final long timeMs) {
+        return timeMs / this.timerWheel.getPrecisionMs() * this.timerWheel.getPrecisionMs();
+    }
+
+    private void rebuildWheel(final long wrotePosition) {
+        this.timerWheel.reset();
+        this.fileMaxFireMsTable.clear();
+        for (MappedFile mappedFile : this.timerLog.getMappedFileQueue().getMappedFiles()) {
+            long fileEnd = Math.min(mappedFile.getFileFromOffset() + this.timerLog.getMappedFileSize(), wrotePosition);
+            for (long pos = mappedFile.getFileFromOffset(); pos < fileEnd; pos += TimerLog.UNIT_SIZE) {
+                TimerLog.Record record = this.timerLog.read(pos);
+                if (record != null && !record.isDelivered()) {
+                    this.link(pos, record.getDeliverMs());
+                }
+            }
+        }
+    }
+
+    private void correctIngestOffset() {
+        ConsumeQueue cq = this.defaultMessageStore.findConsumeQueue(TopicValidator.RMQ_SYS_TIMER_TOPIC, TIMER_QUEUE_ID);
+        long cqMinOffset = cq.getMinOffsetInQueue();
+        long cqMaxOffset = cq.getMaxOffsetInQueue();
+        long correctOffset = Math.min(Math.max(this.ingestOffset, cqMinOffset), cqMaxOffset);
+        if (correctOffset != this.ingestOffset) {
+            log.error("correct timer ingest offset from {} to {}, cqMinOffset={}, cqMaxOffset={}",
+                this.ingestOffset, correctOffset, cqMinOffset, cqMaxOffset);
+            this.ingestOffset = correctOffset;
+        }
+    }
+
+    /**
+     * Link a record of the timer log into the wheel.
+     */
+    private void link(final long pos, final long deliverMs) {
+        long[] located = this.timerWheel.locate(this.cursorMs, deliverMs);
+        long prevPos = this.timerWheel.link((int) located[0], located[1], pos);
+        this.timerLog.relink(pos, prevPos);
+
+        long fireMs = Math.max(deliverMs, this.cursorMs);
+        long fileFromOffset = pos - pos % this.timerLog.getMappedFileSize();
+        Long maxFireMs = this.fileMaxFireMsTable.get(fileFromOffset);
+        if (maxFireMs == null || maxFireMs < fireMs) {
+            this.fileMaxFireMsTable.put(fileFromOffset, fireMs);
+        }
+    }
+
+    private boolean addTimer(final long deliverMs, final long commitLogOffset, final int size) {
+        long pos = this.timerLog.append(-1, deliverMs, commitLogOffset, size);
+        if (pos < 0) {
+            return false;
+        }
+        this.link(pos, deliverMs);
+        return true;
+    }
+
+    /**
+     * @return how many timers are read from the consume queue
+     */
+    private int ingest() {
+        ConsumeQueue cq = this.defaultMessageStore.findConsumeQueue(TopicValidator.RMQ_SYS_TIMER_TOPIC, TIMER_QUEUE_ID);
+        SelectMappedBufferResult bufferCQ = cq.getIndexBuffer(this.ingestOffset);
+        if (bufferCQ == null) {
+            if (this.ingestOffset < cq.getMinOffsetInQueue()) {
+                this.correctIngestOffset();
+            }
+            return 0;
+        }
+
+        int num = 0;
+        try {
+            ConsumeQueueExt.CqExtUnit cqExtUnit = new ConsumeQueueExt.CqExtUnit();
+            ByteBuffer byteBuffer = bufferCQ.getByteBuffer();
+            for (int i = 0; i < bufferCQ.getSize() && num < MAX_INGEST_NUM_PER_ROUND; i += ConsumeQueue.CQ_STORE_UNIT_SIZE) {
+                long offsetPy = byteBuffer.getLong();
+                int sizePy = byteBuffer.getInt();
+                long deliverMs = byteBuffer.getLong();
+
+                if (cq.isExtAddr(deliverMs)) {
+                    if (cq.getExt(deliverMs, cqExtUnit)) {
+                        deliverMs = cqExtUnit.getTagsCode();
+                    } else {
+                        deliverMs = this.pickupDeliverMs(offsetPy, sizePy);
+                    }
+                }
+
+                if (!this.addTimer(deliverMs, offsetPy, sizePy)) {
+                    break;
+                }
+                this.ingestOffset++;
+                num++;
+            }
+        } finally {
+            bufferCQ.release();
+        }
+        return num;
+    }
+
+    private long pickupDeliverMs(final long offsetPy, final int sizePy) {
+        MessageExt msgExt = this.defaultMessageStore.lookMessageByOffset(offsetPy, sizePy);
+        if (msgExt != null) {
+            String deliverMs = msgExt.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS);
+            if (deliverMs != null) {
+                return Long.parseLong(deliverMs);
+            }
+        }
+        log.error("[BUG] can't find the deliver time of timer message, offsetPy={}, sizePy={}", offsetPy, sizePy);
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @return how many ticks are fired
+     */
+    private int advance() {
+        int ticks = 0;
+        long now = System.currentTimeMillis();
+        while (this.cursorMs + this.timerWheel.getPrecisionMs() <= now && ticks < MAX_TICKS_PER_ROUND) {
+            this.fireTick(this.cursorMs);
+            this.cursorMs += this.timerWheel.getPrecisionMs();
+            ticks++;
+        }
+        return ticks;
+    }
+
+    private void fireTick(final long tickMs) {
+        for (int level = this.timerWheel.getLevels() - 1; level > 0; level--) {
+            if (tickMs % this.timerWheel.getLevelTickMs(level) != 0) {
+                continue;
+            }
+            TimerWheel.Slot slot = this.timerWheel.getSlot(level, tickMs);
+            if (slot.getLastPos() < 0) {
+                continue;
+            }
+            List<TimerLog.Record> records = this.timerLog.readChain(slot.getLastPos(), slot.getNum());
+            this.timerWheel.clearSlot(level, tickMs);
+            for (TimerLog.Record record : records) {
+                if (!record.isDelivered()) {
+                    this.link(record.getPos(), record.getDeliverMs());
+                }
+            }
+        }
+
+        TimerWheel.Slot slot = this.timerWheel.getSlot(0, tickMs);
+        if (slot.getLastPos() >= 0) {
+            List<TimerLog.Record> records = this.timerLog.readChain(slot.getLastPos(), slot.getNum());
+            this.timerWheel.clearSlot(0, tickMs);
+            this.deliver(records);
+        }
+    }
+
+    private void deliver(final List<TimerLog.Record> records) {
+        List<TimerLog.Record> putRecords = new ArrayList<TimerLog.Record>(records.size());
+        List<String> putTopics = new ArrayList<String>(records.size());
+        List<CompletableFuture<PutMessageResult>> putFutures = new ArrayList<CompletableFuture<PutMessageResult>>(records.size());
+        for (TimerLog.Record record : records) {
+            if (record.isDelivered()) {
+                continue;
+            }
+            MessageExt msgExt = this.defaultMessageStore.lookMessageByOffset(record.getCommitLogOffset(), record.getSize());
+            if (msgExt == null) {
+                log.error("Timer message is not found in commit log, drop it. offsetPy={}, sizePy={}",
+                    record.getCommitLogOffset(), record.getSize());
+                this.timerLog.markDelivered(record.getPos());
+                this.droppedTimes.incrementAndGet();
+                continue;
+            }
+
+            try {
+                MessageExtBrokerInner msgInner = this.messageTimeup(msgExt);
+                if (TopicValidator.RMQ_SYS_TRANS_HALF_TOPIC.equals(msgInner.getTopic())) {
+                    log.error("[BUG] the real topic of timer msg is {}, discard the msg. msg={}",
+                        msgInner.getTopic(), msgInner);
+                    this.timerLog.markDelivered(record.getPos());
+                    this.droppedTimes.incrementAndGet();
+                    continue;
+                }
+                putFutures.add(this.defaultMessageStore.asyncPutMessage(msgInner));
+                putRecords.add(record);
+                putTopics.add(msgInner.getTopic());
+            } catch (Exception e) {
+                log.error("TimerMessageService, messageTimeup execute error, drop it. msgExt={}", msgExt, e);
+                this.timerLog.markDelivered(record.getPos());
+                this.droppedTimes.incrementAndGet();
+            }
+        }
+
+        for (int i = 0; i < putFutures.size(); i++) {
+            TimerLog.Record record = putRecords.get(i);
+            PutMessageResult putMessageResult = null;
+            try {
+                putMessageResult = putFutures.get(i).get(DELIVER_TIMEOUT_MILLS, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                log.warn("TimerMessageService, wait for re-put result failed, offsetPy={}", record.getCommitLogOffset(), e);
+            }
+
+            this.timerLog.markDelivered(record.getPos());
+            if (putMessageResult != null && putMessageResult.getPutMessageStatus() == PutMessageStatus.PUT_OK) {
+                this.deliveredTimes.incrementAndGet();
+                if (this.messageStoreConfig.isEnableScheduleMessageStats()) {
+                    this.defaultMessageStore.getBrokerStatsManager().incTopicPutNums(putTopics.get(i),
+                        putMessageResult.getAppendMessageResult().getMsgNum(), 1);
+                    this.defaultMessageStore.getBrokerStatsManager().incBrokerPutNums(putMessageResult.getAppendMessageResult().getMsgNum());
+                }
+            } else {
+                // Retry on the next tick, the old record is kept as delivered so its file can still be removed
+                log.error("TimerMessageService, a message time up, but reput it failed, offsetPy={}, result={}",
+                    record.getCommitLogOffset(), putMessageResult);
+                this.retryTimes.incrementAndGet();
+                this.addTimer(this.cursorMs + this.timerWheel.getPrecisionMs(), record.getCommitLogOffset(), record.getSize());
+            }
+        }
+    }
+
+    private MessageExtBrokerInner messageTimeup(final MessageExt msgExt) {
+        MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+        msgInner.setBody(msgExt.getBody());
+        msgInner.setFlag(msgExt.getFlag());
+        MessageAccessor.setProperties(msgInner, msgExt.getProperties());
+
+        TopicFilterType topicFilterType = MessageExt.parseTopicFilterType(msgInner.getSysFlag());
+        long tagsCodeValue =
+            MessageExtBrokerInner.tagsString2tagsCode(topicFilterType, msgInner.getTags());
+        msgInner.setTagsCode(tagsCodeValue);
+
+        msgInner.setSysFlag(msgExt.getSysFlag());
+        msgInner.setBornTimestamp(msgExt.getBornTimestamp());
+        msgInner.setBornHost(msgExt.getBornHost());
+        msgInner.setStoreHost(msgExt.getStoreHost());
+        msgInner.setReconsumeTimes(msgExt.getReconsumeTimes());
+
+        msgInner.setWaitStoreMsgOK(false);
+        MessageAccessor.clearProperty(msgInner, MessageConst.PROPERTY_DELAY_TIME_LEVEL);
+        MessageAccessor.clearProperty(msgInner, MessageConst.PROPERTY_TIMER_DELIVER_MS);
+
+        msgInner.setTopic(msgInner.getProperty(MessageConst.PROPERTY_REAL_TOPIC));
+        msgInner.setQueueId(Integer.parseInt(msgInner.getProperty(MessageConst.PROPERTY_REAL_QUEUE_ID)));
+        msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+        return msgInner;
+    }
+
+    /**
+     * Flush the timer log before the wheel and the wheel before the checkpoint, then remove the fired log files.
+     */
+    private void flushAndCheckpoint() {
+        this.timerLog.flush();
+        this.timerWheel.flush();
+        this.timerLogWrotePosition = this.timerLog.getMaxOffset();
+        this.persist();
+
+        long deleteBefore = this.timerLogWrotePosition;
+        for (MappedFile mappedFile : this.timerLog.getMappedFileQueue().getMappedFiles()) {
+            Long maxFireMs = this.fileMaxFireMsTable.get(mappedFile.getFileFromOffset());
+            if (maxFireMs != null && maxFireMs >= this.cursorMs) {
+                deleteBefore = mappedFile.getFileFromOffset();
+                break;
+            }
+        }
+        if (this.timerLog.deleteFilesBefore(deleteBefore) > 0) {
+            for (Long fileFromOffset : this.fileMaxFireMsTable.keySet()) {
+                if (fileFromOffset < this.timerLog.getMinOffset()) {
+                    this.fileMaxFireMsTable.remove(fileFromOffset);
+                }
+            }
+        }
+    }
+
+    public void start() {
+        if (this.started.compareAndSet(false, true)) {
+            this.timerWheelService = new TimerWheelService();
+            this.timerWheelService.start();
+        }
+    }
+
+    public void shutdown() {
+        if (this.started.compareAndSet(true, false)) {
+            if (this.timerWheelService != null) {
+                this.timerWheelService.shutdown();
+            }
+        }
+    }
+
+    public boolean isStarted() {
+        return started.get();
+    }
+
+    public void close() {
+        this.shutdown();
+        this.timerLog.shutdown();
+        this.timerWheel.shutdown();
+    }
+
+    public void destroy() {
+        this.timerLog.destroy();
+        UtilAll.deleteFile(new File(StorePathConfigHelper.getTimerWheelPath(this.messageStoreConfig.getStorePathRootDir())));
+    }
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        long maxOffset = this.defaultMessageStore.getMaxOffsetInQueue(TopicValidator.RMQ_SYS_TIMER_TOPIC, TIMER_QUEUE_ID);
+        stats.put("timerIngestOffset", String.format("%d,%d", this.ingestOffset, maxOffset));
+        stats.put("timerCursorMs", String.valueOf(this.cursorMs));
+        stats.put("timerPendingNum", String.valueOf(this.timerWheel.countPending()));
+        stats.put("timerDeliveredTimes", String.valueOf(this.deliveredTimes.get()));
+        stats.put("timerRetryTimes", String.valueOf(this.retryTimes.get()));
+        stats.put("timerDroppedTimes", String.valueOf(this.droppedTimes.get()));
+    }
+
+    public long getIngestOffset() {
+        return ingestOffset;
+    }
+
+    public long getCursorMs() {
+        return cursorMs;
+    }
+
+    public long getDeliveredTimes() {
+        return deliveredTimes.get();
+    }
+
+    @Override
+    public String encode() {
+        return this.encode(false);
+    }
+
+    @Override
+    public String configFilePath() {
+        return StorePathConfigHelper.getTimerCheckpointPath(this.messageStoreConfig.getStorePathRootDir());
+    }
+
+    @Override
+    public void decode(String jsonString) {
+        if (jsonString != null) {
+            TimerCheckpointSerializeWrapper checkpoint =
+                TimerCheckpointSerializeWrapper.fromJson(jsonString, TimerCheckpointSerializeWrapper.class);
+            if (checkpoint != null) {
+                this.loadedCheckpoint = checkpoint;
+                this.ingestOffset = checkpoint.getIngestOffset();
+                this.cursorMs = checkpoint.getCursorMs();
+                this.timerLogWrotePosition = checkpoint.getTimerLogWrotePosition();
+            }
+        }
+    }
+
+    @Override
+    public String encode(final boolean prettyFormat) {
+        TimerCheckpointSerializeWrapper checkpoint = new TimerCheckpointSerializeWrapper();
+        checkpoint.setIngestOffset(this.ingestOffset);
+        checkpoint.setCursorMs(this.cursorMs);
+        checkpoint.setTimerLogWrotePosition(this.timerLogWrotePosition);
+        checkpoint.setPrecisionMs(this.timerWheel.getPrecisionMs());
+        checkpoint.setSlotsPerLevel(this.timerWheel.getSlotsPerLevel());
+        checkpoint.setLevels(this.timerWheel.getLevels());
+        checkpoint.setFileMaxFireMsTable(this.fileMaxFireMsTable);
+        return checkpoint.toJson(prettyFormat);
+    }
+
+    class TimerWheelService extends ServiceThread {
+        private long lastFlushTimestamp = System.currentTimeMillis();
+
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    int ingested = TimerMessageService.this.ingest();
+                    int ticks = TimerMessageService.this.advance();
+
+                    long now = System.currentTimeMillis();
+                    if (now - this.lastFlushTimestamp >= TimerMessageService.this.messageStoreConfig.getFlushDelayOffsetInterval()) {
+                        this.lastFlushTimestamp = now;
+                        TimerMessageService.this.flushAndCheckpoint();
+                    }
+
+                    if (ingested < MAX_INGEST_NUM_PER_ROUND && ticks < MAX_TICKS_PER_ROUND) {
+                        this.waitForRunning(Math.min(TimerMessageService.this.timerWheel.getPrecisionMs(), 100));
+                    }
+                } catch (Throwable e) {
+                    log.error(this.getServiceName() + " service has exception. ", e);
+                    this.waitForRunning(1000);
+                }
+            }
+
+            try {
+                TimerMessageService.this.flushAndCheckpoint();
+            } catch (Throwable e) {
+                log.error(this.getServiceName() + " flush timer wheel exception. ", e);
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+        @Override
+        public String getServiceName() {
+            return TimerWheelService.class.getSimpleName();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store.timer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.logging.InternalLogger;
+import org.apache.rocketmq.logging.InternalLoggerFactory;
+import org.apache.rocketmq.store.MappedFile;
+
+/**
+ * Hierarchical timing wheel kept in a memory mapped file.
+ * <p>
+ * Level i has {@code slotsPerLevel} slots of {@code precisionMs * slotsPerLevel^i} milliseconds, every slot points to
+ * the newest record of its chain in the {@link TimerLog}. Slot format:
+ * <pre>
+ * slotTimeMs(8) | lastPos(8) | num(4)
+ * </pre>
+ */
+public class TimerWheel {
+    private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    public static final int SLOT_UNIT_SIZE = 20;
+
+    private final int precisionMs;
+    private final int slotsPerLevel;
+    private final int levels;
+    private final long[] levelTickMs;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final MappedByteBuffer mappedByteBuffer;
+
+    public TimerWheel(final String fileName, final int precisionMs, final int slotsPerLevel, final int levels)
+        throws IOException {
+        this.precisionMs = precisionMs;
+        this.slotsPerLevel = slotsPerLevel;
+        this.levels = levels;
+        this.levelTickMs = new long[levels];
+        long tick = precisionMs;
+        for (int i = 0; i < levels; i++) {
+            this.levelTickMs[i] = tick;
+            tick = tick * slotsPerLevel;
+        }
+
+        File file = new File(fileName);
+        MappedFile.ensureDirOK(file.getParent());
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.fileChannel = this.randomAccessFile.getChannel();
+        this.mappedByteBuffer = this.fileChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+            (long) levels * slotsPerLevel * SLOT_UNIT_SIZE);
+    }
+
+    public long getLevelTickMs(final int level) {
+        return this.levelTickMs[level];
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public int getSlotsPerLevel() {
+        return slotsPerLevel;
+    }
+
+    public int getPrecisionMs() {
+        return precisionMs;
+    }
+
+    /**
+     * Find the level and the slot time which a timer should be linked to.
+     *
+     * @param cursorMs the tick which has not been fired yet
+     * @param deliverMs when the timer is due
+     * @return {level, slotTimeMs}
+     */
+    public long[] locate(final long cursorMs, final long deliverMs) {
+        long target = Math.max(cursorMs, deliverMs);
+        for (int level = 0; level < this.levels; level++) {
+            long tick = this.levelTickMs[level];
+            long base = cursorMs / tick;
+            long index = target / tick;
+            if (index - base < this.slotsPerLevel && (level == 0 || index > base)) {
+                return new long[] {level, index * tick};
+            }
+        }
+        // Beyond the span of the wheel, wait in the farthest slot and roll down from there
+        int top = this.levels - 1;
+        long tick = this.levelTickMs[top];
+        return new long[] {top, (cursorMs / tick + this.slotsPerLevel - 1) * tick};
+    }
+
+    private int slotPosition(final int level, final long slotTimeMs) {
+        long index = (slotTimeMs / this.levelTickMs[level]) % this.slotsPerLevel;
+        return (int) ((level * (long) this.slotsPerLevel + index) * SLOT_UNIT_SIZE);
+    }
+
+    public Slot getSlot(final int level, final long slotTimeMs) {
+        int pos = this.slotPosition(level, slotTimeMs);
+        long storedTimeMs = this.mappedByteBuffer.getLong(pos);
+        if (storedTimeMs != slotTimeMs) {
+            return new Slot(slotTimeMs, -1, 0);
+        }
+        return new Slot(slotTimeMs, this.mappedByteBuffer.getLong(pos + 8), this.mappedByteBuffer.getInt(pos + 16));
+    }
+
+    /**
+     * @return the position of the previous newest record of the slot, -1 if the slot is empty
+     */
+    public long link(final int level, final long slotTimeMs, final long recordPos) {
+        int pos = this.slotPosition(level, slotTimeMs);
+        long storedTimeMs = this.mappedByteBuffer.getLong(pos);
+        long lastPos = -1;
+        int num = 0;
+        if (storedTimeMs == slotTimeMs) {
+            lastPos = this.mappedByteBuffer.getLong(pos + 8);
+            num = this.mappedByteBuffer.getInt(pos + 16);
+        } else if (storedTimeMs != 0 && this.mappedByteBuffer.getInt(pos + 16) > 0) {
+            log.error("[BUG] timer wheel slot is overwritten before fired, level={} slotTime={} storedTime={}",
+                level, slotTimeMs, storedTimeMs);
+        }
+        this.mappedByteBuffer.putLong(pos, slotTimeMs);
+        this.mappedByteBuffer.putLong(pos + 8, recordPos);
+        this.mappedByteBuffer.putInt(pos + 16, num + 1);
+        return lastPos;
+    }
+
+    public void clearSlot(final int level, final long slotTimeMs) {
+        int pos = this.slotPosition(level, slotTimeMs);
+        this.mappedByteBuffer.putLong(pos, 0);
+        this.mappedByteBuffer.putLong(pos + 8, -1);
+        this.mappedByteBuffer.putInt(pos + 16, 0);
+    }
+
+    public void reset() {
+        int size = this.levels * this.slotsPerLevel;
+        for (int i = 0; i < size; i++) {
+            int pos = i * SLOT_UNIT_SIZE;
+            this.mappedByteBuffer.putLong(pos, 0);
+            this.mappedByteBuffer.putLong(pos + 8, -1);
+            this.mappedByteBuffer.putInt(pos + 16, 0);
+        }
+    }
+
+    public long countPending() {
+        long total = 0;
+        int size = this.levels * this.slotsPerLevel;
+        for (int i = 0; i < size; i++) {
+            int pos = i * SLOT_UNIT_SIZE;
+            if (this.mappedByteBuffer.getLong(pos) != 0) {
+                total += this.mappedByteBuffer.getInt(pos + 16);
+            }
+        }
+        return total;
+    }
+
+    public void flush() {
+        this.mappedByteBuffer.force();
+    }
+
+    public void shutdown() {
+        this.flush();
+        MappedFile.clean(this.mappedByteBuffer);
+        try {
+            this.fileChannel.close();
+            this.randomAccessFile.close();
+        } catch (IOException e) {
+            log.error("Failed to close timer wheel file", e);
+        }
+    }
+
+    public static class Slot {
+        private final long slotTimeMs;
+        private final long lastPos;
+        private final int num;
+
+        public Slot(final long slotTimeMs, final long lastPos, final int num) {
+            this.slotTimeMs = slotTimeMs;
+            this.lastPos = lastPos;
+            this.num = num;
+        }
+
+        public long getSlotTimeMs() {
+            return slotTimeMs;
+        }
+
+        public long getLastPos() {
+            return lastPos;
+        }
+
+        public int getNum() {
+            return num;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdaptiveGroupCommitPolicyTest {
+    private static final long MICROS = 1000L;
+    private static final long MILLIS = 1000 * MICROS;
+
+    @Test
+    public void testNoLingerAtLowLoad() {
+        AdaptiveGroupCommitPolicy policy = new AdaptiveGroupCommitPolicy(2 * MILLIS, MILLIS);
+        assertThat(policy.lingerNanos()).isEqualTo(0);
+
+        // One request every 10ms
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            now += 10 * MILLIS;
+            policy.onBatchFlushed(1, 100 * MICROS, now);
+        }
+        assertThat(policy.getArrivalRate()).isBetween(90L, 110L);
+        assertThat(policy.lingerNanos()).isEqualTo(0);
+    }
+
+    @Test
+    public void testLingerAtHighLoad() {
+        AdaptiveGroupCommitPolicy policy = new AdaptiveGroupCommitPolicy(2 * MILLIS, MILLIS);
+
+        // 50 requests every 500us, 50k requests per second
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            now += 500 * MICROS;
+            policy.onBatchFlushed(50, 200 * MICROS, now);
+        }
+        assertThat(policy.getFsyncMeanNanos()).isEqualTo(200 * MICROS);
+        assertThat(policy.lingerNanos()).isEqualTo(MILLIS);
+
+        // The fsync time grows, the budget left for lingering shrinks
+        for (int i = 0; i < 100; i++) {
+            now += 1500 * MICROS;
+            policy.onBatchFlushed(50, 1500 * MICROS, now);
+        }
+        assertThat(policy.lingerNanos()).isBetween(1L, 500 * MICROS);
+    }
+
+    @Test
+    public void testBackOffWhenNobodyJoins() {
+        AdaptiveGroupCommitPolicy policy = new AdaptiveGroupCommitPolicy(2 * MILLIS, MILLIS);
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            now += 500 * MICROS;
+            policy.onBatchFlushed(50, 200 * MICROS, now);
+        }
+        assertThat(policy.nextLingerNanos()).isEqualTo(MILLIS);
+
+        // All the producers are already in the batch
+        policy.onLingerEnd(0);
+        int lingers = 0;
+        for (int i = 0; i < 256; i++) {
+            if (policy.nextLingerNanos() > 0) {
+                lingers++;
+            }
+        }
+        // Probed once in a while
+        assertThat(lingers).isEqualTo(2);
+
+        policy.onLingerEnd(10);
+        assertThat(policy.nextLingerNanos()).isEqualTo(MILLIS);
+    }
+
+    @Test
+    public void testNoLingerWhenFsyncExceedsTarget() {
+        AdaptiveGroupCommitPolicy policy = new AdaptiveGroupCommitPolicy(2 * MILLIS, MILLIS);
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            now += 3 * MILLIS;
+            policy.onBatchFlushed(100, 3 * MILLIS, now);
+        }
+        assertThat(policy.getFsyncP99Nanos()).isGreaterThanOrEqualTo(3 * MILLIS);
+        assertThat(policy.lingerNanos()).isEqualTo(0);
+    }
+}
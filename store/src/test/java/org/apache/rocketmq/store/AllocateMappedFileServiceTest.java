@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AllocateMappedFileServiceTest {
+    private static final String TOPIC = "AllocateTopic";
+    private static final String GROUP = "AllocateGroup";
+    private static final int FILE_SIZE = 64 * 1024;
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        messageStore = createMessageStore();
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+    }
+
+    @After
+    public void destroy() {
+        if (messageStore != null) {
+            messageStore.shutdown();
+            messageStore.destroy();
+        }
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testAllocateAheadAndRecycle() throws Exception {
+        putMessages(0, 1000);
+        File commitLogDir = new File(storePath + File.separator + "commitlog");
+        int writtenFiles = messageStore.getCommitLog().getMappedFileQueue().getMappedFiles().size();
+        // The files ahead are there before they are written
+        assertThat(commitLogDir.list()).hasSize(writtenFiles + 3);
+
+        assertThat(messageStore.getCommitLog().deleteExpiredFile(0, 0, 1000, true)).isGreaterThan(4);
+        AllocateMappedFileService allocateMappedFileService = messageStore.getAllocateMappedFileService();
+        assertThat(allocateMappedFileService.getRecycledFileNums()).isEqualTo(4);
+        assertThat(new File(commitLogDir.getPath() + AllocateMappedFileService.RECYCLE_DIR_SUFFIX).list()).hasSize(4);
+
+        // Past the files created ahead before, into the reused ones
+        putMessages(1000, 480);
+        assertThat(allocateMappedFileService.getReuseTimes()).isEqualTo(4);
+        assertThat(allocateMappedFileService.getRecycledFileNums()).isEqualTo(0);
+        long maxPhyOffset = messageStore.getMaxPhyOffset();
+        verifyMessage(1479);
+
+        // The messages of the former use after the last one are not recovered
+        messageStore.shutdown();
+        messageStore = createMessageStore();
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+        assertThat(messageStore.getMaxPhyOffset()).isEqualTo(maxPhyOffset);
+        verifyMessage(1479);
+        putMessages(1480, 1);
+        verifyMessage(1480);
+    }
+
+    private void verifyMessage(int index) {
+        GetMessageResult result = messageStore.getMessage(GROUP, TOPIC, 0, index, 1, null);
+        try {
+            assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+            ByteBuffer byteBuffer = result.getMessageBufferList().get(0);
+            MessageExt msg = MessageDecoder.decode(byteBuffer);
+            assertThat(msg.getQueueOffset()).isEqualTo(index);
+            assertThat(new String(msg.getBody(), 0, ("allocate-" + index).length())).isEqualTo("allocate-" + index);
+        } finally {
+            result.release();
+        }
+    }
+
+    private void putMessages(int from, int num) {
+        for (int i = from; i < from + num; i++) {
+            assertThat(messageStore.putMessage(buildMessage(i)).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        StoreTestUtil.waitCommitLogReput(messageStore);
+    }
+
+    private DefaultMessageStore createMessageStore() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMappedFileSizeCommitLog(FILE_SIZE);
+        messageStoreConfig.setMaxHashSlotNum(10000);
+        messageStoreConfig.setMaxIndexNum(100 * 100);
+        messageStoreConfig.setMappedFileAllocateAheadNum(3);
+        messageStoreConfig.setWarmMapedFileEnable(true);
+        messageStoreConfig.setMappedFileRecycleEnable(true);
+        messageStoreConfig.setMappedFileRecycleMaxNum(4);
+        return new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"), null,
+            new BrokerConfig());
+    }
+
+    private MessageExtBrokerInner buildMessage(int index) {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(TOPIC);
+        msg.setTags("TAG1");
+        // The same size for all, so a message of the former use of a file is right where the next one would be
+        byte[] body = new byte[512];
+        System.arraycopy(("allocate-" + index).getBytes(), 0, body, 0, ("allocate-" + index).length());
+        msg.setBody(body);
+        msg.setQueueId(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(new InetSocketAddress("127.0.0.1", 8123));
+        msg.setBornHost(new InetSocketAddress("127.0.0.1", 0));
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return msg;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageExtBatch;
+import org.apache.rocketmq.common.sysflag.MessageSysFlag;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BatchConsumeQueueTest {
+    private static final String TOPIC = "BatchTopic";
+    private static final String GROUP = "BatchGroup";
+    private static final int BATCH_NUM = 20;
+    private static final int BATCH_SIZE = 10;
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        messageStore = createMessageStore();
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testEntryPerBatch() throws Exception {
+        int msgNum = putMessages();
+        ConsumeQueue consumeQueue = messageStore.findConsumeQueue(TOPIC, 0);
+        assertThat(consumeQueue).isInstanceOf(BatchConsumeQueue.class);
+        assertThat(new File(StorePathConfigHelper.getStorePathBatchConsumeQueue(storePath) + File.separator + TOPIC).exists()).isTrue();
+        verifyMessages(msgNum);
+
+        // Reload from the batch consume queue files
+        messageStore.shutdown();
+        messageStore = createMessageStore();
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+        verifyMessages(msgNum);
+    }
+
+    @Test
+    public void testReadFromTheMiddleOfBatch() throws Exception {
+        putMessages();
+        GetMessageResult result = messageStore.getMessage(GROUP, TOPIC, 0, 3, 4, null);
+        try {
+            assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+            assertThat(result.getMessageCount()).isEqualTo(4);
+            assertThat(result.getNextBeginOffset()).isEqualTo(7);
+            List<MessageExt> messages = decode(result);
+            assertThat(messages).hasSize(4);
+            assertThat(messages.get(0).getQueueOffset()).isEqualTo(3);
+            assertThat(new String(messages.get(3).getBody())).isEqualTo("body-6");
+        } finally {
+            result.release();
+        }
+
+        // The unit of the message, for the callers reading a message at a time
+        assertThat(messageStore.lookMessageByOffset(messageStore.getCommitLogOffsetInQueue(TOPIC, 0, 3)).getQueueOffset()).isEqualTo(3);
+    }
+
+    @Test
+    public void testBatchFlagOnlyForBatchTopics() throws Exception {
+        String topic = "RegularTopic";
+        List<Message> messages = new ArrayList<Message>();
+        for (int j = 0; j < BATCH_SIZE; j++) {
+            messages.add(new Message(topic, "TAG1", ("body-" + j).getBytes()));
+        }
+        MessageExtBatch messageExtBatch = new MessageExtBatch();
+        messageExtBatch.setTopic(topic);
+        messageExtBatch.setQueueId(0);
+        messageExtBatch.setBody(MessageDecoder.encodeMessages(messages));
+        messageExtBatch.setBornTimestamp(System.currentTimeMillis());
+        messageExtBatch.setStoreHost(new InetSocketAddress("127.0.0.1", 125));
+        messageExtBatch.setBornHost(new InetSocketAddress("127.0.0.1", 126));
+        assertThat(messageStore.putMessages(messageExtBatch).isOk()).isTrue();
+        putMessages();
+
+        ConsumeQueue consumeQueue = messageStore.findConsumeQueue(topic, 0);
+        assertThat(consumeQueue).isNotInstanceOf(BatchConsumeQueue.class);
+        for (long offset = 0; offset < BATCH_SIZE; offset++) {
+            MessageExt msg = messageStore.lookMessageByOffset(messageStore.getCommitLogOffsetInQueue(topic, 0, offset));
+            assertThat(msg.getSysFlag() & MessageSysFlag.BATCH_CONTINUED_FLAG).isEqualTo(0);
+        }
+        MessageExt first = messageStore.lookMessageByOffset(messageStore.getCommitLogOffsetInQueue(TOPIC, 0, 0));
+        assertThat(first.getSysFlag() & MessageSysFlag.BATCH_CONTINUED_FLAG).isNotEqualTo(0);
+    }
+
+    private void verifyMessages(int msgNum) {
+        BatchConsumeQueue consumeQueue = (BatchConsumeQueue) messageStore.findConsumeQueue(TOPIC, 0);
+        assertThat(consumeQueue.getMinOffsetInQueue()).isEqualTo(0);
+        assertThat(consumeQueue.getMaxOffsetInQueue()).isEqualTo(msgNum);
+        // An entry per batch, the single messages having one each
+        assertThat(consumeQueue.findEntryIndex(msgNum - 1)).isEqualTo(BATCH_NUM * 2 - 1);
+
+        List<MessageExt> messages = new ArrayList<MessageExt>();
+        long offset = 0;
+        while (offset < msgNum) {
+            GetMessageResult result = messageStore.getMessage(GROUP, TOPIC, 0, offset, 32, null);
+            assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+            try {
+                messages.addAll(decode(result));
+            } finally {
+                result.release();
+            }
+            assertThat(result.getNextBeginOffset()).isGreaterThan(offset);
+            offset = result.getNextBeginOffset();
+        }
+
+        assertThat(messages).hasSize(msgNum);
+        for (int i = 0; i < msgNum; i++) {
+            assertThat(messages.get(i).getQueueOffset()).isEqualTo(i);
+            assertThat(new String(messages.get(i).getBody())).isEqualTo("body-" + i);
+        }
+    }
+
+    private static List<MessageExt> decode(GetMessageResult result) {
+        List<MessageExt> messages = new ArrayList<MessageExt>();
+        for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+            messages.addAll(MessageDecoder.decodes(byteBuffer));
+        }
+        return messages;
+    }
+
+    private int putMessages() {
+        int index = 0;
+        for (int i = 0; i < BATCH_NUM; i++) {
+            List<Message> messages = new ArrayList<Message>();
+            for (int j = 0; j < BATCH_SIZE; j++) {
+                messages.add(new Message(TOPIC, "TAG1", ("body-" + index++).getBytes()));
+            }
+            MessageExtBatch messageExtBatch = new MessageExtBatch();
+            messageExtBatch.setTopic(TOPIC);
+            messageExtBatch.setQueueId(0);
+            messageExtBatch.setBody(MessageDecoder.encodeMessages(messages));
+            messageExtBatch.setBornTimestamp(System.currentTimeMillis());
+            messageExtBatch.setStoreHost(new InetSocketAddress("127.0.0.1", 125));
+            messageExtBatch.setBornHost(new InetSocketAddress("127.0.0.1", 126));
+            assertThat(messageStore.putMessages(messageExtBatch).isOk()).isTrue();
+
+            MessageExtBrokerInner msg = new MessageExtBrokerInner();
+            msg.setTopic(TOPIC);
+            msg.setTags("TAG1");
+            msg.setBody(("body-" + index++).getBytes());
+            msg.setQueueId(0);
+            msg.setBornTimestamp(System.currentTimeMillis());
+            msg.setStoreHost(new InetSocketAddress("127.0.0.1", 125));
+            msg.setBornHost(new InetSocketAddress("127.0.0.1", 126));
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            assertThat(messageStore.putMessage(msg).isOk()).isTrue();
+        }
+        StoreTestUtil.waitCommitLogReput(messageStore);
+        return index;
+    }
+
+    private DefaultMessageStore createMessageStore() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMaxHashSlotNum(10000);
+        messageStoreConfig.setMaxIndexNum(100 * 100);
+        messageStoreConfig.setBatchConsumeQueueTopics(TOPIC);
+        messageStoreConfig.setMappedFileSizeBatchConsumeQueue(16 * BatchConsumeQueue.CQ_STORE_UNIT_SIZE);
+        return new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"), null,
+            new BrokerConfig());
+    }
+}
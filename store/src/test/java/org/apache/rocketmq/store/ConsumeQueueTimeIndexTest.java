@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.UUID;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConsumeQueueTimeIndexTest {
+    private static final String TOPIC = "TimeIndexTopic";
+    private static final int MSG_NUM = 100;
+    private static final int SAMPLE_INTERVAL = 8;
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+    private final long[] storeTimestamps = new long[MSG_NUM];
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        messageStore = createMessageStore();
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+
+        for (int i = 0; i < MSG_NUM; i++) {
+            PutMessageResult result = messageStore.putMessage(buildMessage());
+            assertThat(result.getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+            storeTimestamps[i] = result.getAppendMessageResult().getStoreTimestamp();
+            Thread.sleep(2);
+        }
+        StoreTestUtil.waitCommitLogReput(messageStore);
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testLookupBySamples() {
+        verifyLookup();
+        assertThat(new File(StorePathConfigHelper.getStorePathConsumeQueueTimeIndex(storePath)).exists()).isTrue();
+    }
+
+    @Test
+    public void testRebuildOnRecovery() throws Exception {
+        messageStore.shutdown();
+        UtilAll.deleteFile(new File(StorePathConfigHelper.getStorePathConsumeQueueTimeIndex(storePath)));
+
+        messageStore = createMessageStore();
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+        verifyLookup();
+    }
+
+    @Test
+    public void testTruncate() {
+        ConsumeQueueTimeIndex timeIndex = new ConsumeQueueTimeIndex(TOPIC, 1,
+            storePath + File.separator + "truncate", 4 * ConsumeQueueTimeIndex.UNIT_SIZE, SAMPLE_INTERVAL);
+        for (int i = 0; i < 10; i++) {
+            assertThat(timeIndex.put(i * SAMPLE_INTERVAL, 1000 + i)).isTrue();
+        }
+        // repeated samples are ignored
+        assertThat(timeIndex.put(SAMPLE_INTERVAL, 2000)).isTrue();
+
+        timeIndex.truncateByMaxOffset(5 * SAMPLE_INTERVAL + 1);
+        assertThat(timeIndex.getMaxSampledOffset()).isEqualTo(5 * SAMPLE_INTERVAL);
+        assertThat(timeIndex.searchRange(1003)).containsExactly(3 * SAMPLE_INTERVAL, 4 * SAMPLE_INTERVAL);
+        assertThat(timeIndex.searchRange(999)).containsExactly(-1, 0);
+        assertThat(timeIndex.searchRange(1009)).containsExactly(5 * SAMPLE_INTERVAL, -1);
+        timeIndex.destroy();
+    }
+
+    private void verifyLookup() {
+        ConsumeQueue consumeQueue = messageStore.findConsumeQueue(TOPIC, 0);
+        for (int i = 0; i < MSG_NUM; i++) {
+            long offset = messageStore.getOffsetInQueueByTime(TOPIC, 0, storeTimestamps[i]);
+            assertThat(messageStore.getMessageStoreTimeStamp(TOPIC, 0, offset)).isEqualTo(storeTimestamps[i]);
+        }
+        assertThat(consumeQueue.getOffsetInQueueByTime(storeTimestamps[0] - 10000)).isEqualTo(0);
+        assertThat(consumeQueue.getOffsetInQueueByTime(storeTimestamps[MSG_NUM - 1] + 10000)).isEqualTo(MSG_NUM - 1);
+    }
+
+    private DefaultMessageStore createMessageStore() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 1024 * 10);
+        // 30 units per consume queue file
+        messageStoreConfig.setMappedFileSizeConsumeQueue(30 * ConsumeQueue.CQ_STORE_UNIT_SIZE);
+        messageStoreConfig.setMaxHashSlotNum(10000);
+        messageStoreConfig.setMaxIndexNum(100 * 100);
+        messageStoreConfig.setEnableConsumeQueueTimeIndex(true);
+        messageStoreConfig.setConsumeQueueTimeIndexInterval(SAMPLE_INTERVAL);
+        return new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+    }
+
+    private MessageExtBrokerInner buildMessage() throws Exception {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(TOPIC);
+        msg.setTags("TAG1");
+        msg.setKeys("Hello");
+        msg.setBody("time index test".getBytes());
+        msg.setQueueId(0);
+        msg.setSysFlag(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(new InetSocketAddress(InetAddress.getLocalHost(), 8123));
+        msg.setBornHost(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return msg;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DispatchPipelineServiceTest {
+    private static final String TOPIC = "DispatchPipelineTopic";
+    private static final int QUEUE_NUM = 8;
+    private static final int MSG_NUM_PER_QUEUE = 50;
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+    private final Map<Integer, AtomicLong> arrivedOffsets = new ConcurrentHashMap<Integer, AtomicLong>();
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 1024 * 10);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(1024 * 1024 * 10);
+        messageStoreConfig.setMaxHashSlotNum(10000);
+        messageStoreConfig.setMaxIndexNum(100 * 100);
+        messageStoreConfig.setEnableParallelDispatch(true);
+        messageStoreConfig.setDispatchThreadPoolNums(3);
+        messageStoreConfig.setDispatchQueueCapacity(16);
+
+        messageStore = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                    AtomicLong arrived = arrivedOffsets.get(queueId);
+                    if (arrived == null) {
+                        arrivedOffsets.putIfAbsent(queueId, new AtomicLong(0));
+                        arrived = arrivedOffsets.get(queueId);
+                    }
+                    // Notification of one queue must come in order
+                    assertThat(logicOffset).isEqualTo(arrived.get() + 1);
+                    arrived.set(logicOffset);
+                }
+            }, new BrokerConfig());
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testDispatchKeepsOrderPerQueue() throws Exception {
+        for (int i = 0; i < MSG_NUM_PER_QUEUE; i++) {
+            for (int queueId = 0; queueId < QUEUE_NUM; queueId++) {
+                PutMessageResult result = messageStore.putMessage(buildMessage(queueId, queueId + "-" + i));
+                assertThat(result.getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+            }
+        }
+
+        waitDispatched();
+
+        for (int queueId = 0; queueId < QUEUE_NUM; queueId++) {
+            assertThat(messageStore.getMaxOffsetInQueue(TOPIC, queueId)).isEqualTo(MSG_NUM_PER_QUEUE);
+            assertThat(arrivedOffsets.get(queueId).get()).isEqualTo(MSG_NUM_PER_QUEUE);
+            for (int i = 0; i < MSG_NUM_PER_QUEUE; i++) {
+                GetMessageResult getResult = messageStore.getMessage("GROUP", TOPIC, queueId, i, 1, null);
+                assertThat(getResult.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+                ByteBuffer byteBuffer = getResult.getMessageBufferList().get(0);
+                MessageExt messageExt = MessageDecoder.decode(byteBuffer);
+                assertThat(messageExt.getKeys()).isEqualTo(queueId + "-" + i);
+                getResult.release();
+            }
+        }
+
+        QueryMessageResult queryResult = messageStore.queryMessage(TOPIC, "3-7", 10, 0, System.currentTimeMillis());
+        assertThat(queryResult.getMessageBufferList()).hasSize(1);
+        queryResult.release();
+
+        HashMap<String, String> runtimeInfo = new HashMap<String, String>();
+        messageStore.getDispatchPipelineService().buildRunningStats(runtimeInfo, messageStore.getMaxPhyOffset());
+        assertThat(runtimeInfo.get("dispatchPendingBytes")).isEqualTo("0");
+        assertThat(runtimeInfo.get("DispatchIndexLane_dispatchedTimes")).isEqualTo(String.valueOf(QUEUE_NUM * MSG_NUM_PER_QUEUE));
+    }
+
+    @Test
+    public void testCheckpointFollowsSlowestLane() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        messageStore.getDispatcherList().addFirst(new CommitLogDispatcher() {
+            @Override
+            public void dispatch(DispatchRequest request) {
+                if (request.getQueueId() == 0 && TOPIC.equals(request.getTopic())) {
+                    try {
+                        blocked.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        });
+
+        long lastStoreTimestamp = 0;
+        try {
+            PutMessageResult result = messageStore.putMessage(buildMessage(0, "blocked"));
+            assertThat(result.getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+            long blockedStoreTimestamp = result.getAppendMessageResult().getStoreTimestamp();
+            Thread.sleep(10);
+            for (int queueId = 1; queueId < QUEUE_NUM; queueId++) {
+                result = messageStore.putMessage(buildMessage(queueId, "later"));
+                assertThat(result.getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+                lastStoreTimestamp = result.getAppendMessageResult().getStoreTimestamp();
+            }
+            // Let the other lanes dispatch what they can
+            Thread.sleep(300);
+
+            // The lanes ahead must not move the checkpoint past the request still being dispatched
+            assertThat(messageStore.getStoreCheckpoint().getLogicsMsgTimestamp()).isLessThan(blockedStoreTimestamp);
+        } finally {
+            blocked.countDown();
+        }
+
+        waitDispatched();
+        assertThat(messageStore.getStoreCheckpoint().getLogicsMsgTimestamp()).isEqualTo(lastStoreTimestamp);
+        assertThat(messageStore.getDispatchPipelineService().getLowWatermark()).isEqualTo(lastStoreTimestamp);
+    }
+
+    private void waitDispatched() throws InterruptedException {
+        for (int i = 0; i < 100 && messageStore.dispatchBehindBytes() > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertThat(messageStore.dispatchBehindBytes()).isEqualTo(0);
+    }
+
+    private MessageExtBrokerInner buildMessage(int queueId, String keys) throws Exception {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(TOPIC);
+        msg.setTags("TAG1");
+        msg.setKeys(keys);
+        msg.setBody("Once, there was a chance for me!".getBytes());
+        msg.setQueueId(queueId);
+        msg.setSysFlag(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(new InetSocketAddress(InetAddress.getLocalHost(), 8123));
+        msg.setBornHost(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return msg;
+    }
+}
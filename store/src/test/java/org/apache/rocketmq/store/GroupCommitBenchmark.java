@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.store.config.FlushDiskType;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+
+/**
+ * Put messages under SYNC_FLUSH with the fixed and the adaptive group commit, print the throughput, the put latency
+ * and the group commit statistics of each.
+ * <p>
+ * Usage: GroupCommitBenchmark [threads] [seconds] [latencyTargetMicros] [maxLingerMicros]
+ */
+public class GroupCommitBenchmark {
+    private static final String TOPIC = "GroupCommitBenchmark";
+    private static final int LATENCY_BUCKETS = 100000;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int latencyTargetMicros = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int maxLingerMicros = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+        System.out.printf("threads: %d seconds: %d latencyTargetMicros: %d maxLingerMicros: %d%n",
+            threads, seconds, latencyTargetMicros, maxLingerMicros);
+
+        for (int t : new int[] {1, threads}) {
+            run("fixed", t, seconds, false, latencyTargetMicros, maxLingerMicros);
+            run("adaptive", t, seconds, true, latencyTargetMicros, maxLingerMicros);
+        }
+    }
+
+    private static void run(String name, int threads, int seconds, boolean adaptive, int latencyTargetMicros,
+        int maxLingerMicros) throws Exception {
+        String rootDir = System.getProperty("java.io.tmpdir") + File.separator + "group-commit-benchmark-" + UUID.randomUUID();
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(rootDir);
+        messageStoreConfig.setStorePathCommitLog(rootDir + File.separator + "commitlog");
+        messageStoreConfig.setMappedFileSizeCommitLog(256 * 1024 * 1024);
+        messageStoreConfig.setFlushDiskType(FlushDiskType.SYNC_FLUSH);
+        messageStoreConfig.setGroupCommitAdaptiveEnable(adaptive);
+        messageStoreConfig.setGroupCommitLatencyTargetMicros(latencyTargetMicros);
+        messageStoreConfig.setGroupCommitMaxLingerMicros(maxLingerMicros);
+        messageStoreConfig.setHaListenPort(0);
+        BrokerStatsManager brokerStatsManager = new BrokerStatsManager("GroupCommitBenchmark");
+        final DefaultMessageStore messageStore = new DefaultMessageStore(messageStoreConfig, brokerStatsManager, null,
+            new BrokerConfig());
+        messageStore.load();
+        messageStore.start();
+
+        // Latency histogram in microseconds, the last bucket holds everything slower
+        final AtomicLong[] histogram = new AtomicLong[LATENCY_BUCKETS];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = new AtomicLong(0);
+        }
+        final AtomicLong putTimes = new AtomicLong(0);
+        final AtomicLong failedTimes = new AtomicLong(0);
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (System.currentTimeMillis() < deadline) {
+                                long beginTime = System.nanoTime();
+                                PutMessageResult result = messageStore.putMessage(buildMessage());
+                                long costMicros = (System.nanoTime() - beginTime) / 1000;
+                                histogram[(int) Math.min(costMicros, LATENCY_BUCKETS - 1)].incrementAndGet();
+                                putTimes.incrementAndGet();
+                                if (result.getPutMessageStatus() != PutMessageStatus.PUT_OK) {
+                                    failedTimes.incrementAndGet();
+                                }
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                }, "GroupCommitBenchmarkProducer_" + i).start();
+            }
+            latch.await();
+
+            HashMap<String, String> stats = new HashMap<String, String>();
+            messageStore.getCommitLog().buildRunningStats(stats);
+            long total = putTimes.get();
+            System.out.printf("%-9s threads: %-3d tps: %-8d failed: %d latency(us) p50: %d p99: %d p999: %d%n",
+                name, threads, total / seconds, failedTimes.get(), percentile(histogram, total, 0.5),
+                percentile(histogram, total, 0.99), percentile(histogram, total, 0.999));
+            System.out.printf("          batches,requests: %s batchSize avg,max: %s fsync(us) avg,max: %s%s%n",
+                stats.get("groupCommitBatchTimes"), stats.get("groupCommitBatchSize"),
+                stats.get("groupCommitFsyncMicros"),
+                adaptive ? " linger times,joined,us,p99 fsync us,rate: " + stats.get("groupCommitAdaptive") : "");
+        } finally {
+            messageStore.shutdown();
+            messageStore.destroy();
+            brokerStatsManager.shutdown();
+            UtilAll.deleteFile(new File(rootDir));
+        }
+    }
+
+    private static long percentile(AtomicLong[] histogram, long total, double percent) {
+        long target = (long) Math.ceil(total * percent);
+        long count = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            count += histogram[i].get();
+            if (count >= target) {
+                return i;
+            }
+        }
+        return histogram.length - 1;
+    }
+
+    private static MessageExtBrokerInner buildMessage() throws Exception {
+        byte[] body = new byte[512];
+        Arrays.fill(body, (byte) 'a');
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(TOPIC);
+        msg.setBody(body);
+        msg.setQueueId(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(new InetSocketAddress(InetAddress.getLoopbackAddress(), 8123));
+        msg.setBornHost(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return msg;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageExtBatch;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LockFreeAppendTest {
+    private static final String TOPIC = "LockFreeAppendTopic";
+    private static final String GROUP = "LockFreeAppendGroup";
+    private static final int QUEUE_NUM = 4;
+    private static final int THREAD_NUM = 8;
+    private static final int PUT_NUM_PER_THREAD = 400;
+    private static final int BATCH_SIZE = 4;
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        messageStore = createMessageStore();
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testConcurrentAppend() throws Exception {
+        final AtomicInteger failed = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(THREAD_NUM);
+        for (int i = 0; i < THREAD_NUM; i++) {
+            final int threadIndex = i;
+            new Thread(() -> {
+                try {
+                    for (int j = 0; j < PUT_NUM_PER_THREAD; j++) {
+                        int queueId = j % QUEUE_NUM;
+                        PutMessageResult result;
+                        // Half of the threads put batches, so single and batch appends race for the same queues
+                        if (threadIndex % 2 == 0) {
+                            result = messageStore.putMessage(buildMessage(queueId, threadIndex + "-" + j));
+                        } else {
+                            result = messageStore.putMessages(buildMessageBatch(queueId, threadIndex + "-" + j));
+                        }
+                        if (result.getPutMessageStatus() != PutMessageStatus.PUT_OK) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        assertThat(failed.get()).isEqualTo(0);
+        assertThat(messageStore.getCommitLog().getMappedFileQueue().getMappedFiles().size()).isGreaterThan(2);
+
+        StoreTestUtil.waitCommitLogReput(messageStore);
+        long expectedPerQueue = (long) THREAD_NUM / 2 * PUT_NUM_PER_THREAD / QUEUE_NUM * (1 + BATCH_SIZE);
+        verifyQueues(expectedPerQueue);
+
+        // The blanks at the end of files must be recovered as written by the locked append
+        messageStore.shutdown();
+        messageStore = createMessageStore();
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+        verifyQueues(expectedPerQueue);
+    }
+
+    @Test
+    public void testAppendLargerThanFile() throws Exception {
+        int fileNum = messageStore.getCommitLog().getMappedFileQueue().getMappedFiles().size();
+        PutMessageResult result = messageStore.putMessage(buildMessage(0, new String(new byte[65 * 1024])));
+        assertThat(result.getPutMessageStatus()).isEqualTo(PutMessageStatus.MESSAGE_ILLEGAL);
+        assertThat(messageStore.getCommitLog().getMappedFileQueue().getMappedFiles().size()).isEqualTo(fileNum);
+
+        assertThat(messageStore.putMessage(buildMessage(0, "fits")).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+    }
+
+    @Test
+    public void testFailedAppendPadded() throws Exception {
+        assertThat(messageStore.putMessage(buildMessage(0, "before")).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+
+        // The appender leaves a partial record in its space and fails
+        CommitLog.ReservedSpaceAppender appender = (wroteOffset, byteBuffer, queueOffset) -> {
+            byteBuffer.putInt(128);
+            throw new IllegalStateException("append failed");
+        };
+        Method appendLockFree = CommitLog.class.getDeclaredMethod("appendLockFree", String.class, int.class, int.class,
+            boolean.class, long.class, CommitLog.ReservedSpaceAppender.class);
+        appendLockFree.setAccessible(true);
+        AppendMessageResult result = (AppendMessageResult) appendLockFree.invoke(messageStore.getCommitLog(), TOPIC, 128, 1,
+            false, System.currentTimeMillis(), appender);
+        assertThat(result.getStatus()).isEqualTo(AppendMessageStatus.UNKNOWN_ERROR);
+
+        MappedFile mappedFile = messageStore.getCommitLog().getMappedFileQueue().getLastMappedFile();
+        ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+        byteBuffer.position(mappedFile.getWrotePosition() - 128);
+        DispatchRequest request = messageStore.getCommitLog().checkMessageAndReturnSize(byteBuffer, false, false);
+        assertThat(request.isSuccess()).isTrue();
+        assertThat(request.isPadding()).isTrue();
+        assertThat(request.getMsgSize()).isEqualTo(128);
+
+        // The message after the padding is still dispatched
+        assertThat(messageStore.putMessage(buildMessage(0, "after")).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        long deadline = System.currentTimeMillis() + 3000;
+        while (messageStore.getMaxOffsetInQueue(TOPIC, 0) < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        verifyQueues(1, 2);
+    }
+
+    @Test
+    public void testReserveAndPublish() throws Exception {
+        MappedFile mappedFile = new MappedFile(storePath + File.separator + "000", 64);
+        try {
+            assertThat(mappedFile.reserve(16, 8)).isEqualTo(0);
+            assertThat(mappedFile.reserve(16, 8)).isEqualTo(16);
+            // 32 + 32 + 8 exceeds the file
+            assertThat(mappedFile.reserve(32, 8)).isEqualTo(-1);
+
+            // The space written first is left to the one before it
+            assertThat(mappedFile.publish(16, 32, 2)).isFalse();
+            assertThat(mappedFile.getWrotePosition()).isEqualTo(0);
+            assertThat(mappedFile.publish(0, 16, 1)).isTrue();
+            assertThat(mappedFile.getWrotePosition()).isEqualTo(32);
+
+            assertThat(mappedFile.reserveRemaining()).isEqualTo(32);
+            assertThat(mappedFile.reserveRemaining()).isEqualTo(-1);
+            assertThat(mappedFile.publish(32, 64, 3)).isTrue();
+            assertThat(mappedFile.isFull()).isTrue();
+            assertThat(mappedFile.getStoreTimestamp()).isEqualTo(3);
+
+            // Truncating resets the reservation
+            mappedFile.setWrotePosition(16);
+            assertThat(mappedFile.reserve(16, 8)).isEqualTo(16);
+        } finally {
+            mappedFile.destroy(1000);
+        }
+    }
+
+    private void verifyQueues(long expectedPerQueue) {
+        verifyQueues(QUEUE_NUM, expectedPerQueue);
+    }
+
+    private void verifyQueues(int queueNum, long expectedPerQueue) {
+        for (int queueId = 0; queueId < queueNum; queueId++) {
+            assertThat(messageStore.getMaxOffsetInQueue(TOPIC, queueId)).isEqualTo(expectedPerQueue);
+            long offset = 0;
+            long lastPhyOffset = -1;
+            while (offset < expectedPerQueue) {
+                GetMessageResult result = messageStore.getMessage(GROUP, TOPIC, queueId, offset, 32, null);
+                assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+                try {
+                    for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                        MessageExt msg = MessageDecoder.decode(byteBuffer);
+                        assertThat(msg.getQueueId()).isEqualTo(queueId);
+                        assertThat(msg.getQueueOffset()).isEqualTo(offset);
+                        assertThat(msg.getCommitLogOffset()).isGreaterThan(lastPhyOffset);
+                        lastPhyOffset = msg.getCommitLogOffset();
+                        offset++;
+                    }
+                } finally {
+                    result.release();
+                }
+            }
+        }
+    }
+
+    private DefaultMessageStore createMessageStore() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMappedFileSizeCommitLog(64 * 1024);
+        messageStoreConfig.setMaxHashSlotNum(10000);
+        messageStoreConfig.setMaxIndexNum(100 * 100);
+        messageStoreConfig.setLockFreeAppendEnable(true);
+        return new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"), null,
+            new BrokerConfig());
+    }
+
+    private MessageExtBrokerInner buildMessage(int queueId, String body) {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(TOPIC);
+        msg.setTags("TAG1");
+        msg.setBody(body.getBytes());
+        msg.setQueueId(queueId);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(new InetSocketAddress("127.0.0.1", 8123));
+        msg.setBornHost(new InetSocketAddress("127.0.0.1", 0));
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return msg;
+    }
+
+    private MessageExtBatch buildMessageBatch(int queueId, String body) {
+        List<Message> messages = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            messages.add(new Message(TOPIC, "TAG1", (body + "-" + i).getBytes()));
+        }
+        MessageExtBatch messageExtBatch = new MessageExtBatch();
+        messageExtBatch.setTopic(TOPIC);
+        messageExtBatch.setQueueId(queueId);
+        messageExtBatch.setBody(MessageDecoder.encodeMessages(messages));
+        messageExtBatch.setBornTimestamp(System.currentTimeMillis());
+        messageExtBatch.setStoreHost(new InetSocketAddress("127.0.0.1", 8123));
+        messageExtBatch.setBornHost(new InetSocketAddress("127.0.0.1", 0));
+        return messageExtBatch;
+    }
+}
@@ -24,6 +24,7 @@ import java.io.File;
 import java.io.IOException;
 
 import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.store.config.FlushDiskType;
 import org.junit.After;
 import org.junit.Test;
 
@@ -52,6 +53,20 @@ public class MappedFileTest {
         assertThat(mappedFile.destroy(1000)).isTrue();
     }
 
+    @Test
+    public void testWarmMappedFileInterrupted() throws IOException {
+        MappedFile mappedFile = new MappedFile("target/unit_test_store/MappedFileTest/001", 1024 * 1024 * 8);
+        try {
+            Thread.currentThread().interrupt();
+            mappedFile.warmMappedFile(FlushDiskType.ASYNC_FLUSH, 0);
+            // The warm-up stops at the first page batch and leaves the interruption to the caller
+            assertThat(Thread.interrupted()).isTrue();
+        } finally {
+            Thread.interrupted();
+            mappedFile.destroy(1000);
+        }
+    }
+
     @After
     public void destory() {
         File file = new File("target/unit_test_store");
@@ -48,6 +48,54 @@ public class MultiPathMappedFileQueueTest {
         mappedFileQueue.destroy();
     }
 
+    @Test
+    public void testStripeFlush() {
+        final byte[] fixedMsg = new byte[512];
+
+        MessageStoreConfig config = new MessageStoreConfig();
+        config.setStorePathCommitLog("target/unit_test_store/a/" + MessageStoreConfig.MULTI_PATH_SPLITTER
+                + "target/unit_test_store/b/" + MessageStoreConfig.MULTI_PATH_SPLITTER
+                + "target/unit_test_store/c/");
+        config.setCommitLogStripeFlushEnable(true);
+        MappedFileQueue mappedFileQueue = new MultiPathMappedFileQueue(config, 1024, null, null);
+        for (int i = 0; i < 11; i++) {
+            MappedFile mappedFile = mappedFileQueue.getLastMappedFile(fixedMsg.length * i);
+            assertThat(mappedFile.appendMessage(fixedMsg)).isTrue();
+        }
+        assertThat(mappedFileQueue.getMappedFiles()).hasSize(6);
+
+        // The half written last file is held back by the least pages, the full ones before it are flushed
+        assertThat(mappedFileQueue.flush(1)).isFalse();
+        assertThat(mappedFileQueue.getFlushedWhere()).isEqualTo(1024 * 5);
+        for (int i = 0; i < 5; i++) {
+            assertThat(mappedFileQueue.getMappedFiles().get(i).getFlushedPosition()).isEqualTo(1024);
+        }
+
+        assertThat(mappedFileQueue.flush(0)).isFalse();
+        assertThat(mappedFileQueue.getFlushedWhere()).isEqualTo(fixedMsg.length * 11);
+        assertThat(mappedFileQueue.flush(0)).isTrue();
+
+        mappedFileQueue.shutdown(1000);
+        mappedFileQueue.destroy();
+    }
+
+    @Test
+    public void testStripeFlushIneffective() {
+        MessageStoreConfig config = new MessageStoreConfig();
+        config.setStorePathCommitLog("target/unit_test_store/a/" + MessageStoreConfig.MULTI_PATH_SPLITTER
+                + "target/unit_test_store/b/");
+        config.setCommitLogStripeFlushEnable(true);
+        assertThat(new MultiPathMappedFileQueue(config, 1024, null, null).isStripeFlushEffective()).isTrue();
+
+        // Never more than one unflushed file with the default file size
+        assertThat(new MultiPathMappedFileQueue(config, config.getMappedFileSizeCommitLog(), null, null)
+            .isStripeFlushEffective()).isFalse();
+
+        // Nothing to run in parallel with a single writable path
+        config.setReadOnlyCommitLogStorePaths("target/unit_test_store/b/");
+        assertThat(new MultiPathMappedFileQueue(config, 1024, null, null).isStripeFlushEffective()).isFalse();
+    }
+
     @Test
     public void testLoadReadOnlyMappedFiles() {
         {
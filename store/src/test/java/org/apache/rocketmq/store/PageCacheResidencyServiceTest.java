@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.UUID;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PageCacheResidencyServiceTest {
+    private static final String TOPIC = "PageCacheResidencyTopic";
+    private static final String GROUP = "PageCacheResidencyGroup";
+    private static final int MSG_NUM = 200;
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+    private DefaultMessageStore messageStore;
+    private PageCacheResidencyService residencyService;
+
+    @Before
+    public void init() throws Exception {
+        Assume.assumeTrue(!System.getProperty("os.name").toLowerCase().contains("win"));
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMappedFileSizeCommitLog(64 * 1024);
+        messageStoreConfig.setMaxHashSlotNum(10000);
+        messageStoreConfig.setMaxIndexNum(100 * 100);
+        messageStoreConfig.setPageCacheResidencyEnable(true);
+        messageStoreConfig.setPageCacheReadAheadSize(4 * MappedFile.OS_PAGE_SIZE);
+        messageStore = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"), null,
+            new BrokerConfig());
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+        residencyService = messageStore.getPageCacheResidencyService();
+
+        for (int i = 0; i < MSG_NUM; i++) {
+            assertThat(messageStore.putMessage(buildMessage(i)).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        StoreTestUtil.waitCommitLogReput(messageStore);
+    }
+
+    @After
+    public void destroy() {
+        if (messageStore != null) {
+            messageStore.shutdown();
+            messageStore.destroy();
+        }
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testWrittenDataIsResident() {
+        // Just written, so the pages are in the page cache
+        long residentEnd = residencyService.residentEnd(0, 100);
+        assertThat(residentEnd).isGreaterThanOrEqualTo(100);
+        assertThat(residentEnd % MappedFile.OS_PAGE_SIZE == 0 || residentEnd == messageStore.getMaxPhyOffset()).isTrue();
+        assertThat(messageStore.checkInDiskByConsumeOffset(TOPIC, 0, 0)).isFalse();
+
+        GetMessageResult result = messageStore.getMessage(GROUP, TOPIC, 0, 0, 32, null);
+        assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+        result.release();
+        assertThat(residencyService.getHitTimes()).isEqualTo(32);
+        assertThat(residencyService.getMissTimes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testReadAheadAdvisedOnce() {
+        residencyService.doReadAhead(0);
+        // The window of the offset and the one after it
+        assertThat(residencyService.getReadAheadTimes()).isEqualTo(2);
+        assertThat(residencyService.getReadAheadBytes()).isEqualTo(8 * MappedFile.OS_PAGE_SIZE);
+
+        residencyService.doReadAhead(MappedFile.OS_PAGE_SIZE);
+        assertThat(residencyService.getReadAheadTimes()).isEqualTo(2);
+
+        // Beyond the written data nothing is advised
+        residencyService.doReadAhead(messageStore.getMaxPhyOffset());
+        assertThat(residencyService.getReadAheadTimes()).isEqualTo(2);
+    }
+
+    private MessageExtBrokerInner buildMessage(int index) {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(TOPIC);
+        msg.setTags("TAG1");
+        byte[] body = new byte[512];
+        System.arraycopy(("page-cache-" + index).getBytes(), 0, body, 0, ("page-cache-" + index).length());
+        msg.setBody(body);
+        msg.setQueueId(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(new InetSocketAddress("127.0.0.1", 8123));
+        msg.setBornHost(new InetSocketAddress("127.0.0.1", 0));
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return msg;
+    }
+}
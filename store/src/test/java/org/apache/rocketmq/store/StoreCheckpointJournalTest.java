@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StoreCheckpointJournalTest {
+    private static final String TOPIC = "CheckpointJournalTopic";
+    private static final String BODY_PREFIX = "CheckpointJournalBody-";
+    private static final int MESSAGE_NUM = 100;
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+
+    @After
+    public void destroy() {
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testAppendAndReload() throws Exception {
+        String path = storePath + File.separator + "checkpointJournal";
+        StoreCheckpointJournal journal = new StoreCheckpointJournal(path);
+        assertThat(journal.getConfirmedOffset()).isEqualTo(-1);
+        // Wrap around the slots
+        for (int i = 1; i <= 100; i++) {
+            journal.append(i * 100 - 50, i * 100, i);
+        }
+        assertThat(journal.getConfirmedOffset()).isEqualTo(10000);
+        journal.shutdown();
+
+        journal = new StoreCheckpointJournal(path);
+        assertThat(journal.getConfirmedOffset()).isEqualTo(10000);
+        assertThat(journal.getRecords()).hasSize(64);
+        assertThat(journal.getRecords().get(0).getCrcFrom()).isEqualTo(9950);
+        assertThat(journal.getRecords().get(0).getDataCrc()).isEqualTo(100);
+        assertThat(journal.getRecords().get(63).getConfirmedOffset()).isEqualTo(3700);
+        journal.shutdown();
+
+        // Tear the latest record, the one before it is taken
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.seek(100 % 64 * 64 + 20);
+            file.writeLong(12345);
+        }
+        journal = new StoreCheckpointJournal(path);
+        assertThat(journal.getConfirmedOffset()).isEqualTo(9900);
+        assertThat(journal.getRecords()).hasSize(63);
+
+        // The sequence goes on from the records loaded
+        journal.append(9950, 10000, 100);
+        assertThat(journal.getRecords().get(0).getSequence()).isEqualTo(100);
+        journal.shutdown();
+    }
+
+    @Test
+    public void testRecoverFromConfirmedOffset() throws Exception {
+        DefaultMessageStore messageStore = createMessageStore();
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+        for (int i = 0; i < MESSAGE_NUM; i++) {
+            assertThat(messageStore.putMessage(buildMessage(i)).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        StoreTestUtil.waitCommitLogReput(messageStore);
+        messageStore.getCommitLog().flush();
+        StoreTestUtil.flushConsumeQueue(messageStore);
+
+        long maxPhyOffset = messageStore.getMaxPhyOffset();
+        StoreCheckpointJournal.Record record = messageStore.getStoreCheckpointJournal().getRecords().get(0);
+        assertThat(record.getConfirmedOffset()).isEqualTo(maxPhyOffset);
+        messageStore.shutdown();
+
+        // Damage the first message, which is out of the CRC window of the journal
+        assertThat(record.getCrcFrom()).isGreaterThan(1024);
+        damageBody(0);
+        File abortFile = new File(StorePathConfigHelper.getAbortFile(storePath));
+        assertThat(abortFile.createNewFile()).isTrue();
+
+        // Scanning from the checkpoint timestamps would truncate the commit log at the damaged message
+        messageStore = createMessageStore();
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+        try {
+            assertThat(messageStore.getMaxPhyOffset()).isEqualTo(maxPhyOffset);
+            assertThat(messageStore.getMaxOffsetInQueue(TOPIC, 0)).isEqualTo(MESSAGE_NUM);
+        } finally {
+            messageStore.shutdown();
+            messageStore.destroy();
+        }
+    }
+
+    @Test
+    public void testFallBackWhenDataNotMatched() throws Exception {
+        DefaultMessageStore messageStore = createMessageStore();
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+        for (int i = 0; i < MESSAGE_NUM; i++) {
+            assertThat(messageStore.putMessage(buildMessage(i)).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        StoreTestUtil.waitCommitLogReput(messageStore);
+        messageStore.getCommitLog().flush();
+        StoreTestUtil.flushConsumeQueue(messageStore);
+        messageStore.shutdown();
+
+        // The last message is covered by the CRC, so the journal is not trusted
+        damageBody(MESSAGE_NUM - 1);
+        File abortFile = new File(StorePathConfigHelper.getAbortFile(storePath));
+        assertThat(abortFile.createNewFile()).isTrue();
+
+        messageStore = createMessageStore();
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+        try {
+            assertThat(messageStore.getMaxOffsetInQueue(TOPIC, 0)).isEqualTo(MESSAGE_NUM - 1);
+        } finally {
+            messageStore.shutdown();
+            messageStore.destroy();
+        }
+    }
+
+    private void damageBody(int index) throws Exception {
+        File commitLogFile = new File(storePath + File.separator + "commitlog" + File.separator + UtilAll.offset2FileName(0));
+        byte[] body = String.format("%s%03d", BODY_PREFIX, index).getBytes(StandardCharsets.UTF_8);
+        try (RandomAccessFile file = new RandomAccessFile(commitLogFile, "rw")) {
+            byte[] data = new byte[64 * 1024];
+            file.readFully(data);
+            for (int pos = 0; pos + body.length <= data.length; pos++) {
+                boolean matched = true;
+                for (int i = 0; i < body.length && matched; i++) {
+                    matched = data[pos + i] == body[i];
+                }
+                if (matched) {
+                    file.seek(pos);
+                    file.write('X');
+                    return;
+                }
+            }
+        }
+        throw new IllegalStateException("body not found " + index);
+    }
+
+    private DefaultMessageStore createMessageStore() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMaxHashSlotNum(10000);
+        messageStoreConfig.setMaxIndexNum(100 * 100);
+        messageStoreConfig.setCheckCRCOnRecover(true);
+        messageStoreConfig.setCheckpointJournalEnable(true);
+        messageStoreConfig.setCheckpointJournalCrcWindow(1024);
+        return new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"), null,
+            new BrokerConfig());
+    }
+
+    private MessageExtBrokerInner buildMessage(int index) {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(TOPIC);
+        msg.setTags("TAG1");
+        msg.setBody(String.format("%s%03d", BODY_PREFIX, index).getBytes(StandardCharsets.UTF_8));
+        msg.setQueueId(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(new InetSocketAddress("127.0.0.1", 8123));
+        msg.setBornHost(new InetSocketAddress("127.0.0.1", 0));
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return msg;
+    }
+}
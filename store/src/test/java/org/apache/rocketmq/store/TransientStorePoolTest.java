@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.rocketmq.store.config.FlushDiskType;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransientStorePoolTest {
+    private TransientStorePool pool;
+
+    @Before
+    public void init() {
+        MessageStoreConfig config = new MessageStoreConfig();
+        config.setTransientStorePoolEnable(true);
+        config.setFlushDiskType(FlushDiskType.ASYNC_FLUSH);
+        config.setMappedFileSizeCommitLog(64 * 1024);
+        config.setTransientStorePoolSize(3);
+        config.setTransientStorePoolMinSize(1);
+        config.setTransientStorePoolBorrowTimeout(10);
+        config.setTransientStorePoolShrinkIdleTime(60 * 1000);
+        pool = new TransientStorePool(config);
+        pool.init();
+    }
+
+    @After
+    public void destroy() {
+        pool.destroy();
+    }
+
+    @Test
+    public void testGrowAndShrink() throws Exception {
+        assertThat(pool.getTotalBufferNums()).isEqualTo(1);
+        assertThat(pool.availableBufferNums()).isEqualTo(3);
+
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer buffer = pool.borrowBuffer();
+            assertThat(buffer).isNotNull();
+            buffers.add(buffer);
+        }
+        assertThat(pool.getTotalBufferNums()).isEqualTo(3);
+        assertThat(pool.availableBufferNums()).isEqualTo(0);
+        assertThat(pool.getPeakUsedBufferNums()).isEqualTo(3);
+
+        // Exhausted after the timeout
+        assertThat(pool.borrowBuffer()).isNull();
+        assertThat(pool.getBorrowFailedTimes()).isEqualTo(1);
+
+        // Locked lazily
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getLockedBufferNums() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(pool.getLockedBufferNums()).isEqualTo(3);
+
+        for (ByteBuffer buffer : buffers) {
+            buffer.put((byte) 1);
+            pool.returnBuffer(buffer);
+        }
+        assertThat(pool.availableBufferNums()).isEqualTo(3);
+
+        // Not idle long enough
+        assertThat(pool.shrink(System.currentTimeMillis())).isFalse();
+        long idleTime = System.currentTimeMillis() + 2 * 60 * 1000;
+        assertThat(pool.shrink(idleTime)).isTrue();
+        assertThat(pool.shrink(idleTime)).isTrue();
+        assertThat(pool.shrink(idleTime)).isFalse();
+        assertThat(pool.getTotalBufferNums()).isEqualTo(1);
+        assertThat(pool.getLockedBufferNums()).isEqualTo(1);
+        assertThat(pool.availableBufferNums()).isEqualTo(3);
+
+        ByteBuffer buffer = pool.borrowBuffer();
+        assertThat(buffer.position()).isEqualTo(0);
+        assertThat(buffer.limit()).isEqualTo(64 * 1024);
+    }
+
+    @Test
+    public void testReleaseBeforeLock() {
+        MessageStoreConfig config = new MessageStoreConfig();
+        config.setTransientStorePoolEnable(true);
+        config.setMappedFileSizeCommitLog(64 * 1024);
+        config.setTransientStorePoolSize(2);
+        config.setTransientStorePoolLazyLock(true);
+        // Not initialized, so the maintain thread never locks the buffer
+        TransientStorePool lazyPool = new TransientStorePool(config);
+        ByteBuffer buffer = lazyPool.borrowBuffer();
+        assertThat(buffer).isNotNull();
+        lazyPool.returnBuffer(buffer);
+        lazyPool.destroy();
+        assertThat(lazyPool.getTotalBufferNums()).isEqualTo(0);
+        assertThat(lazyPool.getLockedBufferNums()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.compaction;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.GetMessageResult;
+import org.apache.rocketmq.store.GetMessageStatus;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.PutMessageStatus;
+import org.apache.rocketmq.store.StoreTestUtil;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompactionServiceTest {
+    private static final String TOPIC = "CompactionTopic";
+    private static final String GROUP = "CompactionGroup";
+    private static final int KEY_NUM = 10;
+    private static final int KEYLESS_NUM = 5;
+    private static final int MSG_NUM = 1000;
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        messageStore = createMessageStore();
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testCompactLatestPerKey() throws Exception {
+        putMessages(0, MSG_NUM);
+        CompactionService compactionService = messageStore.getCompactionService();
+        assertThat(compactionService.compact()).isEqualTo(1);
+        long compactedOffset = compactionService.getCompactedOffset(TOPIC, 0);
+        assertThat(compactedOffset).isGreaterThan(KEYLESS_NUM + KEY_NUM).isLessThan(MSG_NUM);
+        // Nothing new is sealed
+        assertThat(compactionService.compact()).isEqualTo(0);
+
+        verifyMessages(compactedOffset, MSG_NUM);
+        assertThat(compactionService.getRemovedMsgNums()).isEqualTo(compactedOffset - KEYLESS_NUM - KEY_NUM);
+
+        // Compact again with the last generation
+        putMessages(MSG_NUM, MSG_NUM);
+        assertThat(compactionService.compact()).isEqualTo(1);
+        long newCompactedOffset = compactionService.getCompactedOffset(TOPIC, 0);
+        assertThat(newCompactedOffset).isGreaterThan(compactedOffset);
+        verifyMessages(newCompactedOffset, MSG_NUM * 2);
+        assertThat(new File(storePath + File.separator + "compaction" + File.separator + TOPIC + File.separator + "0").list())
+            .containsExactly("1");
+
+        // Reload the compacted log, next to directories left by others
+        messageStore.shutdown();
+        File queueDir = new File(storePath + File.separator + "compaction" + File.separator + TOPIC + File.separator + "0");
+        assertThat(new File(queueDir.getParentFile(), "lost+found").mkdir()).isTrue();
+        assertThat(new File(queueDir, "backup").mkdir()).isTrue();
+        messageStore = createMessageStore();
+        assertThat(messageStore.load()).isTrue();
+        assertThat(queueDir.list()).containsOnly("1", "backup");
+        messageStore.start();
+        assertThat(messageStore.getCompactionService().getCompactedOffset(TOPIC, 0)).isEqualTo(newCompactedOffset);
+        verifyMessages(newCompactedOffset, MSG_NUM * 2);
+    }
+
+    private void verifyMessages(long compactedOffset, long maxOffset) {
+        assertThat(messageStore.getMinOffsetInQueue(TOPIC, 0)).isEqualTo(0);
+
+        Map<String, Long> latestOffsets = new HashMap<String, Long>();
+        for (long i = KEYLESS_NUM; i < compactedOffset; i++) {
+            latestOffsets.put(buildKey(i), i);
+        }
+
+        List<MessageExt> messages = new ArrayList<MessageExt>();
+        long offset = 0;
+        while (offset < maxOffset) {
+            GetMessageResult result = messageStore.getMessage(GROUP, TOPIC, 0, offset, 32, null);
+            assertThat(result.getStatus()).isIn(GetMessageStatus.FOUND, GetMessageStatus.NO_MATCHED_MESSAGE);
+            try {
+                for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                    messages.add(MessageDecoder.decode(byteBuffer));
+                }
+            } finally {
+                result.release();
+            }
+            assertThat(result.getNextBeginOffset()).isGreaterThan(offset);
+            offset = result.getNextBeginOffset();
+        }
+
+        int compactedNum = 0;
+        long lastOffset = -1;
+        for (MessageExt msg : messages) {
+            assertThat(msg.getQueueOffset()).isGreaterThan(lastOffset);
+            assertThat(new String(msg.getBody())).isEqualTo("value-" + msg.getQueueOffset());
+            lastOffset = msg.getQueueOffset();
+            if (msg.getQueueOffset() < compactedOffset) {
+                compactedNum++;
+                if (msg.getQueueOffset() >= KEYLESS_NUM) {
+                    assertThat(latestOffsets.get(msg.getKeys())).isEqualTo(msg.getQueueOffset());
+                }
+            }
+        }
+        assertThat(compactedNum).isEqualTo(KEYLESS_NUM + KEY_NUM);
+        assertThat(messages).hasSize((int) (compactedNum + maxOffset - compactedOffset));
+    }
+
+    private void putMessages(int from, int num) {
+        for (int i = from; i < from + num; i++) {
+            assertThat(messageStore.putMessage(buildMessage(i)).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        StoreTestUtil.waitCommitLogReput(messageStore);
+    }
+
+    private String buildKey(long index) {
+        return "key-" + index % KEY_NUM;
+    }
+
+    private DefaultMessageStore createMessageStore() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMappedFileSizeCommitLog(64 * 1024);
+        messageStoreConfig.setMaxHashSlotNum(10000);
+        messageStoreConfig.setMaxIndexNum(100 * 100);
+        messageStoreConfig.setCompactionTopics(TOPIC);
+        messageStoreConfig.setCompactionInterval(Integer.MAX_VALUE);
+        messageStoreConfig.setMappedFileSizeCompactionLog(64 * 1024);
+        return new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"), null,
+            new BrokerConfig());
+    }
+
+    private MessageExtBrokerInner buildMessage(int index) {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(TOPIC);
+        msg.setTags("TAG1");
+        if (index >= KEYLESS_NUM) {
+            msg.setKeys(buildKey(index));
+        }
+        msg.setBody(("value-" + index).getBytes());
+        msg.setQueueId(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(new InetSocketAddress("127.0.0.1", 8123));
+        msg.setBornHost(new InetSocketAddress("127.0.0.1", 0));
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return msg;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.ha;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.PutMessageStatus;
+import org.apache.rocketmq.store.StoreTestUtil;
+import org.apache.rocketmq.store.config.BrokerRole;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HAServiceTest {
+    private static final int MSG_NUM = 100;
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+    private DefaultMessageStore masterStore;
+    private DefaultMessageStore slaveStore;
+
+    @After
+    public void destroy() {
+        if (slaveStore != null) {
+            slaveStore.shutdown();
+            slaveStore.destroy();
+        }
+        if (masterStore != null) {
+            masterStore.shutdown();
+            masterStore.destroy();
+        }
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testSyncReplicate() throws Exception {
+        startStores(true, 1);
+        putAndVerify();
+        assertThat(masterStore.getHaService().getTransferredBytes().get()).isGreaterThanOrEqualTo(masterStore.getMaxPhyOffset());
+    }
+
+    @Test
+    public void testSyncReplicateWithoutZeroCopy() throws Exception {
+        startStores(false, 1);
+        putAndVerify();
+    }
+
+    @Test
+    public void testSyncReplicasNotEnough() throws Exception {
+        startStores(true, 2);
+        assertThat(masterStore.putMessage(buildMessage()).getPutMessageStatus()).isEqualTo(PutMessageStatus.SLAVE_NOT_AVAILABLE);
+    }
+
+    private void putAndVerify() throws Exception {
+        for (int i = 0; i < MSG_NUM; i++) {
+            assertThat(masterStore.putMessage(buildMessage()).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (slaveStore.getMaxPhyOffset() < masterStore.getMaxPhyOffset() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(slaveStore.getMaxPhyOffset()).isEqualTo(masterStore.getMaxPhyOffset());
+        assertThat(masterStore.getHaService().getQuorumAckOffset().get()).isEqualTo(masterStore.getMaxPhyOffset());
+
+        StoreTestUtil.waitCommitLogReput(masterStore);
+        StoreTestUtil.waitCommitLogReput(slaveStore);
+        assertThat(masterStore.getReplicatedMaxOffsetInQueue("HATopic", 0)).isEqualTo(MSG_NUM);
+        assertThat(slaveStore.getReplicatedMaxOffsetInQueue("HATopic", 0)).isEqualTo(MSG_NUM);
+        long phyOffset = masterStore.getCommitLogOffsetInQueue("HATopic", 0, MSG_NUM / 2);
+        assertThat(masterStore.getConsumeQueue("HATopic", 0).getOffsetInQueueByPhyOffset(phyOffset)).isEqualTo(MSG_NUM / 2);
+        assertThat(masterStore.getConsumeQueue("HATopic", 0).getOffsetInQueueByPhyOffset(phyOffset + 1)).isEqualTo(MSG_NUM / 2);
+    }
+
+    private void startStores(boolean zeroCopy, int syncReplicas) throws Exception {
+        int haPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            haPort = socket.getLocalPort();
+        }
+
+        MessageStoreConfig masterConfig = buildConfig("master", zeroCopy);
+        masterConfig.setBrokerRole(BrokerRole.SYNC_MASTER);
+        masterConfig.setHaListenPort(haPort);
+        masterConfig.setHaSyncReplicas(syncReplicas);
+        masterStore = new DefaultMessageStore(masterConfig, new BrokerStatsManager("simpleTest"), null, new BrokerConfig());
+        assertThat(masterStore.load()).isTrue();
+        masterStore.start();
+
+        MessageStoreConfig slaveConfig = buildConfig("slave", zeroCopy);
+        slaveConfig.setBrokerRole(BrokerRole.SLAVE);
+        slaveConfig.setHaListenPort(haPort + 1);
+        slaveStore = new DefaultMessageStore(slaveConfig, new BrokerStatsManager("simpleTest"), null, new BrokerConfig());
+        assertThat(slaveStore.load()).isTrue();
+        slaveStore.start();
+        slaveStore.updateHaMasterAddress("127.0.0.1:" + haPort);
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (masterStore.getHaService().getConnectionCount().get() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(masterStore.getHaService().getConnectionCount().get()).isEqualTo(1);
+    }
+
+    private MessageStoreConfig buildConfig(String name, boolean zeroCopy) {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath + File.separator + name);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + name + File.separator + "commitlog");
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMaxHashSlotNum(10000);
+        messageStoreConfig.setMaxIndexNum(100 * 100);
+        messageStoreConfig.setHaTransferZeroCopyEnable(zeroCopy);
+        // Several chunks per round
+        messageStoreConfig.setHaTransferBatchSize(1024);
+        // The slave reports its offset the first time after a heartbeat interval
+        messageStoreConfig.setHaSendHeartbeatInterval(200);
+        return messageStoreConfig;
+    }
+
+    private MessageExtBrokerInner buildMessage() {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic("HATopic");
+        msg.setTags("TAG1");
+        msg.setBody(new byte[512]);
+        msg.setQueueId(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(new InetSocketAddress("127.0.0.1", 8123));
+        msg.setBornHost(new InetSocketAddress("127.0.0.1", 0));
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return msg;
+    }
+}
@@ -70,4 +70,65 @@ public class IndexFileTest {
         File file = new File("200");
         UtilAll.deleteFile(file);
     }
+
+    @Test
+    public void testBloomFilter() throws Exception {
+        IndexFile indexFile = new IndexFile("300", HASH_SLOT_NUM, INDEX_NUM, 0, 0);
+        for (long i = 0; i < INDEX_NUM / 2; i++) {
+            assertThat(indexFile.putKey(Long.toString(i), i, System.currentTimeMillis())).isTrue();
+        }
+        assertThat(indexFile.isBloomFilterReady()).isFalse();
+        assertThat(indexFile.mightContainKey("absent")).isTrue();
+
+        indexFile.buildBloomFilter(10);
+        assertThat(indexFile.isBloomFilterReady()).isTrue();
+
+        // keys put after the filter is built are added by the writer
+        for (long i = INDEX_NUM / 2; i < (INDEX_NUM - 1); i++) {
+            assertThat(indexFile.putKey(Long.toString(i), i, System.currentTimeMillis())).isTrue();
+        }
+        for (long i = 0; i < (INDEX_NUM - 1); i++) {
+            assertThat(indexFile.mightContainKey(Long.toString(i))).isTrue();
+        }
+
+        int falsePositive = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (indexFile.mightContainKey("absent-" + i)) {
+                falsePositive++;
+            }
+        }
+        assertThat(falsePositive).isLessThan(50);
+
+        indexFile.destroy(0);
+        assertThat(indexFile.isBloomFilterReady()).isFalse();
+        File file = new File("300");
+        UtilAll.deleteFile(file);
+    }
+
+    @Test
+    public void testBuildBloomFilterWhileWriting() throws Exception {
+        final int indexNum = 100000;
+        final IndexFile indexFile = new IndexFile("400", HASH_SLOT_NUM, indexNum, 0, 0);
+        for (long i = 0; i < indexNum / 2; i++) {
+            assertThat(indexFile.putKey(Long.toString(i), i, System.currentTimeMillis())).isTrue();
+        }
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long i = indexNum / 2; i < indexNum - 1; i++) {
+                    indexFile.putKey(Long.toString(i), i, System.currentTimeMillis());
+                }
+            }
+        });
+        writer.start();
+        indexFile.buildBloomFilter(10);
+        writer.join();
+
+        // No key is lost between the scan of the builder and the writer
+        for (long i = 0; i < indexNum - 1; i++) {
+            assertThat(indexFile.mightContainKey(Long.toString(i))).isTrue();
+        }
+        indexFile.destroy(0);
+        UtilAll.deleteFile(new File("400"));
+    }
 }
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.index;
+
+import java.io.File;
+import java.util.Random;
+import java.util.UUID;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.DispatchRequest;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+
+/**
+ * Query keys over synthetic index files with and without the bloom filter and the parallel search.
+ * <p>
+ * Usage: IndexQueryBenchmark [fileNum] [keysPerFile] [queryNum] [queryThreadPoolNums]
+ */
+public class IndexQueryBenchmark {
+    private static final String TOPIC = "IndexQueryBenchmark";
+
+    public static void main(String[] args) throws Exception {
+        int fileNum = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int keysPerFile = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int queryNum = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        int threadPoolNums = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+        System.out.printf("fileNum: %d keysPerFile: %d queryNum: %d queryThreadPoolNums: %d%n",
+            fileNum, keysPerFile, queryNum, threadPoolNums);
+
+        run("sequential", fileNum, keysPerFile, queryNum, false, 1);
+        run("bloom", fileNum, keysPerFile, queryNum, true, 1);
+        run("bloom+parallel", fileNum, keysPerFile, queryNum, true, threadPoolNums);
+    }
+
+    private static void run(String name, int fileNum, int keysPerFile, int queryNum, boolean bloomFilterEnable,
+        int threadPoolNums) throws Exception {
+        String rootDir = System.getProperty("java.io.tmpdir") + File.separator + "index-benchmark-" + UUID.randomUUID();
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(rootDir);
+        messageStoreConfig.setStorePathCommitLog(rootDir + File.separator + "commitlog");
+        messageStoreConfig.setMaxHashSlotNum(keysPerFile / 4);
+        messageStoreConfig.setMaxIndexNum(keysPerFile + 1);
+        messageStoreConfig.setIndexBloomFilterEnable(bloomFilterEnable);
+        messageStoreConfig.setIndexQueryThreadPoolNums(threadPoolNums);
+        BrokerStatsManager brokerStatsManager = new BrokerStatsManager("IndexQueryBenchmark");
+        DefaultMessageStore messageStore = new DefaultMessageStore(messageStoreConfig, brokerStatsManager, null,
+            new BrokerConfig());
+        messageStore.load();
+        messageStore.start();
+
+        IndexService indexService = new IndexService(messageStore);
+        indexService.start();
+        try {
+            long storeTimestamp = System.currentTimeMillis();
+            long totalKeys = (long) fileNum * keysPerFile;
+            for (long i = 0; i < totalKeys; i++) {
+                if (i % keysPerFile == 0) {
+                    // index files are named by the creation time in millis
+                    Thread.sleep(2);
+                }
+                indexService.buildIndex(new DispatchRequest(TOPIC, 0, i, 1, 0, storeTimestamp, i,
+                    "key-" + i, null, 0, 0, null));
+            }
+
+            Random random = new Random(0);
+            int found = 0;
+            long beginTime = System.nanoTime();
+            for (int i = 0; i < queryNum; i++) {
+                // half of the keys exist, the other half miss every file
+                String key = i % 2 == 0 ? "key-" + (long) (random.nextDouble() * totalKeys) : "absent-" + i;
+                found += indexService.queryOffset(TOPIC, key, 32, 0, Long.MAX_VALUE).getPhyOffsets().size();
+            }
+            long elapsed = System.nanoTime() - beginTime;
+            System.out.printf("%-16s found: %d avg: %.2fus qps: %.0f%n", name, found,
+                elapsed / 1000.0 / queryNum, queryNum * 1e9 / elapsed);
+        } finally {
+            indexService.shutdown();
+            indexService.destroy();
+            messageStore.shutdown();
+            messageStore.destroy();
+            brokerStatsManager.shutdown();
+            UtilAll.deleteFile(new File(rootDir));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.index;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.DispatchRequest;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IndexServiceTest {
+    private static final String TOPIC = "IndexServiceTopic";
+    private static final int INDEX_NUM = 100;
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+    private final List<DefaultMessageStore> messageStores = new ArrayList<DefaultMessageStore>();
+    private final List<IndexService> indexServices = new ArrayList<IndexService>();
+
+    @After
+    public void destroy() {
+        for (IndexService indexService : indexServices) {
+            indexService.shutdown();
+            indexService.destroy();
+        }
+        for (DefaultMessageStore messageStore : messageStores) {
+            messageStore.shutdown();
+            messageStore.destroy();
+        }
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testQueryAcrossFiles() throws Exception {
+        List<Long> sequential = queryCommonKey(false, 1);
+        List<Long> parallel = queryCommonKey(true, 3);
+
+        // the newest file first, the same as searching them one by one
+        assertThat(sequential).hasSize(10);
+        assertThat(parallel).isEqualTo(sequential);
+        for (int i = 1; i < parallel.size(); i++) {
+            assertThat(parallel.get(i)).isLessThan(parallel.get(i - 1));
+        }
+    }
+
+    @Test
+    public void testSkipByBloomFilter() throws Exception {
+        IndexService indexService = createIndexService(storePath + File.separator + "bloom", true, 3);
+        putKeys(indexService, 5 * INDEX_NUM);
+
+        QueryOffsetResult result = indexService.queryOffset(TOPIC, "key-" + 42, 32, 0, Long.MAX_VALUE);
+        assertThat(result.getPhyOffsets()).containsExactly(42L * 100);
+
+        result = indexService.queryOffset(TOPIC, "absent", 32, 0, Long.MAX_VALUE);
+        assertThat(result.getPhyOffsets()).isEmpty();
+    }
+
+    private List<Long> queryCommonKey(boolean bloomFilterEnable, int threadPoolNums) throws Exception {
+        IndexService indexService = createIndexService(storePath + File.separator + bloomFilterEnable,
+            bloomFilterEnable, threadPoolNums);
+        putKeys(indexService, 5 * INDEX_NUM);
+        QueryOffsetResult result = indexService.queryOffset(TOPIC, "common", 10, 0, Long.MAX_VALUE);
+        return result.getPhyOffsets();
+    }
+
+    private void putKeys(IndexService indexService, int num) throws InterruptedException {
+        long storeTimestamp = System.currentTimeMillis();
+        for (int i = 0; i < num; i++) {
+            if (i % 10 == 0) {
+                // index files are named by the creation time in millis
+                Thread.sleep(2);
+            }
+            String keys = i % 7 == 0 ? "key-" + i + " common" : "key-" + i;
+            indexService.buildIndex(new DispatchRequest(TOPIC, 0, i * 100L, 100, 0, storeTimestamp, i,
+                keys, null, 0, 0, null));
+        }
+    }
+
+    private IndexService createIndexService(String rootDir, boolean bloomFilterEnable, int threadPoolNums)
+        throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(rootDir);
+        messageStoreConfig.setStorePathCommitLog(rootDir + File.separator + "commitlog");
+        messageStoreConfig.setMaxHashSlotNum(INDEX_NUM / 4);
+        messageStoreConfig.setMaxIndexNum(INDEX_NUM);
+        messageStoreConfig.setIndexBloomFilterEnable(bloomFilterEnable);
+        messageStoreConfig.setIndexQueryThreadPoolNums(threadPoolNums);
+        messageStoreConfig.setHaListenPort(0);
+        DefaultMessageStore messageStore = new DefaultMessageStore(messageStoreConfig,
+            new BrokerStatsManager("simpleTest"), null, new BrokerConfig());
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+        messageStores.add(messageStore);
+
+        IndexService indexService = new IndexService(messageStore);
+        indexService.start();
+        indexServices.add(indexService);
+        return indexService;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.tiered;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.GetMessageResult;
+import org.apache.rocketmq.store.GetMessageStatus;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.PutMessageResult;
+import org.apache.rocketmq.store.PutMessageStatus;
+import org.apache.rocketmq.store.StoreTestUtil;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TieredStorageServiceTest {
+    private static final String TOPIC = "TieredStorageTopic";
+    private static final String GROUP = "TieredStorageGroup";
+    private static final int MSG_NUM = 1000;
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        messageStore = createMessageStore(72);
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+
+        for (int i = 0; i < MSG_NUM; i++) {
+            PutMessageResult result = messageStore.putMessage(buildMessage(i));
+            assertThat(result.getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        StoreTestUtil.waitCommitLogReput(messageStore);
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testReadThroughAfterLocalFilesRemoved() {
+        offloadSealedFiles();
+
+        TieredStorageService tieredStorageService = messageStore.getTieredStorageService();
+        assertThat(messageStore.getMinPhyOffset()).isGreaterThan(0);
+        assertThat(messageStore.getReadableMinPhyOffset()).isEqualTo(0);
+
+        verifyAllMessages();
+        TieredSegmentCache segmentCache = tieredStorageService.getSegmentCache();
+        assertThat(segmentCache.getMissTimes()).isGreaterThan(0);
+        assertThat(segmentCache.getHitTimes()).isGreaterThan(segmentCache.getMissTimes());
+        assertThat(segmentCache.getPrefetchTimes()).isGreaterThan(0);
+    }
+
+    @Test
+    public void testOffsetByTimeInOffloadedRange() {
+        offloadSealedFiles();
+
+        // Many messages are stored in the same millisecond, any of them matches
+        long storeTime = messageStore.getMessageStoreTimeStamp(TOPIC, 0, 10);
+        assertThat(storeTime).isGreaterThan(0);
+        long offset = messageStore.getOffsetInQueueByTime(TOPIC, 0, storeTime);
+        assertThat(messageStore.getMessageStoreTimeStamp(TOPIC, 0, offset)).isEqualTo(storeTime);
+
+        // Before the first message, which is offloaded
+        long firstStoreTime = messageStore.getMessageStoreTimeStamp(TOPIC, 0, 0);
+        assertThat(messageStore.getOffsetInQueueByTime(TOPIC, 0, firstStoreTime - 1)).isEqualTo(0);
+    }
+
+    @Test
+    public void testManifestRecovered() throws Exception {
+        offloadSealedFiles();
+        int segmentNum = messageStore.getTieredStorageService().getSegmentNum();
+
+        messageStore.shutdown();
+        messageStore = createMessageStore(72);
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+
+        assertThat(messageStore.getTieredStorageService().getSegmentNum()).isEqualTo(segmentNum);
+        assertThat(messageStore.getMinOffsetInQueue(TOPIC, 0)).isEqualTo(0);
+        verifyAllMessages();
+    }
+
+    @Test
+    public void testSegmentsExpired() throws Exception {
+        offloadSealedFiles();
+
+        messageStore.shutdown();
+        messageStore = createMessageStore(0);
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+
+        TieredStorageService tieredStorageService = messageStore.getTieredStorageService();
+        assertThat(tieredStorageService.deleteExpiredSegments()).isGreaterThan(0);
+        assertThat(tieredStorageService.getSegmentNum()).isEqualTo(0);
+        assertThat(tieredStorageService.getBackend().exists(TieredStorageService.segmentName(new TieredSegment(0, 0, 0))))
+            .isFalse();
+        assertThat(messageStore.getReadableMinPhyOffset()).isEqualTo(messageStore.getMinPhyOffset());
+        assertThat(messageStore.getCommitLog().getMessage(0, 4)).isNull();
+    }
+
+    private void offloadSealedFiles() {
+        TieredStorageService tieredStorageService = messageStore.getTieredStorageService();
+        // One file is flushed at a time
+        while (messageStore.getCommitLog().flush() < messageStore.getMaxPhyOffset()) {
+        }
+        int fileNum = messageStore.getCommitLog().getMappedFileQueue().getMappedFiles().size();
+        assertThat(fileNum).isGreaterThan(2);
+
+        assertThat(tieredStorageService.uploadSealedSegments()).isEqualTo(fileNum - 1);
+        assertThat(tieredStorageService.getSegmentNum()).isEqualTo(fileNum - 1);
+        // Nothing left to upload
+        assertThat(tieredStorageService.uploadSealedSegments()).isEqualTo(0);
+
+        int deleteCount = messageStore.getCommitLog().deleteUploadedFile(0, 0, 1000,
+            tieredStorageService.getUploadedMaxOffset());
+        assertThat(deleteCount).isEqualTo(fileNum - 1);
+    }
+
+    private void verifyAllMessages() {
+        long offset = 0;
+        while (offset < MSG_NUM) {
+            GetMessageResult result = messageStore.getMessage(GROUP, TOPIC, 0, offset, 32, null);
+            assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+            try {
+                for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                    MessageExt msg = MessageDecoder.decode(byteBuffer);
+                    assertThat(msg.getQueueOffset()).isEqualTo(offset);
+                    assertThat(new String(msg.getBody())).isEqualTo("tiered-" + offset);
+                    offset++;
+                }
+            } finally {
+                result.release();
+            }
+        }
+    }
+
+    private DefaultMessageStore createMessageStore(int fileReservedTime) throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setStorePathTiered(storePath + File.separator + "tiered");
+        messageStoreConfig.setMappedFileSizeCommitLog(64 * 1024);
+        messageStoreConfig.setMaxHashSlotNum(10000);
+        messageStoreConfig.setMaxIndexNum(100 * 100);
+        messageStoreConfig.setFileReservedTime(fileReservedTime);
+        messageStoreConfig.setTieredStorageEnable(true);
+        messageStoreConfig.setTieredUploadInterval(3600 * 1000);
+        messageStoreConfig.setTieredCacheBlockSize(4096);
+        messageStoreConfig.setTieredPrefetchBlocks(2);
+        return new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"), null,
+            new BrokerConfig());
+    }
+
+    private MessageExtBrokerInner buildMessage(int index) throws Exception {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(TOPIC);
+        msg.setTags("TAG1");
+        msg.setKeys("Hello");
+        msg.setBody(("tiered-" + index).getBytes());
+        msg.setQueueId(0);
+        msg.setSysFlag(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(new InetSocketAddress(InetAddress.getLocalHost(), 8123));
+        msg.setBornHost(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return msg;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.timer;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.topic.TopicValidator;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.GetMessageResult;
+import org.apache.rocketmq.store.GetMessageStatus;
+import org.apache.rocketmq.store.MessageArrivingListener;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.PutMessageResult;
+import org.apache.rocketmq.store.PutMessageStatus;
+import org.apache.rocketmq.store.config.BrokerRole;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimerMessageServiceTest {
+    private static final String TOPIC = "TimerWheelTopic";
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-" + UUID.randomUUID();
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        messageStore = createMessageStore();
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+        messageStore.handleScheduleMessageService(BrokerRole.ASYNC_MASTER);
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testLocate() throws Exception {
+        TimerWheel timerWheel = new TimerWheel(storePath + File.separator + "wheelForLocate", 100, 10, 3);
+        try {
+            // level 0 covers [1000, 2000)
+            assertThat(timerWheel.locate(1000, 1350)).containsExactly(0, 1300);
+            assertThat(timerWheel.locate(1000, 500)).containsExactly(0, 1000);
+            // level 1 ticks are 1s
+            assertThat(timerWheel.locate(1000, 5300)).containsExactly(1, 5000);
+            // level 2 ticks are 10s
+            assertThat(timerWheel.locate(1000, 55000)).containsExactly(2, 50000);
+            // beyond the span, park in the farthest slot
+            assertThat(timerWheel.locate(1000, 500000)).containsExactly(2, 90000);
+        } finally {
+            timerWheel.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeliverAtDeliverTime() throws Exception {
+        long deliverMs = System.currentTimeMillis() + 1500;
+        MessageExtBrokerInner msg = buildMessage();
+        msg.setDeliverTimeMs(deliverMs);
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        PutMessageResult result = messageStore.putMessage(msg);
+        assertThat(result.getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+
+        Thread.sleep(500);
+        assertThat(messageStore.getMaxOffsetInQueue(TopicValidator.RMQ_SYS_TIMER_TOPIC, 0)).isEqualTo(1);
+        assertThat(messageStore.getMaxOffsetInQueue(TOPIC, 0)).isEqualTo(0);
+
+        waitDelivered(1);
+        assertThat(System.currentTimeMillis()).isGreaterThanOrEqualTo(deliverMs);
+
+        GetMessageResult getResult = messageStore.getMessage("GROUP", TOPIC, 0, 0, 1, null);
+        assertThat(getResult.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+        MessageExt messageExt = MessageDecoder.decode(getResult.getMessageBufferList().get(0));
+        getResult.release();
+        assertThat(messageExt.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS)).isNull();
+        assertThat(new String(messageExt.getBody())).isEqualTo("timer wheel test");
+
+        HashMap<String, String> stats = new HashMap<String, String>();
+        messageStore.getTimerMessageService().buildRunningStats(stats);
+        assertThat(stats.get("timerDeliveredTimes")).isEqualTo("1");
+        assertThat(stats.get("timerPendingNum")).isEqualTo("0");
+    }
+
+    @Test
+    public void testDelayLevelGoesThroughWheel() throws Exception {
+        MessageExtBrokerInner msg = buildMessage();
+        msg.setDelayTimeLevel(1);
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        PutMessageResult result = messageStore.putMessage(msg);
+        assertThat(result.getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        assertThat(messageStore.getMaxOffsetInQueue(TopicValidator.RMQ_SYS_SCHEDULE_TOPIC, 0)).isEqualTo(0);
+
+        waitDelivered(1);
+        assertThat(messageStore.getMaxOffsetInQueue(TOPIC, 0)).isEqualTo(1);
+    }
+
+    @Test
+    public void testRecoverAfterRestart() throws Exception {
+        MessageExtBrokerInner msg = buildMessage();
+        msg.setDeliverTimeMs(System.currentTimeMillis() + 2000);
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        assertThat(messageStore.putMessage(msg).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        Thread.sleep(500);
+        messageStore.shutdown();
+
+        messageStore = createMessageStore();
+        assertThat(messageStore.load()).isTrue();
+        messageStore.start();
+        messageStore.handleScheduleMessageService(BrokerRole.ASYNC_MASTER);
+        assertThat(messageStore.getTimerMessageService().getIngestOffset()).isEqualTo(1);
+
+        waitDelivered(1);
+        assertThat(messageStore.getMaxOffsetInQueue(TOPIC, 0)).isEqualTo(1);
+    }
+
+    @Test
+    public void testRejectTooFarDeliverTime() throws Exception {
+        MessageExtBrokerInner msg = buildMessage();
+        long tooFar = System.currentTimeMillis() + messageStore.getMessageStoreConfig().getTimerMaxDelaySec() * 1000L * 2;
+        msg.setDeliverTimeMs(tooFar);
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        assertThat(messageStore.putMessage(msg).getPutMessageStatus()).isEqualTo(PutMessageStatus.MESSAGE_ILLEGAL);
+    }
+
+    private void waitDelivered(long num) throws InterruptedException {
+        for (int i = 0; i < 100 && messageStore.getTimerMessageService().getDeliveredTimes() < num; i++) {
+            Thread.sleep(100);
+        }
+        assertThat(messageStore.getTimerMessageService().getDeliveredTimes()).isEqualTo(num);
+        for (int i = 0; i < 100 && messageStore.dispatchBehindBytes() > 0; i++) {
+            Thread.sleep(100);
+        }
+    }
+
+    private DefaultMessageStore createMessageStore() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMappedFileSizeCommitLog(1024 * 1024 * 10);
+        messageStoreConfig.setMappedFileSizeConsumeQueue(1024 * 1024 * 10);
+        messageStoreConfig.setMaxHashSlotNum(10000);
+        messageStoreConfig.setMaxIndexNum(100 * 100);
+        messageStoreConfig.setMappedFileSizeTimerLog(1024 * 1024);
+        messageStoreConfig.setTimerWheelEnable(true);
+        messageStoreConfig.setTimerWheelSlots(60);
+        messageStoreConfig.setFlushDelayOffsetInterval(200);
+        return new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+    }
+
+    private MessageExtBrokerInner buildMessage() throws Exception {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(TOPIC);
+        msg.setTags("TAG1");
+        msg.setKeys("Hello");
+        msg.setBody("timer wheel test".getBytes());
+        msg.setQueueId(0);
+        msg.setSysFlag(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(new InetSocketAddress(InetAddress.getLocalHost(), 8123));
+        msg.setBornHost(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return msg;
+    }
+}